@@ -6,19 +6,19 @@
 package com.hh.aerospike.run;
 
 import com.google.gson.Gson;
+import com.hh.connector.netty.client.StreamSender;
+import com.hh.connector.netty.server.ServerDecoder;
 import com.hh.connector.process.BaseProcess;
 import com.hh.connector.server.Server;
 import com.hh.util.FileUtils;
 import io.netty.channel.ChannelHandlerContext;
 import java.io.File;
-import java.io.FileInputStream;
 import java.nio.charset.Charset;
 import com.google.gson.internal.LinkedTreeMap;
 import static com.hh.aerospike.run.StartApp.config;
 import static com.hh.aerospike.run.StartApp.hicache;
 import com.hh.cache.process.client.HiCacheSession;
 import com.hh.util.EncryptDecryptUtils;
-import org.apache.commons.io.IOUtils;
 
 /**
  *
@@ -62,8 +62,8 @@ public class ServerProcess extends BaseProcess{
             response.put("file-name", filePath);
         }
         response.put("access-token", request.get("access-token"));
-        response.put("data", FileUtils.byteArrayToHex(IOUtils.toByteArray(new FileInputStream(filePath))));
-        server.connector.send(response, FRONTEND_CONNECTOR);        
+        // sent in chunks after the response, the file is never held in memory
+        StreamSender.sendFile(server, FRONTEND_CONNECTOR, response, new File(filePath));        
     }
     
     public static void returnFileToFrontend(LinkedTreeMap request, byte[] data, String fileName, Server server) throws Exception {
@@ -74,7 +74,7 @@ public class ServerProcess extends BaseProcess{
         response.put("return-type", "file");
         response.put("file-name", fileName);
         response.put("access-token", request.get("access-token"));
-        response.put("data", FileUtils.byteArrayToHex(data));
+        response.put(ServerDecoder.BODY, data);
         server.connector.send(response, FRONTEND_CONNECTOR);        
     }
     
@@ -98,8 +98,8 @@ public class ServerProcess extends BaseProcess{
             response.put("file-name", filePath);
         }
         response.put("access-token", request.get("access-token"));
-        response.put("data", FileUtils.byteArrayToHex(IOUtils.toByteArray(new FileInputStream(filePath))));
-        server.connector.send(response, FRONTEND_CONNECTOR);        
+        // sent in chunks after the response, the file is never held in memory
+        StreamSender.sendFile(server, FRONTEND_CONNECTOR, response, new File(filePath));        
     }
 
     public void returnDownloadToFrontend(LinkedTreeMap request, String filePath) throws Exception {
@@ -132,7 +132,7 @@ public class ServerProcess extends BaseProcess{
         response.put("return-type", "data");
         response.put("content-type", contentType);
         response.put("access-token", request.get("access-token"));
-        response.put("data", FileUtils.byteArrayToHex(data.getBytes(Charset.forName(FileUtils.UTF_8))));
+        response.put(ServerDecoder.BODY, data.getBytes(Charset.forName(FileUtils.UTF_8)));
         server.connector.send(response, FRONTEND_CONNECTOR);        
     }    
     
@@ -6,12 +6,15 @@
 package com.viettel.authen.run;
 
 import com.google.gson.Gson;
+import com.hh.connector.netty.client.StreamSender;
+import com.hh.connector.netty.server.ServerDecoder;
 import com.hh.connector.process.BaseProcess;
 import com.hh.connector.server.Server;
+import com.hh.rdbms.Row;
+import com.hh.rdbms.RowHandler;
 import com.hh.util.FileUtils;
 import io.netty.channel.ChannelHandlerContext;
 import java.io.File;
-import java.io.FileInputStream;
 import java.nio.charset.Charset;
 import com.google.gson.internal.LinkedTreeMap;
 import static com.viettel.authen.run.StartApp.config;
@@ -26,8 +29,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import org.apache.commons.io.IOUtils;
-
 /**
  *
  * @author dvgp_admin
@@ -72,8 +73,8 @@ public class ServerProcess extends BaseProcess{
             response.put("file-name", filePath);
         }
         response.put("access-token", request.get("access-token"));
-        response.put("data", FileUtils.byteArrayToHex(IOUtils.toByteArray(new FileInputStream(filePath))));
-        server.connector.send(response, FRONTEND_CONNECTOR);        
+        // sent in chunks after the response, the file is never held in memory
+        StreamSender.sendFile(server, FRONTEND_CONNECTOR, response, new File(filePath));        
     }
     
     public static void returnFileToFrontend(LinkedTreeMap request, byte[] data, String fileName, Server server) throws Exception {
@@ -85,7 +86,7 @@ public class ServerProcess extends BaseProcess{
         response.put("file-name", fileName);
         if(request.get("cookie") != null) response.put("cookie", request.get("cookie"));
         response.put("access-token", request.get("access-token"));
-        response.put("data", FileUtils.byteArrayToHex(data));
+        response.put(ServerDecoder.BODY, data);
         server.connector.send(response, FRONTEND_CONNECTOR);        
     }
     
@@ -110,8 +111,8 @@ public class ServerProcess extends BaseProcess{
             response.put("file-name", filePath);
         }
         response.put("access-token", request.get("access-token"));
-        response.put("data", FileUtils.byteArrayToHex(IOUtils.toByteArray(new FileInputStream(filePath))));
-        server.connector.send(response, FRONTEND_CONNECTOR);        
+        // sent in chunks after the response, the file is never held in memory
+        StreamSender.sendFile(server, FRONTEND_CONNECTOR, response, new File(filePath));        
     }
 
     public void returnDownloadToFrontend(LinkedTreeMap request, String filePath) throws Exception {
@@ -149,7 +150,7 @@ public class ServerProcess extends BaseProcess{
         if(request.get("cookie") != null) response.put("cookie", request.get("cookie"));
         response.put("content-type", contentType);
         response.put("access-token", request.get("access-token"));
-        response.put("data", FileUtils.byteArrayToHex(data.getBytes(Charset.forName(FileUtils.UTF_8))));
+        response.put(ServerDecoder.BODY, data.getBytes(Charset.forName(FileUtils.UTF_8)));
         server.connector.send(response, FRONTEND_CONNECTOR);        
     }    
     
@@ -234,12 +235,16 @@ public class ServerProcess extends BaseProcess{
     
     public static void updateCredentialFromDatabase() {
         try {
-            List<Map> lstUser = StartApp.database.queryData("select user_id, user_name, password, msisdn, full_name, user_type, DATE_FORMAT(birthday, '%d-%m-%Y') as birthday, email from users ");
-            for(Map user : lstUser) {
-                int intUserId = Integer.parseInt(user.get("user_id").toString());
-                StartApp.hicache.setStoreAttribute("credentials_id", "" + intUserId, user.get("user_name"));
-                StartApp.hicache.setStoreAttribute("credentials", (String)user.get("user_name"), (new Gson()).toJson(user));
-            }
+            final Gson gson = new Gson();
+            // row by row, the user table is never loaded as a whole
+            StartApp.database.queryRows("select user_id, user_name, password, msisdn, full_name, user_type, DATE_FORMAT(birthday, '%d-%m-%Y') as birthday, email from users ", null, new RowHandler() {
+                @Override
+                public void handle(Row user) {
+                    int intUserId = Integer.parseInt(user.get("user_id").toString());
+                    StartApp.hicache.setStoreAttribute("credentials_id", "" + intUserId, user.get("user_name"));
+                    StartApp.hicache.setStoreAttribute("credentials", (String)user.get("user_name"), gson.toJson(user.toMap()));
+                }
+            });
 
             log.info("ABCDEF credentials loaded from DB");
 
@@ -49,7 +49,7 @@ public class ClientDispatcher extends UntypedActor {
     }
 
     public void process(Object obj) throws Exception {
-        LinkedTreeMap msg = ServerDecoder.byteArrayToMap((byte[]) obj);
+        LinkedTreeMap msg = ServerDecoder.toMap(obj);
         ActorRef actor = null;
         if (msg.containsKey("hi-process") && msg.get("hi-process") != null) {
             String command = msg.get("hi-process").toString();
@@ -5,6 +5,7 @@ import akka.actor.PoisonPill;
 import akka.actor.Props;
 import com.hh.connector.netty.server.NettyServer;
 import com.hh.connector.netty.server.ServerDecoder;
+import com.hh.connector.netty.server.StreamReceiver;
 import com.hh.connector.server.Config;
 import com.hh.connector.server.Server;
 import io.netty.buffer.ByteBuf;
@@ -37,6 +38,10 @@ public class ClientHandler extends SimpleChannelInboundHandler {
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
         try {
+            if (msg instanceof ServerDecoder.StreamFrame) {
+                StreamReceiver.receive(ctx.channel(), (ServerDecoder.StreamFrame) msg);
+                return;
+            }
             ActorRef actor = NettyServer.system.actorOf(Props.create(ClientDispatcher.class, ctx, server).withDispatcher("hh-dispatcher"));
             actor.tell(msg, actor);
             actor.tell(PoisonPill.getInstance(), ActorRef.noSender());
@@ -59,9 +59,8 @@ public class ClientSender extends UntypedActor {
             Config.printClientMessage(connector, msg, null, true, server.config.getConfig("server-code"));
             if(token != null && !token.isEmpty()) msg.put("token", token);
             if(serverCode != null && !serverCode.isEmpty()) msg.put("server-code", serverCode);
-            byte[] msgBytes = ServerDecoder.mapToByteArray(msg); // pack bản tin iso ra mảng byte
             if(channel != null) {
-                ByteBuf buf = channel.alloc().buffer().writeBytes(msgBytes);
+                ByteBuf buf = ServerDecoder.encode(channel.alloc(), msg); // pack bản tin iso ra mảng byte
                 Future future = channel.writeAndFlush(buf);
                 /*
                 gửi bản tin đi thông qua channel và nhận kết quả qua ChannelFuture.
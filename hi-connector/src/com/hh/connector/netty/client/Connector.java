@@ -49,24 +49,8 @@ public class Connector {
     
     public boolean send(LinkedTreeMap message, String connectorName) {
         try {
-            Integer id = 0;
-            if(message.get("hi-message-id") != null) 
-                id = Integer.parseInt(message.get("hi-message-id").toString());
-            else 
-                id = Integer.parseInt(message.get("id").toString());
-            List<NettyConnection> lstConnection = mapNettyConnection.get(connectorName);
-            log.info("Connection: " + lstConnection);
-            log.info("Connection name : " + connectorName);
-            int index = id % lstConnection.size();
-            NettyConnection connection = lstConnection.get(index);
-            if(!connection.isActive) {
-                for(int i = 1; i <= lstConnection.size(); i++) {
-                    int newIndex = (index + i) % lstConnection.size();
-                    connection = lstConnection.get(newIndex);
-                    if(connection.isActive) break;
-                }
-            }
-            if(connection != null && connection.isActive) {
+            NettyConnection connection = getConnection(message, connectorName);
+            if(connection != null) {
                 connection.send(message);
                 return true;
             }
@@ -77,4 +61,30 @@ public class Connector {
         return false;
     }
     
+    /**
+     * Active connection of connectorName which carries message, null if
+     * there is none
+     */
+    public NettyConnection getConnection(LinkedTreeMap message, String connectorName) {
+        Integer id = 0;
+        if(message.get("hi-message-id") != null) 
+            id = Integer.parseInt(message.get("hi-message-id").toString());
+        else 
+            id = Integer.parseInt(message.get("id").toString());
+        List<NettyConnection> lstConnection = mapNettyConnection.get(connectorName);
+        log.info("Connection: " + lstConnection);
+        log.info("Connection name : " + connectorName);
+        int index = id % lstConnection.size();
+        NettyConnection connection = lstConnection.get(index);
+        if(!connection.isActive) {
+            for(int i = 1; i <= lstConnection.size(); i++) {
+                int newIndex = (index + i) % lstConnection.size();
+                connection = lstConnection.get(newIndex);
+                if(connection.isActive) break;
+            }
+        }
+        if(connection != null && connection.isActive) return connection;
+        return null;
+    }
+    
 }
@@ -229,4 +229,8 @@ public class NettyConnection {
     public boolean connectionReady() {
         return (channel != null && channel.isActive());
     }
+
+    public Channel getChannel() {
+        return channel;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,233 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.connector.netty.client;
+
+import com.google.gson.internal.LinkedTreeMap;
+import com.hh.connector.netty.server.ServerDecoder;
+import com.hh.connector.netty.server.StreamReceiver;
+import com.hh.connector.server.Config;
+import com.hh.connector.server.Server;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AttributeKey;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Send a file as the body of a message in chunks instead of loading it
+ * into one frame.
+ *
+ * The message goes first with STREAM and its stream-length, then the
+ * content in stream frames of stream-chunk-size bytes (server.conf) and an
+ * end frame; the receiver relays it with StreamReceiver. Only one chunk of
+ * a file is written at a time, the next when the previous has left, and
+ * at most StreamReceiver.WINDOW bytes the receiver has not consumed are on
+ * the way: the transfer waits for its credit frames, so a slow client
+ * holds back its own stream only, not the connection. Chunks are written
+ * from the file with zero copy unless the connection is SSL.
+ */
+public class StreamSender {
+
+    private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(StreamSender.class.getSimpleName());
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    /* transfers of a channel by message id, used on its event loop only */
+    private static final AttributeKey<Map<String, FileTransfer>> TRANSFERS = AttributeKey.valueOf("hh-stream-transfers");
+
+    /**
+     * Send header followed by the content of file to connectorName. Returns
+     * false when there is no connection to send on.
+     */
+    public static boolean sendFile(Server server, String connectorName, LinkedTreeMap header, File file) throws IOException {
+        NettyConnection connection = server.connector.getConnection(header, connectorName);
+        Channel channel = connection == null ? null : connection.getChannel();
+        if (channel == null || !channel.isActive()) {
+            log.error("Cannot get connection to send stream");
+            return false;
+        }
+        final String serverCode = server.config.getConfig("server-code");
+        header.put(ServerDecoder.STREAM, true);
+        header.put("stream-length", file.length());
+        if (connection.token != null && !connection.token.isEmpty()) {
+            header.put("token", connection.token);
+        }
+        if (serverCode != null && !serverCode.isEmpty()) {
+            header.put("server-code", serverCode);
+        }
+        Config.printClientMessage(connectorName, header, null, true, serverCode);
+        final FileTransfer transfer = new FileTransfer(channel, header.get("hi-message-id").toString(),
+                file, getChunkSize(server), ServerDecoder.encode(channel.alloc(), header));
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                transfer.start();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Credit or cancel frame of a stream sent on channel, called on its
+     * event loop
+     */
+    public static void control(Channel channel, ServerDecoder.StreamFrame frame) {
+        try {
+            FileTransfer transfer = transfers(channel).get(frame.messageId);
+            if (transfer == null) {
+                return;
+            }
+            if (frame.kind == ServerDecoder.STREAM_CREDIT) {
+                transfer.credit(frame.data.readInt());
+            } else {
+                log.info("Stream " + frame.messageId + " cancelled by its receiver");
+                transfer.finish();
+            }
+        } finally {
+            frame.data.release();
+        }
+    }
+
+    private static Map<String, FileTransfer> transfers(Channel channel) {
+        Map<String, FileTransfer> transfers = channel.attr(TRANSFERS).get();
+        if (transfers == null) {
+            transfers = new HashMap<>();
+            channel.attr(TRANSFERS).set(transfers);
+        }
+        return transfers;
+    }
+
+    private static int getChunkSize(Server server) {
+        String size = server.config.getConfig("stream-chunk-size");
+        if (size != null && !size.trim().isEmpty()) {
+            // a chunk never goes past the window of the receiver
+            return Math.min(Integer.parseInt(size.trim()), StreamReceiver.WINDOW);
+        }
+        return DEFAULT_CHUNK_SIZE;
+    }
+
+    /*
+     * runs on the event loop of channel, so the prefix and the data of a
+     * chunk are never split by another message
+     */
+    private static class FileTransfer implements ChannelFutureListener {
+        private final Channel channel;
+        private final String messageId;
+        private final File file;
+        private final long length;
+        private final int chunkSize;
+        private final boolean zeroCopy;
+        private ByteBuf header;
+        private long position;
+        /* bytes the receiver has consumed (credit frames) */
+        private long acknowledged;
+        private boolean writing;
+        private boolean done;
+
+        FileTransfer(Channel channel, String messageId, File file, int chunkSize, ByteBuf header) {
+            this.channel = channel;
+            this.messageId = messageId;
+            this.file = file;
+            this.length = file.length();
+            this.chunkSize = chunkSize;
+            this.header = header;
+            this.zeroCopy = channel.pipeline().get(SslHandler.class) == null;
+        }
+
+        void start() {
+            transfers(channel).put(messageId, this);
+            channel.write(header);
+            header = null;
+            next();
+        }
+
+        void credit(int bytes) {
+            acknowledged += bytes;
+            next();
+        }
+
+        void finish() {
+            done = true;
+            transfers(channel).remove(messageId);
+        }
+
+        private void next() {
+            if (done || writing) {
+                return;
+            }
+            if (position >= length) {
+                finish();
+                channel.writeAndFlush(ServerDecoder.encodeStreamPrefix(channel.alloc(), messageId,
+                        ServerDecoder.STREAM_END, 0));
+                return;
+            }
+            if (position - acknowledged >= StreamReceiver.WINDOW) {
+                // credit() goes on
+                return;
+            }
+            int n = (int) Math.min(chunkSize, length - position);
+            Object data;
+            try {
+                data = read(n);
+            } catch (IOException ex) {
+                log.error("Error when read stream file " + file, ex);
+                finish();
+                byte[] error = String.valueOf(ex.getMessage()).getBytes(Charset.forName("UTF-8"));
+                ByteBuf frame = ServerDecoder.encodeStreamPrefix(channel.alloc(), messageId,
+                        ServerDecoder.STREAM_ERROR, error.length);
+                channel.writeAndFlush(frame.writeBytes(error));
+                return;
+            }
+            channel.write(ServerDecoder.encodeStreamPrefix(channel.alloc(), messageId, ServerDecoder.STREAM_DATA, n));
+            position += n;
+            writing = true;
+            channel.writeAndFlush(data).addListener(this);
+        }
+
+        private Object read(int n) throws IOException {
+            FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            if (zeroCopy) {
+                // the region closes fc once it is written
+                return new DefaultFileRegion(fc, position, n);
+            }
+            ByteBuf buf = channel.alloc().buffer(n);
+            try {
+                fc.position(position);
+                while (buf.writerIndex() < n) {
+                    if (buf.writeBytes(fc, n - buf.writerIndex()) < 0) {
+                        throw new IOException("File " + file + " shrank while it was sent");
+                    }
+                }
+                return buf;
+            } catch (IOException ex) {
+                buf.release();
+                throw ex;
+            } finally {
+                fc.close();
+            }
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            writing = false;
+            if (future.isSuccess()) {
+                next();
+            } else {
+                finish();
+                log.info("SEND_FAIL_NETTY stream " + messageId + ": " + future.cause());
+            }
+        }
+    }
+}
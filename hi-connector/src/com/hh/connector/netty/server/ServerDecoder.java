@@ -3,6 +3,8 @@ package com.hh.connector.netty.server;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import java.io.IOException;
@@ -19,18 +21,88 @@ public class ServerDecoder extends ByteToMessageDecoder {
 
     private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(ServerDecoder.class.getSimpleName());
 
+    /**
+     * Message key of a raw binary body (byte[]). It travels after the json
+     * of the message instead of hex inside it.
+     */
+    public static final String BODY = "hi-body";
+    /**
+     * Message key set on the header of a body that follows in stream frames
+     * (StreamSender), with its total size under "stream-length".
+     */
+    public static final String STREAM = "hi-stream";
+    /* high bit of the length prefix: frame is [json length][json][body] */
+    private static final int BINARY_FRAME = 0x80000000;
+    /* second bit: frame is [id length][message id][kind][data], a stream chunk */
+    private static final int STREAM_FRAME = 0x40000000;
+    public static final byte STREAM_DATA = 1;
+    public static final byte STREAM_END = 2;
+    public static final byte STREAM_ERROR = 3;
+    /* receiver to sender: data is the number of bytes consumed since the last credit */
+    public static final byte STREAM_CREDIT = 4;
+    /* receiver to sender: the stream is not wanted any more */
+    public static final byte STREAM_CANCEL = 5;
+
+    /**
+     * A frame with a binary body, decoded to a map by toMap()
+     */
+    public static class BinaryFrame {
+        public final byte[] json;
+        public final byte[] body;
+
+        public BinaryFrame(byte[] json, byte[] body) {
+            this.json = json;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A chunk of a streamed body. data is a buffer of its own which the
+     * receiver must release.
+     */
+    public static class StreamFrame {
+        public final String messageId;
+        public final byte kind;
+        public final ByteBuf data;
+
+        public StreamFrame(String messageId, byte kind, ByteBuf data) {
+            this.messageId = messageId;
+            this.kind = kind;
+            this.data = data;
+        }
+    }
+
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
         try {
             while (in.readableBytes() > 4) {
                 in.markReaderIndex();
-                int size = in.readInt();
+                int header = in.readInt();
+                int size = header & ~(BINARY_FRAME | STREAM_FRAME);
                 if (in.readableBytes() < size) {
                     in.resetReaderIndex();
                     return;
                 }
 
                 ByteBuf bb = in.readSlice(size);
+                if ((header & STREAM_FRAME) != 0) {
+                    byte[] id = new byte[bb.readUnsignedByte()];
+                    bb.readBytes(id);
+                    byte kind = bb.readByte();
+                    // copied out so that the cumulation buffer is not pinned
+                    ByteBuf data = ctx.alloc().buffer(bb.readableBytes());
+                    data.writeBytes(bb);
+                    out.add(new StreamFrame(new String(id, Charset.forName("UTF-8")), kind, data));
+                    continue;
+                }
+                if ((header & BINARY_FRAME) != 0) {
+                    byte[] json = new byte[bb.readInt()];
+                    bb.readBytes(json);
+                    byte[] body = new byte[bb.readableBytes()];
+                    bb.readBytes(body);
+                    out.add(new BinaryFrame(json, body));
+                    continue;
+                }
                 byte[] data = new byte[size];
                 bb.readBytes(data);
                 
@@ -61,6 +133,63 @@ public class ServerDecoder extends ByteToMessageDecoder {
         return data;
     }
 
+    /**
+     * Frame of a message. A byte[] BODY is appended as is, the buffer wraps
+     * it without copying.
+     */
+    public static ByteBuf encode(ByteBufAllocator alloc, LinkedTreeMap msg) throws IOException {
+        Object body = msg.get(BODY);
+        if (!(body instanceof byte[])) {
+            return alloc.buffer().writeBytes(mapToByteArray(msg));
+        }
+        LinkedTreeMap header = new LinkedTreeMap();
+        header.putAll(msg);
+        header.remove(BODY);
+        byte[] json = new Gson().toJson(header).getBytes(Charset.forName("UTF-8"));
+        byte[] data = (byte[]) body;
+        ByteBuf prefix = alloc.buffer(8 + json.length);
+        prefix.writeInt(BINARY_FRAME | (4 + json.length + data.length));
+        prefix.writeInt(json.length);
+        prefix.writeBytes(json);
+        return Unpooled.wrappedBuffer(prefix, Unpooled.wrappedBuffer(data));
+    }
+
+    /**
+     * Header of a stream frame carrying dataLength bytes, which are written
+     * after it (a buffer or a FileRegion).
+     */
+    public static ByteBuf encodeStreamPrefix(ByteBufAllocator alloc, String messageId, byte kind, int dataLength) {
+        byte[] id = messageId.getBytes(Charset.forName("UTF-8"));
+        ByteBuf prefix = alloc.buffer(6 + id.length);
+        prefix.writeInt(STREAM_FRAME | (2 + id.length + dataLength));
+        prefix.writeByte(id.length);
+        prefix.writeBytes(id);
+        prefix.writeByte(kind);
+        return prefix;
+    }
+
+    /**
+     * Stream frame sent back to the sender of a stream (STREAM_CREDIT,
+     * STREAM_CANCEL) with an int value as its data
+     */
+    public static ByteBuf encodeStreamControl(ByteBufAllocator alloc, String messageId, byte kind, int value) {
+        return encodeStreamPrefix(alloc, messageId, kind, 4).writeInt(value);
+    }
+
+    /**
+     * Message of a decoded frame, with its binary body under BODY
+     */
+    public static LinkedTreeMap toMap(Object frame) throws IOException, ClassNotFoundException {
+        if (frame instanceof BinaryFrame) {
+            LinkedTreeMap msg = byteArrayToMap(((BinaryFrame) frame).json);
+            if (msg != null) {
+                msg.put(BODY, ((BinaryFrame) frame).body);
+            }
+            return msg;
+        }
+        return byteArrayToMap((byte[]) frame);
+    }
+
     public static LinkedTreeMap byteArrayToMap(byte[] bytes) throws IOException, ClassNotFoundException {
         LinkedTreeMap obj = null;
         try {
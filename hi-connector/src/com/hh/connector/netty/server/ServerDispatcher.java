@@ -47,7 +47,7 @@ public class ServerDispatcher extends UntypedActor {
     }
     
     public void process(Object obj) throws Exception {
-        LinkedTreeMap msg = ServerDecoder.byteArrayToMap((byte[]) obj);      
+        LinkedTreeMap msg = ServerDecoder.toMap(obj);      
         String ipAddress = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress().getHostAddress();
         if (Config.CMD_KEEP_ALIGN.equals(msg.get("hi-path"))) {
             ServerHandler.onSender(ctx, Config.pingMessage(server.config.getConfig("server-code")), server);
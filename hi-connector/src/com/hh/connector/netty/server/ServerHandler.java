@@ -33,6 +33,11 @@ public class ServerHandler extends SimpleChannelInboundHandler {
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Object obj) throws Exception {
+        if (obj instanceof ServerDecoder.StreamFrame) {
+            // queued in order on the event loop, not through an actor
+            StreamReceiver.receive(ctx.channel(), (ServerDecoder.StreamFrame) obj);
+            return;
+        }
         ActorRef actor = NettyServer.system.actorOf(Props.create(ServerDispatcher.class, ctx, server).withDispatcher("hh-dispatcher"));
         actor.tell(obj, actor);
         actor.tell(PoisonPill.getInstance(), ActorRef.noSender());        
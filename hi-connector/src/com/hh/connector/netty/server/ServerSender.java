@@ -33,8 +33,7 @@ public class ServerSender extends UntypedActor {
             try {
                 LinkedTreeMap msg = (LinkedTreeMap) obj;
                 Config.printServerMessage((String) msg.get("server-code"), msg, null, false, server.config.getConfig("server-code"));
-                byte[] output = ServerDecoder.mapToByteArray(msg);
-                ByteBuf buf = ctx.channel().alloc().buffer().writeBytes(output);
+                ByteBuf buf = ServerDecoder.encode(ctx.channel().alloc(), msg);
                 ctx.channel().writeAndFlush(buf); 
             } catch(Exception ex) {
                 log.error("Error receive message", ex);
@@ -0,0 +1,275 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.connector.netty.server;
+
+import com.hh.connector.netty.client.StreamSender;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chunks of a streamed body (StreamSender) waiting for the process which
+ * relays them, by hi-message-id.
+ *
+ * Chunks are queued from the event loop as they are decoded. Flow control
+ * is per stream, the connection keeps carrying other messages: the sender
+ * has at most WINDOW bytes not yet consumed on the way, and the receiver
+ * gives credit back (STREAM_CREDIT) every CREDIT_BATCH bytes its consumer
+ * takes. A sender which ignores the window gets its stream cancelled
+ * (STREAM_CANCEL), as does one whose stream the receiver stops reading.
+ * A stream nobody claims within UNCLAIMED_TIMEOUT is dropped.
+ *
+ * Relaying a stream blocks its thread until the last chunk, so it is run
+ * on the relay pool (relay()) rather than on a dispatcher thread.
+ */
+public class StreamReceiver {
+
+    private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(StreamReceiver.class.getSimpleName());
+
+    public static final int WINDOW = 4 * 1024 * 1024;
+    public static final int CREDIT_BATCH = 1024 * 1024;
+    public static final long UNCLAIMED_TIMEOUT = 60000;
+    private static final long MAX_QUEUED = 2L * WINDOW;
+
+    private static final Object END = new Object();
+    private static final ConcurrentHashMap<String, StreamReceiver> receivers = new ConcurrentHashMap<>();
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "hh-stream-sweep");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private static final AtomicInteger relayCount = new AtomicInteger();
+    private static final ThreadPoolExecutor relays = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "hh-stream-relay-" + relayCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+    }
+
+    private final String messageId;
+    private final long created = System.currentTimeMillis();
+    /* ByteBuf chunks, then END or the IOException of an error frame */
+    private final LinkedBlockingQueue<Object> chunks = new LinkedBlockingQueue<>();
+    private final AtomicLong queued = new AtomicLong();
+    /* bytes taken and not yet given back as credit, consumer thread only */
+    private int consumed;
+    private volatile Channel channel;
+    private volatile boolean claimed;
+    private volatile boolean ended;
+    private volatile boolean cancelled;
+
+    private StreamReceiver(String messageId) {
+        this.messageId = messageId;
+    }
+
+    private static StreamReceiver get(String messageId) {
+        StreamReceiver receiver = receivers.get(messageId);
+        if (receiver == null) {
+            StreamReceiver created = new StreamReceiver(messageId);
+            receiver = receivers.putIfAbsent(messageId, created);
+            if (receiver == null) {
+                receiver = created;
+            }
+        }
+        return receiver;
+    }
+
+    /**
+     * Queue a decoded stream frame, called on the event loop of channel.
+     * Credit and cancel frames go to the StreamSender of the stream.
+     */
+    public static void receive(Channel channel, ServerDecoder.StreamFrame frame) {
+        if (frame.kind == ServerDecoder.STREAM_CREDIT || frame.kind == ServerDecoder.STREAM_CANCEL) {
+            StreamSender.control(channel, frame);
+            return;
+        }
+        StreamReceiver receiver = get(frame.messageId);
+        receiver.channel = channel;
+        receiver.offer(frame);
+    }
+
+    /**
+     * Run the blocking relay of a stream on a thread of its own
+     */
+    public static void relay(Runnable task) {
+        relays.execute(task);
+    }
+
+    /**
+     * The stream of a header carrying STREAM. Its chunks may not have
+     * arrived yet.
+     */
+    public static StreamReceiver claim(String messageId) {
+        StreamReceiver receiver = get(messageId);
+        receiver.claimed = true;
+        return receiver;
+    }
+
+    private void offer(ServerDecoder.StreamFrame frame) {
+        if (cancelled) {
+            frame.data.release();
+            if (frame.kind != ServerDecoder.STREAM_DATA) {
+                receivers.remove(messageId, this);
+            }
+            return;
+        }
+        if (frame.kind == ServerDecoder.STREAM_DATA) {
+            long n = queued.addAndGet(frame.data.readableBytes());
+            chunks.add(frame.data);
+            if (n > MAX_QUEUED) {
+                log.warn("Stream " + messageId + " sent past its window, cancelled");
+                cancel();
+                return;
+            }
+        } else {
+            ended = true;
+            if (frame.kind == ServerDecoder.STREAM_ERROR) {
+                chunks.add(new IOException("Stream " + messageId + " failed: "
+                        + frame.data.toString(Charset.forName("UTF-8"))));
+            } else {
+                chunks.add(END);
+            }
+            frame.data.release();
+        }
+        if (cancelled) {
+            drain();
+            if (ended) {
+                receivers.remove(messageId, this);
+            }
+        }
+    }
+
+    /**
+     * Next chunk, null at the end of the stream. The caller releases it.
+     * Fails when the sender reported an error or nothing came for
+     * idleTimeout ms.
+     */
+    public ByteBuf take(long idleTimeout) throws IOException, InterruptedException {
+        Object chunk = chunks.poll(idleTimeout, TimeUnit.MILLISECONDS);
+        if (chunk == null) {
+            cancel();
+            throw new IOException("Stream " + messageId + " stalled");
+        }
+        if (chunk == END) {
+            receivers.remove(messageId, this);
+            return null;
+        }
+        if (chunk instanceof IOException) {
+            receivers.remove(messageId, this);
+            throw (IOException) chunk;
+        }
+        ByteBuf buf = (ByteBuf) chunk;
+        queued.addAndGet(-buf.readableBytes());
+        consumed += buf.readableBytes();
+        if (consumed >= CREDIT_BATCH) {
+            control(ServerDecoder.STREAM_CREDIT, consumed);
+            consumed = 0;
+        }
+        return buf;
+    }
+
+    /**
+     * Copy the whole stream to out
+     */
+    public void transferTo(OutputStream out, long idleTimeout) throws IOException {
+        try {
+            ByteBuf buf;
+            while ((buf = take(idleTimeout)) != null) {
+                try {
+                    buf.readBytes(out, buf.readableBytes());
+                } finally {
+                    buf.release();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading stream " + messageId, ex);
+        }
+    }
+
+    /**
+     * Stop receiving, e.g. when the client went away. Chunks still on their
+     * way are released as they arrive; nothing is done after the end.
+     */
+    public void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        drain();
+        if (ended) {
+            receivers.remove(messageId, this);
+        } else {
+            control(ServerDecoder.STREAM_CANCEL, 0);
+        }
+    }
+
+    private void drain() {
+        Object chunk;
+        while ((chunk = chunks.poll()) != null) {
+            if (chunk instanceof ByteBuf) {
+                queued.addAndGet(-((ByteBuf) chunk).readableBytes());
+                ((ByteBuf) chunk).release();
+            }
+        }
+    }
+
+    private void control(byte kind, int value) {
+        Channel c = channel;
+        if (c != null && c.isActive()) {
+            c.writeAndFlush(ServerDecoder.encodeStreamControl(c.alloc(), messageId, kind, value));
+        }
+    }
+
+    private static void sweep() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, StreamReceiver>> it = receivers.entrySet().iterator();
+        while (it.hasNext()) {
+            StreamReceiver receiver = it.next().getValue();
+            Channel c = receiver.channel;
+            boolean closed = c != null && !c.isActive() && !receiver.ended;
+            if (closed || (!receiver.claimed && now - receiver.created > UNCLAIMED_TIMEOUT)) {
+                if (!receiver.claimed) {
+                    log.warn("Drop unclaimed stream " + receiver.messageId);
+                }
+                receiver.cancel();
+                it.remove();
+            }
+        }
+    }
+
+    public static int size() {
+        return receivers.size();
+    }
+}
@@ -43,10 +43,10 @@ public class Config {
     }    
     
     public static void printServerMessage(String client, LinkedTreeMap<String, Object> message, List notPrintField, boolean isRequest, String serverCode) {
-        StringBuilder content = new StringBuilder();
-        if (message.get("hi-message-id") == null) {
+        if (!log.isDebugEnabled() || message.get("hi-message-id") == null) {
             return;
         }
+        StringBuilder content = new StringBuilder();
         if(client == null || client.isEmpty()) client = "CLIENT";
         content.append("\n");
         if (isRequest) {
@@ -77,7 +77,11 @@ public class Config {
                 content.append("]");
                 content.append(padLeft(entry.getKey(), 30));
                 content.append(" : ");
-                content.append(entry.getValue());
+                if (entry.getValue() instanceof byte[]) {
+                    content.append("<").append(((byte[]) entry.getValue()).length).append(" bytes>");
+                } else {
+                    content.append(entry.getValue());
+                }
                 content.append(": \n");
             }
         }
@@ -91,10 +95,10 @@ public class Config {
     }    
     
     public static void printClientMessage(String connector, LinkedTreeMap<String, Object> message, List notPrintField, boolean isRequest, String serverCode) {
-        StringBuilder content = new StringBuilder();
-        if (message.get("hi-message-id") == null) {
+        if (!log.isDebugEnabled() || message.get("hi-message-id") == null) {
             return;
         }
+        StringBuilder content = new StringBuilder();
         content.append("\n");
         if (isRequest) {
             content.append("[");
@@ -124,7 +128,11 @@ public class Config {
                 content.append("]");
                 content.append(padLeft(entry.getKey(), 30));
                 content.append(" : ");
-                content.append(entry.getValue());
+                if (entry.getValue() instanceof byte[]) {
+                    content.append("<").append(((byte[]) entry.getValue()).length).append(" bytes>");
+                } else {
+                    content.append(entry.getValue());
+                }
                 content.append(": \n");
             }
         }
@@ -5,6 +5,8 @@
  */
 package com.hh.frontend.process.server;
 
+import com.hh.connector.netty.server.ServerDecoder;
+import com.hh.connector.netty.server.StreamReceiver;
 import com.hh.connector.process.BaseProcess;
 import com.hh.connector.server.Server;
 import com.hh.web.HttpUtils;
@@ -22,12 +24,39 @@ public class ReturnProcess extends BaseProcess {
     }
     
     @Override
-    public void process(LinkedTreeMap msg) {
+    public void process(final LinkedTreeMap msg) {
+        final String messageId = msg.get("hi-message-id").toString();
+        if(Boolean.TRUE.equals(msg.get(ServerDecoder.STREAM))) {
+            // the relay blocks until the last chunk, keep it off the dispatcher
+            final StreamReceiver stream = StreamReceiver.claim(messageId);
+            StreamReceiver.relay(new Runnable() {
+                @Override
+                public void run() {
+                    returnToClient(msg, messageId, stream);
+                }
+            });
+        } else {
+            returnToClient(msg, messageId, null);
+        }
+    }
+    
+    private void returnToClient(LinkedTreeMap msg, String messageId, StreamReceiver stream) {
         try {
-            String messageId = msg.get("hi-message-id").toString();
-            HttpUtils hu = (HttpUtils) HttpUtils.popResponseMessage(messageId);
-            if(hu == null) hu = new HttpUtils();
-            hu.returnToClient(hu, msg);
+            try {
+                HttpUtils hu = (HttpUtils) HttpUtils.popResponseMessage(messageId);
+                if(hu == null) {
+                    if(!"websocket".equals(msg.get("return-type"))) {
+                        // the request timed out and its client already got a 504
+                        log.warn("Drop late response of message " + messageId);
+                        return;
+                    }
+                    hu = new HttpUtils();
+                }
+                hu.returnToClient(hu, msg);
+            } finally {
+                // chunks not relayed to the client are released as they come
+                if(stream != null) stream.cancel();
+            }
         } catch(Exception ex) {
             log.error("Error when return client ", ex);
         }
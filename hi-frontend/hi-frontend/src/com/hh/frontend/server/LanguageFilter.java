@@ -5,7 +5,7 @@
  */
 package com.hh.frontend.server;
 
-import com.hh.action.ReturnFilter;
+import com.hh.action.LocalizedFilter;
 import static com.hh.frontend.run.StartApp.config;
 import java.io.File;
 import java.io.FileInputStream;
@@ -16,7 +16,7 @@ import java.util.Set;
  *
  * @author HienDM
  */
-public class LanguageFilter implements ReturnFilter {
+public class LanguageFilter implements LocalizedFilter {
     
     private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(LanguageFilter.class.getSimpleName());
     public static Properties propVN = new Properties();
@@ -42,6 +42,12 @@ public class LanguageFilter implements ReturnFilter {
         return content;
     }
     
+    @Override
+    public String language(String local) {
+        if(!"true".equals(config.getConfig("multi-language"))) return "";
+        return "US".equals(local) ? "US" : "VN";
+    }
+    
     public Properties getLanguage(String local) {
         if("US".equals(local)) return propUS;
         else return propVN;
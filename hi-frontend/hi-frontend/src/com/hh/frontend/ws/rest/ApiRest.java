@@ -0,0 +1,69 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.frontend.ws.rest;
+
+import com.google.gson.internal.LinkedTreeMap;
+import com.hh.connector.netty.server.ServerDecoder;
+import com.hh.frontend.server.FrontendServer;
+import com.hh.net.httpserver.HttpExchange;
+import com.hh.server.HHServer;
+import com.hh.web.AsyncBridge;
+import com.hh.web.HttpUtils;
+import com.hh.webservice.jersey.HandlerContainer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+
+/**
+ * REST entry to the backend: the json body is sent as the message of
+ * action path and the backend's json is returned. The request is
+ * suspended while the backend works, no server thread waits for it.
+ */
+@Path("/rs/api")
+public class ApiRest {
+
+    @POST
+    @Produces("application/json")
+    public void post(@QueryParam("path") String path, String jsondata,
+            @Context ContainerRequestContext request, @Suspended final AsyncResponse response) {
+        try {
+            HttpExchange exchange = (HttpExchange) request.getProperty(HandlerContainer.EXCHANGE_PROPERTY);
+            HttpUtils hu = new HttpUtils(exchange);
+            hu.server = FrontendServer.getInstance().server;
+            hu.path = path;
+            // BaseHandler has already run the filter for /rs/ paths
+            LinkedTreeMap message = ServerDecoder.byteArrayToMap(
+                    jsondata == null || jsondata.isEmpty() ? "{}".getBytes() : jsondata.getBytes());
+            // a little longer than the bridge deadline, which answers first
+            response.setTimeout(AsyncBridge.getDefaultTimeout() + 1000, TimeUnit.MILLISECONDS);
+            hu.sendAsync(message, 0).whenComplete(new BiConsumer<String, Throwable>() {
+                @Override
+                public void accept(String result, Throwable error) {
+                    if (error == null) {
+                        response.resume(result);
+                    } else if (error instanceof TimeoutException) {
+                        response.resume(Response.status(Response.Status.GATEWAY_TIMEOUT).build());
+                    } else {
+                        HHServer.mainLogger.error("HHServer error: ", error);
+                        response.resume(Response.status(Response.Status.BAD_GATEWAY).build());
+                    }
+                }
+            });
+        } catch (Exception ex) {
+            HHServer.mainLogger.error("HHServer error: ", ex);
+            response.resume(Response.serverError().build());
+        }
+    }
+}
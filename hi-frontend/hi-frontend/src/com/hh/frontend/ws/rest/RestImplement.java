@@ -18,6 +18,7 @@ public class RestImplement extends RestImpl {
     public void initRestService(HHServer server) {
         //--- Service HelloRest ---
 //        server.addRsAplication("/hello", HelloRest.class);
+//        server.addRsAplication("/api", ApiRest.class);
         
         //--- Service Getinfo ---
         //...
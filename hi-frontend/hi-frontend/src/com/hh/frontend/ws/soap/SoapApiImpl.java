@@ -6,7 +6,6 @@
 package com.hh.frontend.ws.soap;
 
 import com.google.gson.internal.LinkedTreeMap;
-import com.hh.action.HttpFilter;
 import com.hh.connector.netty.server.ServerDecoder;
 import com.hh.frontend.server.FrontendServer;
 import com.hh.net.httpserver.HttpExchange;
@@ -14,7 +13,6 @@ import com.hh.server.HHServer;
 import com.hh.web.HttpUtils;
 import com.hh.webservice.ws.WebServiceContext;
 import com.hh.webservice.ws.handler.MessageContext;
-import java.util.Date;
 import javax.annotation.Resource;
 import javax.jws.WebService;
 
@@ -30,19 +28,13 @@ public class SoapApiImpl implements SoapApi {
             MessageContext msgx = wsContext.getMessageContext();
             HttpExchange exchange = (HttpExchange) msgx.get("com.sun.xml.internal.ws.http.exchange");
             HttpUtils hu = new HttpUtils(exchange);
-            String filterClass = FrontendServer.getInstance().hhserver.handler.filterClass;
-            if (filterClass != null && !filterClass.trim().isEmpty()) {
-                hu.setFilter((HttpFilter) Class.forName(filterClass).newInstance());
-            }
+            hu.server = FrontendServer.getInstance().server;
+            hu.path = path;
+            hu.setFilter(FrontendServer.getInstance().hhserver.handler.getFilter());
             if(hu.doFilter()) {
                 LinkedTreeMap message = ServerDecoder.byteArrayToMap(jsondata.getBytes());
-                hu.sendToProcess(message);
-                Object lock = new Date().getTime();
-                SoapImplement.cacheResponse.put(message.get("hi-message-id"), lock);
-                synchronized(lock) {
-                    lock.wait();
-                    return (String)SoapImplement.cacheResponse.getIfPresent(message.get("hi-message-id"));
-                }
+                // blocks this thread until the deadline at most, SoapAsyncApiImpl does not block
+                return hu.sendAsync(message, 0).get();
             }
         } catch (Exception ex) {
             HHServer.mainLogger.error("HHServer error: ", ex);
@@ -0,0 +1,116 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.frontend.ws.soap;
+
+import com.google.gson.internal.LinkedTreeMap;
+import com.hh.connector.netty.server.ServerDecoder;
+import com.hh.frontend.server.FrontendServer;
+import com.hh.net.httpserver.HttpExchange;
+import com.hh.server.HHServer;
+import com.hh.web.HttpUtils;
+import com.hh.webservice.ws.Service;
+import com.hh.webservice.ws.ServiceMode;
+import com.hh.webservice.ws.WebServiceContext;
+import com.hh.webservice.ws.WebServiceException;
+import com.hh.webservice.ws.WebServiceProvider;
+import com.hh.xml.internal.ws.api.server.AsyncProvider;
+import com.hh.xml.internal.ws.api.server.AsyncProviderCallback;
+import com.hh.xml.internal.ws.developer.JAXWSProperties;
+import java.util.function.BiConsumer;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Non-blocking version of SoapApiImpl with the same postRequest message.
+ * The request is sent to the backend and the web service thread returns at
+ * once; the response is written when ReturnProcess brings it back, or a
+ * fault is sent after backend-timeout.
+ */
+@WebServiceProvider(serviceName = "SoapApiImplService", portName = "SoapApiImplPort",
+        targetNamespace = SoapAsyncApiImpl.NAMESPACE)
+@ServiceMode(Service.Mode.PAYLOAD)
+public class SoapAsyncApiImpl implements AsyncProvider<Source> {
+
+    public static final String NAMESPACE = "http://soap.ws.frontend.hh.com/";
+    private static final DocumentBuilderFactory documentFactory = DocumentBuilderFactory.newInstance();
+    private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+    static {
+        documentFactory.setNamespaceAware(true);
+    }
+
+    @Override
+    public void invoke(Source request, final AsyncProviderCallback<Source> callback, WebServiceContext context) {
+        try {
+            HttpExchange exchange = (HttpExchange) context.getMessageContext().get(JAXWSProperties.HTTP_EXCHANGE);
+            Element operation = toElement(request);
+            String path = childText(operation, "path");
+            String jsondata = childText(operation, "jsondata");
+            HttpUtils hu = new HttpUtils(exchange);
+            hu.server = FrontendServer.getInstance().server;
+            hu.path = path;
+            hu.setFilter(FrontendServer.getInstance().hhserver.handler.getFilter());
+            if (!hu.doFilter()) {
+                callback.send(response(""));
+                return;
+            }
+            LinkedTreeMap message = ServerDecoder.byteArrayToMap(jsondata == null ? "{}".getBytes() : jsondata.getBytes());
+            hu.sendAsync(message, 0).whenComplete(new BiConsumer<String, Throwable>() {
+                @Override
+                public void accept(String result, Throwable error) {
+                    if (error != null) {
+                        HHServer.mainLogger.error("HHServer error: ", error);
+                        callback.sendError(new WebServiceException(error));
+                        return;
+                    }
+                    try {
+                        callback.send(response(result == null ? "" : result));
+                    } catch (Exception ex) {
+                        callback.sendError(ex);
+                    }
+                }
+            });
+        } catch (Exception ex) {
+            HHServer.mainLogger.error("HHServer error: ", ex);
+            callback.sendError(ex);
+        }
+    }
+
+    private static Element toElement(Source source) throws Exception {
+        DOMResult result = new DOMResult();
+        transformerFactory.newTransformer().transform(source, result);
+        Node node = result.getNode();
+        if (node instanceof Document) {
+            return ((Document) node).getDocumentElement();
+        }
+        return (Element) node;
+    }
+
+    private static String childText(Element parent, String name) {
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() == Node.ELEMENT_NODE && name.equals(n.getLocalName())) {
+                return n.getTextContent();
+            }
+        }
+        return null;
+    }
+
+    private static Source response(String value) throws Exception {
+        Document doc = documentFactory.newDocumentBuilder().newDocument();
+        Element root = doc.createElementNS(NAMESPACE, "ns2:postRequestResponse");
+        Element ret = doc.createElement("return");
+        ret.setTextContent(value);
+        root.appendChild(ret);
+        doc.appendChild(root);
+        return new DOMSource(doc);
+    }
+}
@@ -18,7 +18,9 @@ public class SoapImplement extends SoapImpl {
     @Override
     public void initSoapService(HHServer server) throws Exception {
         //--- Service HelloWorld ---
-        server.addSoapAplication(SOAPBinding.SOAP11HTTP_BINDING, "/soapapi", SoapApiImpl.class);     
+        server.addSoapAplication(SOAPBinding.SOAP11HTTP_BINDING, "/soapapi", SoapApiImpl.class);
+        // same postRequest message without blocking a thread, no WSDL
+        server.addSoapAplication(SOAPBinding.SOAP11HTTP_BINDING, "/soapapi-async", SoapAsyncApiImpl.class);
         
         //--- Service GetInfo ---
         //...
@@ -12,20 +12,14 @@ import com.hh.server.WebImpl;
 import com.hh.util.FileUtils;
 import com.hh.web.HttpUtils;
 import com.hh.web.PageFactory;
+import com.hh.web.PageTemplateCache;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
 import org.apache.commons.io.IOUtils;
 
@@ -38,8 +32,6 @@ public class BaseAction {
     public static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(BaseAction.class.getSimpleName());
     public HttpUtils httpUtils;
     public HashMap returnData = new HashMap();
-    private static HashMap fileResources = new HashMap();
-    private static HashMap cacheResource = new HashMap();
     
     public BaseAction(HttpUtils hu) {
         httpUtils = hu;
@@ -54,154 +46,24 @@ public class BaseAction {
     }    
     
     public void returnPage(String name, String template, HashMap<String, Object> child, int statusCode) throws IOException {
-        byte[] data = new byte[1];
-        String content = null;
-        HashMap pageConfig = (HashMap) fileResources.get("page_" + name);
-        String contextPath = template.substring(0, template.indexOf("/"));
-        String cacheFile = contextPath + "/share/cache/" + name.replace("/", "-") + ".appcache";
-        
-        boolean reload = false;
-        if(pageConfig == null) {
-            pageConfig = new HashMap();
-            reload = true;
-        } else {
-            if("true".equals(HHServer.config.getConfig("use-browser-cache"))) {
-                File fileCache = new File("../app/" + cacheFile);
-                if(fileCache.exists()) {
-                    FileUtils fu = new FileUtils();
-                    String cacheContent = fu.readFileToString("../app/" + cacheFile, FileUtils.UTF_8);
-                    String[] properties = cacheContent.split(System.getProperty("line.separator").toString());
-                    for (String property : properties) {
-                        if (property != null && property.trim().length() > 9 && property.trim().substring(0, 9).equals("../../../")) {
-                            File file = new File("../app/" + property.substring(9));
-                            if (file.exists()) {
-                                if (cacheResource.get(property.substring(9)) == null || 
-                                        file.lastModified() != (long) cacheResource.get(property.substring(9))) {
-                                    reload = true;
-                                    break;
-                                }
-                            }                    
-                        }
-                    }
-                } else {
-                    reload = true;
-                }
-            }
-            
-            File templateFile = new File("../app/" + template);
-            if (templateFile.exists()) 
-                if(templateFile.lastModified() != (long)pageConfig.get("template"))
-                    reload = true;
-            if(!reload && child != null) {
-                for(Map.Entry<String, Object> entry : child.entrySet()) {
-                    String childPath = (String)entry.getKey();
-                    File file = new File("../app/" + childPath);
-                    if(file.exists()) {
-                        if(file.lastModified() != (long)pageConfig.get(childPath)) {
-                            reload = true;
-                            break;
-                        }
-                    }
-                }
-            }
-        }
-
-        if (reload) {
-            FileUtils fu = new FileUtils();
-            File templateFile = new File("../app/" + template);
-            if(templateFile.exists()) {
-                pageConfig.put("template", templateFile.lastModified());
-                content = fu.readFileToString(templateFile, FileUtils.UTF_8);
-                if(child != null) {
-                    for(Map.Entry<String, Object> entry : child.entrySet()) {
-                        String childPath = (String) entry.getKey();
-                        File file = new File("../app/" + childPath);
-                        if (file.exists()) {
-                            String childContent = fu.readFileToString(file, FileUtils.UTF_8);
-                            content = content.replace("<!-- " + entry.getValue() + " -->", childContent);
-                            pageConfig.put(childPath, file.lastModified());
-                        }
-                    }
-                }
-            }
-            
-            if("true".equals(HHServer.config.getConfig("use-browser-cache"))) {
-                // reload client cache
-                int index = content.indexOf("<html") + 5;
-                content = "<html manifest=\"/" + cacheFile + "\" " + content.substring(index);
-                reloadClientCache(content, "../app/" + cacheFile);
-            }
-            
-            pageConfig.put("content", content);
-            fileResources.put("page_" + name, pageConfig);
-            
-        } else {
-            content = (String) pageConfig.get("content");
+        PageTemplateCache.Rendered page = PageTemplateCache.render(name, template, child,
+                httpUtils.returnFilter, httpUtils.getCookie("local"));
+        if (page == null) {
+            httpUtils.sendNotFoundResponse();
+            return;
         }
-        
-        content = httpUtils.returnFilter.execute(content, httpUtils.getCookie("local"));
-        
-        data = content.getBytes(Charset.forName(FileUtils.UTF_8));
 
         httpUtils.httpExchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
-        httpUtils.httpExchange.getResponseHeaders().set("Content-Encoding", "gzip");
-        httpUtils.httpExchange.sendResponseHeaders(statusCode, 0);
-        try (GZIPOutputStream os = new GZIPOutputStream(httpUtils.httpExchange.getResponseBody());) {
-            os.write(data);
-            os.close();
+        String acceptEncoding = httpUtils.httpExchange.getRequestHeaders().getFirst("Accept-Encoding");
+        byte[] data = page.data;
+        if (acceptEncoding == null || acceptEncoding.contains("gzip")) {
+            httpUtils.httpExchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            data = page.gzip;
         }
-    }
-    
-    private void reloadClientCache(String webContent, String cacheFile) {
-        cacheFile = cacheFile.replace("/", File.separator);
-        File cache = new File(cacheFile);
-        if (!cache.exists()) {
-            Pattern scriptPattern = Pattern.compile("src=\"(.*?)\"");
-            Matcher scriptMatcher = scriptPattern.matcher(webContent);
-            List lstString = new ArrayList();
-            while (scriptMatcher.find()) {
-                lstString.add(scriptMatcher.group(1));
-            }
-
-            Pattern cssPattern = Pattern.compile("href=\"(.*?)css\"");
-            Matcher cssMatcher = cssPattern.matcher(webContent);
-            while (cssMatcher.find()) {
-                lstString.add(cssMatcher.group(1) + "css");
-            }        
-
-            StringBuilder cacheContent = new StringBuilder();
-            cacheContent.append("CACHE MANIFEST\n");
-            cacheContent.append("# version: ");
-            cacheContent.append((new Date()).getTime());
-            cacheContent.append("\n");
-            cacheContent.append("# Explicitly cached entries\n");
-
-            for(int i = 0; i < lstString.size(); i++) {
-                cacheContent.append("../../../");
-                File resourceFile = new File("../app/" + lstString.get(i));
-                if(resourceFile.exists()) cacheResource.put(lstString.get(i), resourceFile.lastModified());
-                cacheContent.append(lstString.get(i));
-                cacheContent.append("\n");
-            }
-
-            cacheContent.append("\n");
-            cacheContent.append("# offline will be displayed if the user is offline\n");
-            cacheContent.append("FALLBACK:\n");
-            cacheContent.append("\n");
-            cacheContent.append("# All other resources (e.g. sites) require the user to be online. \n");
-            cacheContent.append("NETWORK:\n");
-            cacheContent.append("*\n");
-            cacheContent.append("\n");
-            cacheContent.append("# Additional resources to cache\n");
-            cacheContent.append("CACHE:");
-
-            try {
-                cache.createNewFile();
-                FileUtils fu = new FileUtils();
-                fu.writeStringToFile(cacheContent.toString(), cacheFile, FileUtils.UTF_8);
-            } catch (Exception ex) {
-                log.error("Error when write cache file", ex);
-            }
+        httpUtils.httpExchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        httpUtils.httpExchange.sendResponseHeaders(statusCode, data.length);
+        try (OutputStream os = httpUtils.httpExchange.getResponseBody();) {
+            os.write(data);
         }
     }
     
@@ -9,8 +9,12 @@ package com.hh.action;
  *
  * @author HienDM
  */
-public class DefaultReturnFilter implements ReturnFilter {
+public class DefaultReturnFilter implements LocalizedFilter {
     public String execute(String data, String local) {
         return data;
     }
+
+    public String language(String local) {
+        return "";
+    }
 }
@@ -0,0 +1,20 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.action;
+
+/**
+ * ReturnFilter whose output depends on a few known languages only. The
+ * page cache keys rendered pages by language(local), so any local value
+ * the filter does not know shares the page of its fallback language.
+ */
+public interface LocalizedFilter extends ReturnFilter {
+
+    /**
+     * Language execute uses for local, the same for every local which
+     * gives the same output
+     */
+    public String language(String local);
+}
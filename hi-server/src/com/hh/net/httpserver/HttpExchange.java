@@ -27,6 +27,8 @@ package com.hh.net.httpserver;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 
 /**
@@ -265,4 +267,33 @@ public abstract class HttpExchange {
      * @return client socket
      */
     public abstract SocketChannel getChannel ();
+
+    /**
+     * Writes <code>count</code> bytes of <code>src</code>, starting at
+     * <code>position</code>, to the response body. Must be called after
+     * {@link #sendResponseHeaders(int,long)}. Implementations may hand the
+     * file to the socket with {@link FileChannel#transferTo} instead of
+     * copying it through the response stream.
+     * @param src the file to send
+     * @param position first byte of the file to send
+     * @param count number of bytes to send
+     * @throws IOException if an I/O error occurs
+     */
+    public void sendFile (FileChannel src, long position, long count) throws IOException {
+        OutputStream os = getResponseBody();
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+        while (count > 0) {
+            buf.clear();
+            if (buf.remaining() > count) {
+                buf.limit((int) count);
+            }
+            int n = src.read(buf, position);
+            if (n < 0) {
+                throw new EOFException("file is shorter than expected");
+            }
+            os.write(buf.array(), 0, n);
+            position += n;
+            count -= n;
+        }
+    }
 }
@@ -60,7 +60,7 @@ public class Dispatcher extends UntypedActor {
                 connsToRegister.clear();
 
                 List<Event> list = null;
-                server.selector.select(1000);
+                server.selector.select(server.wheel.timeout());
                 synchronized (server.lolock) {
                     if (server.events.size() > 0) {
                         list = server.events;
@@ -95,14 +95,18 @@ public class Dispatcher extends UntypedActor {
                             continue; /* cancel something ? */
 
                         }
+                        if (!server.acceptConnection()) {
+                            chan.close();
+                            continue;
+                        }
                         chan.configureBlocking(false);
                         SelectionKey newkey = chan.register(server.selector, SelectionKey.OP_READ);
                         HttpConnection c = new HttpConnection();
                         c.selectionKey = newkey;
                         c.setChannel(chan);
                         newkey.attach(c);
-                        server.requestStarted(c);
                         server.allConnections.add(c);
+                        server.requestStarted(c);
                     } else {
                         try {
                             if (key.isReadable()) {
@@ -111,7 +115,7 @@ public class Dispatcher extends UntypedActor {
 
                                 key.cancel();
                                 chan.configureBlocking(true);
-                                if (server.idleConnections.remove(conn)) {
+                                if (server.leaveIdle(conn)) {
                                     // was an idle connection so add it
                                     // to reqConnections set.
                                     server.requestStarted(conn);
@@ -129,6 +133,7 @@ public class Dispatcher extends UntypedActor {
                 }
                 // call the selector just to process the cancelled keys
                 server.selector.selectNow();
+                server.wheel.advance();
             } catch (IOException e) {
                 server.logger.log(Level.FINER, "Dispatcher (4)", e);
             } catch (Exception e) {
@@ -154,7 +159,7 @@ public class Dispatcher extends UntypedActor {
                     if (!is.isEOF()) {
                         t.close = true;
                     }
-                    if (t.close || server.idleConnections.size() >= ServerImpl.MAX_IDLE_CONNECTIONS) {
+                    if (t.close || server.idleFull()) {
                         c.close();
                         server.allConnections.remove(c);
                     } else {
@@ -189,8 +194,7 @@ public class Dispatcher extends UntypedActor {
                 SelectionKey key = chan.register(server.selector, SelectionKey.OP_READ);
                 key.attach(c);
                 c.selectionKey = key;
-                c.time = server.getTime() + ServerImpl.IDLE_INTERVAL;
-                server.idleConnections.add(c);
+                server.connectionIdle(c);
             }
         } catch (IOException e) {
             server.dprint(e);
@@ -15,7 +15,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.nio.channels.SocketChannel;
-import java.util.Date;
 import java.util.logging.Level;
 import javax.net.ssl.SSLEngine;
 
@@ -175,8 +174,6 @@ public class Exchange extends UntypedActor {
     }
 
     void requestCompleted (HttpConnection c) {
-        assert c.getState() == HttpConnection.State.REQUEST;
-        c.rspStartedTime = new Date().getTime();
-        c.setState (HttpConnection.State.RESPONSE);
+        server.requestCompleted (c);
     }    
 }
@@ -30,6 +30,7 @@ import com.hh.net.httpserver.HttpPrincipal;
 import com.hh.net.httpserver.HttpExchange;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
 import javax.net.ssl.*;
 import java.util.*;
 import java.util.logging.Logger;
@@ -129,6 +130,25 @@ class ExchangeImpl {
         }
         closed = true;
 
+        if (connection != null && connection.nio != null) {
+            /* non-blocking connection: complete the response and leave
+             * the connection to NioConnection, which keeps it alive for
+             * the next request unless the response could not be finished.
+             */
+            NioConnection nc = connection.nio;
+            try {
+                if(uos != null) uos.close();
+                if(uis != null) uis.close();
+                if(ros != null) ros.close();
+            } catch (IOException e) {
+                ServerImpl.dprint(e);
+            }
+            if (!writefinished) {
+                nc.abort();
+            }
+            return;
+        }
+
         /* close the underlying connection if,
          * a) the streams not set up yet, no response can be sent, or
          * b) if the wrapper output stream is not set up, or
@@ -389,6 +409,22 @@ class ExchangeImpl {
         attributes.put (name, value);
     }
 
+    /**
+     * zero-copy path of HttpExchange.sendFile: only possible while the
+     * response body is the fixed length stream set up by
+     * sendResponseHeaders (no filter replaced it). Returns false when
+     * the caller has to copy the bytes itself.
+     */
+    boolean sendFile (FileChannel src, long position, long count)
+    throws IOException
+    {
+        if (uos == null || uos != uos_orig
+                || !(uos_orig.wrapped instanceof FixedLengthOutputStream)) {
+            return false;
+        }
+        return ((FixedLengthOutputStream) uos_orig.wrapped).transferFrom(src, position, count);
+    }
+
     public void setStreams (InputStream i, OutputStream o) {
         assert uis != null;
         if (i != null) {
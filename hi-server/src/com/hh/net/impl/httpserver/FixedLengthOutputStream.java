@@ -26,6 +26,8 @@
 package com.hh.net.impl.httpserver;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 
 /**
  * a class which allows the caller to write up to a defined
@@ -76,6 +78,41 @@ class FixedLengthOutputStream extends FilterOutputStream
         remaining -= len;
     }
 
+    /**
+     * send count bytes of src straight to the socket. Only done when the
+     * response goes unbuffered to a blocking plain channel; returns false
+     * (nothing written) otherwise.
+     */
+    boolean transferFrom (FileChannel src, long position, long count) throws IOException {
+        if (closed) {
+            throw new IOException ("stream closed");
+        }
+        if (count > remaining) {
+            throw new IOException ("too many bytes to write to stream");
+        }
+        if (!(out instanceof Request.WriteStream)) {
+            return false;
+        }
+        SocketChannel chan = ((Request.WriteStream) out).channel;
+        if (!chan.isBlocking()) {
+            return false;
+        }
+        while (count > 0) {
+            long n = src.transferTo (position, count, chan);
+            if (n <= 0) {
+                if (position >= src.size()) {
+                    throw new EOFException ("file is shorter than expected");
+                }
+                continue;
+            }
+            position += n;
+            count -= n;
+            remaining -= n;
+        }
+        eof = (remaining == 0);
+        return true;
+    }
+
     public void close () throws IOException {
         if (closed) {
             return;
@@ -51,8 +51,14 @@ class HttpConnection {
 
     SocketChannel chan;
     SelectionKey selectionKey;
+    /* set while the connection is served by NioDispatcher */
+    volatile NioConnection nio;
     String protocol;
-    long time;
+    /* when the current state times out, 0 for never (ServerImpl.wheel) */
+    volatile long deadline;
+    /* 1 while on the wheel, 1 while parked idle; changed by CAS only */
+    volatile int scheduled;
+    volatile int idle;
     volatile long creationTime; // time this connection was created
     volatile long rspStartedTime; // time we started writing the response
     int remaining;
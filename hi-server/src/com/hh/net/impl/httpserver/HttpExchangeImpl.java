@@ -30,6 +30,7 @@ import com.hh.net.httpserver.HttpPrincipal;
 import com.hh.net.httpserver.HttpExchange;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 
 class HttpExchangeImpl extends HttpExchange {
@@ -118,4 +119,10 @@ class HttpExchangeImpl extends HttpExchange {
     public SocketChannel getChannel() {
         return impl.connection.chan;
     }
+
+    public void sendFile (FileChannel src, long position, long count) throws IOException {
+        if (!impl.sendFile(src, position, count)) {
+            super.sendFile(src, position, count);
+        }
+    }
 }
@@ -0,0 +1,482 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.net.impl.httpserver;
+
+import com.hh.net.httpserver.Headers;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Non-blocking state of one keep-alive connection. The channel stays
+ * registered with its SelectorLoop for the whole lifetime of the
+ * connection: requests are parsed incrementally from a reusable buffer,
+ * pipelined requests are queued and handed to the worker pool one at a
+ * time (so responses keep their order), and response bytes produced by
+ * the worker are queued here and written by the selector thread.
+ *
+ * Unless stated otherwise the methods run on the selector thread.
+ */
+class NioConnection {
+
+    static final int READ_BUF_SIZE = 16 * 1024;
+    /* a writer blocks once this many response bytes are waiting for the socket */
+    static final long HIGH_WATER = 512 * 1024;
+    static final long LOW_WATER = 128 * 1024;
+    private static final int MAX_GATHER = 16;
+
+    /* a request fully read off the wire, waiting for its turn */
+    static class Pending {
+        String requestLine;
+        Headers headers;
+        long contentLength;
+        byte[] body;
+        /* body (or upgraded protocol) continues on the channel */
+        boolean stream;
+    }
+
+    final HttpConnection conn;
+    final SelectorLoop loop;
+    final NioDispatcher dispatcher;
+    final ServerImpl server;
+    final SocketChannel chan;
+    SelectionKey key;
+
+    private final ByteBuffer readBuf = ByteBuffer.allocate(READ_BUF_SIZE);
+    private final RequestParser parser;
+    private final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private boolean inFlight;
+    private boolean readPaused;
+    private boolean inputShutdown;
+    private boolean closeAfterWrite;
+    private boolean continueSent;
+    boolean detached;
+
+    /* touched by worker threads */
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Object writeLock = new Object();
+    volatile boolean closed;
+
+    NioConnection (HttpConnection conn, SocketChannel chan, SelectorLoop loop, NioDispatcher dispatcher) {
+        this.conn = conn;
+        this.chan = chan;
+        this.loop = loop;
+        this.dispatcher = dispatcher;
+        this.server = dispatcher.server;
+        this.parser = new RequestParser(ServerConfig.getMaxBufferedBody());
+    }
+
+    void onReadable () {
+        int n;
+        try {
+            n = chan.read(readBuf);
+        } catch (IOException e) {
+            server.logger.log(Level.FINER, "NioConnection (1)", e);
+            close();
+            return;
+        }
+        if (n == -1) {
+            /* client half-closed: finish what we have, then close */
+            inputShutdown = true;
+            pauseRead();
+            if (!inFlight && pending.isEmpty()) {
+                closeAfterWrite();
+            }
+        }
+        processInput();
+    }
+
+    void onWritable () {
+        flushOutbound();
+    }
+
+    /* parse whatever is buffered and dispatch complete requests */
+    private void processInput () {
+        if (closed || detached) {
+            return;
+        }
+        readBuf.flip();
+        try {
+            while (readBuf.hasRemaining() && !closeAfterWrite && !detached) {
+                int r = parser.parse(readBuf);
+                if (parser.isStarted() && conn.getState() == HttpConnection.State.IDLE) {
+                    server.requestStarted(conn);
+                }
+                if (r == RequestParser.NEED_MORE) {
+                    sendContinue();
+                    break;
+                }
+                Pending p = new Pending();
+                p.requestLine = parser.requestLine();
+                p.headers = parser.headers();
+                p.contentLength = parser.contentLength();
+                p.stream = r == RequestParser.STREAM || isUpgrade(p.headers);
+                if (p.stream) {
+                    /* everything after this request belongs to the channel */
+                    byte[] body = parser.body();
+                    byte[] b = new byte[body.length + readBuf.remaining()];
+                    System.arraycopy(body, 0, b, 0, body.length);
+                    readBuf.get(b, body.length, readBuf.remaining());
+                    p.body = b;
+                    pending.add(p);
+                    parser.reset();
+                    pauseRead();
+                    break;
+                }
+                p.body = parser.body();
+                parser.reset();
+                continueSent = false;
+                pending.add(p);
+                if (pending.size() >= ServerConfig.getMaxPipelinedRequests()) {
+                    pauseRead();
+                    break;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            server.logger.log(Level.FINER, "NioConnection (2)", e);
+            if (!inFlight && pending.isEmpty()) {
+                sendReply(Code.HTTP_BAD_REQUEST, "Bad request");
+            }
+            closeAfterWrite();
+            return;
+        } finally {
+            if (!closed) {
+                readBuf.compact();
+            }
+        }
+        if (!readBuf.hasRemaining()) {
+            /* buffer full of requests that are not allowed to run yet */
+            pauseRead();
+        }
+        dispatchNext();
+    }
+
+    private boolean isUpgrade (Headers headers) {
+        String upgrade = headers.getFirst("Upgrade");
+        return upgrade != null && !upgrade.isEmpty();
+    }
+
+    /*
+     * interim 100 response for a client waiting before it sends the body.
+     * Only safe when no earlier pipelined response is still outstanding.
+     */
+    private void sendContinue () {
+        if (continueSent || inFlight || !pending.isEmpty()
+                || !parser.headersRead() || !parser.bodyPending()) {
+            return;
+        }
+        String exp = parser.headers().getFirst("Expect");
+        if (exp != null && exp.equalsIgnoreCase("100-continue")) {
+            continueSent = true;
+            enqueue(ByteBuffer.wrap(bytes("HTTP/1.1 100 Continue\r\n\r\n")));
+            flushOutbound();
+        }
+    }
+
+    /* hand the next queued request to the worker pool */
+    private void dispatchNext () {
+        if (closed || inFlight || pending.isEmpty()) {
+            return;
+        }
+        Pending p = pending.peek();
+        if (p.stream) {
+            /* earlier responses must be on the wire before the channel goes blocking */
+            if (!outbound.isEmpty()) {
+                return;
+            }
+            pending.poll();
+            detach(p);
+            return;
+        }
+        pending.poll();
+        inFlight = true;
+        if (conn.getState() != HttpConnection.State.REQUEST) {
+            server.requestStarted(conn);
+        }
+        try {
+            dispatcher.submit(new NioExchange(this, p,
+                    new ByteArrayInputStream(p.body), new NioWriteStream(this)));
+        } catch (RejectedExecutionException e) {
+            inFlight = false;
+            server.logger.log(Level.FINER, "NioConnection: worker pool full", e);
+            sendReply(Code.HTTP_UNAVAILABLE, "Server busy");
+            closeAfterWrite();
+            return;
+        }
+        if (readPaused && !inputShutdown && pending.size() < ServerConfig.getMaxPipelinedRequests()) {
+            resumeRead();
+        }
+    }
+
+    /*
+     * switch the channel back to blocking mode for a request whose body is
+     * too large to buffer or which upgrades the protocol (websocket). The
+     * connection then behaves exactly like one served by the old Exchange
+     * path and is closed when that exchange is closed.
+     */
+    private void detach (final Pending p) {
+        detached = true;
+        conn.nio = null;
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    key.cancel();
+                    loop.selector.selectNow();
+                    chan.configureBlocking(true);
+                    InputStream raw = new SequenceInputStream(new ByteArrayInputStream(p.body),
+                            new Request.ReadStream(server, chan));
+                    dispatcher.submit(new NioExchange(NioConnection.this, p, raw,
+                            new Request.WriteStream(server, chan)));
+                } catch (IOException | RejectedExecutionException e) {
+                    server.logger.log(Level.FINER, "NioConnection (3)", e);
+                    server.closeConnection(conn);
+                }
+            }
+        });
+    }
+
+    /**
+     * called (through the selector thread) once the response of the
+     * in-flight exchange has been completely produced.
+     */
+    void exchangeFinished (boolean close) {
+        int exchanges = server.endExchange();
+        if (server.terminating && exchanges == 0) {
+            server.finished = true;
+        }
+        inFlight = false;
+        if (conn.getState() == HttpConnection.State.REQUEST) {
+            server.requestCompleted(conn);
+        }
+        server.responseCompleted(conn);
+        if (closed) {
+            return;
+        }
+        if (close || inputShutdown && pending.isEmpty()) {
+            closeAfterWrite();
+            return;
+        }
+        if (pending.isEmpty() && !parser.isStarted()) {
+            if (server.idleFull()) {
+                closeAfterWrite();
+                return;
+            }
+            server.connectionIdle(conn);
+        }
+        dispatchNext();
+        if (readPaused && !inputShutdown && !detached
+                && pending.size() < ServerConfig.getMaxPipelinedRequests()) {
+            resumeRead();
+            /* requests may already be sitting in the buffer */
+            processInput();
+        }
+    }
+
+    /**
+     * called from a worker thread when the exchange was closed before its
+     * response was completed: nothing sensible can follow on this connection.
+     */
+    void abort () {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (inFlight) {
+                    inFlight = false;
+                    server.endExchange();
+                }
+                closeAfterWrite();
+            }
+        });
+    }
+
+    /**
+     * called from a worker thread when the request was refused before an
+     * exchange was created. A reply, if any, is already queued.
+     */
+    void requestFailed () {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                inFlight = false;
+                closeAfterWrite();
+            }
+        });
+    }
+
+    /**
+     * stop reading, write out what is queued and close the connection
+     */
+    void closeAfterWrite () {
+        closeAfterWrite = true;
+        pending.clear();
+        pauseRead();
+        if (outbound.isEmpty()) {
+            close();
+        } else {
+            flushOutbound();
+        }
+    }
+
+    /* error reply written straight from the selector thread */
+    private void sendReply (int code, String message) {
+        String text = "<h1>" + code + Code.msg(code) + "</h1>" + message;
+        String s = "HTTP/1.1 " + code + Code.msg(code) + "\r\n"
+                + "Content-Length: " + text.length() + "\r\n"
+                + "Content-Type: text/html\r\n"
+                + "Connection: close\r\n\r\n" + text;
+        enqueue(ByteBuffer.wrap(bytes(s)));
+    }
+
+    private static byte[] bytes (String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    /**
+     * queue response bytes. May be called from any thread; the writer is
+     * held back while too much data is waiting for a slow client.
+     */
+    void write (ByteBuffer buf) throws IOException {
+        if (closed) {
+            throw new StreamClosedException();
+        }
+        long q = enqueue(buf);
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushOutbound();
+                }
+            });
+        }
+        if (q > HIGH_WATER && Thread.currentThread() != loop.thread) {
+            synchronized (writeLock) {
+                while (queued.get() > LOW_WATER && !closed && chan.isOpen()) {
+                    try {
+                        writeLock.wait(1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted while writing response");
+                    }
+                }
+            }
+            if (closed || !chan.isOpen()) {
+                throw new StreamClosedException();
+            }
+        }
+    }
+
+    private long enqueue (ByteBuffer buf) {
+        outbound.add(buf);
+        return queued.addAndGet(buf.remaining());
+    }
+
+    private void flushOutbound () {
+        flushScheduled.set(false);
+        if (closed) {
+            return;
+        }
+        try {
+            while (!outbound.isEmpty()) {
+                int count = 0;
+                Iterator<ByteBuffer> it = outbound.iterator();
+                while (count < MAX_GATHER && it.hasNext()) {
+                    gather[count++] = it.next();
+                }
+                long n = chan.write(gather, 0, count);
+                queued.addAndGet(-n);
+                for (int i = 0; i < count; i++) {
+                    if (gather[i].hasRemaining()) {
+                        break;
+                    }
+                    outbound.poll();
+                }
+                boolean partial = gather[count - 1].hasRemaining();
+                for (int i = 0; i < count; i++) {
+                    gather[i] = null;
+                }
+                if (partial) {
+                    /* socket buffer full, continue when writable */
+                    interest(SelectionKey.OP_WRITE, true);
+                    wakeWriters();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            server.logger.log(Level.FINER, "NioConnection (4)", e);
+            close();
+            return;
+        }
+        interest(SelectionKey.OP_WRITE, false);
+        wakeWriters();
+        if (closeAfterWrite && outbound.isEmpty()) {
+            close();
+            return;
+        }
+        dispatchNext();
+    }
+
+    private void wakeWriters () {
+        if (queued.get() <= LOW_WATER) {
+            synchronized (writeLock) {
+                writeLock.notifyAll();
+            }
+        }
+    }
+
+    private void pauseRead () {
+        readPaused = true;
+        interest(SelectionKey.OP_READ, false);
+    }
+
+    private void resumeRead () {
+        readPaused = false;
+        interest(SelectionKey.OP_READ, true);
+    }
+
+    private void interest (int op, boolean on) {
+        if (key == null || !key.isValid() || detached) {
+            return;
+        }
+        int ops = key.interestOps();
+        int nops = on ? ops | op : ops & ~op;
+        if (nops != ops) {
+            key.interestOps(nops);
+        }
+    }
+
+    void close () {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pending.clear();
+        outbound.clear();
+        queued.set(0);
+        synchronized (writeLock) {
+            writeLock.notifyAll();
+        }
+        server.closeConnection(conn);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.net.impl.httpserver;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Non-blocking replacement for Dispatcher/Exchange, enabled with
+ * -Dsun.net.httpserver.nonBlocking=true (plain HTTP only).
+ *
+ * The acceptor thread owns the listening channel and hands every new
+ * connection to one of the SelectorLoops (round robin). Handlers run on a
+ * bounded worker pool instead of one actor per request, so a connection
+ * costs no thread while it is idle, reading or waiting for a backend.
+ */
+class NioDispatcher implements Runnable {
+
+    final ServerImpl server;
+    final SelectorLoop[] loops;
+    private final Executor workers;
+    private final boolean ownWorkers;
+    private final Thread acceptor;
+    private int next;
+
+    NioDispatcher (ServerImpl server, Executor executor) throws IOException {
+        this.server = server;
+        int n = Math.max(1, ServerConfig.getSelectorThreads());
+        loops = new SelectorLoop[n];
+        for (int i = 0; i < n; i++) {
+            loops[i] = new SelectorLoop(server, i);
+        }
+        if (executor != null) {
+            workers = executor;
+            ownWorkers = false;
+        } else {
+            workers = createWorkers();
+            ownWorkers = true;
+        }
+        acceptor = new Thread(this, "hh-acceptor");
+        acceptor.setDaemon(true);
+    }
+
+    private static Executor createWorkers () {
+        int threads = ServerConfig.getWorkerThreads();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(ServerConfig.getWorkerQueueSize()),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "hh-worker-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    void start () {
+        for (SelectorLoop loop : loops) {
+            loop.start();
+        }
+        acceptor.start();
+    }
+
+    /**
+     * run a handler on the worker pool. Throws RejectedExecutionException
+     * when the pool and its queue are full.
+     */
+    void submit (Runnable task) {
+        workers.execute(task);
+    }
+
+    /**
+     * WriteFinishedEvent of an exchange served by this dispatcher
+     */
+    void addEvent (Event r) {
+        ExchangeImpl t = r.exchange;
+        HttpConnection c = t.getConnection();
+        final NioConnection nc = c == null ? null : c.nio;
+        if (nc == null) {
+            /* detached (blocking) connection, closed by the exchange itself */
+            int exchanges = server.endExchange();
+            if (server.terminating && exchanges == 0) {
+                server.finished = true;
+            }
+            return;
+        }
+        boolean close = t.close;
+        LeftOverInputStream is = t.getOriginalInputStream();
+        if (is != null && !is.isEOF()) {
+            close = true;
+        }
+        final boolean closeConnection = close;
+        nc.loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                nc.exchangeFinished(closeConnection);
+            }
+        });
+    }
+
+    @Override
+    public void run () {
+        while (!server.finished) {
+            try {
+                server.selector.select(server.wheel.timeout());
+                Iterator<SelectionKey> iter = server.selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (!key.equals(server.listenerKey) || server.terminating) {
+                        continue;
+                    }
+                    SocketChannel chan;
+                    while ((chan = server.schan.accept()) != null) {
+                        accept(chan);
+                    }
+                }
+                server.wheel.advance();
+            } catch (IOException e) {
+                server.logger.log(Level.FINER, "NioDispatcher (1)", e);
+            } catch (Exception e) {
+                server.logger.log(Level.FINER, "NioDispatcher (2)", e);
+            }
+        }
+    }
+
+    private void accept (SocketChannel chan) throws IOException {
+        if (!server.acceptConnection()) {
+            chan.close();
+            return;
+        }
+        if (ServerConfig.noDelay()) {
+            chan.socket().setTcpNoDelay(true);
+        }
+        chan.configureBlocking(false);
+        SelectorLoop loop = loops[next];
+        next = (next + 1) % loops.length;
+        HttpConnection c = new HttpConnection();
+        c.setChannel(chan);
+        NioConnection nc = new NioConnection(c, chan, loop, this);
+        c.nio = nc;
+        server.allConnections.add(c);
+        server.requestStarted(c);
+        loop.register(c, nc);
+    }
+
+    void stop () {
+        for (SelectorLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        if (ownWorkers) {
+            ((ExecutorService) workers).shutdown();
+        }
+    }
+}
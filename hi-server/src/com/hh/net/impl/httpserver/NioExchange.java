@@ -0,0 +1,157 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.net.impl.httpserver;
+
+import com.hh.net.httpserver.Filter;
+import com.hh.net.httpserver.Headers;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Runs one request of a NioConnection on a worker thread. This is the
+ * counterpart of RequestProcessor for requests which were already read
+ * off the wire by the selector thread: the filter chain and the handler
+ * see the usual ExchangeImpl, only the raw streams differ.
+ */
+class NioExchange implements Runnable {
+
+    final NioConnection nc;
+    final NioConnection.Pending p;
+    final ServerImpl server;
+    final HttpConnection connection;
+    final InputStream rawin;
+    final OutputStream rawout;
+    ExchangeImpl tx;
+
+    NioExchange (NioConnection nc, NioConnection.Pending p, InputStream rawin, OutputStream rawout) {
+        this.nc = nc;
+        this.p = p;
+        this.server = nc.server;
+        this.connection = nc.conn;
+        this.rawin = rawin;
+        this.rawout = rawout;
+    }
+
+    @Override
+    public void run () {
+        String requestLine = p.requestLine;
+        try {
+            int start = requestLine.indexOf(' ');
+            if (start == -1) {
+                reject(Code.HTTP_BAD_REQUEST, requestLine, "Bad request line");
+                return;
+            }
+            String method = requestLine.substring(0, start);
+            start++;
+            int space = requestLine.indexOf(' ', start);
+            if (space == -1) {
+                reject(Code.HTTP_BAD_REQUEST, requestLine, "Bad request line");
+                return;
+            }
+            URI uri = new URI(requestLine.substring(start, space));
+            String version = requestLine.substring(space + 1);
+            Headers headers = p.headers;
+            long clen = p.contentLength;
+
+            HttpContextImpl ctx = server.contexts.findContext(server.protocol, uri.getPath());
+            if (ctx == null) {
+                reject(Code.HTTP_NOT_FOUND, requestLine, "No context found for request");
+                return;
+            }
+            connection.setContext(ctx);
+            if (ctx.getHandler() == null) {
+                reject(Code.HTTP_INTERNAL_ERROR, requestLine, "No handler for context");
+                return;
+            }
+            connection.setParameters(rawin, rawout, nc.chan, null, null,
+                    server.sslContext, server.protocol, ctx, rawin);
+            if (clen == 0 && connection.getState() == HttpConnection.State.REQUEST) {
+                server.requestCompleted(connection);
+            }
+            tx = new ExchangeImpl(method, uri, new Request(requestLine, headers, rawin, rawout),
+                    clen, connection);
+            String chdr = headers.getFirst("Connection");
+            Headers rheaders = tx.getResponseHeaders();
+            if (chdr != null && chdr.equalsIgnoreCase("close")) {
+                tx.close = true;
+            }
+            if (version.equalsIgnoreCase("http/1.0")) {
+                tx.http10 = true;
+                if (chdr == null) {
+                    tx.close = true;
+                    rheaders.set("Connection", "close");
+                } else if (chdr.equalsIgnoreCase("keep-alive")) {
+                    rheaders.set("Connection", "keep-alive");
+                    int idle = (int) ServerConfig.getIdleInterval() / 1000;
+                    int max = (int) ServerConfig.getMaxIdleConnections();
+                    rheaders.set("Keep-Alive", "timeout=" + idle + ", max=" + max);
+                }
+            }
+            if (p.stream) {
+                /* buffered requests got their 100 Continue from the selector thread */
+                String exp = headers.getFirst("Expect");
+                if (exp != null && exp.equalsIgnoreCase("100-continue")) {
+                    sendReply(Code.HTTP_CONTINUE, null);
+                }
+            }
+            List<Filter> sf = ctx.getSystemFilters();
+            List<Filter> uf = ctx.getFilters();
+            Filter.Chain sc = new Filter.Chain(sf, ctx.getHandler());
+            Filter.Chain uc = new Filter.Chain(uf, new LinkHandler(sc));
+            tx.getRequestBody();
+            tx.getResponseBody();
+            uc.doFilter(new HttpExchangeImpl(tx));
+        } catch (NumberFormatException e) {
+            reject(Code.HTTP_BAD_REQUEST, requestLine, "NumberFormatException thrown");
+        } catch (URISyntaxException e) {
+            reject(Code.HTTP_BAD_REQUEST, requestLine, "URISyntaxException thrown");
+        } catch (Exception e) {
+            server.logger.log(Level.FINER, "NioExchange (1)", e);
+            fail();
+        }
+    }
+
+    private void reject (int code, String requestStr, String message) {
+        server.logReply(code, requestStr, message);
+        try {
+            sendReply(code, "<h1>" + code + Code.msg(code) + "</h1>" + message);
+        } catch (IOException e) {
+            server.logger.log(Level.FINER, "NioExchange (2)", e);
+        }
+        fail();
+    }
+
+    private void sendReply (int code, String text) throws IOException {
+        StringBuilder builder = new StringBuilder(256);
+        builder.append("HTTP/1.1 ").append(code).append(Code.msg(code)).append("\r\n");
+        if (text != null && text.length() != 0) {
+            builder.append("Content-Length: ").append(text.length()).append("\r\n")
+                    .append("Content-Type: text/html\r\n")
+                    .append("Connection: close\r\n");
+        } else {
+            text = "";
+        }
+        builder.append("\r\n").append(text);
+        rawout.write(builder.toString().getBytes("ISO8859_1"));
+        rawout.flush();
+    }
+
+    /* nothing more can be served on this connection */
+    private void fail () {
+        if (nc.detached) {
+            server.closeConnection(connection);
+        } else if (tx != null) {
+            nc.abort();
+        } else {
+            nc.requestFailed();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.net.impl.httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Raw output stream of a non-blocking connection. Small writes are
+ * coalesced into one buffer; full buffers and flushes are handed to the
+ * NioConnection which writes them from the selector thread. close() does
+ * not close the connection, which stays open for keep-alive.
+ */
+class NioWriteStream extends OutputStream {
+
+    static final int BUF_SIZE = 8 * 1024;
+
+    private final NioConnection nc;
+    private ByteBuffer buf;
+    private boolean closed;
+
+    NioWriteStream (NioConnection nc) {
+        this.nc = nc;
+    }
+
+    public synchronized void write (int b) throws IOException {
+        if (closed) {
+            throw new StreamClosedException();
+        }
+        if (buf == null) {
+            buf = ByteBuffer.allocate(BUF_SIZE);
+        }
+        buf.put((byte) b);
+        if (!buf.hasRemaining()) {
+            flushBuffer();
+        }
+    }
+
+    public synchronized void write (byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new StreamClosedException();
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len >= BUF_SIZE) {
+            /* large block: hand over a copy without going through the buffer */
+            flushBuffer();
+            byte[] copy = new byte[len];
+            System.arraycopy(b, off, copy, 0, len);
+            nc.write(ByteBuffer.wrap(copy));
+            return;
+        }
+        if (buf == null) {
+            buf = ByteBuffer.allocate(BUF_SIZE);
+        }
+        if (len > buf.remaining()) {
+            flushBuffer();
+            buf = ByteBuffer.allocate(BUF_SIZE);
+        }
+        buf.put(b, off, len);
+        if (!buf.hasRemaining()) {
+            flushBuffer();
+        }
+    }
+
+    public synchronized void flush () throws IOException {
+        if (closed) {
+            return;
+        }
+        flushBuffer();
+    }
+
+    private void flushBuffer () throws IOException {
+        if (buf != null && buf.position() > 0) {
+            buf.flip();
+            ByteBuffer b = buf;
+            buf = null;
+            nc.write(b);
+        }
+    }
+
+    public synchronized void close () throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (!nc.closed) {
+                flushBuffer();
+            }
+        } finally {
+            closed = true;
+            buf = null;
+        }
+    }
+}
@@ -56,6 +56,16 @@ class Request {
         } while (startLine == null ? false : startLine.equals (""));
     }
 
+    /**
+     * request already parsed by RequestParser (non-blocking dispatcher)
+     */
+    Request (String startLine, Headers hdrs, InputStream rawInputStream, OutputStream rawout) {
+        this.startLine = startLine;
+        this.hdrs = hdrs;
+        is = rawInputStream;
+        os = rawout;
+    }
+
 
     char[] buf = new char [BUF_LEN];
     int pos;
@@ -0,0 +1,387 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.net.impl.httpserver;
+
+import com.hh.net.httpserver.Headers;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Incremental HTTP/1.x request parser used by the non-blocking dispatcher.
+ * Bytes are fed as they arrive from the socket; the parser keeps its own
+ * line buffer and body buffer between calls so a request split across
+ * many reads never needs a blocking stream. The raw body bytes (including
+ * chunk framing) are kept as-is so that the usual FixedLengthInputStream /
+ * ChunkedInputStream wrappers in ExchangeImpl can decode them unchanged.
+ */
+class RequestParser {
+
+    /* result of parse() */
+    static final int NEED_MORE = 0;
+    static final int COMPLETE = 1;
+    /* headers are complete but the body must be read from the channel directly */
+    static final int STREAM = 2;
+
+    static final int MAX_LINE = 64 * 1024;
+
+    private static final byte CR = 13;
+    private static final byte LF = 10;
+
+    private enum State {
+        REQUEST_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_CRLF, TRAILER, DONE
+    }
+
+    private State state = State.REQUEST_LINE;
+    private final int maxBufferedBody;
+
+    /* reusable line buffer, ISO-8859-1 decoded */
+    private char[] line = new char[256];
+    private int lineLen;
+    private boolean gotCR;
+
+    /* raw request body, reused between requests */
+    private byte[] body = new byte[1024];
+    private int bodyLen;
+
+    private long remaining;
+    private String requestLine;
+    private Headers headers;
+    private String lastKey;
+    private long contentLength;
+    private boolean chunked;
+    private boolean started;
+
+    RequestParser (int maxBufferedBody) {
+        this.maxBufferedBody = maxBufferedBody;
+    }
+
+    /**
+     * consume bytes from buf until a request is complete or buf is empty.
+     * The position of buf is left just after the consumed bytes, so any
+     * pipelined request which follows remains in the buffer.
+     */
+    int parse (ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            switch (state) {
+                case REQUEST_LINE:
+                    if (!readLine(buf, false)) {
+                        return NEED_MORE;
+                    }
+                    if (lineLen == 0) {
+                        /* skip blank lines between requests */
+                        break;
+                    }
+                    requestLine = new String(line, 0, lineLen);
+                    headers = new Headers();
+                    lastKey = null;
+                    lineLen = 0;
+                    state = State.HEADERS;
+                    break;
+                case HEADERS:
+                    if (!readLine(buf, false)) {
+                        return NEED_MORE;
+                    }
+                    if (lineLen > 0) {
+                        addHeaderLine();
+                        lineLen = 0;
+                        break;
+                    }
+                    lineLen = 0;
+                    int r = headersComplete();
+                    if (r != NEED_MORE) {
+                        return r;
+                    }
+                    break;
+                case BODY:
+                    int n = (int) Math.min(remaining, buf.remaining());
+                    appendBody(buf, n);
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = State.DONE;
+                        return COMPLETE;
+                    }
+                    break;
+                case CHUNK_SIZE:
+                    if (!readLine(buf, true)) {
+                        return NEED_MORE;
+                    }
+                    remaining = chunkLength();
+                    lineLen = 0;
+                    state = remaining == 0 ? State.TRAILER : State.CHUNK_DATA;
+                    break;
+                case CHUNK_DATA:
+                    n = (int) Math.min(remaining, buf.remaining());
+                    appendBody(buf, n);
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = State.CHUNK_CRLF;
+                    }
+                    break;
+                case CHUNK_CRLF:
+                    if (!readLine(buf, true)) {
+                        return NEED_MORE;
+                    }
+                    lineLen = 0;
+                    state = State.CHUNK_SIZE;
+                    break;
+                case TRAILER:
+                    if (!readLine(buf, true)) {
+                        return NEED_MORE;
+                    }
+                    if (lineLen == 0) {
+                        state = State.DONE;
+                        return COMPLETE;
+                    }
+                    lineLen = 0;
+                    break;
+                case DONE:
+                    return COMPLETE;
+            }
+            if (bodyLen > maxBufferedBody) {
+                /* too large to hold in memory, continue on the channel */
+                return STREAM;
+            }
+        }
+        if (state == State.DONE) {
+            return COMPLETE;
+        }
+        return NEED_MORE;
+    }
+
+    private int headersComplete () throws IOException {
+        String s = headers.getFirst("Transfer-encoding");
+        chunked = s != null && s.equalsIgnoreCase("chunked");
+        contentLength = 0;
+        if (chunked) {
+            contentLength = -1L;
+            state = State.CHUNK_SIZE;
+            return NEED_MORE;
+        }
+        s = headers.getFirst("Content-Length");
+        if (s != null) {
+            contentLength = Long.parseLong(s.trim());
+            if (contentLength < 0) {
+                throw new IOException("Invalid Content-Length");
+            }
+        }
+        if (contentLength == 0) {
+            state = State.DONE;
+            return COMPLETE;
+        }
+        if (contentLength > maxBufferedBody) {
+            state = State.BODY;
+            return STREAM;
+        }
+        remaining = contentLength;
+        state = State.BODY;
+        return NEED_MORE;
+    }
+
+    /*
+     * reads one line into the line buffer. When raw is true the bytes
+     * (including CRLF) are also copied to the body buffer because they
+     * belong to the chunk framing.
+     */
+    private boolean readLine (ByteBuffer buf, boolean raw) throws IOException {
+        while (buf.hasRemaining()) {
+            byte b = buf.get();
+            if (raw) {
+                appendBody(b);
+            }
+            if (gotCR) {
+                gotCR = false;
+                if (b == LF) {
+                    return true;
+                }
+                consume(CR);
+            }
+            if (b == CR) {
+                gotCR = true;
+            } else if (b == LF) {
+                return true;
+            } else {
+                consume(b);
+            }
+        }
+        return false;
+    }
+
+    private void consume (byte b) throws IOException {
+        if (lineLen == line.length) {
+            if (lineLen >= MAX_LINE) {
+                throw new IOException("Request line or header too long");
+            }
+            char[] nl = new char[lineLen * 2];
+            System.arraycopy(line, 0, nl, 0, lineLen);
+            line = nl;
+        }
+        if (!started && state == State.REQUEST_LINE) {
+            started = true;
+        }
+        line[lineLen++] = (char) (b & 0xFF);
+    }
+
+    private void addHeaderLine () throws IOException {
+        int len = lineLen;
+        if ((line[0] == ' ' || line[0] == '\t') && lastKey != null) {
+            /* continuation of the previous header value */
+            int start = 0;
+            while (start < len && line[start] <= ' ') {
+                start++;
+            }
+            List<String> values = headers.get(lastKey);
+            int last = values.size() - 1;
+            values.set(last, values.get(last) + " " + String.copyValueOf(line, start, len - start));
+            return;
+        }
+        int colon = -1;
+        for (int i = 0; i < len; i++) {
+            if (line[i] == ':') {
+                colon = i;
+                break;
+            }
+        }
+        String k;
+        String v;
+        if (colon <= 0) {
+            k = null;
+            v = String.copyValueOf(line, 0, len).trim();
+        } else {
+            k = String.copyValueOf(line, 0, colon).trim();
+            int start = colon + 1;
+            while (start < len && line[start] <= ' ') {
+                start++;
+            }
+            while (len > start && line[len - 1] <= ' ') {
+                len--;
+            }
+            v = String.copyValueOf(line, start, len - start);
+        }
+        if (headers.size() >= ServerConfig.getMaxReqHeaders()) {
+            throw new IOException("Maximum number of request headers (" +
+                    "sun.net.httpserver.maxReqHeaders) exceeded, " +
+                    ServerConfig.getMaxReqHeaders() + ".");
+        }
+        headers.add(k, v);
+        lastKey = k;
+    }
+
+    private long chunkLength () throws IOException {
+        long len = 0;
+        int digits = 0;
+        for (int i = 0; i < lineLen; i++) {
+            char c = line[i];
+            int val;
+            if (c >= '0' && c <= '9') {
+                val = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                val = c - 'a' + 10;
+            } else if (c >= 'A' && c <= 'F') {
+                val = c - 'A' + 10;
+            } else if (c == ';' || c == ' ' || c == '\t') {
+                break;
+            } else {
+                throw new IOException("invalid chunk length");
+            }
+            if (++digits > 15) {
+                throw new IOException("invalid chunk header");
+            }
+            len = len * 16 + val;
+        }
+        if (digits == 0) {
+            throw new IOException("invalid chunk length");
+        }
+        return len;
+    }
+
+    private void ensureBody (int extra) {
+        if (bodyLen + extra > body.length) {
+            int size = Math.max(body.length * 2, bodyLen + extra);
+            byte[] nb = new byte[size];
+            System.arraycopy(body, 0, nb, 0, bodyLen);
+            body = nb;
+        }
+    }
+
+    private void appendBody (byte b) {
+        ensureBody(1);
+        body[bodyLen++] = b;
+    }
+
+    private void appendBody (ByteBuffer buf, int n) {
+        ensureBody(n);
+        buf.get(body, bodyLen, n);
+        bodyLen += n;
+    }
+
+    /**
+     * true once any byte of a new request has been seen, used to move an
+     * idle connection into the REQUEST state.
+     */
+    boolean isStarted () {
+        return started;
+    }
+
+    /**
+     * true when the headers of the current request have been read
+     */
+    boolean headersRead () {
+        return state != State.REQUEST_LINE && state != State.HEADERS;
+    }
+
+    boolean bodyPending () {
+        return state == State.BODY || state == State.CHUNK_SIZE || state == State.CHUNK_DATA
+                || state == State.CHUNK_CRLF || state == State.TRAILER;
+    }
+
+    String requestLine () {
+        return requestLine;
+    }
+
+    Headers headers () {
+        return headers;
+    }
+
+    long contentLength () {
+        return contentLength;
+    }
+
+    /**
+     * copy of the raw body bytes read so far. The internal buffer is
+     * reused by the next request so it can not be handed out directly.
+     */
+    byte[] body () {
+        byte[] b = new byte[bodyLen];
+        System.arraycopy(body, 0, b, 0, bodyLen);
+        return b;
+    }
+
+    /**
+     * prepare for the next (possibly pipelined) request. Large body
+     * buffers are dropped so one big upload does not pin memory for
+     * the lifetime of a keep-alive connection.
+     */
+    void reset () {
+        state = State.REQUEST_LINE;
+        lineLen = 0;
+        gotCR = false;
+        bodyLen = 0;
+        remaining = 0;
+        requestLine = null;
+        headers = null;
+        lastKey = null;
+        contentLength = 0;
+        chunked = false;
+        started = false;
+        if (body.length > 64 * 1024) {
+            body = new byte[1024];
+        }
+        if (line.length > 8 * 1024) {
+            line = new char[256];
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.net.impl.httpserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct buffers for SSLStreams, reused across connections. Buffers are
+ * kept per capacity (the engine's packet and application sizes) and at
+ * most ServerConfig.getSSLBufferPoolSize() idle buffers of one capacity
+ * are kept; others are left to the garbage collector.
+ */
+class SSLBufferPool {
+
+    private static class Bucket {
+        final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer> ();
+        final AtomicInteger size = new AtomicInteger ();
+    }
+
+    private static final ConcurrentHashMap<Integer, Bucket> buckets = new ConcurrentHashMap<Integer, Bucket> ();
+
+    private SSLBufferPool () {
+    }
+
+    /**
+     * cleared direct buffer of exactly capacity bytes
+     */
+    static ByteBuffer acquire (int capacity) {
+        Bucket b = buckets.get (capacity);
+        if (b != null) {
+            ByteBuffer buf = b.free.poll ();
+            if (buf != null) {
+                b.size.decrementAndGet ();
+                buf.clear ();
+                return buf;
+            }
+        }
+        return ByteBuffer.allocateDirect (capacity);
+    }
+
+    /**
+     * give back a buffer from acquire(); it must not be used afterwards
+     */
+    static void release (ByteBuffer buf) {
+        if (buf == null || !buf.isDirect ()) {
+            return;
+        }
+        int capacity = buf.capacity ();
+        Bucket b = buckets.get (capacity);
+        if (b == null) {
+            Bucket created = new Bucket ();
+            b = buckets.putIfAbsent (capacity, created);
+            if (b == null) {
+                b = created;
+            }
+        }
+        if (b.size.incrementAndGet () > ServerConfig.getSSLBufferPoolSize ()) {
+            b.size.decrementAndGet ();
+            return;
+        }
+        b.free.offer (buf);
+    }
+}
@@ -198,6 +198,15 @@ class SSLStreams {
     }
 
     private ByteBuffer allocate (BufType type, int len) {
+        return ByteBuffer.allocate (bufferSize (type, len));
+    }
+
+    /* pooled direct buffer, must be given back with SSLBufferPool.release */
+    private ByteBuffer acquire (BufType type) {
+        return SSLBufferPool.acquire (bufferSize (type, -1));
+    }
+
+    private int bufferSize (BufType type, int len) {
         assert engine != null;
         synchronized (this) {
             int size;
@@ -220,7 +229,7 @@ class SSLStreams {
                 }
                 size = app_buf_size;
             }
-            return ByteBuffer.allocate (size);
+            return size;
         }
     }
 
@@ -230,16 +239,25 @@ class SSLStreams {
      * 3. set xx_buf_size to the new size if it was smaller than new size
      *
      * flip is set to true if the old buffer needs to be flipped
-     * before it is copied.
+     * before it is copied. A pooled direct buffer is replaced by a
+     * pooled one and the old one goes back to the pool.
      */
     private ByteBuffer realloc (ByteBuffer b, boolean flip, BufType type) {
         synchronized (this) {
             int nsize = 2 * b.capacity();
-            ByteBuffer n = allocate (type, nsize);
+            ByteBuffer n;
+            if (b.isDirect()) {
+                n = SSLBufferPool.acquire (bufferSize (type, nsize));
+            } else {
+                n = allocate (type, nsize);
+            }
             if (flip) {
                 b.flip();
             }
             n.put(b);
+            if (b.isDirect()) {
+                SSLBufferPool.release (b);
+            }
             b = n;
         }
         return b;
@@ -257,7 +275,8 @@ class SSLStreams {
 
         SocketChannel chan;
         SSLEngine engine;
-        Object wrapLock, unwrapLock;
+        ReentrantLock wrapLock, unwrapLock;
+        /* pooled direct buffers, null once given back in close() */
         ByteBuffer unwrap_src, wrap_dst;
         boolean closed = false;
         int u_remaining; // the number of bytes left in unwrap_src after an unwrap()
@@ -265,13 +284,35 @@ class SSLStreams {
         EngineWrapper (SocketChannel chan, SSLEngine engine) throws IOException {
             this.chan = chan;
             this.engine = engine;
-            wrapLock = new Object();
-            unwrapLock = new Object();
-            unwrap_src = allocate(BufType.PACKET);
-            wrap_dst = allocate(BufType.PACKET);
+            wrapLock = new ReentrantLock();
+            unwrapLock = new ReentrantLock();
+            unwrap_src = acquire(BufType.PACKET);
+            wrap_dst = acquire(BufType.PACKET);
         }
 
+        /* the buffers go back to the pool only if no thread is using
+         * them; otherwise they are left to the garbage collector
+         */
         void close () throws IOException {
+            if (!wrapLock.tryLock()) {
+                return;
+            }
+            try {
+                if (!unwrapLock.tryLock()) {
+                    return;
+                }
+                try {
+                    closed = true;
+                    SSLBufferPool.release (unwrap_src);
+                    SSLBufferPool.release (wrap_dst);
+                    unwrap_src = null;
+                    wrap_dst = null;
+                } finally {
+                    unwrapLock.unlock();
+                }
+            } finally {
+                wrapLock.unlock();
+            }
         }
 
         /* try to wrap and send the data in src. Handles OVERFLOW.
@@ -289,7 +330,11 @@ class SSLStreams {
             }
             Status status;
             WrapperResult r = new WrapperResult();
-            synchronized (wrapLock) {
+            wrapLock.lock();
+            try {
+                if (wrap_dst == null) {
+                    throw new IOException ("Engine is closed");
+                }
                 wrap_dst.clear();
                 do {
                     r.result = engine.wrap (src, wrap_dst);
@@ -310,6 +355,8 @@ class SSLStreams {
                         l -= chan.write (wrap_dst);
                     }
                 }
+            } finally {
+                wrapLock.unlock();
             }
             return r;
         }
@@ -326,16 +373,20 @@ class SSLStreams {
             if (closed) {
                 throw new IOException ("Engine is closed");
             }
-            boolean needData;
-            if (u_remaining > 0) {
-                unwrap_src.compact();
-                unwrap_src.flip();
-                needData = false;
-            } else {
-                unwrap_src.clear();
-                needData = true;
-            }
-            synchronized (unwrapLock) {
+            unwrapLock.lock();
+            try {
+                if (unwrap_src == null) {
+                    throw new IOException ("Engine is closed");
+                }
+                boolean needData;
+                if (u_remaining > 0) {
+                    unwrap_src.compact();
+                    unwrap_src.flip();
+                    needData = false;
+                } else {
+                    unwrap_src.clear();
+                    needData = true;
+                }
                 int x;
                 do {
                     if (needData) {
@@ -373,8 +424,10 @@ class SSLStreams {
                         return r;
                     }
                 } while (status != Status.OK);
+                u_remaining = unwrap_src.remaining();
+            } finally {
+                unwrapLock.unlock();
             }
-            u_remaining = unwrap_src.remaining();
             return r;
         }
     }
@@ -438,9 +491,10 @@ class SSLStreams {
      * the response
      */
     void doClosure () throws IOException {
+        ByteBuffer tmp = null;
         try {
             handshaking.lock();
-            ByteBuffer tmp = allocate(BufType.APPLICATION);
+            tmp = acquire(BufType.APPLICATION);
             WrapperResult r;
             do {
                 tmp.clear();
@@ -449,6 +503,7 @@ class SSLStreams {
             } while (r.result.getStatus() != Status.CLOSED);
         } finally {
             handshaking.unlock();
+            SSLBufferPool.release (tmp);
         }
     }
 
@@ -458,9 +513,10 @@ class SSLStreams {
      * is called with no data to send then there must be no problem
      */
     void doHandshake (HandshakeStatus hs_status) throws IOException {
+        ByteBuffer tmp = null;
         try {
             handshaking.lock();
-            ByteBuffer tmp = allocate(BufType.APPLICATION);
+            tmp = acquire(BufType.APPLICATION);
             while (hs_status != HandshakeStatus.FINISHED &&
                    hs_status != HandshakeStatus.NOT_HANDSHAKING)
             {
@@ -494,6 +550,7 @@ class SSLStreams {
             }
         } finally {
             handshaking.unlock();
+            SSLBufferPool.release (tmp);
         }
     }
 
@@ -0,0 +1,109 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.net.impl.httpserver;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+/**
+ * One selector thread of the non-blocking dispatcher. Connections are
+ * spread over several loops by NioDispatcher; all socket I/O and all
+ * interest-op changes of a connection happen on its loop. Other threads
+ * talk to the loop through execute().
+ */
+class SelectorLoop implements Runnable {
+
+    final ServerImpl server;
+    final Selector selector;
+    final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    SelectorLoop (ServerImpl server, int id) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "hh-selector-" + id);
+        this.thread.setDaemon(true);
+    }
+
+    void start () {
+        thread.start();
+    }
+
+    /**
+     * run r on the selector thread
+     */
+    void execute (Runnable r) {
+        tasks.add(r);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    void register (final HttpConnection c, final NioConnection nc) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SocketChannel chan = c.getChannel();
+                    SelectionKey key = chan.register(selector, SelectionKey.OP_READ, nc);
+                    c.selectionKey = key;
+                    nc.key = key;
+                } catch (IOException e) {
+                    server.logger.log(Level.FINER, "SelectorLoop (1)", e);
+                    nc.close();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run () {
+        while (!server.finished) {
+            try {
+                selector.select(1000);
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    NioConnection nc = (NioConnection) key.attachment();
+                    try {
+                        if (!key.isValid()) {
+                            nc.close();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            nc.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            nc.onWritable();
+                        }
+                    } catch (CancelledKeyException e) {
+                        nc.close();
+                    }
+                }
+                Runnable r;
+                while ((r = tasks.poll()) != null) {
+                    r.run();
+                }
+            } catch (IOException e) {
+                server.logger.log(Level.FINER, "SelectorLoop (2)", e);
+            } catch (Exception e) {
+                server.logger.log(Level.FINER, "SelectorLoop (3)", e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            ServerImpl.dprint(e);
+        }
+    }
+}
@@ -69,8 +69,8 @@ public class ServerAccepter extends UntypedActor {
             c.selectionKey = newkey;
             c.setChannel(chan);
             newkey.attach(c);
-            server.requestStarted(c);
             server.allConnections.add(c);
+            server.requestStarted(c);
         }     
     }
     
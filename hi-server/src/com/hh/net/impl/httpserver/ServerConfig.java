@@ -49,21 +49,45 @@ class ServerConfig {
     static final long DEFAULT_TIMER_MILLIS = 1000;
     static final int  DEFAULT_MAX_REQ_HEADERS = 200;
     static final long DEFAULT_DRAIN_AMOUNT = 64 * 1024;
+    static final int DEFAULT_SELECTOR_THREADS = 1;
+    static final int DEFAULT_WORKER_QUEUE_SIZE = 1024;
+    static final int DEFAULT_MAX_PIPELINED_REQUESTS = 16;
+    static final int DEFAULT_MAX_BUFFERED_BODY = 10 * 1024 * 1024;
+    static final int DEFAULT_SSL_BUFFER_POOL_SIZE = 512;
+    static final int DEFAULT_MAX_CONNECTIONS = -1;
+    static final int DEFAULT_WHEEL_SIZE = 512;
 
     static long idleInterval;
     static long drainAmount;    // max # of bytes to drain from an inputstream
+    // keep-alive connections parked idle, 0 or less: no limit
     static int maxIdleConnections;
+    // open connections, further ones are refused; 0 or less: no limit
+    static int maxConnections;
     // The maximum number of request headers allowable
     private static int maxReqHeaders;
     // max time a request or response is allowed to take
     static long maxReqTime;
     static long maxRspTime;
+    // resolution of the timing wheel of connection deadlines
     static long timerMillis;
+    static int wheelSize;
     static boolean debug;
 
     // the value of the TCP_NODELAY socket-level option
     static boolean noDelay;
 
+    // non-blocking dispatcher (NioDispatcher) instead of one actor per request
+    static boolean nonBlocking;
+    static int selectorThreads;
+    static int workerThreads;
+    static int workerQueueSize;
+    // requests read ahead on one keep-alive connection
+    static int maxPipelinedRequests;
+    // larger request bodies are read from the channel in blocking mode
+    static int maxBufferedBody;
+    // idle TLS packet buffers kept for reuse, per buffer size
+    static int sslBufferPoolSize;
+
     static {
         java.security.AccessController.doPrivileged(
             new PrivilegedAction<Void>() {
@@ -81,6 +105,10 @@ class ServerConfig {
                             "sun.net.httpserver.maxIdleConnections",
                             DEFAULT_MAX_IDLE_CONNECTIONS);
 
+                    maxConnections = Integer.getInteger(
+                            "sun.net.httpserver.maxConnections",
+                            DEFAULT_MAX_CONNECTIONS);
+
                     drainAmount = Long.getLong("sun.net.httpserver.drainAmount",
                             DEFAULT_DRAIN_AMOUNT);
 
@@ -97,10 +125,34 @@ class ServerConfig {
                     timerMillis = Long.getLong("sun.net.httpserver.timerMillis",
                             DEFAULT_TIMER_MILLIS);
 
+                    wheelSize = Integer.getInteger("sun.net.httpserver.wheelSize",
+                            DEFAULT_WHEEL_SIZE);
+
                     debug = Boolean.getBoolean("sun.net.httpserver.debug");
 
                     noDelay = Boolean.getBoolean("sun.net.httpserver.nodelay");
 
+                    nonBlocking = Boolean.getBoolean("sun.net.httpserver.nonBlocking");
+
+                    selectorThreads = Integer.getInteger("sun.net.httpserver.selectorThreads",
+                            DEFAULT_SELECTOR_THREADS);
+
+                    workerThreads = Integer.getInteger("sun.net.httpserver.workerThreads",
+                            Runtime.getRuntime().availableProcessors() * 2);
+
+                    workerQueueSize = Integer.getInteger("sun.net.httpserver.workerQueueSize",
+                            DEFAULT_WORKER_QUEUE_SIZE);
+
+                    maxPipelinedRequests = Integer.getInteger(
+                            "sun.net.httpserver.maxPipelinedRequests",
+                            DEFAULT_MAX_PIPELINED_REQUESTS);
+
+                    maxBufferedBody = Integer.getInteger("sun.net.httpserver.maxBufferedBody",
+                            DEFAULT_MAX_BUFFERED_BODY);
+
+                    sslBufferPoolSize = Integer.getInteger("sun.net.httpserver.sslBufferPoolSize",
+                            DEFAULT_SSL_BUFFER_POOL_SIZE);
+
                     Properties config = new Properties();
                     
                     if(config.get("DEFAULT_MAX_REQ_TIME") != null)
@@ -169,6 +221,10 @@ class ServerConfig {
         return maxIdleConnections;
     }
 
+    static int getMaxConnections () {
+        return maxConnections;
+    }
+
     static long getDrainAmount () {
         return drainAmount;
     }
@@ -189,7 +245,39 @@ class ServerConfig {
         return timerMillis;
     }
 
+    static int getWheelSize () {
+        return wheelSize;
+    }
+
     static boolean noDelay() {
         return noDelay;
     }
+
+    static boolean nonBlocking () {
+        return nonBlocking;
+    }
+
+    static int getSelectorThreads () {
+        return selectorThreads;
+    }
+
+    static int getWorkerThreads () {
+        return workerThreads;
+    }
+
+    static int getWorkerQueueSize () {
+        return workerQueueSize;
+    }
+
+    static int getMaxPipelinedRequests () {
+        return maxPipelinedRequests;
+    }
+
+    static int getMaxBufferedBody () {
+        return maxBufferedBody;
+    }
+
+    static int getSSLBufferPoolSize () {
+        return sslBufferPoolSize;
+    }
 }
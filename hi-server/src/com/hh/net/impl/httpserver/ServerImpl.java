@@ -22,14 +22,13 @@ import java.net.ServerSocket;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import javax.net.ssl.SSLContext;
 
 /**
@@ -47,17 +46,18 @@ public class ServerImpl implements TimeSource {
     public ServerSocketChannel schan;
     public Selector selector;
     public SelectionKey listenerKey;
-    public Set<HttpConnection> idleConnections;
     public Set<HttpConnection> allConnections;
-    /* following two are used to keep track of the times
-     * when a connection/request is first received
-     * and when we start to send the response
+    /* idle, request and response deadlines of the connections, turned by
+     * the dispatcher loop
      */
-    public Set<HttpConnection> reqConnections;
-    public Set<HttpConnection> rspConnections;
+    TimerWheel wheel;
+    /* connections parked idle between requests (HttpConnection.idle) */
+    final AtomicInteger idleCount = new AtomicInteger();
     public List<Event> events;
     public Object lolock = new Object();
     public volatile boolean finished = false;
+    /* set when requests are served by the non-blocking dispatcher */
+    NioDispatcher nio;
     public volatile boolean terminating = false;
     public boolean bound = false;
     public boolean started = false;
@@ -70,12 +70,14 @@ public class ServerImpl implements TimeSource {
     final static int CLOCK_TICK = ServerConfig.getClockTick();
     final static long IDLE_INTERVAL = ServerConfig.getIdleInterval();
     final static int MAX_IDLE_CONNECTIONS = ServerConfig.getMaxIdleConnections();
+    final static int MAX_CONNECTIONS = ServerConfig.getMaxConnections();
     final static long TIMER_MILLIS = ServerConfig.getTimerMillis ();
     final static long MAX_REQ_TIME=getTimeMillis(ServerConfig.getMaxReqTime());
     final static long MAX_RSP_TIME=getTimeMillis(ServerConfig.getMaxRspTime());
-    final static boolean timer1Enabled = MAX_REQ_TIME != -1 || MAX_RSP_TIME != -1;
 
-    public Timer timer, timer1;
+    private static final AtomicIntegerFieldUpdater<HttpConnection> IDLE =
+            AtomicIntegerFieldUpdater.newUpdater(HttpConnection.class, "idle");
+
     public Logger logger;
     
     ServerImpl (
@@ -97,21 +99,12 @@ public class ServerImpl implements TimeSource {
         selector = Selector.open ();
         schan.configureBlocking (false);
         listenerKey = schan.register (selector, SelectionKey.OP_ACCEPT);
-        idleConnections = Collections.synchronizedSet (new HashSet<HttpConnection>());
-        allConnections = Collections.synchronizedSet (new HashSet<HttpConnection>());
-        reqConnections = Collections.synchronizedSet (new HashSet<HttpConnection>());
-        rspConnections = Collections.synchronizedSet (new HashSet<HttpConnection>());
+        allConnections = ConcurrentHashMap.newKeySet();
         time = System.currentTimeMillis();
-        timer = new Timer ("server-timer", true);
-        timer.schedule (new ServerTimerTask(), CLOCK_TICK, CLOCK_TICK);
+        wheel = new TimerWheel (this, TIMER_MILLIS, ServerConfig.getWheelSize());
         //pa.setData();
-        if (timer1Enabled) {
-            timer1 = new Timer ("server-timer1", true);
-            timer1.schedule (new ServerTimerTask1(),MAX_REQ_TIME,MAX_REQ_TIME);
-            logger.config ("HttpServer timer1 enabled period in ms:  " + MAX_REQ_TIME);
-            logger.config ("MAX_REQ_TIME:  "+MAX_REQ_TIME);
-            logger.config ("MAX_RSP_TIME:  "+MAX_RSP_TIME);
-        }
+        logger.config ("MAX_REQ_TIME:  "+MAX_REQ_TIME);
+        logger.config ("MAX_RSP_TIME:  "+MAX_RSP_TIME);
         events = new LinkedList<Event>();
         logger.config ("HttpServer created "+protocol+" "+ addr);
     }
@@ -132,6 +125,18 @@ public class ServerImpl implements TimeSource {
         if (!bound || started || finished) {
             throw new IllegalStateException ("server in wrong state");
         }
+        if (ServerConfig.nonBlocking() && !https) {
+            try {
+                /* a caller supplied executor runs the handlers, otherwise a bounded pool */
+                nio = new NioDispatcher(this, executor);
+                nio.start();
+                started = true;
+                return;
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "NioDispatcher not started, using actors", ex);
+                nio = null;
+            }
+        }
         if (executor == null) {
             executor = new DefaultExecutor();
         }
@@ -194,16 +199,13 @@ public class ServerImpl implements TimeSource {
         }
         finished = true;
         selector.wakeup();
-        synchronized (allConnections) {
-            for (HttpConnection c : allConnections) {
-                c.close();
-            }
+        for (HttpConnection c : allConnections) {
+            c.close();
         }
         allConnections.clear();
-        idleConnections.clear();
-        timer.cancel();
-        if (timer1Enabled) {
-            timer1.cancel();
+        idleCount.set(0);
+        if (nio != null) {
+            nio.stop();
         }
     }
 
@@ -252,6 +254,10 @@ public class ServerImpl implements TimeSource {
     }
 
     void addEvent (Event r) {
+        if (nio != null) {
+            nio.addEvent(r);
+            return;
+        }
         synchronized (lolock) {
             events.add (r);
             selector.wakeup();
@@ -280,20 +286,67 @@ public class ServerImpl implements TimeSource {
     public void closeConnection(HttpConnection conn) {
         conn.close();
         allConnections.remove(conn);
-        switch (conn.getState()) {
-        case REQUEST:
-            reqConnections.remove(conn);
-            break;
-        case RESPONSE:
-            rspConnections.remove(conn);
-            break;
-        case IDLE:
-            idleConnections.remove(conn);
-            break;
-        }
-        assert !reqConnections.remove(conn);
-        assert !rspConnections.remove(conn);
-        assert !idleConnections.remove(conn);
+        leaveIdle(conn);
+        /* dropped from the wheel when its bucket comes round */
+        conn.deadline = 0;
+    }
+
+    /**
+     * false when a new connection would pass maxConnections and has to be
+     * refused
+     */
+    boolean acceptConnection () {
+        return MAX_CONNECTIONS <= 0 || allConnections.size() < MAX_CONNECTIONS;
+    }
+
+    /**
+     * true when no more keep-alive connections may be parked idle
+     */
+    boolean idleFull () {
+        return MAX_IDLE_CONNECTIONS > 0 && idleCount.get() >= MAX_IDLE_CONNECTIONS;
+    }
+
+    /**
+     * park c idle between requests; it is closed after IDLE_INTERVAL
+     */
+    void connectionIdle (HttpConnection c) {
+        if (IDLE.compareAndSet(c, 0, 1)) {
+            idleCount.incrementAndGet();
+        }
+        wheel.schedule(c, getTime() + IDLE_INTERVAL);
+    }
+
+    /**
+     * take c out of the idle connections, false if it was not parked
+     */
+    boolean leaveIdle (HttpConnection c) {
+        if (IDLE.compareAndSet(c, 1, 0)) {
+            idleCount.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * deadline of c has passed (wheel, dispatcher loop): close it on the
+     * thread which owns its channel
+     */
+    void expire (final HttpConnection c) {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log (Level.FINE, "closing: " + (c.getState() == State.IDLE ? "idle"
+                    : c.getState() == State.REQUEST ? "no request" : "no response") + ": " + c);
+        }
+        final NioConnection nc = c.nio;
+        if (nc == null) {
+            closeConnection(c);
+            return;
+        }
+        nc.loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                nc.close();
+            }
+        });
     }
 
     void logReply (int code, String requestStr, String text) {
@@ -346,9 +399,10 @@ public class ServerImpl implements TimeSource {
     }
 
     void requestStarted (HttpConnection c) {
+        leaveIdle(c);
         c.creationTime = getTime();
         c.setState (State.REQUEST);
-        reqConnections.add (c);
+        wheel.schedule (c, MAX_REQ_TIME == -1 ? 0 : c.creationTime + MAX_REQ_TIME);
     }
 
     // called after a request has been completely read
@@ -360,80 +414,16 @@ public class ServerImpl implements TimeSource {
 
     void requestCompleted (HttpConnection c) {
         assert c.getState() == State.REQUEST;
-        reqConnections.remove (c);
         c.rspStartedTime = getTime();
-        rspConnections.add (c);
         c.setState (State.RESPONSE);
+        wheel.schedule (c, MAX_RSP_TIME == -1 ? 0 : c.rspStartedTime + MAX_RSP_TIME);
     }
 
     // called after response has been sent
     void responseCompleted (HttpConnection c) {
         assert c.getState() == State.RESPONSE;
-        rspConnections.remove (c);
         c.setState (State.IDLE);
-    }
-
-    /**
-     * TimerTask run every CLOCK_TICK ms
-     */
-    class ServerTimerTask extends TimerTask {
-        public void run () {
-            LinkedList<HttpConnection> toClose = new LinkedList<HttpConnection>();
-            time = System.currentTimeMillis();
-            ticks ++;
-            synchronized (idleConnections) {
-                for (HttpConnection c : idleConnections) {
-                    if (c.time <= time) {
-                        toClose.add (c);
-                    }
-                }
-                for (HttpConnection c : toClose) {
-                    idleConnections.remove (c);
-                    allConnections.remove (c);
-                    c.close();
-                }
-            }
-        }
-    }
-
-    class ServerTimerTask1 extends TimerTask {
-
-        // runs every TIMER_MILLIS
-        public void run () {
-            LinkedList<HttpConnection> toClose = new LinkedList<HttpConnection>();
-            time = System.currentTimeMillis();
-            synchronized (reqConnections) {
-                if (MAX_REQ_TIME != -1) {
-                    for (HttpConnection c : reqConnections) {
-                        if (c.creationTime + TIMER_MILLIS + MAX_REQ_TIME <= time) {
-                            toClose.add (c);
-                        }
-                    }
-                    for (HttpConnection c : toClose) {
-                        logger.log (Level.FINE, "closing: no request: " + c);
-                        reqConnections.remove (c);
-                        allConnections.remove (c);
-                        c.close();
-                    }
-                }
-            }
-            toClose = new LinkedList<HttpConnection>();
-            synchronized (rspConnections) {
-                if (MAX_RSP_TIME != -1) {
-                    for (HttpConnection c : rspConnections) {
-                        if (c.rspStartedTime + TIMER_MILLIS +MAX_RSP_TIME <= time) {
-                            toClose.add (c);
-                        }
-                    }
-                    for (HttpConnection c : toClose) {
-                        logger.log (Level.FINE, "closing: no response: " + c);
-                        rspConnections.remove (c);
-                        allConnections.remove (c);
-                        c.close();
-                    }
-                }
-            }
-        }
+        wheel.schedule (c, 0);
     }
 
     void logStackTrace (String s) {
@@ -0,0 +1,123 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.net.impl.httpserver;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Hashed timing wheel of connection deadlines (idle, request and response
+ * time limits), replacing the timers which swept every connection under a
+ * lock.
+ *
+ * Any thread sets a deadline with schedule(); it is a volatile write, and
+ * a connection not yet on the wheel is queued for the loop. The wheel is
+ * turned only by the dispatcher loop through advance(), which looks at one
+ * bucket per tick: a connection whose deadline moved further is put in
+ * its new bucket, one without a deadline leaves the wheel and one whose
+ * deadline has passed is handed to the ServerImpl to be closed.
+ */
+class TimerWheel {
+
+    private static final AtomicIntegerFieldUpdater<HttpConnection> SCHEDULED =
+            AtomicIntegerFieldUpdater.newUpdater(HttpConnection.class, "scheduled");
+    private static final AtomicLongFieldUpdater<HttpConnection> DEADLINE =
+            AtomicLongFieldUpdater.newUpdater(HttpConnection.class, "deadline");
+
+    private final ServerImpl server;
+    private final long tick;
+    private final ArrayDeque<HttpConnection>[] buckets;
+    private final ConcurrentLinkedQueue<HttpConnection> incoming = new ConcurrentLinkedQueue<HttpConnection>();
+    /* start of the next tick to process */
+    private long next;
+
+    @SuppressWarnings("unchecked")
+    TimerWheel (ServerImpl server, long tick, int size) {
+        this.server = server;
+        this.tick = Math.max(1, tick);
+        buckets = new ArrayDeque[Math.max(1, size)];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new ArrayDeque<HttpConnection>();
+        }
+        next = System.currentTimeMillis() / this.tick * this.tick + this.tick;
+    }
+
+    /**
+     * expire c at deadline (ms), 0 for no deadline. May be called from any
+     * thread.
+     */
+    void schedule (HttpConnection c, long deadline) {
+        c.deadline = deadline;
+        if (deadline != 0 && SCHEDULED.compareAndSet(c, 0, 1)) {
+            incoming.add(c);
+        }
+    }
+
+    /**
+     * ms until the next tick is due, the select timeout of the loop
+     */
+    long timeout () {
+        return Math.max(1, next - System.currentTimeMillis());
+    }
+
+    /**
+     * process the ticks which are due, dispatcher loop only
+     */
+    void advance () {
+        long now = System.currentTimeMillis();
+        HttpConnection c;
+        while ((c = incoming.poll()) != null) {
+            place(c);
+        }
+        while (next <= now) {
+            server.time = now;
+            server.ticks++;
+            ArrayDeque<HttpConnection> bucket = buckets[index(next - tick)];
+            int n = bucket.size();
+            for (int i = 0; i < n; i++) {
+                visit(bucket.poll(), now);
+            }
+            next += tick;
+        }
+    }
+
+    private void visit (HttpConnection c, long now) {
+        long d = c.deadline;
+        if (d != 0 && d > now) {
+            place(c);
+            return;
+        }
+        /* off the wheel; a deadline set from now on queues c again */
+        c.scheduled = 0;
+        if (d != 0 && DEADLINE.compareAndSet(c, d, 0)) {
+            server.expire(c);
+            return;
+        }
+        d = c.deadline;
+        if (d != 0 && SCHEDULED.compareAndSet(c, 0, 1)) {
+            place(c);
+        }
+    }
+
+    private void place (HttpConnection c) {
+        long d = c.deadline;
+        if (d == 0) {
+            c.scheduled = 0;
+            d = c.deadline;
+            if (d == 0 || !SCHEDULED.compareAndSet(c, 0, 1)) {
+                return;
+            }
+        }
+        /* a deadline already passed is looked at on the next tick */
+        buckets[index(Math.max(d, next))].add(c);
+    }
+
+    private int index (long t) {
+        return (int) ((t / tick) % buckets.length);
+    }
+}
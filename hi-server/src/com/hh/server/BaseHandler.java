@@ -17,7 +17,6 @@ import com.hh.webservice.websocket.IWebsocketConnection;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import javax.ws.rs.core.Application;
 import com.hh.action.HttpFilter;
 import com.hh.action.ReturnFilter;
@@ -35,16 +34,40 @@ public class BaseHandler implements HttpHandler {
 	private String wsConnectionClass;
 	public HashMap<String, HandlerContainer> rsPath = new HashMap();
 	public Server server = null;
+	// created once and shared by all requests, filters must be thread safe
+	private volatile HttpFilter filter;
+	private volatile ReturnFilter returnFilter = new DefaultReturnFilter();
+	private final RouteTable<HandlerContainer> restRoutes = new RouteTable<>();
 
 	public BaseHandler() {
 	}
 
 	public void setFilter(String filterClass) {
 		this.filterClass = filterClass;
+		this.filter = filterClass == null || filterClass.trim().isEmpty() ? null
+				: (HttpFilter) newInstance(filterClass);
+	}
+
+	/**
+	 * the filter created by setFilter, null without one
+	 */
+	public HttpFilter getFilter() {
+		return filter;
 	}
 
 	public void setReturnFilter(String filterClass) {
 		this.returnFilterClass = filterClass;
+		this.returnFilter = filterClass == null || filterClass.trim().isEmpty() ? new DefaultReturnFilter()
+				: (ReturnFilter) newInstance(filterClass);
+	}
+
+	private static Object newInstance(String className) {
+		try {
+			return Class.forName(className).newInstance();
+		} catch (ClassNotFoundException | InstantiationException | IllegalAccessException ex) {
+			log.error("Can not create filter " + className, ex);
+			throw new IllegalArgumentException("Can not create filter " + className, ex);
+		}
 	}
 
 	public void setWebsocketConnection(String wsConnectionClass) {
@@ -54,6 +77,7 @@ public class BaseHandler implements HttpHandler {
 	public void addRestHandler(String path, Application app) {
 		HandlerContainer hc = new HandlerContainer(app);
 		rsPath.put(path, hc);
+		restRoutes.put(path, hc);
 	}
 
 	public void setConnector(Server server) {
@@ -86,18 +110,14 @@ public class BaseHandler implements HttpHandler {
 
 			// Neu la web service restfull
 			if (path.startsWith("/rs/")) {
-				if (filterClass != null && !filterClass.trim().isEmpty()) {
-					hu.setFilter((HttpFilter) Class.forName(filterClass).newInstance());
-				}
+				hu.setFilter(filter);
 				if (!hu.doFilter()) {
 					return;
 				}
 
-				for (Map.Entry<String, HandlerContainer> entry : rsPath.entrySet()) {
-					if (path.startsWith(entry.getKey())) {
-						entry.getValue().handle(he);
-						break;
-					}
+				HandlerContainer hc = restRoutes.match(path);
+				if (hc != null) {
+					hc.handle(he);
 				}
 			} else {
 				List<String> wsHeader = he.getRequestHeaders().get("upgrade");
@@ -116,15 +136,8 @@ public class BaseHandler implements HttpHandler {
 					WebsocketActor wa = new WebsocketActor(hu);
 					wa.onReceive();
 				} else { // Neu la HttpRequest thuong
-					if (filterClass != null && !filterClass.trim().isEmpty()) {
-						hu.setFilter((HttpFilter) Class.forName(filterClass).newInstance());
-					}
-
-					if (returnFilterClass != null && !returnFilterClass.trim().isEmpty()) {
-						hu.setReturnFilter((ReturnFilter) Class.forName(returnFilterClass).newInstance());
-					} else {
-						hu.setReturnFilter(new DefaultReturnFilter());
-					}
+					hu.setFilter(filter);
+					hu.setReturnFilter(returnFilter);
 
 					ServerActor sa = new ServerActor(hu, server);
 					sa.onReceive();
@@ -132,6 +145,8 @@ public class BaseHandler implements HttpHandler {
 			}
 		} catch (Exception ex) {
 			HHServer.mainLogger.error("HHServer error: ", ex);
+		} finally {
+			hu.flushSession();
 		}
 	}
 }
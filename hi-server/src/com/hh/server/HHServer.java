@@ -13,6 +13,7 @@ import com.hh.net.httpserver.HttpsConfigurator;
 import com.hh.net.httpserver.HttpsParameters;
 import com.hh.net.httpserver.HttpsServer;
 import com.hh.web.HttpSession;
+import com.hh.web.PageTemplateCache;
 import com.hh.web.RamSession;
 import com.hh.web.RedisSession;
 import com.hh.webservice.websocket.IWebsocketConnection;
@@ -27,12 +28,20 @@ import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManagerFactory;
 import org.glassfish.jersey.server.ResourceConfig;
 import com.hh.action.HttpFilter;
@@ -183,6 +192,7 @@ public class HHServer {
     }
     
     public static void reloadBrowserCache() {
+        PageTemplateCache.invalidateAll();
         long version = (new Date()).getTime();
         File appFolder = new File("../app/");
         FileUtils fu = new FileUtils();
@@ -228,26 +238,103 @@ public class HHServer {
         start();
     }
 
+    /* TLS 1.3 suites first, then ECDHE with AES-GCM and ChaCha20 */
+    public static final String DEFAULT_SSL_CIPHERS = "TLS_AES_128_GCM_SHA256,TLS_AES_256_GCM_SHA384,"
+            + "TLS_CHACHA20_POLY1305_SHA256,"
+            + "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256,TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256,"
+            + "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384,TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384,"
+            + "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256,TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256";
+    public static final String DEFAULT_SSL_PROTOCOLS = "TLSv1.3,TLSv1.2";
+
+    /**
+     * Server TLS context. Settings in server.conf:
+     * ssl-provider (JCA provider name or class, e.g. a native OpenSSL
+     * provider such as org.conscrypt.OpenSSLProvider; the JDK provider is
+     * used when it is not available), KeyStoreType (JKS or PKCS12),
+     * ssl-session-cache-size, ssl-session-timeout (seconds) and
+     * ssl-session-tickets.
+     */
     private SSLContext getSslContext(String keyStoreFile, String passPhrase) throws FileNotFoundException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableKeyException, KeyManagementException {
-        final SSLContext sslContext = SSLContext.getInstance("TLSv1.1");
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+            // stateless resumption, read by JDK 13+ when the first context is created
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+                    "false".equals(config.getConfig("ssl-session-tickets")) ? "false" : "true");
+        }
+        Provider provider = getSslProvider(config.getConfig("ssl-provider"));
+        final SSLContext sslContext = provider == null
+                ? SSLContext.getInstance("TLS") : SSLContext.getInstance("TLS", provider);
+        String keyStoreType = config.getConfig("KeyStoreType");
         try (FileInputStream keyStoreStream = new FileInputStream(keyStoreFile);) {
-            final KeyStore keystore = KeyStore.getInstance("JKS");
+            final KeyStore keystore = KeyStore.getInstance(keyStoreType == null ? "JKS" : keyStoreType.trim());
             keystore.load(keyStoreStream, passPhrase.toCharArray());
-            final KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+            final KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
             kmf.init(keystore, passPhrase.toCharArray());
-            final TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+            final TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
             tmf.init(keystore);
             sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
         }
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(getIntConfig("ssl-session-cache-size", 20000));
+            sessions.setSessionTimeout(getIntConfig("ssl-session-timeout", 3600));
+        }
+        mainLogger.info("TLS provider: " + sslContext.getProvider().getName());
         return sslContext;
     }
 
+    private static Provider getSslProvider(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return null;
+        }
+        name = name.trim();
+        Provider provider = Security.getProvider(name);
+        if (provider != null) {
+            return provider;
+        }
+        try {
+            return (Provider) Class.forName(name).newInstance();
+        } catch (Throwable ex) {
+            // native libraries missing or not on the classpath
+            mainLogger.warn("TLS provider " + name + " is not available, using the JDK provider", ex);
+            return null;
+        }
+    }
+
+    private static int getIntConfig(String key, int defaultValue) {
+        String value = config.getConfig(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /* configured names which the context supports, in configured order */
+    private static String[] supported(String configured, String[] available) {
+        Set<String> set = new HashSet<>(Arrays.asList(available));
+        List<String> list = new ArrayList<>();
+        for (String name : configured.split(",")) {
+            name = name.trim();
+            if (set.contains(name)) {
+                list.add(name);
+            }
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
     private HttpsConfigurator getConfigurator(final SSLContext sslContext) {
+        String protocolConfig = config.getConfig("ssl-protocols");
+        String cipherConfig = config.getConfig("ssl-ciphers");
+        SSLParameters supportedParams = sslContext.getSupportedSSLParameters();
+        final String[] protocols = supported(protocolConfig == null ? DEFAULT_SSL_PROTOCOLS : protocolConfig,
+                supportedParams.getProtocols());
+        final String[] ciphers = supported(cipherConfig == null ? DEFAULT_SSL_CIPHERS : cipherConfig,
+                supportedParams.getCipherSuites());
+        if (protocols.length == 0 || ciphers.length == 0) {
+            throw new IllegalArgumentException("No supported TLS protocol or cipher suite in ssl-protocols/ssl-ciphers");
+        }
+        mainLogger.info("TLS protocols: " + Arrays.toString(protocols));
         return new HttpsConfigurator(sslContext) {
             @Override
             public void configure(HttpsParameters params) {
-                final SSLContext context = getSSLContext();
-                final SSLParameters sslParams = context.getDefaultSSLParameters();
+                final SSLParameters sslParams = new SSLParameters(ciphers, protocols);
+                sslParams.setUseCipherSuitesOrder(true);
                 params.setNeedClientAuth(false);
                 params.setSSLParameters(sslParams);
             }
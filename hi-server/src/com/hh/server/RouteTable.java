@@ -0,0 +1,108 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Longest-prefix route lookup over a radix tree.
+ *
+ * Routes are registered at startup; every put builds a new immutable tree
+ * which is published at once, so lookups need no locking and never see a
+ * half built table.
+ */
+public class RouteTable<V> {
+
+    private static class Node<V> {
+        final String label;
+        V value;
+        final List<Node<V>> children = new ArrayList<>(2);
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        Node<V> child(char c) {
+            for (Node<V> n : children) {
+                if (n.label.charAt(0) == c) {
+                    return n;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Map<String, V> routes = new LinkedHashMap<>();
+    private volatile Node<V> root = new Node<>("");
+
+    public synchronized void put(String prefix, V value) {
+        routes.put(prefix, value);
+        Node<V> r = new Node<>("");
+        for (Map.Entry<String, V> entry : routes.entrySet()) {
+            insert(r, entry.getKey(), entry.getValue());
+        }
+        root = r;
+    }
+
+    public synchronized Map<String, V> routes() {
+        return new LinkedHashMap<>(routes);
+    }
+
+    /**
+     * value of the longest registered prefix of path, null if none
+     */
+    public V match(String path) {
+        Node<V> node = root;
+        V found = node.value;
+        int pos = 0;
+        while (pos < path.length()) {
+            Node<V> next = node.child(path.charAt(pos));
+            if (next == null || !path.startsWith(next.label, pos)) {
+                break;
+            }
+            pos += next.label.length();
+            node = next;
+            if (node.value != null) {
+                found = node.value;
+            }
+        }
+        return found;
+    }
+
+    private static <V> void insert(Node<V> node, String key, V value) {
+        int pos = 0;
+        while (pos < key.length()) {
+            Node<V> next = node.child(key.charAt(pos));
+            if (next == null) {
+                Node<V> leaf = new Node<>(key.substring(pos));
+                leaf.value = value;
+                node.children.add(leaf);
+                return;
+            }
+            int common = 0;
+            int max = Math.min(next.label.length(), key.length() - pos);
+            while (common < max && next.label.charAt(common) == key.charAt(pos + common)) {
+                common++;
+            }
+            if (common < next.label.length()) {
+                /* split the edge at the first difference */
+                Node<V> split = new Node<>(next.label.substring(0, common));
+                Node<V> rest = new Node<>(next.label.substring(common));
+                rest.value = next.value;
+                rest.children.addAll(next.children);
+                split.children.add(rest);
+                node.children.set(node.children.indexOf(next), split);
+                next = split;
+            }
+            pos += common;
+            node = next;
+        }
+        node.value = value;
+    }
+}
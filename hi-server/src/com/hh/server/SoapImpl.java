@@ -5,20 +5,11 @@
  */
 package com.hh.server;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import java.util.concurrent.TimeUnit;
-
 /**
  *
  * @author HienDM
  */
 public class SoapImpl {
-    public static Cache<Object, Object> cacheResponse = CacheBuilder.newBuilder()
-                .maximumSize(10000000)
-                .expireAfterAccess(15, TimeUnit.MINUTES)
-                .build();
-    
     public void initSoapService(HHServer server) throws Exception {
     }
 }
@@ -34,6 +34,14 @@ public class DefaultWebSocketConfig implements WebSocketConfig
     private String port = "9999";
     
     private String maxFrameSize = "20000000";
+    
+    private boolean compressionEnable = true;
+    
+    private int compressionThreshold = 256;
+    
+    private int writeBufferHighWaterMark = 64 * 1024;
+    
+    private int writeBufferLowWaterMark = 32 * 1024;
 
     public boolean sslEnabled() {
         return sslEnable;
@@ -91,4 +99,36 @@ public class DefaultWebSocketConfig implements WebSocketConfig
         this.maxFrameSize = "" + maxFrameSize;
     }    
 
+    public boolean compressionEnabled() {
+        return compressionEnable;
+    }
+
+    public void setCompressionEnable(boolean compressionEnable) {
+        this.compressionEnable = compressionEnable;
+    }
+
+    public int compressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int writeBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    public void setWriteBufferHighWaterMark(int writeBufferHighWaterMark) {
+        this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+    }
+
+    public int writeBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public void setWriteBufferLowWaterMark(int writeBufferLowWaterMark) {
+        this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+    }
+
 }
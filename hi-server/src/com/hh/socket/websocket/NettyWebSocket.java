@@ -22,29 +22,54 @@ package com.hh.socket.websocket;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 
 public class NettyWebSocket implements WebSocket
 {
     private final Logger logger = LoggerFactory.getLogger(NettyWebSocket.class);
     private final WebSocketRequest wsRequest;
     private final ChannelHandlerContext ctx;
+    private final String id;
     private String currentMessage;
+    private byte[] currentBinary;
     private final List<WebSocket.Callback> messageHandlers = new ArrayList<WebSocket.Callback>();
+    private final List<WebSocket.Callback> binaryHandlers = new ArrayList<WebSocket.Callback>();
     private final List<WebSocket.Callback> disconnectHandlers = new ArrayList<WebSocket.Callback>();
+    /* one flush per burst of sends, run on the event loop after them */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            ctx.channel().flush();
+        }
+    };
 
     NettyWebSocket(WebSocketRequest wsRequest,
                    ChannelHandlerContext ctx)
     {
         this.wsRequest = wsRequest;
         this.ctx = ctx;
+        this.id = WebSocketRegistry.getInstance().register(ctx.channel());
+    }
+
+    @Override
+    public String getId()
+    {
+        return this.id;
     }
     
     @Override
@@ -74,7 +99,37 @@ public class NettyWebSocket implements WebSocket
     @Override
     public void send(String message)
     {
-        this.ctx.channel().writeAndFlush(new TextWebSocketFrame(message));
+        write(new TextWebSocketFrame(message));
+    }
+
+    @Override
+    public void sendBinary(byte[] data)
+    {
+        write(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(data)));
+    }
+
+    @Override
+    public boolean isWritable()
+    {
+        return this.ctx.channel().isWritable();
+    }
+
+    /*
+     * Frames are written without a flush; the first write of a burst
+     * schedules one flush on the channel's event loop for all of them.
+     */
+    private void write(WebSocketFrame frame)
+    {
+        Channel channel = this.ctx.channel();
+        channel.write(frame);
+        if (this.flushScheduled.compareAndSet(false, true)) {
+            try {
+                channel.eventLoop().execute(this.flushTask);
+            } catch (RejectedExecutionException e) {
+                /* event loop is shutting down, the channel is closed with it */
+                this.flushScheduled.set(false);
+            }
+        }
     }
 
     @Override
@@ -83,12 +138,24 @@ public class NettyWebSocket implements WebSocket
         return this.currentMessage;
     }
 
+    @Override
+    public byte[] recvBinary()
+    {
+        return this.currentBinary;
+    }
+
     @Override
     public void onMessage(WebSocket.Callback cb)
     {
         this.messageHandlers.add(cb);
     }
 
+    @Override
+    public void onBinaryMessage(WebSocket.Callback cb)
+    {
+        this.binaryHandlers.add(cb);
+    }
+
     @Override
     public void onDisconnect(WebSocket.Callback cb)
     {
@@ -109,6 +176,24 @@ public class NettyWebSocket implements WebSocket
         }
     }
 
+    void binaryMessage(byte[] data)
+    {
+        if (this.binaryHandlers.isEmpty()) {
+            logger.debug("Binary message dropped, no handler for [{}]", getPath());
+            return;
+        }
+        for (WebSocket.Callback cb : this.binaryHandlers) {
+            this.currentBinary = data;
+            try {
+                cb.call(this);
+            } catch (Exception e) {
+                logger.warn("Exception in WebSocket.onBinaryMessage() [{}]",
+                            e.getStackTrace());
+            }
+            this.currentBinary = null;
+        }
+    }
+
     void disconnect()
     {
         for (WebSocket.Callback cb : this.disconnectHandlers) {
@@ -29,6 +29,7 @@ import java.util.Map;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
@@ -43,6 +44,7 @@ import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaders;
@@ -51,6 +53,7 @@ import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
@@ -109,6 +112,9 @@ public class NettyWebSocketService  extends Thread implements WebSocketService
 
         // get rid of silly lag
         b.childOption(ChannelOption.TCP_NODELAY, Boolean.TRUE);
+        // writability turns false above the high water mark, see NettyWebSocket.isWritable()
+        b.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, conf.writeBufferHighWaterMark());
+        b.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, conf.writeBufferLowWaterMark());
         b.localAddress(new InetSocketAddress(conf.getPort()));
         b.group(bossGroup, workerGroup)
             .channel(NioServerSocketChannel.class)
@@ -162,7 +168,9 @@ public class NettyWebSocketService  extends Thread implements WebSocketService
         private final NettyWebSocketService nwss;
         private WebSocketServerHandshaker handshaker;
         private NettyWebSocket nws;
-        private StringBuilder frames;
+        /* fragments of the current message, null between messages */
+        private CompositeByteBuf fragments;
+        private boolean binaryMessage;
 
         public WebSocketServerHandler(NettyWebSocketService nwss)
         {
@@ -184,6 +192,24 @@ public class NettyWebSocketService  extends Thread implements WebSocketService
             ctx.flush();
         }
 
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            // stop reading from a client which does not read what it is sent
+            ctx.channel().config().setAutoRead(ctx.channel().isWritable());
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            releaseFragments();
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            releaseFragments();
+        }
+
         private void handleHttpReqB(ChannelHandlerContext ctx,
                                     FullHttpRequest req,
                                     WebSocketRequest wsRequest)
@@ -201,14 +227,28 @@ public class NettyWebSocketService  extends Thread implements WebSocketService
                 return;
             }
 
-            String loc = getWebSocketLocation(req, this.nwss.conf.sslEnabled());
+            WebSocketConfig conf = this.nwss.conf;
+            String extension = null;
+            if (conf.compressionEnabled()) {
+                extension = PerMessageDeflateHandler.negotiate(
+                    req.headers().get(PerMessageDeflateHandler.HEADER));
+            }
+            String loc = getWebSocketLocation(req, conf.sslEnabled());
             WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(
-                loc, null, false, this.nwss.conf.maxFrameSize());
+                loc, null, extension != null, conf.maxFrameSize());
             handshaker = wsFactory.newHandshaker(req);
             if (handshaker == null) {
                 WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
-            } else {
-                handshaker.handshake(ctx.channel(), req);
+                return;
+            }
+            HttpHeaders responseHeaders = new DefaultHttpHeaders();
+            if (extension != null) {
+                responseHeaders.set(PerMessageDeflateHandler.HEADER, extension);
+            }
+            handshaker.handshake(ctx.channel(), req, responseHeaders, ctx.channel().newPromise());
+            if (extension != null) {
+                ctx.pipeline().addBefore(ctx.name(), "ws-deflate",
+                    new PerMessageDeflateHandler(conf.maxFrameSize(), conf.compressionThreshold()));
             }
 
             this.nws = new NettyWebSocket(wsRequest, ctx);
@@ -216,9 +256,7 @@ public class NettyWebSocketService  extends Thread implements WebSocketService
             try {
                 handler.onWebSocketConnect(this.nws, wsRequest, this.nwss.server);
             } catch (Exception e) {
-                //this.nwss.logger.warn("Exception in {}.onWebSocketConnect()... [{}]",
-                //                      handler.getClass().getName(),
-                //                      ExceptionUtils.getStackTrace(e));
+                log.warn("Exception in " + handler.getClass().getName() + ".onWebSocketConnect()", e);
             }
 
             ctx.channel().closeFuture().addListener(new GenericFutureListener<ChannelFuture>() {
@@ -254,52 +292,87 @@ public class NettyWebSocketService  extends Thread implements WebSocketService
                                                          HttpResponseStatus.FORBIDDEN));
         }
 
-        private synchronized void handleWebSocketFrame(ChannelHandlerContext ctx, WebSocketFrame frame)
+        /*
+         * Runs on the channel's event loop, which already serializes the
+         * frames of one connection, so no lock is needed. Fragments are
+         * collected as buffers and decoded once the message is complete.
+         */
+        private void handleWebSocketFrame(ChannelHandlerContext ctx, WebSocketFrame frame)
         {
             // Check for closing frame
             if (frame instanceof CloseWebSocketFrame) {
+                releaseFragments();
                 handshaker.close(ctx.channel(), (CloseWebSocketFrame) frame.retain());
                 return;
             }
             if (frame instanceof PingWebSocketFrame) {
-                ctx.channel().write(new PongWebSocketFrame(frame.content().retain()));
+                // flushed by channelReadComplete together with the rest of this read
+                ctx.write(new PongWebSocketFrame(frame.content().retain()));
                 return;
             }
-            if (!frame.isFinalFragment() || this.frames != null) {
-                final String msg;
-                if (frame instanceof TextWebSocketFrame) {
-                    msg = ((TextWebSocketFrame) frame).text();
-                } else if (frame instanceof ContinuationWebSocketFrame) {
-                    msg = ((ContinuationWebSocketFrame) frame).text();
-                } else {
-                    throw new UnsupportedOperationException(
-                        "unsupported frame fragment type " + frame.getClass().getName());
-                }
-                if (this.frames == null) {
-                    this.frames = new StringBuilder();
+            if (frame instanceof PongWebSocketFrame) {
+                return;
+            }
+            if (frame instanceof ContinuationWebSocketFrame) {
+                if (this.fragments == null) {
+                    close(ctx, 1002, "Unexpected continuation frame");
+                    return;
                 }
-                this.frames.append(msg);
-                if (this.frames.length() > this.nwss.conf.maxFrameSize()) {
-                    throw new RuntimeException("Frame size too big [" + this.frames.length() +
-                        "] max frame size [" + this.nwss.conf.maxFrameSize() + "]");
+            } else if (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame) {
+                if (this.fragments != null) {
+                    close(ctx, 1002, "Expected continuation frame");
+                    return;
                 }
                 if (frame.isFinalFragment()) {
-                    final String fullMsg = this.frames.toString();
-                    this.frames = null;
-                    this.nws.message(fullMsg);
+                    deliver(frame.content(), frame instanceof BinaryWebSocketFrame);
+                    return;
                 }
+                this.fragments = ctx.alloc().compositeBuffer();
+                this.binaryMessage = frame instanceof BinaryWebSocketFrame;
+            } else {
+                close(ctx, 1003, "Unsupported frame type");
                 return;
             }
-            if (!(frame instanceof TextWebSocketFrame)) {
-                throw new UnsupportedOperationException(
-                    String.format("%s frame types not supported", frame.getClass().getName()));
+
+            ByteBuf content = frame.content();
+            if (this.fragments.readableBytes() + content.readableBytes() > this.nwss.conf.maxFrameSize()) {
+                close(ctx, 1009, "Message too big, max [" + this.nwss.conf.maxFrameSize() + "]");
+                return;
             }
+            this.fragments.addComponent(content.retain());
+            this.fragments.writerIndex(this.fragments.writerIndex() + content.readableBytes());
+            if (frame.isFinalFragment()) {
+                try {
+                    deliver(this.fragments, this.binaryMessage);
+                } finally {
+                    releaseFragments();
+                }
+            }
+        }
 
-            final String msg = ((TextWebSocketFrame) frame).text();
-            
-            
-            
-            this.nws.message(msg);
+        private void deliver(ByteBuf data, boolean binary)
+        {
+            if (binary) {
+                byte[] bytes = new byte[data.readableBytes()];
+                data.getBytes(data.readerIndex(), bytes);
+                this.nws.binaryMessage(bytes);
+            } else {
+                this.nws.message(data.toString(CharsetUtil.UTF_8));
+            }
+        }
+
+        private void close(ChannelHandlerContext ctx, int status, String reason)
+        {
+            releaseFragments();
+            ctx.writeAndFlush(new CloseWebSocketFrame(status, reason)).addListener(ChannelFutureListener.CLOSE);
+        }
+
+        private void releaseFragments()
+        {
+            if (this.fragments != null) {
+                this.fragments.release();
+                this.fragments = null;
+            }
         }
 
         private static void sendHttpResponse(ChannelHandlerContext ctx,
@@ -323,8 +396,8 @@ public class NettyWebSocketService  extends Thread implements WebSocketService
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            //this.nwss.logger.warn("Netty exceptionCaught() [{}]",
-            //                      ExceptionUtils.getStackTrace(cause));
+            log.debug("Netty exceptionCaught()", cause);
+            releaseFragments();
             ctx.close();
         }
 
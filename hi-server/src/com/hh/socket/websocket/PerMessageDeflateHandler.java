@@ -0,0 +1,309 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.hh.socket.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * permessage-deflate (RFC 7692) for the websocket pipeline, placed
+ * between the frame codec and the application handler.
+ *
+ * Both directions run without context takeover, so a connection keeps no
+ * zlib state: every message is compressed or inflated on its own with the
+ * Deflater/Inflater of the event loop thread. Fragmented compressed
+ * messages are collected (up to maxMessageSize) and inflated when the last
+ * fragment arrives. Outgoing unfragmented text and binary frames of at
+ * least threshold bytes are compressed.
+ */
+public class PerMessageDeflateHandler extends ChannelDuplexHandler
+{
+    public static final String HEADER = "Sec-WebSocket-Extensions";
+    public static final String EXTENSION = "permessage-deflate";
+    /* extension parameters of the handshake response */
+    public static final String RESPONSE = EXTENSION + "; server_no_context_takeover; client_no_context_takeover";
+    private static final int RSV1 = 0x04;
+    private static final byte[] TAIL = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+    private static final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    private final int maxMessageSize;
+    private final int threshold;
+    /* compressed fragments of the current message, null between messages */
+    private CompositeByteBuf fragments;
+    private boolean binaryMessage;
+
+    public PerMessageDeflateHandler(int maxMessageSize, int threshold)
+    {
+        this.maxMessageSize = maxMessageSize;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Answer to the client's Sec-WebSocket-Extensions header, null when it
+     * offers no permessage-deflate variant we can accept.
+     */
+    public static String negotiate(String offers)
+    {
+        if (offers == null) {
+            return null;
+        }
+        for (String offer : offers.split(",")) {
+            String[] params = offer.split(";");
+            if (!EXTENSION.equalsIgnoreCase(params[0].trim())) {
+                continue;
+            }
+            boolean accepted = true;
+            for (int i = 1; i < params.length && accepted; i++) {
+                String param = params[i].trim();
+                int eq = param.indexOf('=');
+                String name = (eq < 0 ? param : param.substring(0, eq)).trim().toLowerCase();
+                String value = eq < 0 ? null : param.substring(eq + 1).trim().replace("\"", "");
+                if (name.equals("server_max_window_bits")) {
+                    /* java.util.zip always uses a 32K window */
+                    accepted = "15".equals(value);
+                } else if (!name.equals("client_max_window_bits")
+                        && !name.equals("server_no_context_takeover")
+                        && !name.equals("client_no_context_takeover")) {
+                    accepted = false;
+                }
+            }
+            if (accepted) {
+                return RESPONSE;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+    {
+        if (!(msg instanceof WebSocketFrame)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        WebSocketFrame frame = (WebSocketFrame) msg;
+        boolean compressed = (frame.rsv() & RSV1) != 0;
+        boolean start = frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame;
+        if (fragments == null && !(start && compressed)) {
+            /* uncompressed message or control frame */
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        try {
+            if (fragments == null) {
+                fragments = ctx.alloc().compositeBuffer();
+                binaryMessage = frame instanceof BinaryWebSocketFrame;
+            } else if (!(frame instanceof ContinuationWebSocketFrame)) {
+                if (start) {
+                    close(ctx, 1002, "Expected continuation frame");
+                    return;
+                }
+                /* control frame between fragments */
+                ctx.fireChannelRead(frame.retain());
+                return;
+            }
+            ByteBuf content = frame.content();
+            if (fragments.readableBytes() + content.readableBytes() > maxMessageSize) {
+                close(ctx, 1009, "Message too big");
+                return;
+            }
+            fragments.addComponent(content.retain());
+            fragments.writerIndex(fragments.writerIndex() + content.readableBytes());
+            if (!frame.isFinalFragment()) {
+                return;
+            }
+            ByteBuf data;
+            try {
+                data = inflate(ctx, fragments);
+            } catch (DataFormatException ex) {
+                close(ctx, 1007, "Invalid compressed data");
+                return;
+            }
+            if (data == null) {
+                close(ctx, 1009, "Message too big");
+                return;
+            }
+            releaseFragments();
+            ctx.fireChannelRead(binaryMessage
+                    ? new BinaryWebSocketFrame(true, 0, data)
+                    : new TextWebSocketFrame(true, 0, data));
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+    {
+        if (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame) {
+            WebSocketFrame frame = (WebSocketFrame) msg;
+            if (frame.isFinalFragment() && frame.rsv() == 0 && frame.content().readableBytes() >= threshold) {
+                ByteBuf data = deflate(ctx, frame.content());
+                if (data != null) {
+                    frame.release();
+                    msg = frame instanceof TextWebSocketFrame
+                            ? new TextWebSocketFrame(true, RSV1, data)
+                            : new BinaryWebSocketFrame(true, RSV1, data);
+                }
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception
+    {
+        releaseFragments();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception
+    {
+        releaseFragments();
+        ctx.fireChannelInactive();
+    }
+
+    private void close(ChannelHandlerContext ctx, int status, String reason)
+    {
+        releaseFragments();
+        ctx.writeAndFlush(new CloseWebSocketFrame(status, reason)).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void releaseFragments()
+    {
+        if (fragments != null) {
+            fragments.release();
+            fragments = null;
+        }
+    }
+
+    /* compressed content without the final empty block, null when it does not get smaller */
+    private static ByteBuf deflate(ChannelHandlerContext ctx, ByteBuf content)
+    {
+        int len = content.readableBytes();
+        byte[] in;
+        int off;
+        if (content.hasArray()) {
+            in = content.array();
+            off = content.arrayOffset() + content.readerIndex();
+        } else {
+            in = new byte[len];
+            content.getBytes(content.readerIndex(), in);
+            off = 0;
+        }
+        Deflater d = deflater.get();
+        byte[] buf = scratch.get();
+        ByteBuf out = ctx.alloc().heapBuffer(Math.max(64, len / 2));
+        d.reset();
+        d.setInput(in, off, len);
+        int n;
+        do {
+            n = d.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+            out.writeBytes(buf, 0, n);
+        } while (n == buf.length);
+        if (endsWithTail(out)) {
+            out.writerIndex(out.writerIndex() - TAIL.length);
+        }
+        if (out.readableBytes() >= len) {
+            out.release();
+            return null;
+        }
+        return out;
+    }
+
+    /* inflated message, null when it is larger than maxMessageSize */
+    private ByteBuf inflate(ChannelHandlerContext ctx, ByteBuf compressed) throws DataFormatException
+    {
+        byte[] in = new byte[compressed.readableBytes() + TAIL.length];
+        compressed.getBytes(compressed.readerIndex(), in, 0, compressed.readableBytes());
+        System.arraycopy(TAIL, 0, in, compressed.readableBytes(), TAIL.length);
+        Inflater i = inflater.get();
+        byte[] buf = scratch.get();
+        ByteBuf out = ctx.alloc().heapBuffer(Math.min(maxMessageSize, in.length * 4));
+        boolean ok = false;
+        try {
+            i.reset();
+            i.setInput(in);
+            while (true) {
+                int n = i.inflate(buf);
+                if (n > 0) {
+                    if (out.readableBytes() + n > maxMessageSize) {
+                        return null;
+                    }
+                    out.writeBytes(buf, 0, n);
+                } else if (i.finished() || i.needsInput()) {
+                    break;
+                } else {
+                    throw new DataFormatException("Inflater made no progress");
+                }
+            }
+            ok = true;
+            return out;
+        } finally {
+            if (!ok) {
+                out.release();
+            }
+        }
+    }
+
+    private static boolean endsWithTail(ByteBuf out)
+    {
+        int end = out.writerIndex();
+        if (out.readableBytes() < TAIL.length) {
+            return false;
+        }
+        for (int j = 0; j < TAIL.length; j++) {
+            if (out.getByte(end - TAIL.length + j) != TAIL[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -28,6 +28,9 @@ import java.util.Map;
  */
 public interface WebSocket
 {
+    /** @return the id of this connection in the WebSocketRegistry. */
+    String getId();
+
     /** @return the *handler* (path is a misleading statement). */
     String getPath();
 
@@ -40,12 +43,28 @@ public interface WebSocket
     /** @param message send a message on the websocket */
     void send(String message);
 
+    /** @param data send a binary message on the websocket */
+    void sendBinary(byte[] data);
+
+    /**
+     * @return false while the connection has more queued output than the
+     * write buffer high water mark; producers should hold back until it is
+     * writable again.
+     */
+    boolean isWritable();
+
     /** @return null unless inside of onMessage() callback in which case return   */
     String recv();
 
+    /** @return null unless inside of onBinaryMessage() callback */
+    byte[] recvBinary();
+
     /** @param cb a Callback to be called when a websocket message comes in for this handler. */
     void onMessage(Callback cb);
 
+    /** @param cb a Callback to be called when a binary websocket message comes in. */
+    void onBinaryMessage(Callback cb);
+
     /** @param cb a Callback to be called when it is detected that the client has disconnected. */
     void onDisconnect(Callback cb);
 
@@ -61,4 +61,19 @@ public interface WebSocketConfig
      * Default: 20MB
      */
     int maxFrameSize();
+
+    /** Whether permessage-deflate compression is accepted when a client offers it. */
+    boolean compressionEnabled();
+
+    /** Messages smaller than this many bytes are sent uncompressed. */
+    int compressionThreshold();
+
+    /**
+     * Bytes queued for writing on one connection above which it is no
+     * longer writable and reading from it is paused.
+     */
+    int writeBufferHighWaterMark();
+
+    /** Queued bytes below which a connection is writable again. */
+    int writeBufferLowWaterMark();
 }
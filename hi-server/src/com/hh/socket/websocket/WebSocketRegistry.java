@@ -0,0 +1,306 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.hh.socket.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Open websocket connections by id, with indexes by user and by topic.
+ *
+ * Every connection gets a unique id when it is registered and is removed
+ * from all indexes when its channel closes. Messages to many connections
+ * are encoded once: each channel is written a frame over a retained
+ * duplicate of the same buffer. Connections which are not writable (their
+ * queued output is above the write buffer high water mark) are skipped by
+ * the multi-connection sends so one slow client can not hold a broadcast.
+ */
+public class WebSocketRegistry
+{
+    private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(WebSocketRegistry.class.getSimpleName());
+    private static final AttributeKey<Connection> CONNECTION = AttributeKey.valueOf("hh-websocket-connection");
+    private static final WebSocketRegistry instance = new WebSocketRegistry();
+
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<String, Connection>();
+    private final ConcurrentHashMap<String, Set<Connection>> users = new ConcurrentHashMap<String, Set<Connection>>();
+    private final ConcurrentHashMap<String, Set<Connection>> topics = new ConcurrentHashMap<String, Set<Connection>>();
+
+    /**
+     * One registered channel with the user and topics it is indexed under
+     */
+    static final class Connection
+    {
+        final String id;
+        final Channel channel;
+        volatile String user;
+        final Set<String> topics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        Connection(String id, Channel channel)
+        {
+            this.id = id;
+            this.channel = channel;
+        }
+    }
+
+    public static WebSocketRegistry getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Id of the channel, registering it on first use
+     */
+    public String register(Channel channel)
+    {
+        Connection c = channel.attr(CONNECTION).get();
+        if (c != null) {
+            return c.id;
+        }
+        c = new Connection(Long.toString(ids.incrementAndGet()), channel);
+        Connection old = channel.attr(CONNECTION).setIfAbsent(c);
+        if (old != null) {
+            return old.id;
+        }
+        connections.put(c.id, c);
+        final String id = c.id;
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture f)
+            {
+                unregister(id);
+            }
+        });
+        return id;
+    }
+
+    public void unregister(String id)
+    {
+        Connection c = connections.remove(id);
+        if (c == null) {
+            return;
+        }
+        String user = c.user;
+        if (user != null) {
+            removeFromIndex(users, user, c);
+        }
+        for (String topic : c.topics) {
+            removeFromIndex(topics, topic, c);
+        }
+        c.topics.clear();
+    }
+
+    public Channel getChannel(String id)
+    {
+        Connection c = connections.get(id);
+        return c == null ? null : c.channel;
+    }
+
+    /**
+     * Index the connection under user, replacing the user it had
+     */
+    public void bindUser(String id, String user)
+    {
+        Connection c = connections.get(id);
+        if (c == null) {
+            return;
+        }
+        String old = c.user;
+        if (old != null) {
+            removeFromIndex(users, old, c);
+        }
+        c.user = user;
+        if (user != null) {
+            addToIndex(users, user, c);
+        }
+        if (user != null && !connections.containsKey(id)) {
+            /* closed meanwhile, its unregister may have missed the new user */
+            removeFromIndex(users, user, c);
+        }
+    }
+
+    public void subscribe(String id, String topic)
+    {
+        Connection c = connections.get(id);
+        if (c == null || !c.topics.add(topic)) {
+            return;
+        }
+        addToIndex(topics, topic, c);
+        if (!connections.containsKey(id)) {
+            removeFromIndex(topics, topic, c);
+        }
+    }
+
+    public void unsubscribe(String id, String topic)
+    {
+        Connection c = connections.get(id);
+        if (c != null && c.topics.remove(topic)) {
+            removeFromIndex(topics, topic, c);
+        }
+    }
+
+    /**
+     * Send to one connection, false if it is not open
+     */
+    public boolean send(String id, String message)
+    {
+        Connection c = connections.get(id);
+        if (c == null || !c.channel.isActive()) {
+            return false;
+        }
+        c.channel.writeAndFlush(new TextWebSocketFrame(message));
+        return true;
+    }
+
+    /**
+     * Send to every connection of user, returns the number written
+     */
+    public int sendToUser(String user, String message)
+    {
+        Set<Connection> set = users.get(user);
+        return set == null ? 0 : write(set, message);
+    }
+
+    /**
+     * Send to every subscriber of topic, returns the number written
+     */
+    public int publish(String topic, String message)
+    {
+        Set<Connection> set = topics.get(topic);
+        return set == null ? 0 : write(set, message);
+    }
+
+    /**
+     * Send to several connections by id, returns the number written
+     */
+    public int multicast(Collection<String> ids, String message)
+    {
+        List<Connection> list = new ArrayList<Connection>(ids.size());
+        for (String id : ids) {
+            Connection c = connections.get(id);
+            if (c != null) {
+                list.add(c);
+            }
+        }
+        return write(list, message);
+    }
+
+    /**
+     * Send to all connections, returns the number written
+     */
+    public int broadcast(String message)
+    {
+        return write(connections.values(), message);
+    }
+
+    public int size()
+    {
+        return connections.size();
+    }
+
+    public int userCount()
+    {
+        return users.size();
+    }
+
+    public int topicCount()
+    {
+        return topics.size();
+    }
+
+    /** messages not written because the connection was not writable */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    private int write(Collection<Connection> targets, String message)
+    {
+        if (targets.isEmpty()) {
+            return 0;
+        }
+        ByteBuf payload = Unpooled.copiedBuffer(message, CharsetUtil.UTF_8);
+        int written = 0;
+        try {
+            for (Connection c : targets) {
+                Channel ch = c.channel;
+                if (!ch.isActive()) {
+                    continue;
+                }
+                if (!ch.isWritable()) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                ch.writeAndFlush(new TextWebSocketFrame(payload.duplicate().retain()));
+                written++;
+            }
+        } finally {
+            payload.release();
+        }
+        if (written < targets.size()) {
+            log.debug("Websocket message written to " + written + " of " + targets.size() + " connections");
+        }
+        return written;
+    }
+
+    private static void addToIndex(ConcurrentHashMap<String, Set<Connection>> index, String key, Connection c)
+    {
+        while (true) {
+            Set<Connection> set = index.get(key);
+            if (set == null) {
+                Set<Connection> created = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+                set = index.putIfAbsent(key, created);
+                if (set == null) {
+                    set = created;
+                }
+            }
+            set.add(c);
+            /* the set may have been dropped as empty meanwhile, add again */
+            if (index.get(key) == set) {
+                return;
+            }
+        }
+    }
+
+    private static void removeFromIndex(ConcurrentHashMap<String, Set<Connection>> index, String key, Connection c)
+    {
+        Set<Connection> set = index.get(key);
+        if (set != null) {
+            set.remove(c);
+            if (set.isEmpty()) {
+                index.remove(key, set);
+            }
+        }
+    }
+}
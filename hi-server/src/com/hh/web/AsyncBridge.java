@@ -0,0 +1,98 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.web;
+
+import com.hh.server.HHServer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Correlation of web service calls with backend responses.
+ *
+ * A call registers a future under its hi-message-id before the message is
+ * sent over the connector; ReturnProcess completes it when the response
+ * comes back. Every call has a deadline after which the future fails with
+ * a TimeoutException, so an endpoint never waits for a lost response.
+ * backend-timeout (ms, server.conf) is the default deadline.
+ */
+public class AsyncBridge {
+
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    private static final ConcurrentHashMap<String, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "hh-bridge-timeout");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    public static long getDefaultTimeout() {
+        if (HHServer.config != null && HHServer.config.getConfig("backend-timeout") != null
+                && !HHServer.config.getConfig("backend-timeout").trim().isEmpty()) {
+            return Long.parseLong(HHServer.config.getConfig("backend-timeout").trim());
+        }
+        return DEFAULT_TIMEOUT;
+    }
+
+    /**
+     * Future of the response to messageId, failed after timeout ms. A
+     * timeout of 0 or less means the default deadline.
+     */
+    public static CompletableFuture<String> register(final String messageId, long timeout) {
+        if (timeout <= 0) {
+            timeout = getDefaultTimeout();
+        }
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        pending.put(messageId, future);
+        final ScheduledFuture<?> deadline = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.remove(messageId, future)) {
+                    HttpUtils.popResponseMessage(messageId);
+                    future.completeExceptionally(new TimeoutException("No response to message " + messageId));
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        future.whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String result, Throwable error) {
+                deadline.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Complete the call waiting for messageId. Returns false when there is
+     * none, e.g. it already timed out.
+     */
+    public static boolean complete(String messageId, String data) {
+        CompletableFuture<String> future = pending.remove(messageId);
+        return future != null && future.complete(data);
+    }
+
+    public static boolean fail(String messageId, Throwable error) {
+        CompletableFuture<String> future = pending.remove(messageId);
+        return future != null && future.completeExceptionally(error);
+    }
+
+    public static int size() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.web;
+
+import com.hh.util.CompactObjectCodec;
+import com.hh.util.JavaObjectCodec;
+import java.io.IOException;
+
+/**
+ * Session codec with a one byte type tag. Strings, numbers, booleans and
+ * byte arrays are written as their raw value; anything else falls back to
+ * Java serialization. Java serialized values start with 0xACED, which no
+ * tag uses, so values written by the old store are still readable. The
+ * encoding is CompactObjectCodec's.
+ *
+ * Nodes running the old store cannot read compact values, so a codec made
+ * with compactWrites false reads both but writes Java serialization. Once
+ * every node reads compact values, writes can be switched to compact.
+ */
+public class CompactSessionCodec extends CompactObjectCodec implements SessionCodec {
+
+    private final boolean compactWrites;
+
+    public CompactSessionCodec() {
+        this(true);
+    }
+
+    public CompactSessionCodec(boolean compactWrites) {
+        this.compactWrites = compactWrites;
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        return compactWrites ? super.encode(value) : JavaObjectCodec.INSTANCE.encode(value);
+    }
+}
@@ -5,6 +5,14 @@
  */
 package com.hh.web;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+
 /**
  *
  * @author hiendm1
@@ -14,6 +22,8 @@ public class FileInfo {
     private String fieldname;
     private int length;
     private byte[] bytes;
+    /* temp file of a large upload, not serialized with the message */
+    private transient File file;
 
     public String getFilename() {
             return filename;
@@ -28,6 +38,13 @@ public class FileInfo {
             this.length = length;
     }
     public byte[] getBytes() {
+            if (bytes == null && file != null) {
+                try {
+                    return Files.readAllBytes(file.toPath());
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
             return bytes;
     }
     public void setBytes(byte[] bytes) {
@@ -41,4 +58,32 @@ public class FileInfo {
     public void setFieldname(String fieldname) {
             this.fieldname = fieldname;
     }
-}
\ No newline at end of file
+
+    public File getFile() {
+            return file;
+    }
+
+    public void setFile(File file) {
+            this.file = file;
+    }
+
+    public InputStream getInputStream() throws IOException {
+            if (bytes == null && file != null) {
+                return new FileInputStream(file);
+            }
+            return new ByteArrayInputStream(bytes == null ? new byte[0] : bytes);
+    }
+
+    /**
+     * Move the content of the temp file into bytes and delete the file.
+     */
+    public void loadFile() throws IOException {
+            if (file != null) {
+                bytes = Files.readAllBytes(file.toPath());
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+                file = null;
+            }
+    }
+}
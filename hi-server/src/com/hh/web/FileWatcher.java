@@ -0,0 +1,135 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.web;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import org.apache.log4j.Logger;
+
+/**
+ * Shared WatchService for the caches of files under ../app/. Folders are
+ * registered on demand and every change is reported to the listeners of
+ * that folder from a single daemon thread.
+ */
+public class FileWatcher {
+
+    private static final Logger log = Logger.getLogger(FileWatcher.class.getName());
+    private static final FileWatcher instance = new FileWatcher();
+
+    public interface Listener {
+        /**
+         * A file of a watched folder was created, modified or deleted.
+         * name is null when events were lost and anything in the folder
+         * may have changed.
+         */
+        void changed(Path folder, String name);
+    }
+
+    private final ConcurrentHashMap<Path, Set<Listener>> listeners = new ConcurrentHashMap<>();
+    private WatchService watcher;
+
+    private FileWatcher() {
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, "hh-file-watch");
+            t.setDaemon(true);
+            t.start();
+        } catch (IOException | UnsupportedOperationException ex) {
+            log.warn("File watcher not available", ex);
+            watcher = null;
+        }
+    }
+
+    public static FileWatcher getInstance() {
+        return instance;
+    }
+
+    public boolean isAvailable() {
+        return watcher != null;
+    }
+
+    /**
+     * Watch the folder of file for listener. Returns false when changes
+     * of this file will not be reported.
+     */
+    public boolean watch(File file, Listener listener) {
+        if (watcher == null) {
+            return false;
+        }
+        Path folder = file.getAbsoluteFile().toPath().getParent();
+        if (folder == null) {
+            return false;
+        }
+        Set<Listener> set = listeners.get(folder);
+        if (set == null) {
+            try {
+                folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            } catch (IOException | ClosedWatchServiceException ex) {
+                log.debug("Can not watch " + folder, ex);
+                return false;
+            }
+            Set<Listener> created = new CopyOnWriteArraySet<>();
+            set = listeners.putIfAbsent(folder, created);
+            if (set == null) {
+                set = created;
+            }
+        }
+        set.add(listener);
+        return true;
+    }
+
+    private void loop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+            Path folder = (Path) key.watchable();
+            Set<Listener> set = listeners.get(folder);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                String name = event.kind() == StandardWatchEventKinds.OVERFLOW
+                        ? null : event.context().toString();
+                fire(set, folder, name);
+            }
+            if (!key.reset()) {
+                /* folder is gone, it is registered again on the next watch() */
+                listeners.remove(folder);
+                fire(set, folder, null);
+            }
+        }
+    }
+
+    private void fire(Set<Listener> set, Path folder, String name) {
+        if (set == null) {
+            return;
+        }
+        for (Listener listener : set) {
+            try {
+                listener.changed(folder, name);
+            } catch (Exception ex) {
+                log.error("Error in file watcher listener", ex);
+            }
+        }
+    }
+}
@@ -28,6 +28,13 @@ public abstract class HttpSession {
         session = connector;
     }
     
+    /**
+     * View of a session for one request
+     */
+    public SessionState open(String sessionId) {
+        return new SessionState(this, sessionId);
+    }
+    
     public abstract void refreshExpire(String sessionId);
     
     public abstract void createSession(String sessionId);
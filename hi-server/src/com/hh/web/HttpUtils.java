@@ -5,8 +5,6 @@
  */
 package com.hh.web;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.hh.action.BaseAction;
@@ -16,19 +14,19 @@ import com.hh.server.WebImpl;
 import com.hh.util.FileUtils;
 import com.hh.webservice.websocket.IWebsocketConnection;
 import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -36,20 +34,21 @@ import java.util.HashMap;
 import com.google.gson.internal.LinkedTreeMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPOutputStream;
-import org.apache.commons.io.IOUtils;
 import com.hh.action.HttpFilter;
 import com.hh.action.ReturnFilter;
+import com.hh.connector.netty.server.ServerDecoder;
+import com.hh.connector.netty.server.StreamReceiver;
 import com.hh.connector.server.Config;
 import com.hh.connector.server.Server;
 import com.hh.server.HHServer;
-import com.hh.server.SoapImpl;
 import com.hh.socket.websocket.WebSocket;
-import io.netty.channel.Channel;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import com.hh.socket.websocket.WebSocketRegistry;
 import java.util.Set;
 import org.apache.log4j.*;
 
@@ -67,29 +66,31 @@ public class HttpUtils {
 	public String contextPath;
 	public String path;
 	public String sessionId;
+	private SessionState session;
 	public Map<String, Object> parameters = new LinkedTreeMap<String, Object>();
-	private static final int NONE = 0;
-	private static final int DATAHEADER = 1;
-	private static final int FILEDATA = 2;
-	private static final int FIELDDATA = 3;
-	private static final int MXA_SEGSIZE = 1000 * 1024 * 10;
+	/*
+	 * upload limits, overridden in server.conf (sizes in MB, threshold in KB).
+	 * Files go to the backend inside the message, loaded in heap and sent as
+	 * json, so the sizes keep the old 10MB cap: raising them raises the heap
+	 * needed per request many times over.
+	 */
+	private static final long DEFAULT_UPLOAD_MAX_SIZE = 10;
+	private static final long DEFAULT_UPLOAD_MAX_PART_SIZE = 10;
+	private static final long DEFAULT_UPLOAD_MEMORY_THRESHOLD = 256;
 	private static final String JSON_TYPE = "application/json";
+	/* response key of a file shared with the backend, sent instead of a body */
+	public static final String BODY_FILE = "body-file";
 	private static AtomicInteger messageIds = new AtomicInteger(1);
 	private boolean autoClose = true;
 	public Server server = null;
 	private static final Logger log = Logger.getLogger(HttpUtils.class.getName());
-	private static Cache<Object, Object> responseMessage = CacheBuilder.newBuilder().maximumSize(10000000)
-			.expireAfterAccess(900, TimeUnit.SECONDS).build();
 
+	/**
+	 * Request waiting for the backend response messageId, null when it is
+	 * unknown or has timed out (see InFlightRequests)
+	 */
 	public static Object popResponseMessage(String messageId) {
-		Object msg = responseMessage.getIfPresent(messageId);
-		if (msg != null)
-			responseMessage.invalidate(messageId);
-		return msg;
-	}
-
-	public static void putResponseMessage(String messageId, Object data) {
-		responseMessage.put(messageId, data);
+		return InFlightRequests.remove(messageId);
 	}
 
 	public boolean isAutoClose() {
@@ -165,31 +166,159 @@ public class HttpUtils {
 	}
 
 	public void sendStaticFile(File file, String path) throws IOException {
-		String ifModifiedSince = httpExchange.getRequestHeaders().getFirst("If-Modified-Since");
+		StaticFileCache.Entry entry = StaticFileCache.get(file, path);
+		Headers requestHeaders = httpExchange.getRequestHeaders();
 		Headers responseHeaders = httpExchange.getResponseHeaders();
-		if (ifModifiedSince != null && ifModifiedSince.length() > 0
-				&& ifModifiedSince.equals("" + file.lastModified())) {
-			responseHeaders.set("Last-Modified", "" + file.lastModified());
+		String range = requestHeaders.getFirst("Range");
+
+		// pick a compressed copy; ranges are always served from the plain file
+		String encoding = null;
+		String acceptEncoding = requestHeaders.getFirst("Accept-Encoding");
+		if (entry.compressible && acceptEncoding != null && range == null) {
+			if (entry.brotliFile != null && acceptsEncoding(acceptEncoding, "br")) {
+				encoding = "br";
+			} else if ((entry.gzip != null || entry.gzipFile != null) && acceptsEncoding(acceptEncoding, "gzip")) {
+				encoding = "gzip";
+			}
+		}
+		responseHeaders.set("Last-Modified", entry.lastModifiedHeader);
+		responseHeaders.set("ETag", entry.etag(encoding));
+		if (entry.compressible) {
+			responseHeaders.set("Vary", "Accept-Encoding");
+		}
+
+		String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+		String ifModifiedSince = requestHeaders.getFirst("If-Modified-Since");
+		boolean notModified = false;
+		if (ifNoneMatch != null) {
+			notModified = entry.matches(ifNoneMatch);
+		} else if (ifModifiedSince != null && ifModifiedSince.length() > 0) {
+			long since = StaticFileCache.parseDate(ifModifiedSince);
+			notModified = since != -1 && entry.lastModified / 1000 <= since / 1000;
+		}
+		if (notModified) {
 			httpExchange.sendResponseHeaders(304, -1);
 			return;
 		}
 
-		String fileName = path.substring(path.lastIndexOf("/"));
-		String mime = HHServer.config.getMimeType(FileUtils.extractFileExt(fileName));
+		responseHeaders.set("Content-Type", entry.mime);
+		byte[] body;
+		File source;
+		long length;
+		if (encoding == null) {
+			responseHeaders.set("Accept-Ranges", "bytes");
+			body = entry.identity;
+			source = entry.file;
+			length = entry.length;
+		} else {
+			responseHeaders.set("Content-Encoding", encoding);
+			body = "gzip".equals(encoding) ? entry.gzip : null;
+			source = "br".equals(encoding) ? entry.brotliFile : entry.gzipFile;
+			length = body != null ? body.length : source.length();
+		}
 
-		responseHeaders.set("Content-Type", mime);
-		responseHeaders.set("Last-Modified", "" + file.lastModified());
-		responseHeaders.set("Content-Encoding", "gzip");
-		/*
-		 * Date d = new Date(); d.setTime(d.getTime() + 365*24*3600*1000); // 1 year in
-		 * milliseconds responseHeaders.set("Expires", d.toGMTString());
-		 */
+		int status = 200;
+		long start = 0;
+		long count = length;
+		String ifRange = requestHeaders.getFirst("If-Range");
+		if (range != null && encoding == null && (ifRange == null
+				|| ifRange.equals(entry.etag(null)) || ifRange.equals(entry.lastModifiedHeader))) {
+			long[] r = parseRange(range, length);
+			if (r != null && r.length == 0) {
+				responseHeaders.set("Content-Range", "bytes */" + length);
+				httpExchange.sendResponseHeaders(416, -1);
+				return;
+			}
+			if (r != null) {
+				status = 206;
+				start = r[0];
+				count = r[1] - r[0] + 1;
+				responseHeaders.set("Content-Range", "bytes " + r[0] + "-" + r[1] + "/" + length);
+			}
+		}
 
-		httpExchange.sendResponseHeaders(200, 0);
-		try (GZIPOutputStream os = new GZIPOutputStream(httpExchange.getResponseBody());
-				FileInputStream fs = new FileInputStream(file);) {
-			IOUtils.copy(fs, os);
-			os.finish();
+		if ("HEAD".equalsIgnoreCase(httpExchange.getRequestMethod())) {
+			responseHeaders.set("Content-Length", "" + count);
+			httpExchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		if (count == 0) {
+			httpExchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		httpExchange.sendResponseHeaders(status, count);
+		try (OutputStream os = httpExchange.getResponseBody();) {
+			if (body != null) {
+				os.write(body, (int) start, (int) count);
+			} else {
+				// large file: handed to the socket with transferTo when possible
+				try (FileChannel fc = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+					httpExchange.sendFile(fc, start, count);
+				}
+			}
+		}
+	}
+
+	private static boolean acceptsEncoding(String acceptEncoding, String coding) {
+		for (String part : acceptEncoding.split(",")) {
+			String[] params = part.trim().split(";");
+			if (!params[0].trim().equalsIgnoreCase(coding) && !params[0].trim().equals("*")) {
+				continue;
+			}
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						return Double.parseDouble(param.substring(2)) > 0;
+					} catch (NumberFormatException ex) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Single byte range of a Range header. Returns {first, last}, an empty
+	 * array when the range can not be satisfied, or null when the header is
+	 * ignored (malformed or several ranges) and the whole file is sent.
+	 */
+	private static long[] parseRange(String range, long length) {
+		range = range.trim();
+		if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+			return null;
+		}
+		String spec = range.substring(6).trim();
+		int dash = spec.indexOf('-');
+		if (dash == -1) {
+			return null;
+		}
+		try {
+			long first;
+			long last;
+			if (dash == 0) {
+				long suffix = Long.parseLong(spec.substring(1).trim());
+				if (suffix <= 0) {
+					return new long[0];
+				}
+				first = Math.max(0, length - suffix);
+				last = length - 1;
+			} else {
+				first = Long.parseLong(spec.substring(0, dash).trim());
+				String end = spec.substring(dash + 1).trim();
+				last = end.isEmpty() ? length - 1 : Math.min(Long.parseLong(end), length - 1);
+				if (last < first) {
+					return first >= length ? new long[0] : null;
+				}
+			}
+			if (first >= length) {
+				return new long[0];
+			}
+			return new long[] { first, last };
+		} catch (NumberFormatException ex) {
+			return null;
 		}
 	}
 
@@ -204,6 +333,19 @@ public class HttpUtils {
 	}
 
 	public void sendToProcess(LinkedTreeMap message) throws Exception {
+		dispatch(message, false, 0);
+	}
+
+	/**
+	 * Send message to the backend without waiting. The future is completed
+	 * with the json of the "soap" response, or fails after timeout ms (0 for
+	 * backend-timeout).
+	 */
+	public CompletableFuture<String> sendAsync(LinkedTreeMap message, long timeout) throws Exception {
+		return dispatch(message, true, timeout);
+	}
+
+	private CompletableFuture<String> dispatch(LinkedTreeMap message, boolean async, long timeout) throws Exception {
 		String connector = WebImpl.getConnectorFromAction(path);
 		int index = messageIds.incrementAndGet();
 		if (index == 2000000000) {
@@ -211,41 +353,70 @@ public class HttpUtils {
 		}
 
 		message.put("hi-message-id", "" + index);
+		// uploaded files travel inside the message: load spilled parts and drop their temp files,
+		// their size is bounded by upload-max-size
+		for (Object value : message.values()) {
+			if (value instanceof FileInfo) {
+				((FileInfo) value).loadFile();
+			}
+		}
 		message.put("access-token", sessionId);
 		Config.printServerMessage("CLIENT", message, null, true, server.config.getConfig("server-code"));
-		String originalClientIp = httpExchange.getRemoteAddress().toString();
+		Object remoteAddress;
+		boolean websocket = "websocket".equals(message.get("protocol-type"));
+		if (websocket) {
+			// websocket messages have no exchange, the connection is known by its registry id
+			WebSocket socket = (WebSocket) message.get("socket");
+			remoteAddress = socket.getChannelHandlerContext().channel().remoteAddress();
+			message.put("hi-channel-id", socket.getId());
+			message.remove("socket");
+		} else {
+			remoteAddress = httpExchange.getRemoteAddress();
+		}
+		String originalClientIp = remoteAddress.toString();
 		int beginIndex = 1;
 		int endIndex = originalClientIp.indexOf(":");
 		originalClientIp = originalClientIp.substring(beginIndex, endIndex);
 		message.put("hi-process", message.get("hi-process"));
 		message.put("original-ip-request", originalClientIp);
-		message.put("original-ip-request-full", httpExchange.getRemoteAddress().toString());
+		message.put("original-ip-request-full", remoteAddress.toString());
 		log.info(String.format("Receving request from client: %s", message.get("original-ip-request").toString()));
-		putResponseMessage("" + index, this);
-		if ("websocket".equals(message.get("protocol-type"))) {
-			Channel channel = ((WebSocket) message.get("socket")).getChannelHandlerContext().channel();
-			Object msg = responseMessage.getIfPresent("socket_" + channel.hashCode());
-			if (msg == null) {
-				HHServer.mainLogger.info("Put channel: " + "socket_" + channel.hashCode());
-				putResponseMessage("socket_" + channel.hashCode(), channel);
+		String messageId = "" + index;
+		// bridged calls wait backend-timeout, other requests request-timeout (InFlightRequests)
+		long deadline = timeout > 0 ? timeout : async ? AsyncBridge.getDefaultTimeout() : 0;
+		// a bridged call answers its client itself when its own deadline passes
+		if (!InFlightRequests.add(messageId, this, async ? deadline + 1000 : deadline, !async && !websocket)) {
+			log.warn("Too many requests in flight, message " + messageId + " refused");
+			if (async) {
+				CompletableFuture<String> refused = new CompletableFuture<>();
+				refused.completeExceptionally(new RejectedExecutionException("Too many requests in flight"));
+				return refused;
 			}
-			message.put("hi-channel-id", "" + channel.hashCode());
-			message.remove("socket");
+			if (!websocket) {
+				sendStringResponse(503, "503 (Service Unavailable)");
+			}
+			return null;
 		}
 		setAutoClose(false);
-		server.connector.send(message, connector);
+		flushSession();
+		// registered before sending, the response may arrive before send returns
+		CompletableFuture<String> future = async ? AsyncBridge.register(messageId, deadline) : null;
+		try {
+			server.connector.send(message, connector);
+		} catch (Exception ex) {
+			popResponseMessage(messageId);
+			if (future != null) {
+				AsyncBridge.fail(messageId, ex);
+			}
+			throw ex;
+		}
+		return future;
 	}
 
 	public void returnToClient(HttpUtils hu, LinkedTreeMap responseData) throws Exception {
 		if (responseData != null) {
 			if ("websocket".equals(responseData.get("return-type"))) {
-				String json = (String) responseData.get("data");
-				HHServer.mainLogger.info(json);
-				Channel channel = (Channel) responseMessage
-						.getIfPresent("socket_" + responseData.get("hi-channel-id").toString());
-				HHServer.mainLogger.info("Get channel: " + "socket_" + responseData.get("hi-channel-id").toString());
-				HHServer.mainLogger.info("Channel: " + channel);
-				channel.writeAndFlush(new TextWebSocketFrame(json));
+				returnToWebsocket(responseData);
 				return;
 			}
 			Config.printServerMessage("CLIENT", responseData, null, false, server.config.getConfig("server-code"));
@@ -268,40 +439,36 @@ public class HttpUtils {
 				}
 			}
 			if ("download".equals(responseData.get("return-type"))) {
-				baseAction.returnDownloadFile(FileUtils.hexToByteArray((String) responseData.get("data")),
-						(String) responseData.get("file-name"));
+				hu.httpExchange.getResponseHeaders().add("Content-Disposition",
+						"attachment; filename=\"" + responseData.get("file-name") + "\"");
+				hu.sendBody(responseData, "application/octet-stream");
 			} else if ("file".equals(responseData.get("return-type"))) {
-				baseAction.returnFile(FileUtils.hexToByteArray((String) responseData.get("data")),
-						(String) responseData.get("file-name"));
+				String fileName = (String) responseData.get("file-name");
+				hu.sendBody(responseData, HHServer.config.getMimeType(FileUtils.extractFileExt(fileName)));
 			} else if ("string".equals(responseData.get("return-type"))) {
 				baseAction.returnString((String) responseData.get("data"));
 			} else if ("redirect".equals(responseData.get("return-type"))) {
 				baseAction.returnPage((String) responseData.get("page-name"));
 			} else if ("soap".equals(responseData.get("return-type"))) {
-				String json = new String(FileUtils.hexToByteArray((String) responseData.get("data")));
+				String json = new String(responseBody(responseData), Charset.forName(FileUtils.UTF_8));
 				GsonBuilder builder = new GsonBuilder();
 				builder.setPrettyPrinting();
 				Gson gson = builder.create();
 				LinkedTreeMap message = gson.fromJson(json, LinkedTreeMap.class);
-				Object lock = SoapImpl.cacheResponse.getIfPresent(message.get("hi-message-id"));
-				SoapImpl.cacheResponse.put(message.get("hi-message-id"), json);
-				if (lock != null) {
-					synchronized (lock) {
-						lock.notify();
-					}
+				Object messageId = message.get("hi-message-id");
+				if (messageId == null) {
+					messageId = responseData.get("hi-message-id");
+				}
+				if (messageId == null || !AsyncBridge.complete(messageId.toString(), json)) {
+					log.warn("No web service call waiting for message " + messageId);
 				}
 			} else {
-				if (responseData.get("data") != null) {
-					hu.httpExchange.getResponseHeaders().set("Content-Type", (String) responseData.get("content-type"));
-					hu.httpExchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				if (responseData.get("data") != null || responseData.get(ServerDecoder.BODY) != null
+						|| responseData.get(BODY_FILE) != null) {
 					hu.httpExchange.getResponseHeaders().set("Cache-Control", "no-store");
 					hu.httpExchange.getResponseHeaders().set("Pragma", "no-cache");
 					hu.httpExchange.getResponseHeaders().set("Expires", "0");
-					hu.httpExchange.sendResponseHeaders(200, 0);
-					try (GZIPOutputStream os = new GZIPOutputStream(hu.httpExchange.getResponseBody());) {
-						os.write(FileUtils.hexToByteArray((String) responseData.get("data")));
-						os.close();
-					}
+					hu.sendBody(responseData, (String) responseData.get("content-type"));
 				} else {
 					sendNotFoundResponse();
 				}
@@ -311,6 +478,119 @@ public class HttpUtils {
 		}
 	}
 
+	/**
+	 * Body of a backend response: raw bytes attached to the connector frame
+	 * or, from older backends, hex in "data"
+	 */
+	private static byte[] responseBody(LinkedTreeMap responseData) {
+		Object body = responseData.get(ServerDecoder.BODY);
+		if (body instanceof byte[]) {
+			return (byte[]) body;
+		}
+		if (responseData.get("data") != null) {
+			return FileUtils.hexToByteArray((String) responseData.get("data"));
+		}
+		return new byte[0];
+	}
+
+	/*
+	 * file named by the backend instead of sending its content, accepted only
+	 * inside shared-file-folder (server.conf)
+	 */
+	private static File responseFile(LinkedTreeMap responseData) throws IOException {
+		Object path = responseData.get(BODY_FILE);
+		String shared = HHServer.config.getConfig("shared-file-folder");
+		if (path == null || shared == null || shared.trim().isEmpty()) {
+			return null;
+		}
+		File file = new File(path.toString()).getCanonicalFile();
+		String folder = new File(shared.trim()).getCanonicalPath() + File.separator;
+		if (!file.getPath().startsWith(folder) || !file.isFile()) {
+			log.warn("Rejected response file " + path);
+			return null;
+		}
+		return file;
+	}
+
+	/**
+	 * Send the body of a backend response. Compressible content is gzipped
+	 * on the fly and sent chunked when the client accepts gzip; content the
+	 * backend already encoded (content-encoding) or which does not compress
+	 * is sent as is with its length, a shared file through sendFile. A
+	 * streamed body (ServerDecoder.STREAM) is relayed chunk by chunk as it
+	 * comes from the backend.
+	 */
+	public void sendBody(LinkedTreeMap responseData, String contentType) throws IOException {
+		StreamReceiver stream = null;
+		if (Boolean.TRUE.equals(responseData.get(ServerDecoder.STREAM))) {
+			stream = StreamReceiver.claim(responseData.get("hi-message-id").toString());
+		}
+		try {
+			sendBody(responseData, contentType, stream);
+		} finally {
+			if (stream != null) {
+				// nothing left when the stream was relayed to its end
+				stream.cancel();
+			}
+		}
+	}
+
+	private void sendBody(LinkedTreeMap responseData, String contentType, StreamReceiver stream) throws IOException {
+		File file = stream == null ? responseFile(responseData) : null;
+		byte[] body = stream == null && file == null ? responseBody(responseData) : null;
+		long length;
+		if (stream != null) {
+			length = ((Number) responseData.get("stream-length")).longValue();
+		} else {
+			length = file == null ? body.length : file.length();
+		}
+		String contentEncoding = (String) responseData.get("content-encoding");
+		Headers responseHeaders = httpExchange.getResponseHeaders();
+		if (contentType != null) {
+			responseHeaders.set("Content-Type", contentType);
+		}
+		boolean compressible = contentEncoding == null && StaticFileCache.isCompressible(contentType);
+		if (compressible) {
+			responseHeaders.set("Vary", "Accept-Encoding");
+		}
+		String acceptEncoding = httpExchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (compressible && length >= StaticFileCache.MIN_GZIP_SIZE
+				&& acceptEncoding != null && acceptsEncoding(acceptEncoding, "gzip")) {
+			responseHeaders.set("Content-Encoding", "gzip");
+			httpExchange.sendResponseHeaders(200, 0);
+			try (GZIPOutputStream os = new GZIPOutputStream(httpExchange.getResponseBody(), 8192)) {
+				if (stream != null) {
+					stream.transferTo(os, AsyncBridge.getDefaultTimeout());
+				} else if (file == null) {
+					os.write(body);
+				} else {
+					Files.copy(file.toPath(), os);
+				}
+			}
+			return;
+		}
+		if (contentEncoding != null) {
+			responseHeaders.set("Content-Encoding", contentEncoding);
+		}
+		if (length == 0) {
+			httpExchange.sendResponseHeaders(200, -1);
+			httpExchange.getResponseBody().close();
+			return;
+		}
+		httpExchange.sendResponseHeaders(200, length);
+		try (OutputStream os = httpExchange.getResponseBody()) {
+			if (stream != null) {
+				stream.transferTo(os, AsyncBridge.getDefaultTimeout());
+			} else if (file == null) {
+				os.write(body);
+			} else {
+				try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					httpExchange.sendFile(fc, 0, length);
+				}
+			}
+		}
+	}
+
 	public void parseGetParameters() throws UnsupportedEncodingException {
 		URI requestedUri = httpExchange.getRequestURI();
 		String query = requestedUri.getRawQuery();
@@ -355,8 +635,8 @@ public class HttpUtils {
 				}
 //				//
 				log.debug(String.format("Content-type: %s", contentType));
-				int length = Integer
-						.parseInt(headers.get("Content-length").toString().replace("[", "").replace("]", ""));
+				String contentLength = headers.getFirst("Content-length");
+				int length = contentLength == null ? -1 : Integer.parseInt(contentLength.trim());
 				switch (contentType) {
 				case JSON_TYPE:
 					parsePostJSONParams(httpExchange);
@@ -375,141 +655,68 @@ public class HttpUtils {
 		}
 	}
 
+	/**
+	 * Parses a multipart/form-data body with MultipartParser. Fields are put
+	 * as strings, file parts as FileInfo; large files stay in a temp file
+	 * (FileInfo.getFile) until the request is sent to a process. Bodies
+	 * without a boundary are read as a url encoded query like before.
+	 */
 	public Map<String, Object> parseFile(Map<String, Object> formfields, InputStream ins, String contentType,
 			int totalLength) throws IOException {
-
-		FileInfo fileInfo = new FileInfo();
-		String fieldname = "";
-		String fieldvalue = "";
-		String filename = "";
-		String boundary = "";
-		String lastboundary = "";
-		String filefieldname = "";
-
-		int filesize = 0;
-
-		int pos = contentType.indexOf("boundary=");
-
-		if (pos != -1) {
-			pos += "boundary=".length();
-			boundary = "--" + contentType.substring(pos);
-			lastboundary = boundary + "--";
-		}
-		int state = NONE;
-
-		try (DataInputStream in = new DataInputStream(ins);) {
-			int totalBytes = totalLength;
-			String message = "";
-			if (totalBytes > MXA_SEGSIZE) {
-				message = "Each batch of data can not be larger than " + MXA_SEGSIZE / (1000 * 1024) + "M";
-				return null;
+		String boundary = MultipartParser.boundary(contentType);
+		if (boundary == null || boundary.isEmpty()) {
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(ins, "utf-8"));) {
+				return parseQuery(br.readLine(), formfields);
 			}
-			byte[] b = new byte[totalBytes];
-			in.readFully(b);
-			in.close();
-			String reqContent = new String(b, "UTF-8");//
-			BufferedReader reqbuf = new BufferedReader(new StringReader(reqContent));
-
-			boolean flag = true;
-			int i = 0;
-			String firstLine = reqbuf.readLine();
-			formfields = parseQuery(firstLine, formfields);
-			boolean first = true;
-			while (flag == true) {
-				String s = "";
-				if (first) {
-					s = firstLine;
-					first = false;
-				} else
-					s = reqbuf.readLine();
-				if ((s == null) || (s.equals(lastboundary))) {
-					break;
+		}
+		long maxTotal = uploadLimit("upload-max-size", DEFAULT_UPLOAD_MAX_SIZE) * 1024 * 1024;
+		if (totalLength > maxTotal) {
+			log.warn("Upload rejected, body of " + totalLength + " bytes is larger than " + maxTotal);
+			return null;
+		}
+		long maxPart = uploadLimit("upload-max-part-size", DEFAULT_UPLOAD_MAX_PART_SIZE) * 1024 * 1024;
+		int threshold = (int) uploadLimit("upload-memory-threshold", DEFAULT_UPLOAD_MEMORY_THRESHOLD) * 1024;
+		String tempDir = HHServer.config == null ? null : HHServer.config.getConfig("upload-temp-dir");
+		MultipartParser parser = new MultipartParser(ins, boundary, maxPart, maxTotal, threshold,
+				tempDir == null || tempDir.trim().isEmpty() ? null : new File(tempDir.trim()));
+		try {
+			MultipartParser.Part part;
+			while ((part = parser.next()) != null) {
+				if (part.getName() == null) {
+					part.delete();
+					continue;
 				}
-
-				switch (state) {
-				case NONE:
-					if (s.startsWith(boundary)) {
-						state = DATAHEADER;
-						i += 1;
-					}
-					break;
-				case DATAHEADER:
-					pos = s.indexOf("filename=");
-					if (pos == -1) {
-						pos = s.indexOf("name=");
-						pos += "name=".length() + 1;
-						s = s.substring(pos);
-						int l = s.length();
-						s = s.substring(0, l - 1);
-						fieldname = s;
-						state = FIELDDATA;
+				if (part.isFile()) {
+					FileInfo fileInfo = new FileInfo();
+					fileInfo.setFieldname(part.getName());
+					fileInfo.setFilename(part.getFilename());
+					fileInfo.setLength((int) part.getSize());
+					if (part.getFile() != null) {
+						fileInfo.setFile(part.getFile());
 					} else {
-						String temp = s;
-
-						pos = s.indexOf("name=");
-						pos += "name=".length() + 1;
-						s = s.substring(pos);
-						int pos1 = s.indexOf("\";");
-						filefieldname = s.substring(0, pos1);
-
-						pos = s.indexOf("filename=");
-						pos += "filename=".length() + 1;
-						s = s.substring(pos);
-						int l = s.length();
-						s = s.substring(0, l - 1);
-						pos = s.lastIndexOf("\\");
-						s = s.substring(pos + 1);
-						filename = s;
-
-						pos = byteIndexOf(b, temp, 0);
-						b = subBytes(b, pos + temp.getBytes().length + 2, b.length);
-						int n = 0;
-
-						while ((s = reqbuf.readLine()) != null) {
-							if (n == 1) {
-								break;
-							}
-							if (s.equals("")) {
-								n++;
-							}
-
-							b = subBytes(b, s.getBytes().length + 2, b.length);
-						}
-						pos = byteIndexOf(b, boundary, 0);
-						if (pos != -1) {
-							b = subBytes(b, 0, pos - 1);
-						}
-
-						filesize = b.length - 1;
-						state = FILEDATA;
+						fileInfo.setBytes(part.getBytes());
 					}
-					break;
-				case FIELDDATA:
-					s = reqbuf.readLine();
-					fieldvalue = s;
-					formfields.put(fieldname, fieldvalue);
-					state = NONE;
-					break;
-				case FILEDATA:
-					while ((!s.startsWith(boundary)) && (!s.startsWith(lastboundary))) {
-						s = reqbuf.readLine();
-						if (s.startsWith(boundary)) {
-							state = DATAHEADER;
-							break;
-						}
-					}
-					break;
+					formfields.put(part.getName(), fileInfo);
+				} else {
+					formfields.put(part.getName(), part.getString());
+					part.delete();
 				}
 			}
-			fileInfo.setFieldname(filefieldname);
-			fileInfo.setBytes(b);
-			fileInfo.setFilename(filename);
-			fileInfo.setLength(filesize);
-			formfields.put(filefieldname, fileInfo);
+		} catch (IOException ex) {
+			parser.close();
+			throw ex;
 		}
 		return formfields;
 	}
 
+	private static long uploadLimit(String key, long defaultValue) {
+		String value = HHServer.config == null ? null : HHServer.config.getConfig(key);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return Long.parseLong(value.trim());
+	}
+
 	public int byteIndexOf(byte[] b, String s, int start) {
 		return byteIndexOf(b, s.getBytes(), start);
 	}
@@ -597,7 +804,7 @@ public class HttpUtils {
 		Object checkSession = getSessionAttribute(HttpSession.SESSION_DEFAULT_KEY);
 		boolean checkTimeout = false;
 		if (checkSession != null) {
-			HttpSession.getInstance().refreshExpire(sessionId);
+			session().refreshExpire();
 		} else {
 			checkTimeout = true;
 		}
@@ -612,23 +819,45 @@ public class HttpUtils {
 	}
 
 	public void createSession(String sessionId) throws IOException {
+		flushSession();
+		session = null;
 		this.sessionId = sessionId;
 		HttpSession.getInstance().createSession(sessionId);
 	}
 
+	/* session of this request, opened again when sessionId was changed */
+	private SessionState session() {
+		if (session == null || !Objects.equals(session.getSessionId(), sessionId)) {
+			flushSession();
+			session = HttpSession.getInstance().open(sessionId);
+		}
+		return session;
+	}
+
+	/**
+	 * Write the session changes of this request to the store. Called when
+	 * the request is done; stores without buffering have nothing to do.
+	 */
+	public void flushSession() {
+		if (session != null) {
+			session.flush();
+		}
+	}
+
 	public Object getSessionAttribute(String key) {
-		return HttpSession.getInstance().getSessionAttribute(sessionId, key);
+		return session().getAttribute(key);
 	}
 
 	public void setSessionAttribute(String key, Object value) {
-		HttpSession.getInstance().setSessionAttribute(sessionId, key, value);
+		session().setAttribute(key, value);
 	}
 
 	public void removeSessionAttribute(String key) {
-		HttpSession.getInstance().removeSessionAttribute(sessionId, key);
+		session().removeAttribute(key);
 	}
 
 	public void removeSession() {
+		session = null;
 		HttpSession.getInstance().removeSession(sessionId);
 	}
 
@@ -732,10 +961,49 @@ public class HttpUtils {
 	 * @throws IOException ioe
 	 */
 	public void sendRedirect(String location) throws IOException {
+		// the client follows the redirect at once, store the session first
+		flushSession();
 		httpExchange.getResponseHeaders().set("Location", location);
 		httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_SEE_OTHER, -1);
 	}
 
+	/**
+	 * Websocket reply of a backend. Optional fields: websocket-user binds
+	 * the connection to a user, websocket-subscribe / websocket-unsubscribe
+	 * change its topics. The data goes to websocket-topic subscribers,
+	 * to the connections of websocket-to-user, to every connection when
+	 * websocket-broadcast is "true", or else back to the connection.
+	 */
+	private void returnToWebsocket(LinkedTreeMap responseData) {
+		WebSocketRegistry registry = WebSocketRegistry.getInstance();
+		Object channelId = responseData.get("hi-channel-id");
+		String id = channelId == null ? null : channelId.toString();
+		if (id != null) {
+			if (responseData.get("websocket-user") != null) {
+				registry.bindUser(id, responseData.get("websocket-user").toString());
+			}
+			if (responseData.get("websocket-subscribe") != null) {
+				registry.subscribe(id, responseData.get("websocket-subscribe").toString());
+			}
+			if (responseData.get("websocket-unsubscribe") != null) {
+				registry.unsubscribe(id, responseData.get("websocket-unsubscribe").toString());
+			}
+		}
+		String json = (String) responseData.get("data");
+		if (json == null) {
+			return;
+		}
+		if (responseData.get("websocket-topic") != null) {
+			registry.publish(responseData.get("websocket-topic").toString(), json);
+		} else if (responseData.get("websocket-to-user") != null) {
+			registry.sendToUser(responseData.get("websocket-to-user").toString(), json);
+		} else if ("true".equals(responseData.get("websocket-broadcast"))) {
+			registry.broadcast(json);
+		} else if (id == null || !registry.send(id, json)) {
+			log.info("Websocket connection " + id + " is closed, reply dropped");
+		}
+	}
+
 	public String getSessionId() {
 		return sessionId;
 	}
@@ -0,0 +1,207 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.web;
+
+import com.hh.server.HHServer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Requests sent to the backend and waiting for ReturnProcess, by
+ * hi-message-id.
+ *
+ * The table holds at most max-in-flight requests (server.conf); a request
+ * beyond that is refused at once instead of growing the heap. Each entry
+ * has a deadline (request-timeout, ms, 900 s by default like the old
+ * response cache): when it passes the entry is removed, the client gets a
+ * 504 and the exchange is closed, so a lost backend response does not
+ * keep the request's buffers alive. Whichever of the response and the
+ * deadline removes the entry first handles it. The 504 is written on its
+ * own pool, so a slow client does not hold back other deadlines.
+ */
+public class InFlightRequests {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 50000;
+    public static final long DEFAULT_REQUEST_TIMEOUT = 900000;
+
+    private static final Logger log = Logger.getLogger(InFlightRequests.class.getName());
+    private static final int maxInFlight;
+    private static final ConcurrentHashMap<String, Entry> table;
+    private static final AtomicInteger size = new AtomicInteger();
+    private static final AtomicInteger peak = new AtomicInteger();
+    private static final AtomicLong started = new AtomicLong();
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong timedOut = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "hh-request-timeout");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private static final AtomicInteger writerCount = new AtomicInteger();
+    private static final ThreadPoolExecutor writers = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "hh-request-timeout-writer-" + writerCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        int max = DEFAULT_MAX_IN_FLIGHT;
+        if (HHServer.config != null && HHServer.config.getConfig("max-in-flight") != null
+                && !HHServer.config.getConfig("max-in-flight").trim().isEmpty()) {
+            max = Integer.parseInt(HHServer.config.getConfig("max-in-flight").trim());
+        }
+        maxInFlight = max;
+        table = new ConcurrentHashMap<>(Math.min(max, 4096));
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    static class Entry {
+        final HttpUtils hu;
+        final boolean respondOnTimeout;
+        ScheduledFuture<?> deadline;
+
+        Entry(HttpUtils hu, boolean respondOnTimeout) {
+            this.hu = hu;
+            this.respondOnTimeout = respondOnTimeout;
+        }
+    }
+
+    public static long getDefaultTimeout() {
+        if (HHServer.config != null && HHServer.config.getConfig("request-timeout") != null
+                && !HHServer.config.getConfig("request-timeout").trim().isEmpty()) {
+            return Long.parseLong(HHServer.config.getConfig("request-timeout").trim());
+        }
+        return DEFAULT_REQUEST_TIMEOUT;
+    }
+
+    /**
+     * Add a request waiting for its response. timeout is in ms, 0 or less
+     * for request-timeout; with respondOnTimeout false the caller answers
+     * the client itself (websocket, web service bridge) and the entry is
+     * only released. Returns false when the table is full.
+     */
+    public static boolean add(final String messageId, HttpUtils hu, long timeout, boolean respondOnTimeout) {
+        int n = size.incrementAndGet();
+        if (n > maxInFlight) {
+            size.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        updatePeak(n);
+        started.incrementAndGet();
+        if (timeout <= 0) {
+            timeout = getDefaultTimeout();
+        }
+        final Entry entry = new Entry(hu, respondOnTimeout);
+        Entry old = table.put(messageId, entry);
+        if (old != null) {
+            /* id reused after wrapping around, the old request is long gone */
+            size.decrementAndGet();
+            cancel(old);
+        }
+        synchronized (entry) {
+            entry.deadline = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expire(messageId, entry);
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Take the request of a backend response, null if it is unknown or its
+     * deadline has passed.
+     */
+    public static HttpUtils remove(String messageId) {
+        Entry entry = table.remove(messageId);
+        if (entry == null) {
+            return null;
+        }
+        size.decrementAndGet();
+        completed.incrementAndGet();
+        cancel(entry);
+        return entry.hu;
+    }
+
+    private static void cancel(Entry entry) {
+        synchronized (entry) {
+            if (entry.deadline != null) {
+                entry.deadline.cancel(false);
+            }
+        }
+    }
+
+    private static void expire(final String messageId, Entry entry) {
+        if (!table.remove(messageId, entry)) {
+            return;
+        }
+        size.decrementAndGet();
+        timedOut.incrementAndGet();
+        final HttpUtils hu = entry.hu;
+        if (!entry.respondOnTimeout || hu.httpExchange == null) {
+            return;
+        }
+        writers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    hu.sendStringResponse(504, "504 (Gateway Timeout)");
+                } catch (Exception ex) {
+                    log.debug("Can not send timeout response of message " + messageId, ex);
+                } finally {
+                    hu.httpExchange.close();
+                }
+            }
+        });
+    }
+
+    private static void updatePeak(int n) {
+        int p = peak.get();
+        while (n > p && !peak.compareAndSet(p, n)) {
+            p = peak.get();
+        }
+    }
+
+    public static int size() {
+        return size.get();
+    }
+
+    /**
+     * Current and peak number of requests in flight and the counters of
+     * completed, timed out and refused requests
+     */
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("in-flight", size.get());
+        stats.put("peak", peak.get());
+        stats.put("max", maxInFlight);
+        stats.put("started", started.get());
+        stats.put("completed", completed.get());
+        stats.put("timed-out", timedOut.get());
+        stats.put("rejected", rejected.get());
+        return stats;
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.web;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming multipart/form-data parser.
+ *
+ * The body is read through one fixed buffer and part boundaries are found
+ * with a Boyer-Moore-Horspool search, so the body is never decoded as a
+ * String and binary content is kept byte for byte. Small parts stay in
+ * memory, larger ones are written to temp files. close() deletes the temp
+ * files of all parts.
+ */
+public class MultipartParser implements Closeable {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_HEADER_SIZE = 16 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * One part of the form. Content is available as a stream whether it
+     * was kept in memory or spilled to disk.
+     */
+    public static class Part {
+        private final Map<String, String> headers;
+        private final String name;
+        private final String filename;
+        private final String contentType;
+        private long size;
+        private byte[] data;
+        private File file;
+
+        Part(Map<String, String> headers) {
+            this.headers = headers;
+            String disposition = headers.get("content-disposition");
+            this.name = disposition == null ? null : parameter(disposition, "name");
+            String fn = disposition == null ? null : parameter(disposition, "filename");
+            if (fn != null) {
+                /* some browsers send the full client path */
+                fn = fn.substring(Math.max(fn.lastIndexOf('/'), fn.lastIndexOf('\\')) + 1);
+            }
+            this.filename = fn;
+            this.contentType = headers.get("content-type");
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        public boolean isFile() {
+            return filename != null;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /** temp file of a spilled part, null when the part is in memory */
+        public File getFile() {
+            return file;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            if (file != null) {
+                return new FileInputStream(file);
+            }
+            return new ByteArrayInputStream(data);
+        }
+
+        /** whole content; reads the temp file of a spilled part */
+        public byte[] getBytes() throws IOException {
+            if (file != null) {
+                return Files.readAllBytes(file.toPath());
+            }
+            return data;
+        }
+
+        public String getString() throws IOException {
+            String charset = contentType == null ? null : parameter(contentType, "charset");
+            return new String(getBytes(), charset == null ? UTF_8 : Charset.forName(charset));
+        }
+
+        public void delete() {
+            if (file != null) {
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+                file = null;
+            }
+            data = null;
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final int[] shift = new int[256];
+    private final long maxPartSize;
+    private final long maxTotalSize;
+    private final int spillThreshold;
+    private final File tempDir;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+    private int end;
+    private long total;
+    private boolean eof;
+    private boolean finished;
+    private boolean started;
+    private final List<Part> parts = new ArrayList<>();
+
+    /**
+     * @param in request body
+     * @param boundary boundary parameter of the Content-Type
+     * @param maxPartSize largest accepted part, -1 for no limit
+     * @param maxTotalSize largest accepted body, -1 for no limit
+     * @param spillThreshold parts larger than this go to a temp file
+     * @param tempDir folder of the temp files, null for java.io.tmpdir
+     */
+    public MultipartParser(InputStream in, String boundary, long maxPartSize, long maxTotalSize,
+            int spillThreshold, File tempDir) {
+        if (boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+            throw new IllegalArgumentException("Invalid multipart boundary");
+        }
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(UTF_8);
+        this.maxPartSize = maxPartSize;
+        this.maxTotalSize = maxTotalSize;
+        this.spillThreshold = spillThreshold;
+        this.tempDir = tempDir;
+        int len = delimiter.length;
+        for (int i = 0; i < 256; i++) {
+            shift[i] = len;
+        }
+        for (int i = 0; i < len - 1; i++) {
+            shift[delimiter[i] & 0xFF] = len - 1 - i;
+        }
+        /* the first boundary is not preceded by CRLF, pretend it is */
+        buf[0] = '\r';
+        buf[1] = '\n';
+        end = 2;
+    }
+
+    /**
+     * boundary parameter of a multipart Content-Type, null if missing
+     */
+    public static String boundary(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        return parameter(contentType, "boundary");
+    }
+
+    /**
+     * Next part, read completely into memory or a temp file, or null at
+     * the end of the body.
+     */
+    public Part next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (!started) {
+            started = true;
+            /* skip the preamble */
+            while (true) {
+                int idx = indexOf(pos, end);
+                if (idx >= 0) {
+                    pos = idx + delimiter.length;
+                    break;
+                }
+                pos = Math.max(pos, end - delimiter.length + 1);
+                if (!fill()) {
+                    throw new IOException("Multipart boundary not found");
+                }
+            }
+        }
+        /* after a delimiter: "--" ends the body, otherwise CRLF and headers */
+        if (!ensure(2)) {
+            throw new IOException("Unexpected end of multipart body");
+        }
+        if (buf[pos] == '-' && buf[pos + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        while (buf[pos] == ' ' || buf[pos] == '\t') {
+            pos++;
+            if (!ensure(2)) {
+                throw new IOException("Unexpected end of multipart body");
+            }
+        }
+        if (buf[pos] != '\r' || buf[pos + 1] != '\n') {
+            throw new IOException("Malformed multipart boundary line");
+        }
+        pos += 2;
+
+        Part part = new Part(readHeaders());
+        parts.add(part);
+        readBody(part);
+        return part;
+    }
+
+    /**
+     * Parse the remaining body and return all parts.
+     */
+    public List<Part> parseAll() throws IOException {
+        while (next() != null) {
+        }
+        return parts;
+    }
+
+    public List<Part> getParts() {
+        return parts;
+    }
+
+    private Map<String, String> readHeaders() throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        int read = 0;
+        while (true) {
+            int lineEnd = -1;
+            while (true) {
+                for (int i = pos; i < end - 1; i++) {
+                    if (buf[i] == '\r' && buf[i + 1] == '\n') {
+                        lineEnd = i;
+                        break;
+                    }
+                }
+                if (lineEnd >= 0) {
+                    break;
+                }
+                if (end - pos > MAX_HEADER_SIZE || !fill()) {
+                    throw new IOException("Malformed multipart part header");
+                }
+            }
+            int len = lineEnd - pos;
+            read += len + 2;
+            if (read > MAX_HEADER_SIZE) {
+                throw new IOException("Multipart part header too large");
+            }
+            String line = new String(buf, pos, len, UTF_8);
+            pos = lineEnd + 2;
+            if (line.isEmpty()) {
+                return headers;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+    }
+
+    private void readBody(Part part) throws IOException {
+        ByteArrayOutputStream mem = new ByteArrayOutputStream(Math.min(spillThreshold, 8192) + 1);
+        OutputStream out = mem;
+        try {
+            while (true) {
+                int idx = indexOf(pos, end);
+                int stop = idx >= 0 ? idx : Math.max(pos, end - delimiter.length + 1);
+                int n = stop - pos;
+                if (n > 0) {
+                    part.size += n;
+                    if (maxPartSize >= 0 && part.size > maxPartSize) {
+                        throw new IOException("Multipart part larger than " + maxPartSize + " bytes");
+                    }
+                    if (part.file == null && part.size > spillThreshold) {
+                        part.file = File.createTempFile("hh-upload-", ".tmp", tempDir);
+                        out = new BufferedOutputStream(new FileOutputStream(part.file), BUFFER_SIZE);
+                        mem.writeTo(out);
+                        mem = null;
+                    }
+                    out.write(buf, pos, n);
+                    pos = stop;
+                }
+                if (idx >= 0) {
+                    pos = idx + delimiter.length;
+                    break;
+                }
+                if (!fill()) {
+                    throw new IOException("Unexpected end of multipart body");
+                }
+            }
+        } catch (IOException ex) {
+            out.close();
+            part.delete();
+            throw ex;
+        }
+        out.close();
+        if (part.file == null) {
+            part.data = mem.toByteArray();
+        }
+    }
+
+    /* Boyer-Moore-Horspool search of the delimiter in buf[from, to) */
+    private int indexOf(int from, int to) {
+        int len = delimiter.length;
+        int last = len - 1;
+        int i = from;
+        while (i <= to - len) {
+            int j = last;
+            while (buf[i + j] == delimiter[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += shift[buf[i + last] & 0xFF];
+        }
+        return -1;
+    }
+
+    private boolean ensure(int n) throws IOException {
+        while (end - pos < n) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* move unread bytes to the front and read more, false at end of stream */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, end - pos);
+            end -= pos;
+            pos = 0;
+        }
+        if (end == buf.length) {
+            throw new IOException("Multipart buffer overflow");
+        }
+        int n = in.read(buf, end, buf.length - end);
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        end += n;
+        total += n;
+        if (maxTotalSize >= 0 && total > maxTotalSize) {
+            throw new IOException("Multipart body larger than " + maxTotalSize + " bytes");
+        }
+        return true;
+    }
+
+    /**
+     * Delete the temp files of all parts
+     */
+    @Override
+    public void close() {
+        for (Part part : parts) {
+            part.delete();
+        }
+    }
+
+    /* value of a header parameter such as name="x" or boundary=y */
+    static String parameter(String header, String key) {
+        int i = 0;
+        int len = header.length();
+        while (i < len) {
+            int semi = indexOfUnquoted(header, ';', i);
+            String param = header.substring(i, semi).trim();
+            i = semi + 1;
+            int eq = param.indexOf('=');
+            if (eq <= 0 || !param.substring(0, eq).trim().equalsIgnoreCase(key)) {
+                continue;
+            }
+            String value = param.substring(eq + 1).trim();
+            if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+                value = value.substring(1, value.length() - 1).replace("\\\"", "\"");
+            }
+            return value;
+        }
+        return null;
+    }
+
+    private static int indexOfUnquoted(String s, char c, int from) {
+        boolean quoted = false;
+        for (int i = from; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '"') {
+                quoted = !quoted;
+            } else if (ch == '\\' && quoted) {
+                i++;
+            } else if (ch == c && !quoted) {
+                return i;
+            }
+        }
+        return s.length();
+    }
+}
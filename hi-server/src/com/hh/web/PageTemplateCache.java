@@ -0,0 +1,343 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.web;
+
+import com.hh.action.LocalizedFilter;
+import com.hh.action.ReturnFilter;
+import com.hh.server.HHServer;
+import com.hh.util.FileUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * Compiled pages for BaseAction.returnPage.
+ *
+ * Every layout or child page file is parsed once into static segments and
+ * slots (the "&lt;!-- position --&gt;" placeholders). A page is assembled
+ * from its template and child pages in one pass, and the output of the
+ * return filter is kept per (page, language) both plain and gzipped.
+ * Entries are dropped when FileWatcher reports a change of one of the
+ * files they were built from; without a watcher they are checked by
+ * modification time as before.
+ */
+public class PageTemplateCache {
+
+    private static final Logger log = Logger.getLogger(PageTemplateCache.class.getName());
+    private static final Charset UTF_8 = Charset.forName(FileUtils.UTF_8);
+    /* nested child pages deeper than this are left as they are */
+    private static final int MAX_DEPTH = 16;
+    /* rendered languages kept per page */
+    private static final int MAX_RENDERED = 16;
+    private static final Pattern SLOT = Pattern.compile("<!-- (.*?) -->");
+
+    /* parsed files by path relative to ../app/ */
+    private static final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<>();
+    /* assembled pages by page name */
+    private static final ConcurrentHashMap<String, Page> pages = new ConcurrentHashMap<>();
+    /* bumped on every invalidation so a build racing with a change is not kept */
+    private static final AtomicLong generation = new AtomicLong();
+
+    private static final FileWatcher.Listener listener = new FileWatcher.Listener() {
+        @Override
+        public void changed(Path folder, String name) {
+            if (name == null) {
+                invalidateAll();
+                return;
+            }
+            invalidate(folder.resolve(name).toFile());
+        }
+    };
+
+    /**
+     * One file split at its placeholders: segments[i] is followed by
+     * slots[i]; the last segment has no slot.
+     */
+    static class Template {
+        final String path;
+        final long lastModified;
+        final String[] segments;
+        final String[] slots;
+
+        Template(String path, File file, String content) {
+            this.path = path;
+            this.lastModified = file.lastModified();
+            List<String> seg = new ArrayList<>();
+            List<String> slot = new ArrayList<>();
+            Matcher m = SLOT.matcher(content);
+            int last = 0;
+            while (m.find()) {
+                seg.add(content.substring(last, m.start()));
+                slot.add(m.group(1));
+                last = m.end();
+            }
+            seg.add(content.substring(last));
+            segments = seg.toArray(new String[seg.size()]);
+            slots = slot.toArray(new String[slot.size()]);
+        }
+    }
+
+    /**
+     * Assembled page and its rendered output per language
+     */
+    public static class Page {
+        final String content;
+        final Set<String> files;
+        final Map<String, Long> lastModified;
+        final ConcurrentHashMap<String, Rendered> rendered = new ConcurrentHashMap<>();
+
+        Page(String content, Set<String> files, Map<String, Long> lastModified) {
+            this.content = content;
+            this.files = files;
+            this.lastModified = lastModified;
+        }
+
+        boolean isValid() {
+            for (Map.Entry<String, Long> entry : lastModified.entrySet()) {
+                if (new File("../app/" + entry.getKey()).lastModified() != entry.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Output of the return filter for one language
+     */
+    public static class Rendered {
+        public final byte[] data;
+        public final byte[] gzip;
+
+        Rendered(String content) throws IOException {
+            data = content.getBytes(UTF_8);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+            try (GZIPOutputStream os = new GZIPOutputStream(bos)) {
+                os.write(data);
+            }
+            gzip = bos.toByteArray();
+        }
+    }
+
+    /**
+     * Rendered page for the language, built on first use. Returns null
+     * when the template file does not exist.
+     */
+    public static Rendered render(String name, String template, Map<String, Object> child,
+            ReturnFilter filter, String local) throws IOException {
+        Page page = getPage(name, template, child);
+        if (page == null) {
+            return null;
+        }
+        String language = filter instanceof LocalizedFilter ? ((LocalizedFilter) filter).language(local) : local;
+        String key = (filter == null ? "" : filter.getClass().getName()) + "|" + language;
+        Rendered rendered = page.rendered.get(key);
+        if (rendered == null) {
+            String content = filter == null ? page.content : filter.execute(page.content, local);
+            rendered = new Rendered(content);
+            /* local comes from a cookie: past the bound the page is not kept */
+            if (page.rendered.size() < MAX_RENDERED) {
+                Rendered old = page.rendered.putIfAbsent(key, rendered);
+                if (old != null) {
+                    rendered = old;
+                }
+            }
+        }
+        return rendered;
+    }
+
+    static Page getPage(String name, String template, Map<String, Object> child) throws IOException {
+        Page page = pages.get(name);
+        if (page != null && (FileWatcher.getInstance().isAvailable() || page.isValid())) {
+            return page;
+        }
+        long gen = generation.get();
+        page = buildPage(name, template, child);
+        if (page == null) {
+            return null;
+        }
+        if (generation.get() == gen) {
+            pages.put(name, page);
+        }
+        return page;
+    }
+
+    private static Page buildPage(String name, String template, Map<String, Object> child) throws IOException {
+        Template layout = getTemplate(template);
+        if (layout == null) {
+            return null;
+        }
+        /* position -> child page path */
+        Map<String, String> positions = new HashMap<>();
+        if (child != null) {
+            for (Map.Entry<String, Object> entry : child.entrySet()) {
+                positions.put((String) entry.getValue(), entry.getKey());
+            }
+        }
+        Set<String> files = new LinkedHashSet<>();
+        Map<String, Long> lastModified = new HashMap<>();
+        StringBuilder sb = new StringBuilder(8192);
+        append(sb, layout, positions, files, lastModified, 0);
+        String content = sb.toString();
+
+        if ("true".equals(HHServer.config.getConfig("use-browser-cache"))) {
+            String contextPath = template.substring(0, template.indexOf("/"));
+            String cacheFile = contextPath + "/share/cache/" + name.replace("/", "-") + ".appcache";
+            int index = content.indexOf("<html") + 5;
+            content = "<html manifest=\"/" + cacheFile + "\" " + content.substring(index);
+            writeClientCache(content, "../app/" + cacheFile);
+            files.add(cacheFile);
+            watch(cacheFile);
+        }
+        return new Page(content, files, lastModified);
+    }
+
+    private static void append(StringBuilder sb, Template t, Map<String, String> positions,
+            Set<String> files, Map<String, Long> lastModified, int depth) throws IOException {
+        files.add(t.path);
+        lastModified.put(t.path, t.lastModified);
+        for (int i = 0; i < t.slots.length; i++) {
+            sb.append(t.segments[i]);
+            String childPath = positions.get(t.slots[i]);
+            Template childTemplate = null;
+            if (childPath != null && depth < MAX_DEPTH) {
+                childTemplate = getTemplate(childPath);
+            }
+            if (childTemplate != null) {
+                append(sb, childTemplate, positions, files, lastModified, depth + 1);
+            } else {
+                sb.append("<!-- ").append(t.slots[i]).append(" -->");
+            }
+        }
+        sb.append(t.segments[t.slots.length]);
+    }
+
+    private static Template getTemplate(String path) throws IOException {
+        Template t = templates.get(path);
+        if (t != null && (FileWatcher.getInstance().isAvailable()
+                || new File("../app/" + path).lastModified() == t.lastModified)) {
+            return t;
+        }
+        File file = new File("../app/" + path);
+        if (!file.isFile()) {
+            return null;
+        }
+        watch(path);
+        long gen = generation.get();
+        t = new Template(path, file, new String(Files.readAllBytes(file.toPath()), UTF_8));
+        if (generation.get() == gen) {
+            templates.put(path, t);
+        }
+        return t;
+    }
+
+    private static void watch(String path) {
+        FileWatcher.getInstance().watch(new File("../app/" + path), listener);
+    }
+
+    /**
+     * drop a changed file and every page built from it
+     */
+    static void invalidate(File file) {
+        generation.incrementAndGet();
+        String path = relativePath(file);
+        if (path == null) {
+            return;
+        }
+        templates.remove(path);
+        for (Map.Entry<String, Page> entry : pages.entrySet()) {
+            if (entry.getValue().files.contains(path)) {
+                pages.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public static void invalidateAll() {
+        generation.incrementAndGet();
+        templates.clear();
+        pages.clear();
+    }
+
+    private static String relativePath(File file) {
+        try {
+            String app = new File("../app").getCanonicalPath() + File.separator;
+            String path = file.getCanonicalPath();
+            if (!path.startsWith(app)) {
+                return null;
+            }
+            return path.substring(app.length()).replace(File.separator, "/");
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private static void writeClientCache(String webContent, String cacheFile) {
+        cacheFile = cacheFile.replace("/", File.separator);
+        File cache = new File(cacheFile);
+        if (!cache.exists()) {
+            Pattern scriptPattern = Pattern.compile("src=\"(.*?)\"");
+            Matcher scriptMatcher = scriptPattern.matcher(webContent);
+            List<String> lstString = new ArrayList<>();
+            while (scriptMatcher.find()) {
+                lstString.add(scriptMatcher.group(1));
+            }
+
+            Pattern cssPattern = Pattern.compile("href=\"(.*?)css\"");
+            Matcher cssMatcher = cssPattern.matcher(webContent);
+            while (cssMatcher.find()) {
+                lstString.add(cssMatcher.group(1) + "css");
+            }
+
+            StringBuilder cacheContent = new StringBuilder();
+            cacheContent.append("CACHE MANIFEST\n");
+            cacheContent.append("# version: ");
+            cacheContent.append((new Date()).getTime());
+            cacheContent.append("\n");
+            cacheContent.append("# Explicitly cached entries\n");
+
+            for (String resource : lstString) {
+                cacheContent.append("../../../");
+                cacheContent.append(resource);
+                cacheContent.append("\n");
+            }
+
+            cacheContent.append("\n");
+            cacheContent.append("# offline will be displayed if the user is offline\n");
+            cacheContent.append("FALLBACK:\n");
+            cacheContent.append("\n");
+            cacheContent.append("# All other resources (e.g. sites) require the user to be online. \n");
+            cacheContent.append("NETWORK:\n");
+            cacheContent.append("*\n");
+            cacheContent.append("\n");
+            cacheContent.append("# Additional resources to cache\n");
+            cacheContent.append("CACHE:");
+
+            try {
+                cache.createNewFile();
+                FileUtils fu = new FileUtils();
+                fu.writeStringToFile(cacheContent.toString(), cacheFile, FileUtils.UTF_8);
+            } catch (Exception ex) {
+                log.error("Error when write cache file", ex);
+            }
+        }
+    }
+}
@@ -7,23 +7,109 @@ package com.hh.web;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.hh.server.HHServer;
 import static com.hh.web.HttpSession.sessionTimeout;
-import java.util.HashMap;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Sessions kept in memory. Every session is a ConcurrentHashMap, so
+ * parallel requests of one client can read and write it at the same time.
+ * The cache is bounded by the estimated size of all sessions
+ * (ram-session-max-size, MB in server.conf) and expires sessions after
+ * session-timeout minutes without access; reads only touch the access
+ * time, attributes are not put back into the cache.
  *
  * @author hiendm1
  */
 public class RamSession extends HttpSession {
     private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(RamSession.class.getSimpleName());
+    public static final long DEFAULT_MAX_SIZE = 512;
+    /* estimated bytes of a session without attributes */
+    private static final int SESSION_OVERHEAD = 256;
+    /* collections nested deeper than this are not walked */
+    private static final int MAX_ESTIMATE_DEPTH = 4;
     private static RamSession session;
-    public static Cache<Object, Object> cache;
+    public static Cache<String, Session> cache;
+    private static final AtomicLong expired = new AtomicLong();
+    private static final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Attributes of one session with their estimated size
+     */
+    public static class Session {
+        final ConcurrentHashMap<String, Object> attributes = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, Integer> sizes = new ConcurrentHashMap<>();
+        final AtomicLong weight = new AtomicLong(SESSION_OVERHEAD);
+
+        Object get(String key) {
+            return attributes.get(key);
+        }
+
+        /* returns the change of the estimated size */
+        long put(String key, Object value) {
+            int size = estimate(key, 0) + estimate(value, 0);
+            attributes.put(key, value);
+            Integer old = sizes.put(key, size);
+            long delta = size - (old == null ? 0 : old);
+            weight.addAndGet(delta);
+            return delta;
+        }
+
+        long remove(String key) {
+            attributes.remove(key);
+            Integer old = sizes.remove(key);
+            long delta = old == null ? 0 : -old;
+            weight.addAndGet(delta);
+            return delta;
+        }
+
+        public long getWeight() {
+            return weight.get();
+        }
+
+        public int size() {
+            return attributes.size();
+        }
+    }
 
     public RamSession() {
+        long maxSize = DEFAULT_MAX_SIZE;
+        if (HHServer.config != null && HHServer.config.getConfig("ram-session-max-size") != null) {
+            maxSize = Long.parseLong(HHServer.config.getConfig("ram-session-max-size").trim());
+        }
         cache = CacheBuilder.newBuilder()
-                .maximumSize(10000000)
+                .maximumWeight(maxSize * 1024 * 1024)
+                .weigher(new Weigher<String, Session>() {
+                    @Override
+                    public int weigh(String key, Session value) {
+                        return (int) Math.min(value.getWeight(), Integer.MAX_VALUE);
+                    }
+                })
                 .expireAfterAccess(sessionTimeout, TimeUnit.MINUTES)
+                .removalListener(new RemovalListener<String, Session>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, Session> notification) {
+                        if (notification.getCause() == RemovalCause.EXPIRED) {
+                            expired.incrementAndGet();
+                        } else if (notification.getCause() == RemovalCause.SIZE) {
+                            evicted.incrementAndGet();
+                            log.warn("RamSession evicted session " + notification.getKey()
+                                    + " (" + notification.getValue().getWeight() + " bytes), cache is full");
+                        }
+                    }
+                })
+                .recordStats()
                 .build();
     }
 
@@ -35,7 +121,7 @@ public class RamSession extends HttpSession {
     @Override
     public void createSession(String sessionId) {
         try {
-            HashMap<String, Object> httpSession = new HashMap();
+            Session httpSession = new Session();
             httpSession.put(SESSION_DEFAULT_KEY, SESSION_DEFAULT_VALUE);
             cache.put(sessionId, httpSession);
         } catch (Exception ex) {
@@ -46,7 +132,7 @@ public class RamSession extends HttpSession {
     @Override
     public Object getSessionAttribute(String sessionId, String key) {
         try {
-            HashMap<String, Object> httpSession = (HashMap<String, Object>)cache.getIfPresent(sessionId);
+            Session httpSession = cache.getIfPresent(sessionId);
             if(httpSession != null) return httpSession.get(key);
             else return null;
         } catch (Exception ex) {
@@ -58,10 +144,10 @@ public class RamSession extends HttpSession {
     @Override
     public void setSessionAttribute(String sessionId, String key, Object value) {
         try {
-            HashMap<String, Object> httpSession = (HashMap<String, Object>)cache.getIfPresent(sessionId);
+            Session httpSession = cache.getIfPresent(sessionId);
             if(httpSession != null) {
-                httpSession.put(key, value);
-                cache.put(sessionId, httpSession);
+                long delta = value == null ? httpSession.remove(key) : httpSession.put(key, value);
+                reweigh(sessionId, httpSession, delta);
             }
         } catch (Exception ex) {
             log.error("RamSession error: ", ex);
@@ -75,10 +161,9 @@ public class RamSession extends HttpSession {
 
     @Override
     public void removeSessionAttribute(String sessionId, String key) {
-        HashMap<String, Object> httpSession = (HashMap<String, Object>)cache.getIfPresent(sessionId);
+        Session httpSession = cache.getIfPresent(sessionId);
         if(httpSession != null) {
-            httpSession.remove(key);
-            cache.put(sessionId, httpSession);
+            reweigh(sessionId, httpSession, httpSession.remove(key));
         }
     }
 
@@ -86,4 +171,75 @@ public class RamSession extends HttpSession {
     public void removeSession(String sessionId) {
         cache.invalidate(sessionId);
     }
+
+    /*
+     * The cache weighs an entry when it is written: write the session
+     * again when its size changed, unless it was removed meanwhile.
+     */
+    private static void reweigh(String sessionId, Session httpSession, long delta) {
+        if (delta != 0) {
+            cache.asMap().replace(sessionId, httpSession, httpSession);
+        }
+    }
+
+    /**
+     * Number of sessions, their estimated size and eviction counters
+     */
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long bytes = 0;
+        for (Session s : cache.asMap().values()) {
+            bytes += s.getWeight();
+        }
+        CacheStats cs = cache.stats();
+        stats.put("sessions", cache.size());
+        stats.put("estimated-bytes", bytes);
+        stats.put("expired", expired.get());
+        stats.put("evicted", evicted.get());
+        stats.put("hit-rate", cs.hitRate());
+        return stats;
+    }
+
+    /* rough heap size of a value, enough to bound the cache */
+    static int estimate(Object value, int depth) {
+        if (value == null) {
+            return 8;
+        }
+        if (value instanceof String) {
+            return 40 + 2 * ((String) value).length();
+        }
+        if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+            return 16;
+        }
+        if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        }
+        if (depth >= MAX_ESTIMATE_DEPTH) {
+            return 64;
+        }
+        long size;
+        if (value instanceof Map) {
+            size = 48;
+            for (Object o : ((Map<?, ?>) value).entrySet()) {
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                size += 32 + estimate(e.getKey(), depth + 1) + estimate(e.getValue(), depth + 1);
+            }
+        } else if (value instanceof Collection) {
+            size = 40;
+            for (Object o : (Collection<?>) value) {
+                size += 8 + estimate(o, depth + 1);
+            }
+        } else if (value.getClass().isArray()) {
+            int len = Array.getLength(value);
+            size = 16 + 8L * len;
+            if (!value.getClass().getComponentType().isPrimitive()) {
+                for (int i = 0; i < len; i++) {
+                    size += estimate(Array.get(value, i), depth + 1);
+                }
+            }
+        } else {
+            size = 64;
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
 }
@@ -7,19 +7,34 @@ package com.hh.web;
 
 import com.hh.redis.RedisConnector;
 import com.hh.server.HHServer;
-import com.hh.util.ConfigUtils;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import redis.clients.jedis.JedisPool;
 
 /**
+ * Sessions stored as Redis hashes. Values are encoded by a SessionCodec,
+ * set with redis.session-codec (class name) in server.conf, by default a
+ * CompactSessionCodec which reads compact and Java serialized values but
+ * writes Java serialization, readable by nodes still on the old store.
+ * redis.session-compact-write=true writes compact values, to be set once
+ * every node sharing the sessions runs this reader. Requests work on a
+ * SessionState which reads the whole hash with one HGETALL on first access
+ * and writes all changes and the new expiry back in one pipelined round
+ * trip.
  *
  * @author hiendm1
  */
 public class RedisSession extends HttpSession {
     private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(RedisSession.class.getSimpleName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static RedisSession session;
     private static RedisConnector connector;
+    private static SessionCodec codec = new CompactSessionCodec(false);
     public static JedisPool jedisPool;
     
     public RedisSession() {
@@ -28,6 +43,17 @@ public class RedisSession extends HttpSession {
                 Integer.parseInt(HHServer.config.getConfig("redis.port")), 
                 Integer.parseInt(HHServer.config.getConfig("redis.max-total")), 
                 Integer.parseInt(HHServer.config.getConfig("redis.max-wait-mili")));
+        String codecClass = HHServer.config.getConfig("redis.session-codec");
+        if (codecClass != null && !codecClass.trim().isEmpty()) {
+            try {
+                codec = (SessionCodec) Class.forName(codecClass.trim()).newInstance();
+            } catch (Exception ex) {
+                log.error("Can not create session codec " + codecClass, ex);
+                throw new IllegalArgumentException("Invalid redis.session-codec: " + codecClass, ex);
+            }
+        } else {
+            codec = new CompactSessionCodec("true".equalsIgnoreCase(HHServer.config.getConfig("redis.session-compact-write")));
+        }
     }
         
     public static RedisSession getInstance() {
@@ -35,19 +61,50 @@ public class RedisSession extends HttpSession {
         return session;
     }    
     
+    public static void setCodec(SessionCodec sessionCodec) {
+        codec = sessionCodec;
+    }
+    
+    private static long timeoutMiliseconds() {
+        return sessionTimeout * 60000L;
+    }
+    
+    @Override
+    public SessionState open(String sessionId) {
+        return new RedisSessionState(this, sessionId);
+    }
+    
     @Override
     public void createSession(String sessionId) {
-        connector.createStore(sessionId, sessionTimeout);
+        try {
+            Map<byte[], byte[]> fields = new HashMap<>();
+            fields.put(SESSION_DEFAULT_KEY.getBytes(UTF_8), codec.encode(SESSION_DEFAULT_VALUE));
+            connector.updateStore(sessionId, fields, null, timeoutMiliseconds());
+        } catch (Exception ex) {
+            log.error("RedisSession error: ", ex);
+        }
     }
 
     @Override
     public Object getSessionAttribute(String sessionId, String key) {
-        return connector.getStoreAttribute(sessionId, key);
+        try {
+            byte[] data = connector.getStoreField(sessionId, key);
+            return data == null ? null : codec.decode(data);
+        } catch (Exception ex) {
+            log.error("RedisSession error: ", ex);
+        }
+        return null;
     }
     
     @Override
     public void setSessionAttribute(String sessionId, String key, Object value) {
-        connector.setStoreAttribute(sessionId, key, value);
+        try {
+            Map<byte[], byte[]> fields = new HashMap<>();
+            fields.put(key.getBytes(UTF_8), codec.encode(value));
+            connector.updateStore(sessionId, fields, null, 0);
+        } catch (Exception ex) {
+            log.error("RedisSession error: ", ex);
+        }
     }
 
     @Override
@@ -64,4 +121,98 @@ public class RedisSession extends HttpSession {
     public void removeSession(String sessionId) {
         connector.removeStore(sessionId);
     }
+    
+    /**
+     * Session loaded lazily in one read, changes kept until flush()
+     */
+    static class RedisSessionState extends SessionState {
+        private Map<String, Object> attributes;
+        private final Map<String, Object> dirty = new HashMap<>();
+        private final Set<String> removed = new HashSet<>();
+        private boolean touched;
+
+        RedisSessionState(RedisSession store, String sessionId) {
+            super(store, sessionId);
+        }
+
+        private void load() {
+            if (attributes != null) {
+                return;
+            }
+            attributes = new HashMap<>();
+            try {
+                Map<byte[], byte[]> fields = connector.getStoreFields(sessionId);
+                for (Map.Entry<byte[], byte[]> entry : fields.entrySet()) {
+                    String key = new String(entry.getKey(), UTF_8);
+                    try {
+                        attributes.put(key, codec.decode(entry.getValue()));
+                    } catch (Exception ex) {
+                        log.error("RedisSession can not decode attribute " + key, ex);
+                    }
+                }
+            } catch (Exception ex) {
+                log.error("RedisSession error: ", ex);
+            }
+        }
+
+        @Override
+        public Object getAttribute(String key) {
+            if (sessionId == null || removed.contains(key)) {
+                return null;
+            }
+            if (dirty.containsKey(key)) {
+                return dirty.get(key);
+            }
+            load();
+            return attributes.get(key);
+        }
+
+        @Override
+        public void setAttribute(String key, Object value) {
+            dirty.put(key, value);
+            removed.remove(key);
+        }
+
+        @Override
+        public void removeAttribute(String key) {
+            dirty.remove(key);
+            removed.add(key);
+            if (attributes != null) {
+                attributes.remove(key);
+            }
+        }
+
+        @Override
+        public void refreshExpire() {
+            touched = true;
+        }
+
+        @Override
+        public void flush() {
+            if (sessionId == null || (dirty.isEmpty() && removed.isEmpty() && !touched)) {
+                return;
+            }
+            try {
+                Map<byte[], byte[]> fields = new HashMap<>();
+                for (Map.Entry<String, Object> entry : dirty.entrySet()) {
+                    fields.put(entry.getKey().getBytes(UTF_8), codec.encode(entry.getValue()));
+                }
+                List<byte[]> keys = new ArrayList<>(removed.size());
+                for (String key : removed) {
+                    keys.add(key.getBytes(UTF_8));
+                }
+                /* a write also keeps the hash from living without expiry */
+                connector.updateStore(sessionId, fields, keys, timeoutMiliseconds());
+                if (attributes != null) {
+                    attributes.putAll(dirty);
+                }
+            } catch (Exception ex) {
+                log.error("RedisSession error: ", ex);
+            } finally {
+                dirty.clear();
+                removed.clear();
+                touched = false;
+            }
+        }
+    }
 }
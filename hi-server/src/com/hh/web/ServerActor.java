@@ -30,6 +30,7 @@ public class ServerActor {
 //                HHServer.mainLogger.error("HHServer error: ", e);
 //            }
 		} finally {
+			httpUtil.flushSession();
 			if (httpUtil.isAutoClose() && httpUtil.httpExchange != null) {
 				httpUtil.httpExchange.close();
 				httpUtil.httpExchange = null;
@@ -38,26 +39,35 @@ public class ServerActor {
 	}
 
 	/**
+	 * Single pass over the path: trims it, collapses repeated "/" and drops
+	 * trailing "/" (abc.xyz/risk and abc.xyz/risk/ are the same page).
 	 * 
 	 * @param url input URL
 	 * @return return a proper endpoint
 	 */
-	private String uriParse(String url) {
-		// abc.xyz/risk would return 200, but abc.xyz/risk/ would return 404, this is
-		// not a correct behavior
-		url = url.trim();
-		// Remove the last "/" characters at the end of string
-		while (true) {
-			if (url.charAt(url.length() - 1) == '/') {
-				url = url.substring(0, url.length() - 1);
-			} else {
-				break;
+	static String uriParse(String url) {
+		int start = 0;
+		int end = url.length();
+		while (start < end && url.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && (url.charAt(end - 1) <= ' ' || url.charAt(end - 1) == '/')) {
+			end--;
+		}
+		StringBuilder sb = null;
+		for (int i = start; i < end; i++) {
+			if (url.charAt(i) == '/' && i > start && url.charAt(i - 1) == '/') {
+				if (sb == null) {
+					sb = new StringBuilder(end - start);
+					sb.append(url, start, i);
+				}
+				continue;
+			}
+			if (sb != null) {
+				sb.append(url.charAt(i));
 			}
 		}
-		// Replace "//+" with "/" only
-		url = url.replaceAll("[\\/]+", "/");
-		return url;
-
+		return sb != null ? sb.toString() : url.substring(start, end);
 	}
 
 	private void handleRequest() throws Exception {
@@ -68,17 +78,13 @@ public class ServerActor {
 		}
 
 		httpUtil.path = path;
-		httpUtil.contextPath = path.substring(0, path.indexOf("/"));
+		int slash = path.indexOf('/');
+		httpUtil.contextPath = slash > 0 ? path.substring(0, slash) : "";
 		log.debug("TOGREP | URI: " + original);
 		String webAction = WebImpl.getConnectorFromAction(path);
 		log.debug("TOGREP | WebAction " + webAction);
 		if (webAction == null) { // Nếu không phải action
-			String sharePath = "";
-			if (path.length() > 0)
-				sharePath = path.substring(1);
-			if (FileUtils.checkSafeFileName(path) && sharePath.contains("/")
-					&& (sharePath.length() > sharePath.indexOf("/") + 7)
-					&& sharePath.substring(sharePath.indexOf("/"), sharePath.indexOf("/") + 7).equals("/share/")) {
+			if (isSharePath(path) && FileUtils.checkSafeFileName(path)) {
 				// Nếu là file javascript, css, image...
 				File file = new File("../app" + path);
 				if (!file.isFile()) {
@@ -95,4 +101,12 @@ public class ServerActor {
 			httpUtil.sendToProcess(path);
 		}
 	}
+
+	/**
+	 * /&lt;ctx&gt;/share/&lt;file&gt;: static files of a context
+	 */
+	static boolean isSharePath(String path) {
+		int slash = path.indexOf('/', 1);
+		return slash > 0 && path.length() > slash + 7 && path.startsWith("/share/", slash);
+	}
 }
@@ -0,0 +1,19 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.web;
+
+import java.io.IOException;
+
+/**
+ * Encoding of session attribute values for stores which keep bytes.
+ * Implementations are shared by all requests and must be thread-safe.
+ */
+public interface SessionCodec {
+
+    byte[] encode(Object value) throws IOException;
+
+    Object decode(byte[] data) throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,48 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.web;
+
+/**
+ * Attributes of one session as seen by one request. This default passes
+ * every call straight to the store. Stores which pay a round trip per call
+ * return a subclass which loads the session once and writes the changes
+ * back in flush(), called by HttpUtils when the request is done.
+ */
+public class SessionState {
+    protected final HttpSession store;
+    protected final String sessionId;
+
+    public SessionState(HttpSession store, String sessionId) {
+        this.store = store;
+        this.sessionId = sessionId;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public Object getAttribute(String key) {
+        return store.getSessionAttribute(sessionId, key);
+    }
+
+    public void setAttribute(String key, Object value) {
+        store.setSessionAttribute(sessionId, key, value);
+    }
+
+    public void removeAttribute(String key) {
+        store.removeSessionAttribute(sessionId, key);
+    }
+
+    public void refreshExpire() {
+        store.refreshExpire(sessionId);
+    }
+
+    /**
+     * Write pending changes to the store
+     */
+    public void flush() {
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.web;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.hh.server.HHServer;
+import com.hh.util.FileUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of static files served from ../app/&lt;ctx&gt;/share/.
+ *
+ * Entries are keyed by path and validated against the file's mtime and
+ * length on every lookup. Small files are kept in memory, compressible
+ * files keep a gzip copy built once, and precompressed siblings
+ * (file.gz, file.br) found next to the original are used as is. Memory
+ * is bounded by static-cache-size (MB, server.conf) and entries are
+ * dropped as soon as FileWatcher reports a change in their folder.
+ */
+public class StaticFileCache {
+
+    public static final long DEFAULT_CACHE_SIZE = 64;
+    /* files up to this size are kept in memory uncompressed */
+    public static final int MAX_IDENTITY_SIZE = 256 * 1024;
+    /* compressible files up to this size keep an in-memory gzip copy */
+    public static final int MAX_GZIP_SIZE = 16 * 1024 * 1024;
+    /* not worth compressing below this */
+    public static final int MIN_GZIP_SIZE = 512;
+
+    private static final Cache<String, Entry> cache;
+    private static final FileWatcher.Listener listener = new FileWatcher.Listener() {
+        @Override
+        public void changed(Path folder, String name) {
+            if (name == null) {
+                invalidateFolder(folder);
+                return;
+            }
+            /* a new or changed .gz/.br sibling changes the original's entry too */
+            if (name.endsWith(".gz") || name.endsWith(".br")) {
+                name = name.substring(0, name.length() - 3);
+            }
+            cache.invalidate(folder.resolve(name).toString());
+        }
+    };
+
+    static {
+        long size = DEFAULT_CACHE_SIZE;
+        if (HHServer.config != null && HHServer.config.getConfig("static-cache-size") != null) {
+            size = Long.parseLong(HHServer.config.getConfig("static-cache-size").trim());
+        }
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(size * 1024 * 1024)
+                .weigher(new Weigher<String, Entry>() {
+                    @Override
+                    public int weigh(String key, Entry value) {
+                        return value.weight();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * One cached file. The representations which are null are served
+     * from disk.
+     */
+    public static class Entry {
+        public final File file;
+        public final long lastModified;
+        public final long length;
+        public final String mime;
+        public final String etag;
+        public final String lastModifiedHeader;
+        public final boolean compressible;
+        /* file content, small files only */
+        public final byte[] identity;
+        /* gzip content built in memory */
+        public final byte[] gzip;
+        /* precompressed files found next to the original */
+        public final File gzipFile;
+        public final File brotliFile;
+
+        Entry(File file, String mime) throws IOException {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.mime = mime;
+            this.etag = Long.toHexString(length) + "-" + Long.toHexString(lastModified);
+            this.lastModifiedHeader = formatDate(lastModified);
+            this.compressible = isCompressible(mime);
+            this.brotliFile = compressible ? sibling(file, ".br", lastModified) : null;
+            this.gzipFile = compressible ? sibling(file, ".gz", lastModified) : null;
+            byte[] content = null;
+            if (length <= MAX_IDENTITY_SIZE || (compressible && gzipFile == null && length <= MAX_GZIP_SIZE)) {
+                content = Files.readAllBytes(file.toPath());
+            }
+            byte[] gz = null;
+            if (content != null && compressible && gzipFile == null && content.length >= MIN_GZIP_SIZE) {
+                gz = gzip(content);
+                if (gz.length >= content.length) {
+                    gz = null;
+                }
+            }
+            this.gzip = gz;
+            this.identity = length <= MAX_IDENTITY_SIZE ? content : null;
+        }
+
+        boolean isValid() {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+
+        /** strong ETag of one representation */
+        public String etag(String encoding) {
+            if (encoding == null) {
+                return "\"" + etag + "\"";
+            }
+            return "\"" + etag + "-" + encoding + "\"";
+        }
+
+        /**
+         * If-None-Match check. Any representation of the same file
+         * version matches, as allowed for the weak comparison of GET.
+         */
+        public boolean matches(String ifNoneMatch) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*")) {
+                    return true;
+                }
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.startsWith("\"" + etag + "\"") || tag.startsWith("\"" + etag + "-")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int weight() {
+            long w = 256;
+            if (identity != null) {
+                w += identity.length;
+            }
+            if (gzip != null) {
+                w += gzip.length;
+            }
+            return (int) Math.min(w, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Cached entry of a file, rebuilt when the file changed since it was
+     * cached.
+     */
+    public static Entry get(File file, String path) throws IOException {
+        String key = file.getAbsolutePath();
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null && entry.isValid()) {
+            return entry;
+        }
+        String fileName = path.substring(path.lastIndexOf("/"));
+        String mime = HHServer.config.getMimeType(FileUtils.extractFileExt(fileName));
+        entry = new Entry(file, mime);
+        cache.put(key, entry);
+        FileWatcher.getInstance().watch(file, listener);
+        return entry;
+    }
+
+    public static void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public static long size() {
+        return cache.size();
+    }
+
+    static boolean isCompressible(String mime) {
+        if (mime == null || mime.isEmpty()) {
+            return false;
+        }
+        return mime.startsWith("text/")
+                || mime.contains("javascript")
+                || mime.contains("json")
+                || mime.contains("xml")
+                || mime.equals("image/svg+xml")
+                || mime.equals("image/x-icon")
+                || mime.equals("application/vnd.ms-fontobject")
+                || mime.equals("application/x-font-ttf")
+                || mime.equals("font/ttf")
+                || mime.equals("font/otf");
+    }
+
+    private static File sibling(File file, String ext, long lastModified) {
+        File f = new File(file.getPath() + ext);
+        if (f.isFile() && f.lastModified() >= lastModified) {
+            return f;
+        }
+        return null;
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(content.length / 3 + 64);
+        try (GZIPOutputStream os = new GZIPOutputStream(bos, 8192) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            os.write(content);
+        }
+        return bos.toByteArray();
+    }
+
+    public static String formatDate(long time) {
+        SimpleDateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        df.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return df.format(new Date(time));
+    }
+
+    /**
+     * HTTP date or, for clients which got the old numeric header, a time in
+     * milliseconds. Returns -1 when the value can not be parsed.
+     */
+    public static long parseDate(String value) {
+        value = value.trim();
+        try {
+            if (!value.isEmpty() && Character.isDigit(value.charAt(0))) {
+                return Long.parseLong(value);
+            }
+            SimpleDateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            df.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return df.parse(value).getTime();
+        } catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    private static void invalidateFolder(Path folder) {
+        String prefix = folder.toString() + File.separator;
+        for (String key : cache.asMap().keySet()) {
+            if (key.startsWith(prefix)) {
+                cache.invalidate(key);
+            }
+        }
+    }
+}
@@ -13,6 +13,9 @@ import java.net.URISyntaxException;
 import java.security.Principal;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
@@ -51,6 +54,25 @@ public class HandlerContainer implements HttpHandler, Container {
 
     private static final Logger LOGGER = Logger.getLogger(HandlerContainer.class.getName());
 
+    /**
+     * Request property holding the {@link HttpExchange}, for resources which
+     * need the underlying connection (e.g. to forward the call to a backend).
+     */
+    public static final String EXCHANGE_PROPERTY = HttpExchange.class.getName();
+
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "jersey-suspend-timeout");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
     private volatile ApplicationHandler appHandler;
 
     public HandlerContainer() {}
@@ -127,12 +149,15 @@ public class HandlerContainer implements HttpHandler, Container {
         requestContext.setEntityStream(exchange.getRequestBody());
         requestContext.getHeaders().putAll(exchange.getRequestHeaders());
         requestContext.setWriter(responseWriter);
+        requestContext.setProperty(EXCHANGE_PROPERTY, exchange);
         try {
             appHandler.handle(requestContext);
         } finally {
             // if the response was not committed yet by the JerseyApplication
-            // then commit it and log warning
-            responseWriter.closeAndLogWarning();
+            // then commit it and log warning, unless an AsyncResponse holds it
+            if (!responseWriter.isSuspended()) {
+                responseWriter.closeAndLogWarning();
+            }
         }
         
     }
@@ -237,6 +262,9 @@ public class HandlerContainer implements HttpHandler, Container {
 
         private final HttpExchange exchange;
         private final AtomicBoolean closed;
+        private volatile boolean suspended;
+        private volatile TimeoutHandler timeoutHandler;
+        private ScheduledFuture<?> timeout;
 
         /**
          * Creates a new ResponseWriter for given {@link HttpExchange HTTP Exchange}.
@@ -285,14 +313,51 @@ public class HandlerContainer implements HttpHandler, Container {
             return contentLength;
         }
 
+        /**
+         * The exchange stays open after {@link HandlerContainer#handle} returns
+         * and the calling thread goes back to the server; the response is
+         * written when the AsyncResponse is resumed or times out.
+         */
         @Override
         public boolean suspend(final long timeOut, final TimeUnit timeUnit, final TimeoutHandler timeoutHandler) {
-            throw new UnsupportedOperationException("Method suspend is not supported by the container.");
+            if (closed.get()) {
+                return false;
+            }
+            this.timeoutHandler = timeoutHandler;
+            this.suspended = true;
+            scheduleTimeout(timeOut, timeUnit);
+            return true;
         }
 
         @Override
         public void setSuspendTimeout(final long timeOut, final TimeUnit timeUnit) throws IllegalStateException {
-            throw new UnsupportedOperationException("Method setSuspendTimeout is not supported by the container.");
+            if (!suspended) {
+                throw new IllegalStateException("Response is not suspended.");
+            }
+            scheduleTimeout(timeOut, timeUnit);
+        }
+
+        private synchronized void scheduleTimeout(final long timeOut, final TimeUnit timeUnit) {
+            if (timeout != null) {
+                timeout.cancel(false);
+                timeout = null;
+            }
+            if (timeOut <= 0 || closed.get()) {
+                return;
+            }
+            timeout = TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    final TimeoutHandler handler = timeoutHandler;
+                    if (handler != null && !closed.get()) {
+                        handler.onTimeout(ResponseWriter.this);
+                    }
+                }
+            }, timeOut, timeUnit);
+        }
+
+        boolean isSuspended() {
+            return suspended;
         }
 
         @Override
@@ -315,6 +380,12 @@ public class HandlerContainer implements HttpHandler, Container {
         @Override
         public void commit() {
             if (closed.compareAndSet(false, true)) {
+                synchronized (this) {
+                    if (timeout != null) {
+                        timeout.cancel(false);
+                        timeout = null;
+                    }
+                }
                 exchange.close();
             }
         }
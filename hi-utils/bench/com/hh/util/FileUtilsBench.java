@@ -0,0 +1,296 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Timing of the FileUtils hex and object codec paths against the code they
+ * replaced, run with "ant bench" in hi-utils. Before anything is timed the
+ * new paths are checked against the old ones, so a failed check stops the
+ * run with an IllegalStateException.
+ *
+ * Each case runs in batches of at least 1 ms, WARMUP_ROUNDS rounds are
+ * dropped and the median and best ns/op of ROUNDS rounds are printed.
+ */
+public class FileUtilsBench {
+
+    public static final int WARMUP_ROUNDS = 5;
+    public static final int ROUNDS = 10;
+    public static final long ROUND_NANOS = 200000000L;
+
+    /* results go here so the measured call is not optimized away */
+    private static volatile Object sink;
+
+    interface Case {
+        Object run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        verify();
+
+        Random random = new Random(7);
+        final byte[] small = new byte[32];
+        final byte[] large = new byte[4096];
+        random.nextBytes(small);
+        random.nextBytes(large);
+        final String smallHex = FileUtils.byteArrayToHex(small);
+        final String largeHex = FileUtils.byteArrayToHex(large);
+        final Object value = session(random);
+        final byte[] serialized = legacyObjectToByteArray(value);
+        final CompactObjectCodec compact = CompactObjectCodec.INSTANCE;
+        final byte[] compacted = compact.encode(value);
+
+        bench("hex encode 32 B, String.format", new Case() {
+            @Override
+            public Object run() {
+                return legacyByteArrayToHex(small);
+            }
+        });
+        bench("hex encode 32 B, table", new Case() {
+            @Override
+            public Object run() {
+                return FileUtils.byteArrayToHex(small);
+            }
+        });
+        bench("hex encode 4 KB, String.format", new Case() {
+            @Override
+            public Object run() {
+                return legacyByteArrayToHex(large);
+            }
+        });
+        bench("hex encode 4 KB, table", new Case() {
+            @Override
+            public Object run() {
+                return FileUtils.byteArrayToHex(large);
+            }
+        });
+        bench("hex decode 32 B, Integer.parseInt", new Case() {
+            @Override
+            public Object run() {
+                return legacyHexToByteArray(smallHex);
+            }
+        });
+        bench("hex decode 32 B, table", new Case() {
+            @Override
+            public Object run() {
+                return FileUtils.hexToByteArray(smallHex);
+            }
+        });
+        bench("hex decode 4 KB, Integer.parseInt", new Case() {
+            @Override
+            public Object run() {
+                return legacyHexToByteArray(largeHex);
+            }
+        });
+        bench("hex decode 4 KB, table", new Case() {
+            @Override
+            public Object run() {
+                return FileUtils.hexToByteArray(largeHex);
+            }
+        });
+        bench("encode " + serialized.length + " B, plain serialization", new Case() {
+            @Override
+            public Object run() throws Exception {
+                return legacyObjectToByteArray(value);
+            }
+        });
+        bench("encode " + serialized.length + " B, JavaObjectCodec", new Case() {
+            @Override
+            public Object run() throws Exception {
+                return JavaObjectCodec.INSTANCE.encode(value);
+            }
+        });
+        bench("encode " + serialized.length + " B, CompactObjectCodec", new Case() {
+            @Override
+            public Object run() throws Exception {
+                return compact.encode(value);
+            }
+        });
+        bench("decode " + serialized.length + " B, plain serialization", new Case() {
+            @Override
+            public Object run() throws Exception {
+                return legacyByteArrayToObject(serialized);
+            }
+        });
+        bench("decode " + serialized.length + " B, JavaObjectCodec", new Case() {
+            @Override
+            public Object run() throws Exception {
+                return JavaObjectCodec.INSTANCE.decode(serialized);
+            }
+        });
+        bench("decode " + compacted.length + " B, CompactObjectCodec", new Case() {
+            @Override
+            public Object run() throws Exception {
+                return compact.decode(compacted);
+            }
+        });
+    }
+
+    /*
+     * the new paths give what the old ones gave, for every length up to
+     * 300 bytes, upper and lower case and an odd trailing digit
+     */
+    static void verify() throws Exception {
+        Random random = new Random(42);
+        for (int n = 0; n <= 300; n++) {
+            byte[] a = new byte[n];
+            random.nextBytes(a);
+            String hex = FileUtils.byteArrayToHex(a);
+            check(hex.equals(legacyByteArrayToHex(a)), "byteArrayToHex", n);
+            check(Arrays.equals(FileUtils.hexToByteArray(hex), a), "hexToByteArray(byteArrayToHex(x))", n);
+            String upper = hex.toUpperCase();
+            check(Arrays.equals(FileUtils.hexToByteArray(upper), a), "hexToByteArray of upper case", n);
+            check(Arrays.equals(FileUtils.hexToByteArray(upper), legacyHexToByteArray(upper)),
+                    "hexToByteArray of upper case against Integer.parseInt", n);
+            // an odd trailing digit is ignored, as the old substring loop did
+            String odd = hex + (n % 2 == 0 ? "7" : "C");
+            check(Arrays.equals(FileUtils.hexToByteArray(odd), a), "hexToByteArray of odd length", n);
+            check(Arrays.equals(FileUtils.hexToByteArray(odd), legacyHexToByteArray(odd)),
+                    "hexToByteArray of odd length against Integer.parseInt", n);
+            check(Arrays.equals(FileUtils.hexToByteArray(odd.toCharArray(), 0, odd.length()), a),
+                    "hexToByteArray(char[]) of odd length", n);
+            if (n > 2) {
+                byte[] slice = Arrays.copyOfRange(a, 1, n - 1);
+                check(FileUtils.byteArrayToHex(a, 1, n - 2).equals(legacyByteArrayToHex(slice)),
+                        "byteArrayToHex of a slice", n);
+                check(FileUtils.byteArrayToHex(ByteBuffer.wrap(a, 1, n - 2)).equals(legacyByteArrayToHex(slice)),
+                        "byteArrayToHex of a ByteBuffer", n);
+            }
+        }
+        for (String bad : new String[]{"0g", "g0", "zz", "0 "}) {
+            boolean failed = false;
+            try {
+                FileUtils.hexToByteArray(bad);
+            } catch (NumberFormatException ex) {
+                failed = true;
+            }
+            check(failed, "NumberFormatException for \"" + bad + "\"", bad.length());
+        }
+        Object value = session(random);
+        byte[] serialized = legacyObjectToByteArray(value);
+        check(Arrays.equals(JavaObjectCodec.INSTANCE.encode(value), serialized),
+                "JavaObjectCodec writes plain serialization", serialized.length);
+        check(value.equals(JavaObjectCodec.INSTANCE.decode(serialized)),
+                "JavaObjectCodec reads plain serialization", serialized.length);
+        check(value.equals(FileUtils.byteArrayToObject(FileUtils.objectToByteArray(value))),
+                "byteArrayToObject(objectToByteArray(x))", serialized.length);
+        check(value.equals(CompactObjectCodec.INSTANCE.decode(CompactObjectCodec.INSTANCE.encode(value))),
+                "CompactObjectCodec round trip", serialized.length);
+        System.out.println("checks passed");
+    }
+
+    private static void check(boolean ok, String what, int length) {
+        if (!ok) {
+            throw new IllegalStateException(what + " differs at length " + length);
+        }
+    }
+
+    private static void bench(String name, Case c) throws Exception {
+        int batch = 1;
+        while (timeBatch(c, batch) < 1000000L) {
+            batch *= 2;
+        }
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round(c, batch);
+        }
+        double[] results = new double[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            results[i] = round(c, batch);
+        }
+        Arrays.sort(results);
+        System.out.println(String.format("%-45s %12.1f ns/op (best %.1f)", name, results[ROUNDS / 2], results[0]));
+    }
+
+    private static double round(Case c, int batch) throws Exception {
+        long ops = 0;
+        long elapsed = 0;
+        while (elapsed < ROUND_NANOS) {
+            elapsed += timeBatch(c, batch);
+            ops += batch;
+        }
+        return (double) elapsed / ops;
+    }
+
+    private static long timeBatch(Case c, int batch) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < batch; i++) {
+            sink = c.run();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /*
+     * a value shaped like a session attribute map
+     */
+    private static Object session(Random random) {
+        HashMap<String, Object> value = new HashMap<>();
+        value.put("userId", random.nextLong());
+        value.put("userName", "user" + random.nextInt(100000));
+        value.put("language", "VN");
+        value.put("loginTime", new java.util.Date(1500000000000L + random.nextInt()));
+        List<String> roles = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            roles.add("ROLE_" + Integer.toHexString(random.nextInt()));
+        }
+        value.put("roles", roles);
+        byte[] token = new byte[256];
+        random.nextBytes(token);
+        value.put("token", legacyByteArrayToHex(token));
+        return value;
+    }
+
+    // FileUtils before the table-driven hex and ObjectCodec
+
+    static String legacyByteArrayToHex(byte[] a) {
+        StringBuilder sb = new StringBuilder(a.length * 2);
+        for (byte b : a) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    static byte[] legacyHexToByteArray(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            int index = i * 2;
+            int v = Integer.parseInt(s.substring(index, index + 2), 16);
+            b[i] = (byte) v;
+        }
+        return b;
+    }
+
+    static byte[] legacyObjectToByteArray(Object obj) throws IOException {
+        byte[] bytes = null;
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(bos);) {
+            oos.writeObject(obj);
+            oos.flush();
+            bytes = bos.toByteArray();
+        }
+        return bytes;
+    }
+
+    static Object legacyByteArrayToObject(byte[] bytes) throws IOException, ClassNotFoundException {
+        Object obj = null;
+        try (
+                ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
+                ObjectInputStream ois = new ObjectInputStream(bis);) {
+            obj = ois.readObject();
+        }
+        return obj;
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.kafka;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+
+/**
+ * Consumer of one topic on its own thread, which polls up to
+ * max.poll.records records at a time.
+ *
+ * Without a listener the records go to a bounded queue read with poll();
+ * when the queue is full the partitions are paused, so the consumer keeps
+ * its group membership while the reader catches up. With a listener each
+ * polled batch is handed to it on the consumer thread. Offsets are
+ * committed manually: for queued records when the reader calls
+ * commit(records) with a batch it has processed, for a listener when it
+ * returns. Commits are gathered and sent by the consumer thread, one per
+ * loop at most. A batch whose listener fails is read again from its first
+ * record.
+ *
+ * When the consumer itself fails it is closed and created again after a
+ * delay doubling up to MAX_RETRY_DELAY. Records polled and not committed
+ * by then are read again, as after a rebalance.
+ */
+public class KafkaBatchConsumer implements AutoCloseable {
+
+    private static final org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(KafkaBatchConsumer.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final long POLL_TIMEOUT = 100;
+    public static final long RETRY_DELAY = 1000;
+    public static final long MAX_RETRY_DELAY = 60000;
+
+    /**
+     * push style consumer, called on the consumer thread with every batch
+     */
+    public interface Listener {
+        void onRecords(List<ConsumerRecord<String, String>> records) throws Exception;
+    }
+
+    private final String topic;
+    private final Properties props;
+    private final Listener listener;
+    private final ArrayBlockingQueue<ConsumerRecord<String, String>> queue;
+    /* polled records waiting for room in the queue, consumer thread only */
+    private final ArrayDeque<ConsumerRecord<String, String>> pending = new ArrayDeque<>();
+    /*
+     * offsets returned by poll() and not committed, by partition; also the
+     * lock of every read from the queue, so records are recorded here in
+     * the order they leave it
+     */
+    private final Map<TopicPartition, TreeSet<Long>> handedOut = new HashMap<>();
+    /* next offset of every partition after the records returned by poll() */
+    private final Map<TopicPartition, Long> delivered = new HashMap<>();
+    /* offsets commit() asked for, sent by the consumer thread */
+    private final ConcurrentHashMap<TopicPartition, Long> toCommit = new ConcurrentHashMap<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final Thread thread;
+    private volatile KafkaConsumer<String, String> consumer;
+    private volatile boolean closed;
+    private boolean paused;
+    private long retryDelay = RETRY_DELAY;
+
+    KafkaBatchConsumer(String topic, Properties props, int capacity, Listener listener) {
+        this.topic = topic;
+        this.listener = listener;
+        this.queue = listener == null ? new ArrayBlockingQueue<ConsumerRecord<String, String>>(Math.max(1, capacity)) : null;
+        this.props = (Properties) props.clone();
+        this.props.put("enable.auto.commit", "false");
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "hh-kafka-" + topic);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Up to max queued records, waiting at most timeout ms for the first
+     */
+    public List<ConsumerRecord<String, String>> poll(int max, long timeout) throws InterruptedException {
+        List<ConsumerRecord<String, String>> records = new ArrayList<>();
+        if (queue == null || max <= 0) {
+            return records;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (handedOut) {
+            long wait = timeout;
+            while (queue.drainTo(records, max) == 0 && wait > 0) {
+                handedOut.wait(wait);
+                wait = deadline - System.currentTimeMillis();
+            }
+            for (ConsumerRecord<String, String> record : records) {
+                TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+                TreeSet<Long> offsets = handedOut.get(partition);
+                if (offsets == null) {
+                    offsets = new TreeSet<>();
+                    handedOut.put(partition, offsets);
+                }
+                offsets.add(record.offset());
+                delivered.put(partition, record.offset() + 1);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Commit records, a batch poll() has returned. A partition is committed
+     * up to its first record still held by another batch, so a batch
+     * processed before an earlier one is committed along with it.
+     */
+    public void commit(List<ConsumerRecord<String, String>> records) {
+        synchronized (handedOut) {
+            Set<TopicPartition> partitions = new HashSet<>();
+            for (ConsumerRecord<String, String> record : records) {
+                TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+                TreeSet<Long> offsets = handedOut.get(partition);
+                // not there once its partition is revoked, the new owner reads it again
+                if (offsets != null && offsets.remove(record.offset())) {
+                    partitions.add(partition);
+                }
+            }
+            for (TopicPartition partition : partitions) {
+                TreeSet<Long> offsets = handedOut.get(partition);
+                advance(toCommit, partition, offsets.isEmpty() ? delivered.get(partition) : offsets.first());
+            }
+        }
+    }
+
+    /**
+     * records polled from the broker and not yet read
+     */
+    public int backlog() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        stopped.countDown();
+        KafkaConsumer<String, String> c = consumer;
+        if (c != null) {
+            c.wakeup();
+        }
+        try {
+            thread.join(10000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void advance(ConcurrentHashMap<TopicPartition, Long> offsets, TopicPartition partition, long offset) {
+        Long old = offsets.putIfAbsent(partition, offset);
+        while (old != null && old < offset && !offsets.replace(partition, old, offset)) {
+            old = offsets.get(partition);
+        }
+    }
+
+    private void loop() {
+        while (!closed) {
+            try {
+                consumer = new KafkaConsumer<>(props);
+                consume();
+            } catch (WakeupException ex) {
+                if (!closed) {
+                    logger.error("Kafka consumer of " + topic + " woken up", ex);
+                }
+            } catch (Exception ex) {
+                logger.error("Kafka consumer of " + topic + " failed, restart in " + retryDelay + " ms", ex);
+            } finally {
+                if (consumer != null) {
+                    try {
+                        sendCommits(true);
+                    } catch (Exception ex) {
+                        logger.error("Error when commit offsets of " + topic, ex);
+                    }
+                    try {
+                        consumer.close();
+                    } catch (Exception ex) {
+                        logger.error("Error when close Kafka consumer of " + topic, ex);
+                    }
+                    consumer = null;
+                }
+            }
+            if (!closed) {
+                restart();
+            }
+        }
+    }
+
+    /*
+     * wait before the consumer is created again and drop what the failed one
+     * left, its uncommitted records come again from the committed offsets
+     */
+    private void restart() {
+        try {
+            stopped.await(retryDelay, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            closed = true;
+            return;
+        }
+        retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+        pending.clear();
+        paused = false;
+        toCommit.clear();
+        if (queue != null) {
+            synchronized (handedOut) {
+                queue.clear();
+                handedOut.clear();
+                delivered.clear();
+            }
+        }
+    }
+
+    private void consume() throws InterruptedException {
+        consumer.subscribe(Arrays.asList(topic), new ConsumerRebalanceListener() {
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                revoke(partitions);
+            }
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            }
+        });
+        while (!closed) {
+            sendCommits(false);
+            if (listener != null) {
+                ConsumerRecords<String, String> records = consumer.poll(POLL_TIMEOUT);
+                retryDelay = RETRY_DELAY;
+                dispatch(records);
+            } else {
+                enqueue();
+                ConsumerRecords<String, String> records = consumer.poll(POLL_TIMEOUT);
+                retryDelay = RETRY_DELAY;
+                for (ConsumerRecord<String, String> record : records) {
+                    pending.add(record);
+                }
+                enqueue();
+            }
+        }
+    }
+
+    /*
+     * move pending records to the queue, pausing the partitions while it is
+     * full
+     */
+    private void enqueue() {
+        boolean added = false;
+        while (!pending.isEmpty() && queue.offer(pending.peek())) {
+            pending.poll();
+            added = true;
+        }
+        if (added) {
+            synchronized (handedOut) {
+                handedOut.notifyAll();
+            }
+        }
+        if (!pending.isEmpty()) {
+            // again after a rebalance assigned new partitions
+            consumer.pause(consumer.assignment());
+            paused = true;
+        } else if (paused) {
+            consumer.resume(consumer.paused());
+            paused = false;
+        }
+    }
+
+    private void dispatch(ConsumerRecords<String, String> records) throws InterruptedException {
+        if (records.isEmpty()) {
+            return;
+        }
+        List<ConsumerRecord<String, String>> batch = new ArrayList<>(records.count());
+        Map<TopicPartition, Long> first = new HashMap<>();
+        Map<TopicPartition, Long> next = new HashMap<>();
+        for (ConsumerRecord<String, String> record : records) {
+            batch.add(record);
+            TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+            if (!first.containsKey(partition)) {
+                first.put(partition, record.offset());
+            }
+            next.put(partition, record.offset() + 1);
+        }
+        try {
+            listener.onRecords(batch);
+        } catch (Exception ex) {
+            logger.error("Error when process records of " + topic + ", they are read again", ex);
+            for (Map.Entry<TopicPartition, Long> entry : first.entrySet()) {
+                consumer.seek(entry.getKey(), entry.getValue());
+            }
+            Thread.sleep(RETRY_DELAY);
+            return;
+        }
+        for (Map.Entry<TopicPartition, Long> entry : next.entrySet()) {
+            advance(toCommit, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void sendCommits(boolean sync) {
+        if (toCommit.isEmpty()) {
+            return;
+        }
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        Iterator<Map.Entry<TopicPartition, Long>> it = toCommit.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<TopicPartition, Long> entry = it.next();
+            offsets.put(entry.getKey(), new OffsetAndMetadata(entry.getValue()));
+            it.remove();
+        }
+        if (sync) {
+            consumer.commitSync(offsets);
+        } else {
+            consumer.commitAsync(offsets, new OffsetCommitCallback() {
+                @Override
+                public void onComplete(Map<TopicPartition, OffsetAndMetadata> offsets, Exception ex) {
+                    if (ex != null) {
+                        logger.error("Error when commit offsets of " + topic, ex);
+                    }
+                }
+            });
+        }
+    }
+
+    /*
+     * the partitions go to another consumer: commit what was processed and
+     * drop their records nobody has read, the new owner reads them again
+     */
+    private void revoke(Collection<TopicPartition> partitions) {
+        try {
+            sendCommits(true);
+        } catch (Exception ex) {
+            logger.error("Error when commit offsets of " + topic, ex);
+        }
+        if (queue == null) {
+            return;
+        }
+        Iterator<ConsumerRecord<String, String>> it = pending.iterator();
+        while (it.hasNext()) {
+            ConsumerRecord<String, String> record = it.next();
+            if (partitions.contains(new TopicPartition(record.topic(), record.partition()))) {
+                it.remove();
+            }
+        }
+        synchronized (handedOut) {
+            Iterator<ConsumerRecord<String, String>> queued = queue.iterator();
+            while (queued.hasNext()) {
+                ConsumerRecord<String, String> record = queued.next();
+                if (partitions.contains(new TopicPartition(record.topic(), record.partition()))) {
+                    queued.remove();
+                }
+            }
+            for (TopicPartition partition : partitions) {
+                handedOut.remove(partition);
+                delivered.remove(partition);
+            }
+        }
+    }
+}
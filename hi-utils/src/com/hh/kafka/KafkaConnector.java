@@ -7,16 +7,20 @@ package com.hh.kafka;
 
 import com.google.gson.Gson;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
-import org.apache.kafka.clients.consumer.ConsumerRecords;
-import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.log4j.Level;
 
 /**
@@ -26,12 +30,54 @@ import org.apache.log4j.Level;
 public class KafkaConnector {
 
     public static final org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(KafkaConnector.class);
-    private KafkaProducer producer;
-    private HashMap<String, KafkaConsumer> consumerMin = new HashMap();
-    private HashMap<String, KafkaConsumer> consumerMax = new HashMap();
+    private static final Gson gson = new Gson();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private KafkaProducer<String, byte[]> producer;
+    /* every log.sample.rate-th message is logged at info level, 0 for none */
+    private int logSampleRate;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong acked = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile String lastError;
+    private final Callback delivery = new Callback() {
+        @Override
+        public void onCompletion(RecordMetadata metadata, Exception ex) {
+            if (ex == null) {
+                acked.incrementAndGet();
+                return;
+            }
+            long n = failed.incrementAndGet();
+            lastError = ex.toString();
+            // the first failure and then one in a thousand
+            if (n % 1000 == 1) {
+                logger.error("Kafka send failed (" + n + " failures)", ex);
+            }
+        }
+    };
+    private final ConcurrentHashMap<String, KafkaBatchConsumer> consumers = new ConcurrentHashMap<>();
+    private final List<KafkaBatchConsumer> listeners = new CopyOnWriteArrayList<>();
     private Properties consumerProps = new Properties();
+    private int queueCapacity = KafkaBatchConsumer.DEFAULT_QUEUE_CAPACITY;
 
     public KafkaConnector(String brokerConnect, String userName, String password) {
+        this(brokerConnect, userName, password, new Properties());
+    }
+
+    public KafkaConnector(String brokerConnect, String userName, String password, Properties consumerConfig) {
+        this(brokerConnect, userName, password, new Properties(), consumerConfig);
+    }
+
+    /**
+     * producerConfig overrides the producer settings (linger.ms,
+     * batch.size, compression.type, acks, enable.idempotence...);
+     * log.sample.rate logs one sent message in that many at info level.
+     * consumerConfig overrides the consumer settings (max.poll.records,
+     * fetch.min.bytes, fetch.max.wait.ms, max.partition.fetch.bytes...);
+     * queue.capacity is the number of records polled ahead for pop.
+     */
+    public KafkaConnector(String brokerConnect, String userName, String password,
+            Properties producerConfig, Properties consumerConfig) {
         org.apache.log4j.Logger.getLogger("kafka").setLevel(Level.ERROR);
 
         Properties kafkaProps = new Properties();
@@ -44,8 +90,25 @@ public class KafkaConnector {
 
         // for producer
         Properties pp = (Properties) kafkaProps.clone();
+        pp.remove("enable.auto.commit");
+        pp.remove("auto.commit.interval.ms");
         pp.put("key.serializer", org.apache.kafka.common.serialization.StringSerializer.class.getName());
-        pp.put("value.serializer", org.apache.kafka.common.serialization.StringSerializer.class.getName());
+        // values are sent as the bytes of their json, what StringSerializer wrote
+        pp.put("value.serializer", org.apache.kafka.common.serialization.ByteArraySerializer.class.getName());
+        pp.put("linger.ms", "5");
+        pp.put("batch.size", "65536");
+        pp.put("compression.type", "lz4");
+        for (String key : producerConfig.stringPropertyNames()) {
+            if (key.equals("log.sample.rate")) {
+                logSampleRate = Integer.parseInt(producerConfig.getProperty(key).trim());
+            } else {
+                pp.put(key, producerConfig.getProperty(key));
+            }
+        }
+        if ("true".equals(pp.getProperty("enable.idempotence"))) {
+            // required by the idempotent producer
+            pp.put("acks", "all");
+        }
         producer = new KafkaProducer<>(pp);
 
         // for consumer
@@ -55,77 +118,131 @@ public class KafkaConnector {
         cp.put("auto.offset.reset", "earliest");
 
         consumerProps = (Properties) cp.clone();
-        consumerProps.put("max.poll.records", "1");
-
+        consumerProps.put("max.poll.records", "500");
+        consumerProps.put("fetch.min.bytes", "1");
+        consumerProps.put("fetch.max.wait.ms", "500");
+        for (String key : consumerConfig.stringPropertyNames()) {
+            if (key.equals("queue.capacity")) {
+                queueCapacity = Integer.parseInt(consumerConfig.getProperty(key).trim());
+            } else {
+                consumerProps.put(key, consumerConfig.getProperty(key));
+            }
+        }
     }
 
     public void putList(String topic, List lstData) {
-        StringBuilder content = new StringBuilder();
-        content.append("\n");
-        content.append("------------------- PUT TO KAFKA ------------------- \n");
         for (int i = 0; i < lstData.size(); i++) {
-            Gson gson = new Gson();
-            String json = gson.toJson(lstData.get(i));
-            content.append("        Put");
-            content.append(i + 1);
-            content.append(" : ");
-            content.append(json);
-            content.append("\n");
-            producer.send(new ProducerRecord(topic, json));
+            putBytes(topic, null, gson.toJson(lstData.get(i)).getBytes(UTF_8));
         }
-        content.append("---------------------------------------------------- \n");
-        logger.info(content);
     }
 
     public void put(String topic, HashMap message) {
-        StringBuilder content = new StringBuilder();
-        content.append("\n");
-        content.append("------------------- PUT TO KAFKA ------------------- \n");
-        Gson gson = new Gson();
-        String json = gson.toJson(message);
-        content.append("        Put message : ");
-        content.append(json);
-        content.append("\n");
-        producer.send(new ProducerRecord(topic, json));
-        content.append("---------------------------------------------------- \n");
-        logger.info(content);
+        putBytes(topic, null, gson.toJson(message).getBytes(UTF_8));
     }
 
-    public List pop(String topic, int size) {
-        List lstData = new ArrayList();
-        if (consumerMin.get(topic) == null) {
-            consumerProps.put("group.id", topic + "_group");
-            KafkaConsumer kc = new KafkaConsumer(consumerProps);
-            kc.subscribe(Arrays.asList(topic));
-            consumerMin.put(topic, kc);
+    /**
+     * Send value as it is, without json conversion. The send is
+     * asynchronous; failures are counted in getProducerStats.
+     */
+    public void putBytes(String topic, String key, byte[] value) {
+        long n = sent.incrementAndGet();
+        sentBytes.addAndGet(value.length);
+        if (logger.isDebugEnabled()) {
+            logger.debug("PUT TO KAFKA " + topic + " : " + new String(value, UTF_8));
+        } else if (logSampleRate > 0 && n % logSampleRate == 0) {
+            logger.info("PUT TO KAFKA " + topic + " (" + n + " sent) : " + new String(value, UTF_8));
         }
-        for (int i = 0; i < size; i++) {
-            ConsumerRecords records;
-            synchronized (consumerMin.get(topic)) {
-                records = consumerMin.get(topic).poll(100);
-            }
-            for (ConsumerRecord record : (Iterable<ConsumerRecord>) records) {
-                lstData.add(record);
-                break;
-            }
+        producer.send(new ProducerRecord<>(topic, key, value), delivery);
+    }
+
+    /**
+     * Wait until every message sent so far has been acknowledged or failed
+     */
+    public void flush() {
+        producer.flush();
+    }
+
+    /**
+     * Messages and bytes sent, acknowledged and failed, with the last error
+     */
+    public Map<String, Object> getProducerStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sent", sent.get());
+        stats.put("sent-bytes", sentBytes.get());
+        stats.put("acked", acked.get());
+        stats.put("failed", failed.get());
+        stats.put("in-flight", sent.get() - acked.get() - failed.get());
+        stats.put("last-error", lastError);
+        return stats;
+    }
+
+    /**
+     * Up to size records of topic, waiting at most 100 ms when none is
+     * queued. Their offsets are committed once they are returned.
+     */
+    public List pop(String topic, int size) {
+        List<ConsumerRecord<String, String>> lstData = popBatch(topic, size, KafkaBatchConsumer.POLL_TIMEOUT);
+        commit(topic, lstData);
+        return lstData;
+    }
+
+    /**
+     * Up to size records of topic, waiting at most timeout ms when none is
+     * queued. Nothing is committed until commit(topic, records) is called
+     * with them, so the records are read again after a crash before it.
+     */
+    public List<ConsumerRecord<String, String>> popBatch(String topic, int size, long timeout) {
+        try {
+            return getConsumer(topic).poll(size, timeout);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<>();
         }
-        if (lstData.size() == (size - 1)) {
-            ConsumerRecords records;
-            synchronized (consumerMin.get(topic)) {
-                records = consumerMin.get(topic).poll(100);
-            }
-            for (ConsumerRecord record : (Iterable<ConsumerRecord>) records) {
-                lstData.add(record);
-                break;
+    }
+
+    /**
+     * Commit records, a batch popBatch has returned for topic; batches
+     * other callers still hold are not committed with it
+     */
+    public void commit(String topic, List<ConsumerRecord<String, String>> records) {
+        getConsumer(topic).commit(records);
+    }
+
+    /**
+     * Hand every batch of records of topic to listener on a consumer thread
+     * of its own; offsets are committed when it returns.
+     */
+    public void subscribe(String topic, KafkaBatchConsumer.Listener listener) {
+        listeners.add(new KafkaBatchConsumer(topic, groupProps(topic), 0, listener));
+    }
+
+    private KafkaBatchConsumer getConsumer(String topic) {
+        KafkaBatchConsumer consumer = consumers.get(topic);
+        if (consumer == null) {
+            synchronized (consumers) {
+                consumer = consumers.get(topic);
+                if (consumer == null) {
+                    consumer = new KafkaBatchConsumer(topic, groupProps(topic), queueCapacity, null);
+                    consumers.put(topic, consumer);
+                }
             }
         }
-        return lstData;
+        return consumer;
+    }
+
+    private Properties groupProps(String topic) {
+        Properties props = (Properties) consumerProps.clone();
+        props.put("group.id", topic + "_group");
+        return props;
     }
 
     public void stop() {
         producer.close();
-        for (Map.Entry<String, KafkaConsumer> entry : consumerMin.entrySet()) {
+        for (Map.Entry<String, KafkaBatchConsumer> entry : consumers.entrySet()) {
             entry.getValue().close();
         }
+        for (KafkaBatchConsumer consumer : listeners) {
+            consumer.close();
+        }
     }
 }
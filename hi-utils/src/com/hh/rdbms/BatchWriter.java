@@ -0,0 +1,447 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.rdbms;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write a large batch of rows with one statement in chunks instead of one
+ * executeBatch for the whole list.
+ *
+ * Rows are sent every batchSize rows, so the driver's batch does not grow
+ * with the list, and by default committed once at the end: a failed write
+ * rolls back every row. The setter of each column is resolved once from
+ * its first non null value instead of testing the type of every parameter.
+ *
+ * A caller that can live with a partial write may opt in to commitSize,
+ * a commit every that many rows, and then to parallelism, the commit
+ * units shared by that many workers each on its own pooled connection.
+ * A failed write then stops all workers and rolls back the unit in
+ * progress; the units already committed stay in the table.
+ */
+public class BatchWriter {
+
+    private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(BatchWriter.class.getSimpleName());
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private static final ThreadPoolExecutor workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "hh-batch-writer-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final String query;
+    private final ConnectionSource source;
+    private final Connection connection;
+    private final boolean nationalString;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int commitSize;
+    private int parallelism = 1;
+
+    BatchWriter(String query, String jdbcURL, ConnectionSource source) {
+        this(query, jdbcURL, source, null);
+    }
+
+    /**
+     * write on connection, which the caller closes; no parallel workers
+     */
+    BatchWriter(String query, String jdbcURL, Connection connection) {
+        this(query, jdbcURL, null, connection);
+    }
+
+    private BatchWriter(String query, String jdbcURL, ConnectionSource source, Connection connection) {
+        this.query = query;
+        this.source = source;
+        this.connection = connection;
+        // strings go as NVARCHAR except on Oracle, as setPreparedStatement does
+        this.nationalString = jdbcURL == null || !jdbcURL.toLowerCase().contains("oracle");
+    }
+
+    /**
+     * rows sent to the database in one executeBatch
+     */
+    public BatchWriter batchSize(int rows) {
+        if (rows > 0) {
+            batchSize = rows;
+        }
+        return this;
+    }
+
+    /**
+     * rows committed in one transaction, rounded up to whole batches;
+     * 0, the default, commits all rows at once
+     */
+    public BatchWriter commitSize(int rows) {
+        if (rows >= 0) {
+            commitSize = rows;
+        }
+        return this;
+    }
+
+    /**
+     * number of connections writing at the same time, used only with a
+     * commitSize. Rows of different commit units are then written in no
+     * particular order.
+     */
+    public BatchWriter parallelism(int workers) {
+        if (workers > 0) {
+            parallelism = workers;
+        }
+        return this;
+    }
+
+    /**
+     * Write every row, a row is the list of parameters of the statement.
+     * Returns the number of rows written.
+     */
+    public long write(List<List> rows) throws SQLException {
+        if (rows == null || rows.isEmpty()) {
+            return 0;
+        }
+        int unit = commitSize == 0 ? rows.size()
+                : Math.max(batchSize, (commitSize + batchSize - 1) / batchSize * batchSize);
+        int units = (rows.size() + unit - 1) / unit;
+        Column[] columns = resolve(rows);
+        if (connection != null) {
+            return new Worker(rows, columns, unit, units, null).run(connection);
+        }
+        int n = commitSize == 0 ? 1 : Math.min(parallelism, units);
+        if (n <= 1) {
+            return new Worker(rows, columns, unit, units, null).run();
+        }
+        Progress progress = new Progress();
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int i = 1; i < n; i++) {
+            final Worker worker = new Worker(rows, columns, unit, units, progress);
+            futures.add(workers.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws SQLException {
+                    return worker.run();
+                }
+            }));
+        }
+        long written = 0;
+        SQLException error = null;
+        try {
+            written = new Worker(rows, columns, unit, units, progress).run();
+        } catch (SQLException ex) {
+            error = ex;
+        } catch (RuntimeException ex) {
+            error = new SQLException(ex);
+        }
+        for (Future<Long> future : futures) {
+            try {
+                written += future.get();
+            } catch (ExecutionException ex) {
+                if (error == null) {
+                    error = ex.getCause() instanceof SQLException ? (SQLException) ex.getCause()
+                            : new SQLException(ex.getCause());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                progress.failed = true;
+                if (error == null) {
+                    error = new SQLException("Interrupted while writing batch", ex);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return written;
+    }
+
+    /*
+     * the setter of every column from its first non null value; a column
+     * without any is bound as NULL
+     */
+    private Column[] resolve(List<List> rows) {
+        int count = 0;
+        for (List row : rows) {
+            count = Math.max(count, row.size());
+        }
+        Column[] columns = new Column[count];
+        int unresolved = count;
+        for (int r = 0; r < rows.size() && unresolved > 0; r++) {
+            List row = rows.get(r);
+            for (int i = 0; i < row.size(); i++) {
+                Object value = row.get(i);
+                if (columns[i] == null && value != null) {
+                    columns[i] = new Column(value.getClass(), Binder.of(value, nationalString));
+                    unresolved--;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (columns[i] == null) {
+                columns[i] = new Column(null, Binder.OBJECT);
+            }
+        }
+        return columns;
+    }
+
+    private void bind(PreparedStatement ps, List row, Column[] columns) throws SQLException {
+        for (int i = 0; i < row.size(); i++) {
+            Object value = row.get(i);
+            Column column = columns[i];
+            if (value == null) {
+                ps.setNull(i + 1, column.binder.sqlType);
+            } else if (value.getClass() == column.type) {
+                column.binder.bind(ps, i + 1, value);
+            } else {
+                // a value of another type than the rest of its column
+                Binder.of(value, nationalString).bind(ps, i + 1, value);
+            }
+        }
+    }
+
+    private static class Column {
+        final Class<?> type;
+        final Binder binder;
+
+        Column(Class<?> type, Binder binder) {
+            this.type = type;
+            this.binder = binder;
+        }
+    }
+
+    private static class Progress {
+        final AtomicInteger next = new AtomicInteger();
+        volatile boolean failed;
+    }
+
+    /*
+     * writes commit units on one connection, all of them or, with a shared
+     * Progress, the next ones nobody has taken
+     */
+    private class Worker {
+        private final List<List> rows;
+        private final Column[] columns;
+        private final int unit;
+        private final int units;
+        private final Progress progress;
+        private int taken;
+
+        Worker(List<List> rows, Column[] columns, int unit, int units, Progress progress) {
+            this.rows = rows;
+            this.columns = columns;
+            this.unit = unit;
+            this.units = units;
+            this.progress = progress;
+        }
+
+        private int nextUnit() {
+            if (progress == null) {
+                return taken < units ? taken++ : -1;
+            }
+            int i = progress.next.getAndIncrement();
+            return i < units && !progress.failed ? i : -1;
+        }
+
+        long run() throws SQLException {
+            Connection c = source.getConnection();
+            try {
+                return run(c);
+            } finally {
+                c.close();
+            }
+        }
+
+        long run(Connection c) throws SQLException {
+            boolean autoCommit = c.getAutoCommit();
+            long written = 0;
+            try {
+                c.setAutoCommit(false);
+                try (PreparedStatement ps = c.prepareStatement(query)) {
+                    int u;
+                    while ((u = nextUnit()) >= 0) {
+                        int end = Math.min(rows.size(), (u + 1) * unit);
+                        int pending = 0;
+                        for (int r = u * unit; r < end; r++) {
+                            bind(ps, rows.get(r), columns);
+                            ps.addBatch();
+                            if (++pending == batchSize) {
+                                ps.executeBatch();
+                                pending = 0;
+                            }
+                        }
+                        if (pending > 0) {
+                            ps.executeBatch();
+                        }
+                        c.commit();
+                        written += end - u * unit;
+                    }
+                }
+            } catch (SQLException | RuntimeException ex) {
+                if (progress != null) {
+                    progress.failed = true;
+                }
+                try {
+                    c.rollback();
+                } catch (SQLException rollback) {
+                    log.debug("Rollback of batch failed", rollback);
+                }
+                throw ex;
+            } finally {
+                try {
+                    c.setAutoCommit(autoCommit);
+                } catch (SQLException ex) {
+                    log.debug("Can not restore auto commit", ex);
+                }
+            }
+            return written;
+        }
+    }
+
+    /*
+     * typed setters, in the order setPreparedStatement tests the types
+     */
+    private enum Binder {
+        INTEGER(Types.INTEGER) {
+            @Override
+            void bind(PreparedStatement ps, int i, Object value) throws SQLException {
+                ps.setInt(i, (Integer) value);
+            }
+        },
+        LONG(Types.BIGINT) {
+            @Override
+            void bind(PreparedStatement ps, int i, Object value) throws SQLException {
+                ps.setLong(i, (Long) value);
+            }
+        },
+        BOOLEAN(Types.BOOLEAN) {
+            @Override
+            void bind(PreparedStatement ps, int i, Object value) throws SQLException {
+                ps.setBoolean(i, (Boolean) value);
+            }
+        },
+        FLOAT(Types.REAL) {
+            @Override
+            void bind(PreparedStatement ps, int i, Object value) throws SQLException {
+                ps.setFloat(i, (Float) value);
+            }
+        },
+        DOUBLE(Types.DOUBLE) {
+            @Override
+            void bind(PreparedStatement ps, int i, Object value) throws SQLException {
+                ps.setDouble(i, (Double) value);
+            }
+        },
+        SHORT(Types.SMALLINT) {
+            @Override
+            void bind(PreparedStatement ps, int i, Object value) throws SQLException {
+                ps.setShort(i, (Short) value);
+            }
+        },
+        STRING(Types.VARCHAR) {
+            @Override
+            void bind(PreparedStatement ps, int i, Object value) throws SQLException {
+                ps.setString(i, (String) value);
+            }
+        },
+        NSTRING(Types.NVARCHAR) {
+            @Override
+            void bind(PreparedStatement ps, int i, Object value) throws SQLException {
+                ps.setNString(i, (String) value);
+            }
+        },
+        DATE(Types.DATE) {
+            @Override
+            void bind(PreparedStatement ps, int i, Object value) throws SQLException {
+                ps.setDate(i, (java.sql.Date) value);
+            }
+        },
+        TIMESTAMP(Types.TIMESTAMP) {
+            @Override
+            void bind(PreparedStatement ps, int i, Object value) throws SQLException {
+                ps.setTimestamp(i, new Timestamp(((java.util.Date) value).getTime()));
+            }
+        },
+        DECIMAL(Types.DECIMAL) {
+            @Override
+            void bind(PreparedStatement ps, int i, Object value) throws SQLException {
+                ps.setBigDecimal(i, (BigDecimal) value);
+            }
+        },
+        OBJECT(Types.NULL) {
+            @Override
+            void bind(PreparedStatement ps, int i, Object value) throws SQLException {
+                ps.setObject(i, value);
+            }
+        };
+
+        final int sqlType;
+
+        Binder(int sqlType) {
+            this.sqlType = sqlType;
+        }
+
+        abstract void bind(PreparedStatement ps, int i, Object value) throws SQLException;
+
+        static Binder of(Object value, boolean nationalString) {
+            if (value instanceof Integer) {
+                return INTEGER;
+            } else if (value instanceof Long) {
+                return LONG;
+            } else if (value instanceof Boolean) {
+                return BOOLEAN;
+            } else if (value instanceof Float) {
+                return FLOAT;
+            } else if (value instanceof Double) {
+                return DOUBLE;
+            } else if (value instanceof Short) {
+                return SHORT;
+            } else if (value instanceof String) {
+                return nationalString ? NSTRING : STRING;
+            } else if (value instanceof java.sql.Date) {
+                return DATE;
+            } else if (value instanceof java.util.Date) {
+                return TIMESTAMP;
+            } else if (value instanceof BigDecimal) {
+                return DECIMAL;
+            }
+            return OBJECT;
+        }
+    }
+
+    /**
+     * jdbcURL with the vendor's batch fast path turned on: MySQL
+     * Connector/J sends a batch as one multi-row statement only with
+     * rewriteBatchedStatements, which is added unless the url sets it.
+     */
+    static String batchUrl(String jdbcURL) {
+        if (jdbcURL == null) {
+            return null;
+        }
+        String url = jdbcURL.toLowerCase();
+        if (!url.startsWith("jdbc:mysql") || url.contains("rewritebatchedstatements")) {
+            return jdbcURL;
+        }
+        return jdbcURL + (jdbcURL.contains("?") ? "&" : "?") + "rewriteBatchedStatements=true";
+    }
+}
@@ -20,6 +20,7 @@ import com.hh.util.FileUtils;
 import java.io.FileInputStream;
 import java.sql.Statement;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class C3p0Connector {
     private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(C3p0Connector.class.getSimpleName());
@@ -34,6 +35,14 @@ public class C3p0Connector {
     public String acquireIncrement = "";
     public String maxPoolSize = "";
     public String maxStatements = "";    
+    /* pooled connections for BatchWriter workers and sequence refills */
+    private final ConnectionSource connections = new ConnectionSource() {
+        @Override
+        public Connection getConnection() throws SQLException {
+            return C3p0Connector.this.getConnection();
+        }
+    };
+    private final ConcurrentHashMap<String, SequenceAllocator> sequences = new ConcurrentHashMap<>();
     
     public C3p0Connector(String configPath) {
         DATABASE_CONFIG_PATH = configPath;
@@ -93,7 +102,8 @@ public class C3p0Connector {
             
             cpds = new ComboPooledDataSource();
             cpds.setDriverClass(driverClass); //loads the jdbc driver
-            cpds.setJdbcUrl(jdbcURL);
+            // batch fast path of the driver (rewriteBatchedStatements on MySQL)
+            cpds.setJdbcUrl(BatchWriter.batchUrl(jdbcURL));
             cpds.setUser(user);
             cpds.setPassword(password);
 
@@ -145,11 +155,15 @@ public class C3p0Connector {
             if(rs != null) {
                 ResultSetMetaData rsMetaData = rs.getMetaData();
                 int columnCount = rsMetaData.getColumnCount();
+                // labels are read once, not for every cell
+                String[] labels = new String[columnCount + 1];
+                for (int i = 1; i <= columnCount; ++i) {
+                    labels[i] = rsMetaData.getColumnLabel(i).toLowerCase();
+                }
                 while(rs.next()) {
-                    Map row = new HashMap();
+                    Map row = new HashMap(columnCount * 2);
                     for (int i = 1; i <= columnCount; ++i) {
-                        Object obj = rs.getObject(i);
-                        row.put(rsMetaData.getColumnLabel(i).toLowerCase(), obj);
+                        row.put(labels[i], rs.getObject(i));
                     }
                     lstResult.add(row);
                 }
@@ -313,11 +327,15 @@ public class C3p0Connector {
             if(rs != null) {
                 ResultSetMetaData rsMetaData = rs.getMetaData();
                 int columnCount = rsMetaData.getColumnCount();
+                // labels are read once, not for every cell
+                String[] labels = new String[columnCount + 1];
+                for (int i = 1; i <= columnCount; ++i) {
+                    labels[i] = rsMetaData.getColumnLabel(i).toLowerCase();
+                }
                 while (rs.next()) {
-                    Map row = new HashMap();
+                    Map row = new HashMap(columnCount * 2);
                     for (int i = 1; i <= columnCount; ++i) {
-                        Object obj = rs.getObject(i);
-                        row.put(rsMetaData.getColumnLabel(i).toLowerCase(), obj);
+                        row.put(labels[i], rs.getObject(i));
                     }
                     lstResult.add(row);
                 }
@@ -452,6 +470,87 @@ public class C3p0Connector {
         }
     }
 
+    /**
+     * Hàm đọc dữ liệu theo từng bản ghi: mỗi bản ghi được chuyển cho handler
+     * rồi bỏ đi, không nạp cả kết quả vào bộ nhớ
+     *
+     * @param query Câu lệnh truy vấn dữ liệu
+     * @param lstParameter Tham số truyền vào câu lệnh, null nếu không có
+     * @param fetchSize Số lượng bản ghi trong cache
+     * @param handler nhận từng bản ghi (Row được dùng lại cho bản ghi sau)
+     * @return Số bản ghi đã đọc
+     */
+    public long queryRows(String query, List lstParameter, int fetchSize, RowHandler handler) throws SQLException {
+        Connection connection = null;
+        try {
+            connection = getConnection();
+            return queryRows(query, lstParameter, connection, fetchSize, handler);
+        } finally {
+            if (connection != null) {
+                connection.close();
+                connection = null;
+            }
+        }
+    }
+
+    public long queryRows(String query, List lstParameter, RowHandler handler) throws SQLException {
+        return queryRows(query, lstParameter, 0, handler);
+    }
+
+    public long queryRows(String query, List lstParameter, Connection connection, int fetchSize, RowHandler handler) throws SQLException {
+        try (PreparedStatement preparedStatement = prepareStreaming(query, lstParameter, connection, fetchSize)) {
+            return RowCursor.forEach(preparedStatement, handler);
+        }
+    }
+
+    /**
+     * Hàm mở con trỏ đọc dữ liệu theo từng bản ghi. Con trỏ giữ kết nối tới
+     * khi đóng, dùng trong try-with-resources
+     *
+     * @param query Câu lệnh truy vấn dữ liệu
+     * @param lstParameter Tham số truyền vào câu lệnh, null nếu không có
+     * @param fetchSize Số lượng bản ghi trong cache
+     * @param mapper chuyển mỗi bản ghi thành đối tượng trả về
+     * @return Con trỏ tới các bản ghi
+     */
+    public <T> RowCursor<T> openCursor(String query, List lstParameter, int fetchSize, RowMapper<T> mapper) throws SQLException {
+        Connection connection = getConnection();
+        PreparedStatement preparedStatement;
+        try {
+            preparedStatement = prepareStreaming(query, lstParameter, connection, fetchSize);
+        } catch (SQLException | RuntimeException ex) {
+            connection.close();
+            throw ex;
+        }
+        return new RowCursor<>(connection, preparedStatement, mapper);
+    }
+
+    public RowCursor<Row> openCursor(String query, List lstParameter, int fetchSize) throws SQLException {
+        return openCursor(query, lstParameter, fetchSize, RowCursor.rows());
+    }
+
+    /**
+     * Con trỏ trên kết nối của người gọi, kết nối không bị đóng cùng con trỏ
+     */
+    public <T> RowCursor<T> openCursor(String query, List lstParameter, Connection connection, int fetchSize, RowMapper<T> mapper) throws SQLException {
+        return new RowCursor<>(null, prepareStreaming(query, lstParameter, connection, fetchSize), mapper);
+    }
+
+    private PreparedStatement prepareStreaming(String query, List lstParameter, Connection connection, int fetchSize) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(query,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            preparedStatement.setFetchSize(RowCursor.fetchSize(jdbcURL, fetchSize));
+            if (lstParameter != null) {
+                setPreparedStatement(preparedStatement, lstParameter);
+            }
+            return preparedStatement;
+        } catch (SQLException | RuntimeException ex) {
+            preparedStatement.close();
+            throw ex;
+        }
+    }
+
     /**
      * Hàm cập nhật cơ sở dữ liệu
      *
@@ -625,27 +724,20 @@ public class C3p0Connector {
     }
     
     /**
-     * Hàm cập nhật cơ sở dữ liệu
+     * Hàm cập nhật cơ sở dữ liệu. Lô dữ liệu được gửi theo từng phần
+     * và commit một lần khi ghi xong, lỗi thì rollback toàn bộ, xem BatchWriter
      *
      * @since 13/03/2014 HienDM
      * @param query Câu lệnh cập nhật dữ liệu trong cassandra
      * @param lstBatch Tham số truyền vào câu lệnh
      */
     public void executeQueryBatch(String query, List<List> lstBatch) throws SQLException {
-        Connection connection = null;
-        try {
-            connection = getConnection();
-            executeQueryBatch(query, lstBatch, connection);
-        } finally {
-            if (connection != null) {
-                connection.close();
-                connection = null;
-            }
-        }
+        batchWriter(query).write(lstBatch);
     }
     
     /**
-     * Hàm cập nhật cơ sở dữ liệu
+     * Hàm cập nhật cơ sở dữ liệu. Lô dữ liệu được gửi theo từng phần
+     * và commit một lần khi ghi xong, lỗi thì rollback toàn bộ, xem BatchWriter
      *
      * @since 13/03/2014 HienDM
      * @param query Câu lệnh cập nhật dữ liệu trong cassandra
@@ -653,55 +745,54 @@ public class C3p0Connector {
      * @param connection kết nối tới cơ sở dữ liệu
      */
     public void executeQueryBatch(String query, List<List> lstBatch, Connection connection) throws SQLException {
-        PreparedStatement preparedStatement = null;
-        try {
-            connection.setAutoCommit(false);
-            preparedStatement = connection.prepareStatement(query);
-            for (int k = 0; k < lstBatch.size(); k++) {
-                List<List> lstParameter = lstBatch.get(k);
-                preparedStatement = setPreparedStatement(preparedStatement, lstParameter);
-                preparedStatement.addBatch();
-            }
-            preparedStatement.executeBatch();
-            connection.commit();
-        } finally {
-            if (preparedStatement != null) {
-                preparedStatement.close();
-            }
-        }
+        batchWriter(query, connection).write(lstBatch);
     }
 
     /**
-     * Hàm lấy dữ liệu sequence
+     * Hàm tạo bộ ghi dữ liệu theo lô, chia lô lớn thành các phần nhỏ.
+     * Mặc định commit một lần; commitSize, parallelism do nơi gọi chọn
+     *
+     * @param query Câu lệnh cập nhật dữ liệu
+     * @return Bộ ghi dữ liệu, mỗi luồng ghi lấy một kết nối từ pool
+     */
+    public BatchWriter batchWriter(String query) {
+        return configure(new BatchWriter(query, jdbcURL, connections));
+    }
+
+    /**
+     * Hàm tạo bộ ghi dữ liệu theo lô trên một kết nối
+     *
+     * @param query Câu lệnh cập nhật dữ liệu
+     * @param connection kết nối tới cơ sở dữ liệu
+     * @return Bộ ghi dữ liệu
+     */
+    public BatchWriter batchWriter(String query, Connection connection) {
+        return configure(new BatchWriter(query, jdbcURL, connection));
+    }
+
+    private BatchWriter configure(BatchWriter writer) {
+        return writer.batchSize(BatchWriter.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Hàm lấy dữ liệu sequence. Giá trị được lấy trước theo từng khối,
+     * xem SequenceAllocator
      *
      * @since 03/01/2015 HienDM
      * @param sequence Sequence
      * @return dữ liệu Sequence
      */
     public long getSequenceValue(String sequence) throws SQLException {
-        Connection connection = null;
-        PreparedStatement preparedStatement = null;
-        ResultSet rs = null;
-        try {
-            long myId = -1l;
-            String sqlIdentifier = "select " + sequence + ".NEXTVAL from dual";
-            connection = getConnection();
-            preparedStatement = connection.prepareStatement(sqlIdentifier);
-            rs = preparedStatement.executeQuery();
-            if(rs != null) if(rs.next()) myId = rs.getLong(1);
-            return myId;
-        } finally {
-            if (rs != null) {
-                rs.close();
-            }
-            if (preparedStatement != null) {
-                preparedStatement.close();
-            }
-            if (connection != null) {
-                connection.close();
-                connection = null;
+        SequenceAllocator allocator = sequences.get(sequence);
+        if (allocator == null) {
+            SequenceAllocator created = new SequenceAllocator(sequence, jdbcURL, connections,
+                    SequenceAllocator.DEFAULT_BLOCK_SIZE, 1);
+            allocator = sequences.putIfAbsent(sequence, created);
+            if (allocator == null) {
+                allocator = created;
             }
         }
+        return allocator.next();
     }
 
 }
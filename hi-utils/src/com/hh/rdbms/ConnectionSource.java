@@ -0,0 +1,17 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.rdbms;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Pooled connections of a connector, for the helpers which borrow their
+ * own (BatchWriter workers, SequenceAllocator refills)
+ */
+interface ConnectionSource {
+    Connection getConnection() throws SQLException;
+}
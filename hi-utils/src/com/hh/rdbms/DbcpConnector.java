@@ -18,8 +18,14 @@ import java.util.Map;
 import com.hh.util.FileUtils;
 import java.io.FileInputStream;
 import java.math.BigDecimal;
+import java.lang.management.ManagementFactory;
 import java.sql.Statement;
+import java.util.LinkedHashMap;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.apache.commons.dbcp2.BasicDataSource;
 
 public class DbcpConnector {
@@ -35,6 +41,20 @@ public class DbcpConnector {
     public String acquireIncrement = "";
     public String maxPoolSize = "";
     public String maxStatements = "";    
+    /* pooled connections for BatchWriter workers and sequence refills */
+    private final ConnectionSource connections = new ConnectionSource() {
+        @Override
+        public Connection getConnection() throws SQLException {
+            return DbcpConnector.this.getConnection();
+        }
+    };
+    private final ConcurrentHashMap<String, SequenceAllocator> sequences = new ConcurrentHashMap<>();
+    /* every key=value of database.conf, for the pool settings */
+    private final Properties poolConfig = new Properties();
+    private String jmxName;
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong borrowWaitNanos = new AtomicLong();
+    private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
     
     public DbcpConnector(String configPath) {
         DATABASE_CONFIG_PATH = configPath;
@@ -74,6 +94,7 @@ public class DbcpConnector {
                             property.trim().charAt(0) != '#' && property.contains("=")) {
                         String[] arrInformation = property.split("=", 2);
                         if (arrInformation.length == 2) {
+                            poolConfig.setProperty(arrInformation[0].trim(), arrInformation[1].trim());
                             if(arrInformation[0].equals("driverClass")) driverClass = arrInformation[1];
                             if(arrInformation[0].equals("jdbcURL")) jdbcURL = arrInformation[1];
                             if(arrInformation[0].equals("user")) user = arrInformation[1];
@@ -93,24 +114,40 @@ public class DbcpConnector {
             }
             
             ds = new BasicDataSource();
-            ds.setUrl(jdbcURL);
+            // batch fast path of the driver (rewriteBatchedStatements on MySQL)
+            ds.setUrl(BatchWriter.batchUrl(jdbcURL));
             ds.setUsername(user);
             ds.setPassword(password);
 
-            // the settings below are optional -- c3p0 can work with defaults
-            
-            ds.setInitialSize(8);
-            ds.setMaxTotal(100);
-            ds.setMaxIdle(1);
-            ds.setMaxIdle(10);
+            // pool settings of database.conf, the defaults are the former fixed values
+            int minIdle = intConfig("minPoolSize", 0);
+            int maxTotal = intConfig("maxPoolSize", 100);
+            ds.setMinIdle(minIdle);
+            ds.setInitialSize(Math.min(intConfig("initialPoolSize", Math.max(minIdle, 8)), maxTotal));
+            ds.setMaxTotal(maxTotal);
+            ds.setMaxIdle(Math.max(intConfig("maxIdle", 10), minIdle));
+            ds.setMaxWaitMillis(intConfig("maxWaitMillis", -1));
+            ds.setMaxConnLifetimeMillis(intConfig("maxConnLifetimeMillis", -1));
+
+            // prepared statements are kept per connection and reused by sql
+            int statements = intConfig("maxStatements", 50);
+            ds.setPoolPreparedStatements(statements > 0);
+            ds.setMaxOpenPreparedStatements(statements);
+
+            // no validation query: the driver's Connection.isValid is used
+            ds.setValidationQueryTimeout(intConfig("validationTimeout", 5));
+            ds.setTestOnBorrow("true".equals(poolConfig.getProperty("testOnBorrow")));
             ds.setTestWhileIdle(true);
-            ds.setTestOnBorrow(false);
+            ds.setTimeBetweenEvictionRunsMillis(intConfig("idleTestPeriodMillis", 60000));
+            ds.setMinEvictableIdleTimeMillis(intConfig("minEvictableIdleTimeMillis", 1800000));
+
+            // long enough for a cursor (openCursor) read at the client's pace
             ds.setRemoveAbandonedOnBorrow(true);
-            ds.setRemoveAbandonedTimeout(55);
-            ds.setValidationQuery("SELECT 1 from dual");
-            ds.setValidationQueryTimeout(15);
-            ds.setTimeBetweenEvictionRunsMillis(60000);
-            
+            ds.setRemoveAbandonedTimeout(intConfig("removeAbandonedTimeout", 300));
+
+            jmxName = "org.apache.commons.dbcp2:type=BasicDataSource,name="
+                    + poolConfig.getProperty("poolName", "hh-" + Integer.toHexString(System.identityHashCode(this)));
+            ds.setJmxName(jmxName);
         } catch(Exception ex) {
             log.error("Dbcp error: ", ex);
         }        
@@ -128,8 +165,60 @@ public class DbcpConnector {
      * @since 22/07/2014 HienDM
      */    
     public Connection getConnection() throws SQLException {
-        return this.ds.getConnection();
+        long start = System.nanoTime();
+        try {
+            return this.ds.getConnection();
+        } finally {
+            long wait = System.nanoTime() - start;
+            borrowed.incrementAndGet();
+            borrowWaitNanos.addAndGet(wait);
+            long max = maxBorrowWaitNanos.get();
+            while (wait > max && !maxBorrowWaitNanos.compareAndSet(max, wait)) {
+                max = maxBorrowWaitNanos.get();
+            }
+        }
     }    
+
+    private int intConfig(String key, int defaultValue) {
+        String value = poolConfig.getProperty(key);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * Connections in use and idle, the time spent waiting for one and the
+     * hit rate of the prepared statement caches of the open connections
+     */
+    public Map<String, Object> getPoolStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long n = borrowed.get();
+        stats.put("active", ds == null ? 0 : ds.getNumActive());
+        stats.put("idle", ds == null ? 0 : ds.getNumIdle());
+        stats.put("max", ds == null ? 0 : ds.getMaxTotal());
+        stats.put("borrowed", n);
+        stats.put("wait-mean-ms", n == 0 ? 0.0 : borrowWaitNanos.get() / n / 1e6);
+        stats.put("wait-max-ms", maxBorrowWaitNanos.get() / 1e6);
+        long statementBorrowed = 0;
+        long statementCreated = 0;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName name : server.queryNames(new ObjectName(jmxName + ",*"), null)) {
+                if (name.getKeyProperty("statementpool") != null) {
+                    statementBorrowed += ((Number) server.getAttribute(name, "BorrowedCount")).longValue();
+                    statementCreated += ((Number) server.getAttribute(name, "CreatedCount")).longValue();
+                }
+            }
+        } catch (Exception ex) {
+            log.debug("Statement pool statistics not available", ex);
+        }
+        stats.put("statements-prepared", statementBorrowed);
+        stats.put("statements-parsed", statementCreated);
+        stats.put("statement-hit-rate", statementBorrowed == 0 ? 0.0
+                : (double) (statementBorrowed - statementCreated) / statementBorrowed);
+        return stats;
+    }
     
     /**
      * Hàm tạo tìm kiếm dữ liệu
@@ -151,11 +240,15 @@ public class DbcpConnector {
             if(rs != null) {
                 ResultSetMetaData rsMetaData = rs.getMetaData();
                 int columnCount = rsMetaData.getColumnCount();
+                // labels are read once, not for every cell
+                String[] labels = new String[columnCount + 1];
+                for (int i = 1; i <= columnCount; ++i) {
+                    labels[i] = rsMetaData.getColumnLabel(i).toLowerCase();
+                }
                 while(rs.next()) {
-                    Map row = new HashMap();
+                    Map row = new HashMap(columnCount * 2);
                     for (int i = 1; i <= columnCount; ++i) {
-                        Object obj = rs.getObject(i);
-                        row.put(rsMetaData.getColumnLabel(i).toLowerCase(), obj);
+                        row.put(labels[i], rs.getObject(i));
                     }
                     lstResult.add(row);
                 }
@@ -323,11 +416,15 @@ public class DbcpConnector {
             if(rs != null) {
                 ResultSetMetaData rsMetaData = rs.getMetaData();
                 int columnCount = rsMetaData.getColumnCount();
+                // labels are read once, not for every cell
+                String[] labels = new String[columnCount + 1];
+                for (int i = 1; i <= columnCount; ++i) {
+                    labels[i] = rsMetaData.getColumnLabel(i).toLowerCase();
+                }
                 while (rs.next()) {
-                    Map row = new HashMap();
+                    Map row = new HashMap(columnCount * 2);
                     for (int i = 1; i <= columnCount; ++i) {
-                        Object obj = rs.getObject(i);
-                        row.put(rsMetaData.getColumnLabel(i).toLowerCase(), obj);
+                        row.put(labels[i], rs.getObject(i));
                     }
                     lstResult.add(row);
                 }
@@ -499,6 +596,87 @@ public class DbcpConnector {
         }
     }
 
+    /**
+     * Hàm đọc dữ liệu theo từng bản ghi: mỗi bản ghi được chuyển cho handler
+     * rồi bỏ đi, không nạp cả kết quả vào bộ nhớ
+     *
+     * @param query Câu lệnh truy vấn dữ liệu
+     * @param lstParameter Tham số truyền vào câu lệnh, null nếu không có
+     * @param fetchSize Số lượng bản ghi trong cache
+     * @param handler nhận từng bản ghi (Row được dùng lại cho bản ghi sau)
+     * @return Số bản ghi đã đọc
+     */
+    public long queryRows(String query, List lstParameter, int fetchSize, RowHandler handler) throws SQLException {
+        Connection connection = null;
+        try {
+            connection = getConnection();
+            return queryRows(query, lstParameter, connection, fetchSize, handler);
+        } finally {
+            if (connection != null) {
+                connection.close();
+                connection = null;
+            }
+        }
+    }
+
+    public long queryRows(String query, List lstParameter, RowHandler handler) throws SQLException {
+        return queryRows(query, lstParameter, 0, handler);
+    }
+
+    public long queryRows(String query, List lstParameter, Connection connection, int fetchSize, RowHandler handler) throws SQLException {
+        try (PreparedStatement preparedStatement = prepareStreaming(query, lstParameter, connection, fetchSize)) {
+            return RowCursor.forEach(preparedStatement, handler);
+        }
+    }
+
+    /**
+     * Hàm mở con trỏ đọc dữ liệu theo từng bản ghi. Con trỏ giữ kết nối tới
+     * khi đóng, dùng trong try-with-resources
+     *
+     * @param query Câu lệnh truy vấn dữ liệu
+     * @param lstParameter Tham số truyền vào câu lệnh, null nếu không có
+     * @param fetchSize Số lượng bản ghi trong cache
+     * @param mapper chuyển mỗi bản ghi thành đối tượng trả về
+     * @return Con trỏ tới các bản ghi
+     */
+    public <T> RowCursor<T> openCursor(String query, List lstParameter, int fetchSize, RowMapper<T> mapper) throws SQLException {
+        Connection connection = getConnection();
+        PreparedStatement preparedStatement;
+        try {
+            preparedStatement = prepareStreaming(query, lstParameter, connection, fetchSize);
+        } catch (SQLException | RuntimeException ex) {
+            connection.close();
+            throw ex;
+        }
+        return new RowCursor<>(connection, preparedStatement, mapper);
+    }
+
+    public RowCursor<Row> openCursor(String query, List lstParameter, int fetchSize) throws SQLException {
+        return openCursor(query, lstParameter, fetchSize, RowCursor.rows());
+    }
+
+    /**
+     * Con trỏ trên kết nối của người gọi, kết nối không bị đóng cùng con trỏ
+     */
+    public <T> RowCursor<T> openCursor(String query, List lstParameter, Connection connection, int fetchSize, RowMapper<T> mapper) throws SQLException {
+        return new RowCursor<>(null, prepareStreaming(query, lstParameter, connection, fetchSize), mapper);
+    }
+
+    private PreparedStatement prepareStreaming(String query, List lstParameter, Connection connection, int fetchSize) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(query,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            preparedStatement.setFetchSize(RowCursor.fetchSize(jdbcURL, fetchSize));
+            if (lstParameter != null) {
+                setPreparedStatement(preparedStatement, lstParameter);
+            }
+            return preparedStatement;
+        } catch (SQLException | RuntimeException ex) {
+            preparedStatement.close();
+            throw ex;
+        }
+    }
+
     /**
      * Hàm cập nhật cơ sở dữ liệu
      *
@@ -672,27 +850,22 @@ public class DbcpConnector {
     }
     
     /**
-     * Hàm cập nhật cơ sở dữ liệu
+     * Hàm cập nhật cơ sở dữ liệu. Lô dữ liệu được gửi theo từng phần
+     * (batchSize) và commit một lần khi ghi xong, lỗi thì rollback toàn
+     * bộ, xem BatchWriter
      *
      * @since 13/03/2014 HienDM
      * @param query Câu lệnh cập nhật dữ liệu trong cassandra
      * @param lstBatch Tham số truyền vào câu lệnh
      */
     public void executeQueryBatch(String query, List<List> lstBatch) throws SQLException {
-        Connection connection = null;
-        try {
-            connection = getConnection();
-            executeQueryBatch(query, lstBatch, connection);
-        } finally {
-            if (connection != null) {
-                connection.close();
-                connection = null;
-            }
-        }
+        batchWriter(query).write(lstBatch);
     }
     
     /**
-     * Hàm cập nhật cơ sở dữ liệu
+     * Hàm cập nhật cơ sở dữ liệu. Lô dữ liệu được gửi theo từng phần
+     * (batchSize) và commit một lần khi ghi xong, lỗi thì rollback toàn
+     * bộ, xem BatchWriter
      *
      * @since 13/03/2014 HienDM
      * @param query Câu lệnh cập nhật dữ liệu trong cassandra
@@ -700,55 +873,57 @@ public class DbcpConnector {
      * @param connection kết nối tới cơ sở dữ liệu
      */
     public void executeQueryBatch(String query, List<List> lstBatch, Connection connection) throws SQLException {
-        PreparedStatement preparedStatement = null;
-        try {
-            connection.setAutoCommit(false);
-            preparedStatement = connection.prepareStatement(query);
-            for (int k = 0; k < lstBatch.size(); k++) {
-                List<List> lstParameter = lstBatch.get(k);
-                preparedStatement = setPreparedStatement(preparedStatement, lstParameter);
-                preparedStatement.addBatch();
-            }
-            preparedStatement.executeBatch();
-            connection.commit();
-        } finally {
-            if (preparedStatement != null) {
-                preparedStatement.close();
-            }
-        }
+        batchWriter(query, connection).write(lstBatch);
     }
 
     /**
-     * Hàm lấy dữ liệu sequence
+     * Hàm tạo bộ ghi dữ liệu theo lô, chia lô lớn thành các phần nhỏ.
+     * Mặc định commit một lần; commitSize, parallelism do nơi gọi chọn
+     *
+     * @param query Câu lệnh cập nhật dữ liệu
+     * @return Bộ ghi dữ liệu, mỗi luồng ghi lấy một kết nối từ pool
+     */
+    public BatchWriter batchWriter(String query) {
+        return configure(new BatchWriter(query, jdbcURL, connections));
+    }
+
+    /**
+     * Hàm tạo bộ ghi dữ liệu theo lô trên một kết nối
+     *
+     * @param query Câu lệnh cập nhật dữ liệu
+     * @param connection kết nối tới cơ sở dữ liệu
+     * @return Bộ ghi dữ liệu
+     */
+    public BatchWriter batchWriter(String query, Connection connection) {
+        return configure(new BatchWriter(query, jdbcURL, connection));
+    }
+
+    private BatchWriter configure(BatchWriter writer) {
+        return writer.batchSize(intConfig("batchSize", BatchWriter.DEFAULT_BATCH_SIZE));
+    }
+
+    /**
+     * Hàm lấy dữ liệu sequence. Giá trị được lấy trước theo từng khối
+     * (sequenceBlockSize, sequenceIncrement theo tên sequence), xem
+     * SequenceAllocator
      *
      * @since 03/01/2015 HienDM
      * @param sequence Sequence
      * @return dữ liệu Sequence
      */
     public long getSequenceValue(String sequence) throws SQLException {
-        Connection connection = null;
-        PreparedStatement preparedStatement = null;
-        ResultSet rs = null;
-        try {
-            long myId = -1l;
-            String sqlIdentifier = "select " + sequence + ".NEXTVAL from dual";
-            connection = getConnection();
-            preparedStatement = connection.prepareStatement(sqlIdentifier);
-            rs = preparedStatement.executeQuery();
-            if(rs != null) if(rs.next()) myId = rs.getLong(1);
-            return myId;
-        } finally {
-            if (rs != null) {
-                rs.close();
-            }
-            if (preparedStatement != null) {
-                preparedStatement.close();
-            }
-            if (connection != null) {
-                connection.close();
-                connection = null;
+        SequenceAllocator allocator = sequences.get(sequence);
+        if (allocator == null) {
+            int blockSize = intConfig("sequenceBlockSize." + sequence,
+                    intConfig("sequenceBlockSize", SequenceAllocator.DEFAULT_BLOCK_SIZE));
+            SequenceAllocator created = new SequenceAllocator(sequence, jdbcURL, connections,
+                    blockSize, intConfig("sequenceIncrement." + sequence, 1));
+            allocator = sequences.putIfAbsent(sequence, created);
+            if (allocator == null) {
+                allocator = created;
             }
         }
+        return allocator.next();
     }
 
 }
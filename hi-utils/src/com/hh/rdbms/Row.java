@@ -0,0 +1,102 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.rdbms;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One row of a query, read from the result set into an array.
+ *
+ * The column labels (lower case, as in queryData) and their index are read
+ * from the metadata once per query and shared by all rows. A streaming
+ * query reuses the same Row for every record: a handler which keeps a row
+ * takes copy(), toMap() or toList().
+ */
+public class Row {
+
+    private final String[] labels;
+    private final Map<String, Integer> index;
+    private final Object[] values;
+
+    Row(ResultSetMetaData metaData) throws SQLException {
+        int count = metaData.getColumnCount();
+        labels = new String[count];
+        index = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            labels[i] = metaData.getColumnLabel(i + 1).toLowerCase();
+            index.put(labels[i], i);
+        }
+        values = new Object[count];
+    }
+
+    private Row(Row row) {
+        labels = row.labels;
+        index = row.index;
+        values = Arrays.copyOf(row.values, row.values.length);
+    }
+
+    void read(ResultSet rs) throws SQLException {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rs.getObject(i + 1);
+        }
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public String getLabel(int column) {
+        return labels[column];
+    }
+
+    /**
+     * value of a column, counted from 0
+     */
+    public Object get(int column) {
+        return values[column];
+    }
+
+    /**
+     * value of a column by its label (case insensitive), null if there is
+     * no such column
+     */
+    public Object get(String label) {
+        Integer i = index.get(label);
+        if (i == null) {
+            i = index.get(label.toLowerCase());
+        }
+        return i == null ? null : values[i];
+    }
+
+    public Row copy() {
+        return new Row(this);
+    }
+
+    /**
+     * the row as queryData returns it
+     */
+    public Map toMap() {
+        Map row = new HashMap(values.length * 2);
+        for (int i = 0; i < values.length; i++) {
+            row.put(labels[i], values[i]);
+        }
+        return row;
+    }
+
+    /**
+     * the row as queryDataToList returns it
+     */
+    public List toList() {
+        return new ArrayList(Arrays.asList(values));
+    }
+}
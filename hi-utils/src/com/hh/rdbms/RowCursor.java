@@ -0,0 +1,174 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.rdbms;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Forward-only cursor over the rows of a query, read fetch size rows at a
+ * time as the caller iterates. It holds its statement, and the connection
+ * when the connector opened one for it, until it is closed; use it in a
+ * try-with-resources. A cursor without a mapper returns the same Row for
+ * every record.
+ */
+public class RowCursor<T> implements Iterator<T>, AutoCloseable {
+
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    private static final RowMapper<Row> ROW = new RowMapper<Row>() {
+        @Override
+        public Row map(Row row) {
+            return row;
+        }
+    };
+
+    private final Connection connection;
+    private final PreparedStatement statement;
+    private final RowMapper<T> mapper;
+    private ResultSet rs;
+    private Row row;
+    /* null until rs.next() was called for the next element */
+    private Boolean ready;
+    private boolean closed;
+
+    /**
+     * run statement; connection, if not null, is closed with the cursor
+     */
+    RowCursor(Connection connection, PreparedStatement statement, RowMapper<T> mapper) throws SQLException {
+        this.connection = connection;
+        this.statement = statement;
+        this.mapper = mapper;
+        try {
+            rs = statement.executeQuery();
+            row = new Row(rs.getMetaData());
+        } catch (SQLException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    static RowMapper<Row> rows() {
+        return ROW;
+    }
+
+    /**
+     * fetch size of a streaming query. MySQL Connector/J reads the whole
+     * result unless the fetch size is Integer.MIN_VALUE or cursor fetch is
+     * enabled in the url.
+     */
+    static int fetchSize(String jdbcURL, int fetchSize) {
+        String url = jdbcURL == null ? "" : jdbcURL.toLowerCase();
+        if (url.contains("mysql") && !url.contains("usecursorfetch=true")) {
+            return Integer.MIN_VALUE;
+        }
+        return fetchSize > 0 ? fetchSize : DEFAULT_FETCH_SIZE;
+    }
+
+    /**
+     * run statement and pass every row to handler, returns the number of
+     * rows. The statement is left open.
+     */
+    static long forEach(PreparedStatement statement, RowHandler handler) throws SQLException {
+        long count = 0;
+        try (ResultSet rs = statement.executeQuery()) {
+            Row row = new Row(rs.getMetaData());
+            while (rs.next()) {
+                row.read(rs);
+                handler.handle(row);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (ready == null) {
+            if (closed) {
+                return false;
+            }
+            try {
+                ready = rs.next();
+                if (ready) {
+                    row.read(rs);
+                } else {
+                    close();
+                }
+            } catch (SQLException ex) {
+                closeQuietly();
+                throw new IllegalStateException("Error when read query result", ex);
+            }
+        }
+        return ready;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ready = null;
+        try {
+            return mapper.map(row);
+        } catch (SQLException ex) {
+            closeQuietly();
+            throw new IllegalStateException("Error when map query result", ex);
+        }
+    }
+
+    /**
+     * the remaining rows as a sequential stream which closes the cursor
+     * when it is closed
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(new Runnable() {
+            @Override
+            public void run() {
+                closeQuietly();
+            }
+        });
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        ready = false;
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+        } finally {
+            try {
+                statement.close();
+            } finally {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (SQLException ex) {
+            // already failing, the first error is the one reported
+        }
+    }
+}
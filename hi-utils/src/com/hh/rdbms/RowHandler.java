@@ -0,0 +1,17 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.rdbms;
+
+import java.sql.SQLException;
+
+/**
+ * Receives the rows of a streaming query one at a time. The row is reused
+ * for the next record once handle returns.
+ */
+public interface RowHandler {
+
+    void handle(Row row) throws SQLException;
+}
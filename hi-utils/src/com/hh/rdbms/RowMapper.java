@@ -0,0 +1,16 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.rdbms;
+
+import java.sql.SQLException;
+
+/**
+ * Turns a row of a streaming query into an object of the caller's type
+ */
+public interface RowMapper<T> {
+
+    T map(Row row) throws SQLException;
+}
@@ -0,0 +1,169 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.rdbms;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Values of a database sequence handed out from blocks fetched ahead,
+ * instead of one NEXTVAL query and one pool checkout per value.
+ *
+ * A block holds blockSize values: for a sequence created with INCREMENT
+ * BY n (increment), one NEXTVAL reserves the n values from the one
+ * returned; otherwise Oracle returns the whole block from one query and
+ * other databases run NEXTVAL blockSize times on one connection. When a
+ * quarter of the current block is left the next one is fetched in the
+ * background, so callers only wait when values are taken faster than
+ * blocks arrive. Values of a block not used before shutdown are lost,
+ * which leaves a gap in the sequence.
+ */
+public class SequenceAllocator {
+
+    private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(SequenceAllocator.class.getSimpleName());
+
+    public static final int DEFAULT_BLOCK_SIZE = 100;
+
+    private static final ThreadPoolExecutor refills = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "hh-sequence-refill");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final String sequence;
+    private final ConnectionSource source;
+    private final boolean oracle;
+    private final int blockSize;
+    private final int increment;
+    private long[] current;
+    private int position;
+    private long[] prefetched;
+    private boolean refilling;
+
+    /**
+     * increment is the INCREMENT BY of the sequence when each NEXTVAL
+     * reserves a block, 1 otherwise
+     */
+    SequenceAllocator(String sequence, String jdbcURL, ConnectionSource source, int blockSize, int increment) {
+        this.sequence = sequence;
+        this.source = source;
+        this.oracle = jdbcURL != null && jdbcURL.toLowerCase().contains("oracle");
+        this.increment = Math.max(1, increment);
+        this.blockSize = this.increment > 1 ? this.increment : Math.max(1, blockSize);
+    }
+
+    /**
+     * Next value of the sequence
+     */
+    public synchronized long next() throws SQLException {
+        while (true) {
+            if (current != null && position < current.length) {
+                long value = current[position++];
+                if (prefetched == null && !refilling && current.length - position <= current.length / 4) {
+                    refill();
+                }
+                return value;
+            }
+            if (prefetched != null) {
+                current = prefetched;
+                prefetched = null;
+                position = 0;
+            } else if (refilling) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for sequence " + sequence, ex);
+                }
+            } else {
+                // first use, or the background fetch failed: the caller sees the error
+                current = fetch();
+                position = 0;
+            }
+        }
+    }
+
+    private void refill() {
+        refilling = true;
+        refills.execute(new Runnable() {
+            @Override
+            public void run() {
+                long[] block = null;
+                try {
+                    block = fetch();
+                } catch (SQLException | RuntimeException ex) {
+                    log.error("Error when fetch values of sequence " + sequence, ex);
+                } finally {
+                    synchronized (SequenceAllocator.this) {
+                        prefetched = block;
+                        refilling = false;
+                        SequenceAllocator.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private long[] fetch() throws SQLException {
+        long[] block = new long[blockSize];
+        try (Connection connection = source.getConnection()) {
+            if (increment > 1) {
+                long first = nextValues(connection, 1)[0];
+                for (int i = 0; i < block.length; i++) {
+                    block[i] = first + i;
+                }
+            } else if (oracle) {
+                block = nextValues(connection, blockSize);
+            } else {
+                try (PreparedStatement ps = connection.prepareStatement("select " + sequence + ".NEXTVAL from dual")) {
+                    for (int i = 0; i < block.length; i++) {
+                        try (ResultSet rs = ps.executeQuery()) {
+                            if (!rs.next()) {
+                                throw new SQLException("Sequence " + sequence + " returned no value");
+                            }
+                            block[i] = rs.getLong(1);
+                        }
+                    }
+                }
+            }
+        }
+        return block;
+    }
+
+    /*
+     * n values in one query, Oracle generates the rows with connect by
+     */
+    private long[] nextValues(Connection connection, int n) throws SQLException {
+        String sql = n == 1 ? "select " + sequence + ".NEXTVAL from dual"
+                : "select " + sequence + ".NEXTVAL from dual connect by level <= ?";
+        long[] values = new long[n];
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            if (n > 1) {
+                ps.setInt(1, n);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                int i = 0;
+                while (i < n && rs.next()) {
+                    values[i++] = rs.getLong(1);
+                }
+                if (i < n) {
+                    throw new SQLException("Sequence " + sequence + " returned " + i + " of " + n + " values");
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.redis;
+
+import com.hh.util.ObjectCodec;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * Commands queued on one pooled connection and sent together by sync(),
+ * one round trip for all of them. It is a plain pipeline, not a MULTI
+ * transaction: other clients may run commands between the queued ones.
+ *
+ * Made by RedisConnector.batch() for one request and not shared between
+ * threads. Results (Response, Value) can be read after sync(); close()
+ * sends what is still queued and returns the connection to the pool.
+ */
+public class RedisBatch implements AutoCloseable {
+
+    private final Jedis jedis;
+    private final Pipeline pipeline;
+    private final ObjectCodec codec;
+
+    RedisBatch(Jedis jedis, ObjectCodec codec) {
+        this.jedis = jedis;
+        this.pipeline = jedis.pipelined();
+        this.codec = codec;
+    }
+
+    /**
+     * Decoded value of a queued read, available after sync()
+     */
+    public static class Value {
+        private final Response<byte[]> response;
+        private final ObjectCodec codec;
+
+        Value(Response<byte[]> response, ObjectCodec codec) {
+            this.response = response;
+            this.codec = codec;
+        }
+
+        public Object get() throws IOException, ClassNotFoundException {
+            byte[] data = response.get();
+            return data == null ? null : codec.decode(data);
+        }
+    }
+
+    public RedisBatch createStore(String storeId, Integer minuteTimeout) throws IOException {
+        Map<byte[], byte[]> store = new HashMap<>();
+        store.put(RedisConnector.DEFAULT_KEY.getBytes(), codec.encode(RedisConnector.DEFAULT_VALUE));
+        pipeline.hmset(storeId.getBytes(), store);
+        if (minuteTimeout != null) {
+            pipeline.expire(storeId.getBytes(), minuteTimeout * 60);
+        }
+        return this;
+    }
+
+    public Value getStoreAttribute(String storeId, String key) {
+        return new Value(pipeline.hget(storeId.getBytes(), key.getBytes()), codec);
+    }
+
+    public RedisBatch setStoreAttribute(String storeId, String key, Object value) throws IOException {
+        pipeline.hset(storeId.getBytes(), key.getBytes(), codec.encode(value));
+        return this;
+    }
+
+    public RedisBatch setStoreAttributes(String storeId, Map<String, ?> values) throws IOException {
+        if (values != null && !values.isEmpty()) {
+            pipeline.hmset(storeId.getBytes(), RedisConnector.encodeFields(values, codec));
+        }
+        return this;
+    }
+
+    public RedisBatch removeStoreAttribute(String storeId, String key) {
+        pipeline.hdel(storeId.getBytes(), key.getBytes());
+        return this;
+    }
+
+    public RedisBatch removeStore(String storeId) {
+        pipeline.del(storeId.getBytes());
+        return this;
+    }
+
+    public RedisBatch refreshExpire(String storeId, int minuteTimeout) {
+        pipeline.expire(storeId.getBytes(), minuteTimeout * 60);
+        return this;
+    }
+
+    public Response<Long> incrementAndGet(String storeId, String key, long number) {
+        return pipeline.hincrBy(storeId.getBytes(), key.getBytes(), number);
+    }
+
+    public Value getAttribute(byte[] key) {
+        return new Value(pipeline.get(key), codec);
+    }
+
+    /**
+     * SET with expiry in seconds, 0 or less for no expiry
+     */
+    public RedisBatch setAttribute(byte[] key, Object value, int secondTimeout) throws IOException {
+        if (secondTimeout > 0) {
+            pipeline.setex(key, secondTimeout, codec.encode(value));
+        } else {
+            pipeline.set(key, codec.encode(value));
+        }
+        return this;
+    }
+
+    public RedisBatch removeAttribute(byte[] key) {
+        pipeline.del(key);
+        return this;
+    }
+
+    /**
+     * Send the queued commands and read their replies
+     */
+    public void sync() {
+        pipeline.sync();
+    }
+
+    @Override
+    public void close() {
+        try {
+            pipeline.sync();
+        } finally {
+            jedis.close();
+        }
+    }
+}
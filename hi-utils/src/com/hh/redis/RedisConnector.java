@@ -6,15 +6,27 @@
 package com.hh.redis;
 
 import com.hh.util.FileUtils;
+import com.hh.util.ObjectCodec;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
 
 /**
+ * Values are encoded by the codec set with setCodec, by default the one of
+ * FileUtils.objectToByteArray (Java serialization). Several commands of a
+ * request can share one round trip through batch(), and the methods
+ * taking several keys or an expiry run as one command or one script.
  *
  * @author hiendm1
  */
@@ -23,6 +35,20 @@ public class RedisConnector {
     public static JedisPool jedisPool;
     public static final String DEFAULT_KEY = "default-key";
     public static final String DEFAULT_VALUE = "default-value";
+
+    /* HINCRBY and PEXPIRE of the store, the expiry is skipped when ARGV[3] <= 0 */
+    private static final Script INCREMENT = new Script(
+            "local v = redis.call('HINCRBY', KEYS[1], ARGV[1], ARGV[2]) "
+            + "if tonumber(ARGV[3]) > 0 then redis.call('PEXPIRE', KEYS[1], ARGV[3]) end "
+            + "return v");
+    /* HSET and PEXPIRE only when the store exists, so an expired store is not created again */
+    private static final Script SET_IF_EXISTS = new Script(
+            "if redis.call('EXISTS', KEYS[1]) == 0 then return 0 end "
+            + "redis.call('HSET', KEYS[1], ARGV[1], ARGV[2]) "
+            + "if tonumber(ARGV[3]) > 0 then redis.call('PEXPIRE', KEYS[1], ARGV[3]) end "
+            + "return 1");
+
+    private volatile ObjectCodec codec;
     
     public RedisConnector(String host, int port, int maxTotal, int maxWaitMiliseconds) {
         JedisPoolConfig config = new JedisPoolConfig();
@@ -31,6 +57,27 @@ public class RedisConnector {
         jedisPool = new JedisPool(config, host, port);
     }
 
+    /**
+     * Codec of the values, null for the one of FileUtils. Values written
+     * with another codec may not be readable after a change.
+     */
+    public void setCodec(ObjectCodec codec) {
+        this.codec = codec;
+    }
+
+    public ObjectCodec getCodec() {
+        ObjectCodec c = codec;
+        return c != null ? c : FileUtils.getObjectCodec();
+    }
+
+    /**
+     * Pipeline on a connection of the pool for the commands of one
+     * request, it must be closed
+     */
+    public RedisBatch batch() {
+        return new RedisBatch(jedisPool.getResource(), getCodec());
+    }
+
     public void createStore(String storeId) {
         createStore(storeId, null);
     }
@@ -40,10 +87,12 @@ public class RedisConnector {
         try {
             js = jedisPool.getResource();
             HashMap<byte[], byte[]> store = new HashMap();
-            store.put(DEFAULT_KEY.getBytes(), FileUtils.objectToByteArray(DEFAULT_VALUE));            
-            js.hmset(storeId.getBytes(), store);
+            store.put(DEFAULT_KEY.getBytes(), getCodec().encode(DEFAULT_VALUE));
+            Pipeline pipeline = js.pipelined();
+            pipeline.hmset(storeId.getBytes(), store);
             if(minuteTimeout != null)
-                js.expire(storeId.getBytes(), minuteTimeout * 60);
+                pipeline.expire(storeId.getBytes(), minuteTimeout * 60);
+            pipeline.sync();
         } catch(Exception ex) {
             log.error("Redis connector error: ", ex);
         } finally {
@@ -57,9 +106,10 @@ public class RedisConnector {
         try {
             js = jedisPool.getResource();
             List<byte[]> store = js.hvals(storeId.getBytes());
+            ObjectCodec c = getCodec();
             for (int i = 0; i < store.size(); i++)
             {
-                Object value = FileUtils.byteArrayToObject(store.get(i));
+                Object value = c.decode(store.get(i));
                 if(value instanceof Map) lstResult.add((Map)value);
             }            
             return lstResult;
@@ -76,7 +126,7 @@ public class RedisConnector {
         try {
             js = jedisPool.getResource();
             byte[] byteObject = js.hget(storeId.getBytes(), key.getBytes());
-            if(byteObject != null) return FileUtils.byteArrayToObject(byteObject);
+            if(byteObject != null) return getCodec().decode(byteObject);
             else return null;
         } catch(Exception ex) {
             log.error("Redis connector error: ", ex);
@@ -90,12 +140,80 @@ public class RedisConnector {
         Jedis js = null;
         try {
             js = jedisPool.getResource();
-            js.hset(storeId.getBytes(), key.getBytes(), FileUtils.objectToByteArray(value));
+            js.hset(storeId.getBytes(), key.getBytes(), getCodec().encode(value));
+        } catch(Exception ex) {
+            log.error("Redis connector error: ", ex);
+        } finally {
+            if(js != null) js.close();
+        }
+    }
+    
+    /**
+     * Several attributes of a store in one HMGET, a missing one is not in
+     * the result
+     */
+    public Map<String, Object> getStoreAttributes(String storeId, String... keys) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        if(keys.length == 0) return result;
+        Jedis js = null;
+        try {
+            js = jedisPool.getResource();
+            byte[][] fields = new byte[keys.length][];
+            for (int i = 0; i < keys.length; i++)
+                fields[i] = keys[i].getBytes();
+            List<byte[]> values = js.hmget(storeId.getBytes(), fields);
+            ObjectCodec c = getCodec();
+            for (int i = 0; i < keys.length; i++) {
+                if(values.get(i) != null) result.put(keys[i], c.decode(values.get(i)));
+            }
+            return result;
+        } catch(Exception ex) {
+            log.error("Redis connector error: ", ex);
+        } finally {
+            if(js != null) js.close();
+        }
+        return null;
+    }
+    
+    /**
+     * Several attributes of a store with HMSET and its new expiry in one
+     * round trip, minuteTimeout null keeps the current expiry
+     */
+    public void setStoreAttributes(String storeId, Map<String, ?> values, Integer minuteTimeout) {
+        Jedis js = null;
+        try {
+            js = jedisPool.getResource();
+            Pipeline pipeline = js.pipelined();
+            if(values != null && !values.isEmpty())
+                pipeline.hmset(storeId.getBytes(), encodeFields(values, getCodec()));
+            if(minuteTimeout != null)
+                pipeline.expire(storeId.getBytes(), minuteTimeout * 60);
+            pipeline.sync();
+        } catch(Exception ex) {
+            log.error("Redis connector error: ", ex);
+        } finally {
+            if(js != null) js.close();
+        }
+    }
+    
+    /**
+     * Set an attribute and the expiry of a store atomically, only when the
+     * store still exists. Returns false when it does not (expired or
+     * removed). minuteTimeout null keeps the current expiry.
+     */
+    public boolean setStoreAttributeIfExists(String storeId, String key, Object value, Integer minuteTimeout) {
+        Jedis js = null;
+        try {
+            js = jedisPool.getResource();
+            Object result = SET_IF_EXISTS.run(js, storeId.getBytes(), key.getBytes(), getCodec().encode(value),
+                    String.valueOf(minuteTimeout == null ? 0 : minuteTimeout * 60000L).getBytes());
+            return Long.valueOf(1).equals(result);
         } catch(Exception ex) {
             log.error("Redis connector error: ", ex);
         } finally {
             if(js != null) js.close();
         }
+        return false;
     }
     
     public void removeStoreAttribute(String storeId, String key) {
@@ -128,6 +246,55 @@ public class RedisConnector {
         }
     }
     
+    /**
+     * All fields of a store in one HGETALL, raw bytes without decoding
+     */
+    public Map<byte[], byte[]> getStoreFields(String storeId) {
+        Jedis js = null;
+        try {
+            js = jedisPool.getResource();
+            return js.hgetAll(storeId.getBytes());
+        } finally {
+            if(js != null) js.close();
+        }
+    }
+    
+    /**
+     * One field of a store, raw bytes without decoding
+     */
+    public byte[] getStoreField(String storeId, String key) {
+        Jedis js = null;
+        try {
+            js = jedisPool.getResource();
+            return js.hget(storeId.getBytes(), key.getBytes());
+        } finally {
+            if(js != null) js.close();
+        }
+    }
+    
+    /**
+     * Write changed fields, delete removed ones and reset the expiry of a
+     * store in a single pipelined round trip. Null or empty arguments are
+     * skipped, expireMiliseconds &lt;= 0 keeps the current expiry.
+     */
+    public void updateStore(String storeId, Map<byte[], byte[]> fields, List<byte[]> removed, long expireMiliseconds) {
+        Jedis js = null;
+        try {
+            js = jedisPool.getResource();
+            byte[] key = storeId.getBytes();
+            Pipeline pipeline = js.pipelined();
+            if(fields != null && !fields.isEmpty())
+                pipeline.hmset(key, fields);
+            if(removed != null && !removed.isEmpty())
+                pipeline.hdel(key, removed.toArray(new byte[removed.size()][]));
+            if(expireMiliseconds > 0)
+                pipeline.pexpire(key, expireMiliseconds);
+            pipeline.sync();
+        } finally {
+            if(js != null) js.close();
+        }
+    }
+    
     public void setAttribute(String key, String value) {
         Jedis js = null;
         try {
@@ -142,7 +309,25 @@ public class RedisConnector {
         Jedis js = null;
         try {
             js = jedisPool.getResource();
-            js.set(key, FileUtils.objectToByteArray(value));
+            js.set(key, getCodec().encode(value));
+        } catch(Exception ex) {
+            log.error("Redis connector error: ", ex);
+        } finally {
+            if(js != null) js.close();
+        }
+    }
+    
+    /**
+     * SET with its expiry in one SETEX, secondTimeout &lt;= 0 for no expiry
+     */
+    public void setAttribute(byte[] key, Object value, int secondTimeout) {
+        Jedis js = null;
+        try {
+            js = jedisPool.getResource();
+            if(secondTimeout > 0)
+                js.setex(key, secondTimeout, getCodec().encode(value));
+            else
+                js.set(key, getCodec().encode(value));
         } catch(Exception ex) {
             log.error("Redis connector error: ", ex);
         } finally {
@@ -164,8 +349,9 @@ public class RedisConnector {
         Jedis js = null;
         try {
             js = jedisPool.getResource();
-            if(js.get(key) != null)
-                return FileUtils.byteArrayToObject(js.get(key));
+            byte[] data = js.get(key);
+            if(data != null)
+                return getCodec().decode(data);
             else return null;
         } catch(Exception ex) {
             log.error("Redis connector error: ", ex);
@@ -175,6 +361,28 @@ public class RedisConnector {
         return null;
     }
     
+    /**
+     * Several values in one MGET, in the order of keys, null for a missing
+     * one
+     */
+    public List<Object> getAttributes(byte[]... keys) {
+        List<Object> result = new ArrayList<>(keys.length);
+        if(keys.length == 0) return result;
+        Jedis js = null;
+        try {
+            js = jedisPool.getResource();
+            ObjectCodec c = getCodec();
+            for (byte[] data : js.mget(keys))
+                result.add(data == null ? null : c.decode(data));
+            return result;
+        } catch(Exception ex) {
+            log.error("Redis connector error: ", ex);
+        } finally {
+            if(js != null) js.close();
+        }
+        return null;
+    }
+    
     public void removeAttribute(String key) {
         Jedis js = null;
         try {
@@ -220,5 +428,58 @@ public class RedisConnector {
         }
         return 0;
     }    
+    
+    /**
+     * HINCRBY and the new expiry of the store in one atomic script
+     */
+    public long incrementAndGet(String storeId, String key, Long number, int minuteTimeout) {
+        Jedis js = null;
+        try {
+            js = jedisPool.getResource();
+            Object result = INCREMENT.run(js, storeId.getBytes(), key.getBytes(),
+                    String.valueOf(number).getBytes(), String.valueOf(minuteTimeout * 60000L).getBytes());
+            return (Long) result;
+        } catch(Exception ex) {
+            log.error("Redis connector error: ", ex);
+        } finally {
+            if(js != null) js.close();
+        }
+        return 0;
+    }    
+    
+    static Map<byte[], byte[]> encodeFields(Map<String, ?> values, ObjectCodec codec) throws IOException {
+        Map<byte[], byte[]> fields = new HashMap<>();
+        for (Map.Entry<String, ?> entry : values.entrySet())
+            fields.put(entry.getKey().getBytes(), codec.encode(entry.getValue()));
+        return fields;
+    }
+    
+    /*
+     * Lua script run with EVALSHA, sent with EVAL when the server does not
+     * have it yet (first use, restart or SCRIPT FLUSH)
+     */
+    private static class Script {
+        private final byte[] script;
+        private final byte[] sha;
+
+        Script(String script) {
+            this.script = script.getBytes();
+            try {
+                this.sha = FileUtils.byteArrayToHex(MessageDigest.getInstance("SHA-1").digest(this.script)).getBytes();
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        Object run(Jedis js, byte[] key, byte[]... args) {
+            List<byte[]> keys = Arrays.asList(key);
+            List<byte[]> argList = Arrays.asList(args);
+            try {
+                return js.evalsha(sha, keys, argList);
+            } catch (JedisNoScriptException ex) {
+                return js.eval(script, keys, argList);
+            }
+        }
+    }
       
 }
@@ -0,0 +1,113 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.util;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Codec with a one byte type tag. Strings, numbers, booleans and byte
+ * arrays are written as their raw value; anything else falls back to Java
+ * serialization. Java serialized values start with 0xACED, which no tag
+ * uses, so it reads what JavaObjectCodec wrote; the reverse does not hold.
+ */
+public class CompactObjectCodec implements ObjectCodec {
+
+    public static final CompactObjectCodec INSTANCE = new CompactObjectCodec();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte BYTES = 6;
+    private static final byte JAVA = (byte) 0xAC;
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        if (value == null) {
+            return new byte[]{NULL};
+        }
+        if (value instanceof String) {
+            byte[] s = ((String) value).getBytes(UTF_8);
+            byte[] b = new byte[s.length + 1];
+            b[0] = STRING;
+            System.arraycopy(s, 0, b, 1, s.length);
+            return b;
+        }
+        if (value instanceof Integer) {
+            return number(INT, ((Integer) value).longValue(), 4);
+        }
+        if (value instanceof Long) {
+            return number(LONG, (Long) value, 8);
+        }
+        if (value instanceof Double) {
+            return number(DOUBLE, Double.doubleToLongBits((Double) value), 8);
+        }
+        if (value instanceof Boolean) {
+            return new byte[]{BOOLEAN, (byte) ((Boolean) value ? 1 : 0)};
+        }
+        if (value instanceof byte[]) {
+            byte[] v = (byte[]) value;
+            byte[] b = new byte[v.length + 1];
+            b[0] = BYTES;
+            System.arraycopy(v, 0, b, 1, v.length);
+            return b;
+        }
+        return JavaObjectCodec.INSTANCE.encode(value);
+    }
+
+    @Override
+    public Object decode(byte[] data) throws IOException, ClassNotFoundException {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        switch (data[0]) {
+            case NULL:
+                return null;
+            case STRING:
+                return new String(data, 1, data.length - 1, UTF_8);
+            case INT:
+                return (int) number(data, 4);
+            case LONG:
+                return number(data, 8);
+            case DOUBLE:
+                return Double.longBitsToDouble(number(data, 8));
+            case BOOLEAN:
+                return data.length > 1 && data[1] != 0;
+            case BYTES:
+                return Arrays.copyOfRange(data, 1, data.length);
+            case JAVA:
+                return JavaObjectCodec.INSTANCE.decode(data);
+            default:
+                throw new IOException("Unknown value tag " + (data[0] & 0xFF));
+        }
+    }
+
+    private static byte[] number(byte tag, long value, int size) {
+        byte[] b = new byte[size + 1];
+        b[0] = tag;
+        for (int i = size; i > 0; i--) {
+            b[i] = (byte) value;
+            value >>>= 8;
+        }
+        return b;
+    }
+
+    private static long number(byte[] data, int size) throws IOException {
+        if (data.length != size + 1) {
+            throw new IOException("Invalid value length " + data.length);
+        }
+        long value = 0;
+        for (int i = 1; i <= size; i++) {
+            value = (value << 8) | (data[i] & 0xFF);
+        }
+        return size == 4 ? (int) value : value;
+    }
+}
@@ -0,0 +1,705 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.util;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Zip and gzip archives compressed by several threads, the way pigz does:
+ * the input is cut in blocks which are deflated in parallel, each primed
+ * with the last 32 KB of the block before, and joined into one deflate
+ * stream, so any zip or gzip tool reads the result. Files of a folder
+ * smaller than a block are compressed side by side. At most parallelism
+ * blocks are in memory, files are read and written with large buffers.
+ *
+ * Settings are changed with the setters before a call. cancel() stops the
+ * running call from another thread at the next block: it deletes the
+ * archive being written and throws CancellationException.
+ */
+public class Compressor {
+
+    public static final int DEFAULT_BLOCK_SIZE = 512 * 1024;
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int MIN_BLOCK_SIZE = 2 * DICTIONARY_SIZE;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    /* data descriptor follows the data, names are UTF-8 */
+    private static final int ZIP_FLAGS = 0x0808;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final AtomicInteger count = new AtomicInteger();
+    private static final ThreadPoolExecutor workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "hh-compressor-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Told after every block with the bytes of uncompressed data done
+     */
+    public interface Progress {
+        void update(long done, long total);
+    }
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private int strategy = Deflater.DEFAULT_STRATEGY;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private Progress progress;
+    private volatile boolean cancelled;
+
+    /**
+     * Deflater level, 0 (none) to 9 (best) or -1 for the default (6)
+     */
+    public Compressor level(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Deflater.DEFAULT_STRATEGY, FILTERED or HUFFMAN_ONLY
+     */
+    public Compressor strategy(int strategy) {
+        this.strategy = strategy;
+        return this;
+    }
+
+    /**
+     * Blocks compressed (or entries extracted) at the same time, 1 to do
+     * everything on the calling thread
+     */
+    public Compressor parallelism(int threads) {
+        this.parallelism = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * Bytes of input per block, at least 64 KB
+     */
+    public Compressor blockSize(int bytes) {
+        this.blockSize = Math.max(MIN_BLOCK_SIZE, bytes);
+        return this;
+    }
+
+    /**
+     * Buffer of the archive written and of the files extracted
+     */
+    public Compressor bufferSize(int bytes) {
+        this.bufferSize = Math.max(8192, bytes);
+        return this;
+    }
+
+    public Compressor progress(Progress progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Zip one file, named in the archive without its folder
+     */
+    public void zip(File file, File dest) throws IOException {
+        zipFiles(Arrays.asList(file), dest);
+    }
+
+    /**
+     * Zip files, each named in the archive without its folder
+     */
+    public void zipFiles(List<File> files, File dest) throws IOException {
+        List<Source> sources = new ArrayList<>(files.size());
+        for (File file : files) {
+            sources.add(new Source(file, file.getName()));
+        }
+        new Job(new ZipFormat()).run(sources, dest);
+    }
+
+    /**
+     * Zip the files of folder and its sub folders, named from the folder
+     * name (folder/sub/file). Hidden files and folders are left out.
+     */
+    public void zipFolder(File folder, File dest) throws IOException {
+        List<Source> sources = new ArrayList<>();
+        collect(folder, folder.getName(), sources);
+        new Job(new ZipFormat()).run(sources, dest);
+    }
+
+    /**
+     * Gzip one file
+     */
+    public void gzip(File file, File dest) throws IOException {
+        new Job(new GzipFormat()).run(Arrays.asList(new Source(file, file.getName())), dest);
+    }
+
+    /**
+     * Extract all entries of zip into folder, several at the same time.
+     * An entry whose name points outside folder fails the whole call.
+     */
+    public void unzip(File zip, File folder) throws IOException {
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        String root = folder.getCanonicalPath() + File.separator;
+        ArrayDeque<Future<Long>> pending = new ArrayDeque<>();
+        boolean done = false;
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            List<ZipEntry> entries = new ArrayList<>();
+            long total = 0;
+            Enumeration<? extends ZipEntry> it = zipFile.entries();
+            while (it.hasMoreElements()) {
+                ZipEntry entry = it.nextElement();
+                entries.add(entry);
+                total += Math.max(0, entry.getSize());
+            }
+            long extracted = 0;
+            for (ZipEntry entry : entries) {
+                checkCancelled();
+                File target = new File(folder, entry.getName());
+                if (!(target.getCanonicalPath() + File.separator).startsWith(root)) {
+                    throw new IOException("Zip entry " + entry.getName() + " is outside of " + folder);
+                }
+                if (entry.isDirectory()) {
+                    target.mkdirs();
+                    continue;
+                }
+                pending.add(submit(new Extract(zipFile, entry, target)));
+                while (pending.size() >= parallelism) {
+                    extracted += get(pending.poll());
+                    report(extracted, total);
+                }
+            }
+            while (!pending.isEmpty()) {
+                extracted += get(pending.poll());
+                report(extracted, total);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                cancelAll(pending);
+            }
+        }
+    }
+
+    private void collect(File file, String name, List<Source> sources) {
+        if (file.isHidden()) {
+            return;
+        }
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    collect(child, name + "/" + child.getName(), sources);
+                }
+            }
+            return;
+        }
+        sources.add(new Source(file, name));
+    }
+
+    private void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Compression cancelled");
+        }
+    }
+
+    private void report(long done, long total) {
+        Progress p = progress;
+        if (p != null) {
+            p.update(done, total);
+        }
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        if (parallelism > 1) {
+            workers.execute(future);
+        } else {
+            future.run();
+        }
+        return future;
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compression");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void cancelAll(ArrayDeque<? extends Future<?>> pending) {
+        for (Future<?> future : pending) {
+            future.cancel(true);
+        }
+    }
+
+    private static void cancelPieces(ArrayDeque<Piece> pending) {
+        for (Piece piece : pending) {
+            piece.data.cancel(true);
+        }
+    }
+
+    /* a file and its name in the archive */
+    private static class Source {
+        final File file;
+        final String name;
+
+        Source(File file, String name) {
+            this.file = file;
+            this.name = name;
+        }
+    }
+
+    /* entry of the archive being written */
+    private static class Entry {
+        final byte[] name;
+        final long time;
+        final CRC32 crc = new CRC32();
+        long size;
+        long compressedSize;
+        long offset;
+
+        Entry(Source source) {
+            this.name = source.name.getBytes(UTF_8);
+            this.time = source.file.lastModified();
+        }
+    }
+
+    /* a block of an entry being compressed */
+    private static class Piece {
+        final Entry entry;
+        final boolean first;
+        final boolean last;
+        final int length;
+        final Future<byte[]> data;
+
+        Piece(Entry entry, boolean first, boolean last, int length, Future<byte[]> data) {
+            this.entry = entry;
+            this.first = first;
+            this.last = last;
+            this.length = length;
+            this.data = data;
+        }
+    }
+
+    /*
+     * one compression call: blocks are read and queued on the calling
+     * thread, written in order when the oldest is compressed
+     */
+    private class Job {
+        private final Format format;
+        private final ArrayDeque<Piece> pending = new ArrayDeque<>();
+        private long total;
+        private long written;
+
+        Job(Format format) {
+            this.format = format;
+        }
+
+        void run(List<Source> sources, File dest) throws IOException {
+            for (Source source : sources) {
+                total += source.file.length();
+            }
+            boolean done = false;
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(dest), bufferSize)) {
+                Output out = new Output(os);
+                for (Source source : sources) {
+                    read(source, out);
+                }
+                while (!pending.isEmpty()) {
+                    write(pending.poll(), out);
+                }
+                format.finish(out);
+                done = true;
+            } finally {
+                if (!done) {
+                    cancelPieces(pending);
+                    dest.delete();
+                }
+            }
+        }
+
+        private void read(Source source, Output out) throws IOException {
+            Entry entry = new Entry(source);
+            try (FileChannel in = FileChannel.open(source.file.toPath(), StandardOpenOption.READ)) {
+                long remaining = in.size();
+                byte[] dictionary = null;
+                boolean first = true;
+                do {
+                    checkCancelled();
+                    int n = (int) Math.min(blockSize, remaining);
+                    byte[] block = new byte[n];
+                    ByteBuffer buffer = ByteBuffer.wrap(block);
+                    while (buffer.hasRemaining()) {
+                        if (in.read(buffer) < 0) {
+                            throw new EOFException("File " + source.file + " shrank while it was compressed");
+                        }
+                    }
+                    remaining -= n;
+                    entry.crc.update(block, 0, n);
+                    entry.size += n;
+                    boolean last = remaining == 0;
+                    pending.add(new Piece(entry, first, last, n, submit(new Deflate(block, dictionary, last))));
+                    if (!last) {
+                        dictionary = Arrays.copyOfRange(block, Math.max(0, n - DICTIONARY_SIZE), n);
+                    }
+                    first = false;
+                    while (pending.size() >= parallelism) {
+                        write(pending.poll(), out);
+                    }
+                } while (remaining > 0);
+            }
+        }
+
+        private void write(Piece piece, Output out) throws IOException {
+            byte[] data = get(piece.data);
+            if (piece.first) {
+                piece.entry.offset = out.position;
+                format.begin(out, piece.entry);
+            }
+            out.write(data);
+            piece.entry.compressedSize += data.length;
+            if (piece.last) {
+                format.end(out, piece.entry);
+            }
+            written += piece.length;
+            report(written, total);
+        }
+    }
+
+    /*
+     * raw deflate of a block; every block but the last ends with a sync
+     * flush on a byte boundary, so the blocks join into one stream
+     */
+    private class Deflate implements Callable<byte[]> {
+        private final byte[] block;
+        private final byte[] dictionary;
+        private final boolean last;
+
+        Deflate(byte[] block, byte[] dictionary, boolean last) {
+            this.block = block;
+            this.dictionary = dictionary;
+            this.last = last;
+        }
+
+        @Override
+        public byte[] call() {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setStrategy(strategy);
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(block);
+                if (last) {
+                    deflater.finish();
+                }
+                byte[] out = new byte[block.length + (block.length >> 3) + 64];
+                int length = 0;
+                while (true) {
+                    if (length == out.length) {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    length += deflater.deflate(out, length, out.length - length,
+                            last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    if (last ? deflater.finished() : length < out.length) {
+                        return Arrays.copyOf(out, length);
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    private class Extract implements Callable<Long> {
+        private final ZipFile zipFile;
+        private final ZipEntry entry;
+        private final File target;
+
+        Extract(ZipFile zipFile, ZipEntry entry, File target) {
+            this.zipFile = zipFile;
+            this.entry = entry;
+            this.target = target;
+        }
+
+        @Override
+        public Long call() throws IOException {
+            File parent = target.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            long size = 0;
+            byte[] buffer = new byte[bufferSize];
+            try (InputStream in = zipFile.getInputStream(entry);
+                    FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                int n;
+                while ((n = read(in, buffer)) > 0) {
+                    checkCancelled();
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+                    while (data.hasRemaining()) {
+                        out.write(data);
+                    }
+                    size += n;
+                }
+            }
+            return size;
+        }
+
+        /* fill the buffer unless the entry ends, writes stay large */
+        private int read(InputStream in, byte[] buffer) throws IOException {
+            int length = 0;
+            int n;
+            while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) >= 0) {
+                length += n;
+            }
+            return length;
+        }
+    }
+
+    /* archive stream with its position, little endian numbers */
+    private static class Output {
+        private final OutputStream out;
+        long position;
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(byte[] data) throws IOException {
+            out.write(data);
+            position += data.length;
+        }
+
+        void writeShort(int v) throws IOException {
+            out.write(v & 0xFF);
+            out.write((v >>> 8) & 0xFF);
+            position += 2;
+        }
+
+        void writeInt(long v) throws IOException {
+            writeShort((int) (v & 0xFFFF));
+            writeShort((int) ((v >>> 16) & 0xFFFF));
+        }
+
+        void writeLong(long v) throws IOException {
+            writeInt(v & 0xFFFFFFFFL);
+            writeInt(v >>> 32);
+        }
+    }
+
+    /* what goes around the deflated data of the entries */
+    private interface Format {
+        void begin(Output out, Entry entry) throws IOException;
+
+        void end(Output out, Entry entry) throws IOException;
+
+        void finish(Output out) throws IOException;
+    }
+
+    /*
+     * zip with data descriptors, and the Zip64 fields the way
+     * ZipOutputStream writes them when an entry or the archive is past
+     * 4 GB or 65535 entries
+     */
+    private static class ZipFormat implements Format {
+        private final List<Entry> entries = new ArrayList<>();
+
+        @Override
+        public void begin(Output out, Entry entry) throws IOException {
+            out.writeInt(0x04034b50);
+            out.writeShort(20);
+            out.writeShort(ZIP_FLAGS);
+            out.writeShort(ZipEntry.DEFLATED);
+            out.writeInt(dosTime(entry.time));
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeShort(entry.name.length);
+            out.writeShort(0);
+            out.write(entry.name);
+        }
+
+        @Override
+        public void end(Output out, Entry entry) throws IOException {
+            out.writeInt(0x08074b50);
+            out.writeInt(entry.crc.getValue());
+            if (entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC) {
+                out.writeLong(entry.compressedSize);
+                out.writeLong(entry.size);
+            } else {
+                out.writeInt(entry.compressedSize);
+                out.writeInt(entry.size);
+            }
+            entries.add(entry);
+        }
+
+        @Override
+        public void finish(Output out) throws IOException {
+            long start = out.position;
+            for (Entry entry : entries) {
+                writeCentral(out, entry);
+            }
+            long size = out.position - start;
+            if (entries.size() >= ZIP64_MAGIC_COUNT || start >= ZIP64_MAGIC || size >= ZIP64_MAGIC) {
+                long end64 = out.position;
+                out.writeInt(0x06064b50);
+                out.writeLong(44);
+                out.writeShort(45);
+                out.writeShort(45);
+                out.writeInt(0);
+                out.writeInt(0);
+                out.writeLong(entries.size());
+                out.writeLong(entries.size());
+                out.writeLong(size);
+                out.writeLong(start);
+                out.writeInt(0x07064b50);
+                out.writeInt(0);
+                out.writeLong(end64);
+                out.writeInt(1);
+            }
+            out.writeInt(0x06054b50);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(Math.min(entries.size(), ZIP64_MAGIC_COUNT));
+            out.writeShort(Math.min(entries.size(), ZIP64_MAGIC_COUNT));
+            out.writeInt(Math.min(size, ZIP64_MAGIC));
+            out.writeInt(Math.min(start, ZIP64_MAGIC));
+            out.writeShort(0);
+        }
+
+        private void writeCentral(Output out, Entry entry) throws IOException {
+            boolean bigSize = entry.size >= ZIP64_MAGIC;
+            boolean bigCompressed = entry.compressedSize >= ZIP64_MAGIC;
+            boolean bigOffset = entry.offset >= ZIP64_MAGIC;
+            int extra = (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0);
+            int version = extra > 0 ? 45 : 20;
+            out.writeInt(0x02014b50);
+            out.writeShort(version);
+            out.writeShort(version);
+            out.writeShort(ZIP_FLAGS);
+            out.writeShort(ZipEntry.DEFLATED);
+            out.writeInt(dosTime(entry.time));
+            out.writeInt(entry.crc.getValue());
+            out.writeInt(bigCompressed ? ZIP64_MAGIC : entry.compressedSize);
+            out.writeInt(bigSize ? ZIP64_MAGIC : entry.size);
+            out.writeShort(entry.name.length);
+            out.writeShort(extra > 0 ? extra + 4 : 0);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeInt(0);
+            out.writeInt(bigOffset ? ZIP64_MAGIC : entry.offset);
+            out.write(entry.name);
+            if (extra > 0) {
+                out.writeShort(0x0001);
+                out.writeShort(extra);
+                if (bigSize) {
+                    out.writeLong(entry.size);
+                }
+                if (bigCompressed) {
+                    out.writeLong(entry.compressedSize);
+                }
+                if (bigOffset) {
+                    out.writeLong(entry.offset);
+                }
+            }
+        }
+
+        private static long dosTime(long time) {
+            Calendar c = Calendar.getInstance();
+            c.setTimeInMillis(time);
+            int year = c.get(Calendar.YEAR);
+            if (year < 1980) {
+                return (1 << 21) | (1 << 16);
+            }
+            return (long) (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21
+                    | c.get(Calendar.DAY_OF_MONTH) << 16 | c.get(Calendar.HOUR_OF_DAY) << 11
+                    | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+        }
+    }
+
+    private static class GzipFormat implements Format {
+
+        @Override
+        public void begin(Output out, Entry entry) throws IOException {
+            out.writeShort(0x8b1f);
+            out.writeShort(Deflater.DEFLATED);
+            out.writeInt(entry.time / 1000);
+            out.writeShort(0xFF00);
+        }
+
+        @Override
+        public void end(Output out, Entry entry) throws IOException {
+            out.writeInt(entry.crc.getValue());
+            out.writeInt(entry.size & 0xFFFFFFFFL);
+        }
+
+        @Override
+        public void finish(Output out) throws IOException {
+        }
+    }
+}
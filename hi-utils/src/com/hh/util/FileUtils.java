@@ -3,8 +3,6 @@ package com.hh.util;
 import com.google.common.io.Files;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -12,19 +10,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 import org.apache.commons.io.IOUtils;
 
 /**
@@ -58,6 +55,19 @@ public class FileUtils {
      * optional byte-order mark
      */
     public static final String UTF_16 = "UTF-16";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /* value of a hex digit by character, -1 for other characters */
+    private static final byte[] HEX_VALUES = new byte['f' + 1];
+    private static volatile ObjectCodec objectCodec = JavaObjectCodec.INSTANCE;
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[Character.forDigit(i, 16)] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(Character.forDigit(i, 16))] = (byte) i;
+        }
+    }
     
     /**
      * Hàm ghi chuỗi dữ liệu ra File
@@ -352,132 +362,125 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Codec of objectToByteArray and byteArrayToObject, Java serialization
+     * unless another one is set. Every reader of the bytes must use a codec
+     * which understands them: CompactObjectCodec reads Java serialization
+     * but JavaObjectCodec cannot read compact values.
+     */
+    public static void setObjectCodec(ObjectCodec codec) {
+        objectCodec = codec == null ? JavaObjectCodec.INSTANCE : codec;
+    }
+
+    public static ObjectCodec getObjectCodec() {
+        return objectCodec;
+    }
+
     public static byte[] objectToByteArray(Object obj) throws IOException {
-        byte[] bytes = null;
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                ObjectOutputStream oos = new ObjectOutputStream(bos);) {
-            oos.writeObject(obj);
-            oos.flush();
-            bytes = bos.toByteArray();
-        }
-        return bytes;
+        return objectCodec.encode(obj);
     }
 
     public static Object byteArrayToObject(byte[] bytes) throws IOException, ClassNotFoundException {
-        Object obj = null;
-        try (
-                ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-                ObjectInputStream ois = new ObjectInputStream(bis);) {
-            obj = ois.readObject();
-        }
-        return obj;
+        return objectCodec.decode(bytes);
     }    
     
     public static byte[] hexToByteArray(String s) {
         byte[] b = new byte[s.length() / 2];
-        for (int i = 0; i < b.length; i++) {
-            int index = i * 2;
-            int v = Integer.parseInt(s.substring(index, index + 2), 16);
-            b[i] = (byte) v;
-        }
+        decodeHex(s, 0, b.length * 2, b, 0);
+        return b;
+    }
+
+    public static byte[] hexToByteArray(char[] c, int offset, int length) {
+        byte[] b = new byte[length / 2];
+        decodeHex(CharBuffer.wrap(c, offset, length), 0, b.length * 2, b, 0);
         return b;
     }
+
+    /**
+     * Decode length hex digits of s from offset into out from outOffset,
+     * upper or lower case. A character which is not a hex digit throws
+     * NumberFormatException, as Integer.parseInt did.
+     */
+    public static void decodeHex(CharSequence s, int offset, int length, byte[] out, int outOffset) {
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            int hi = hexDigit(s, i);
+            int lo = hexDigit(s, i + 1);
+            out[outOffset++] = (byte) ((hi << 4) | lo);
+        }
+    }
+
+    private static int hexDigit(CharSequence s, int index) {
+        char c = s.charAt(index);
+        int v = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+        if (v < 0) {
+            throw new NumberFormatException("Invalid hex digit '" + c + "' at " + index);
+        }
+        return v;
+    }
     
     public static String byteArrayToHex(byte[] a) {
-        StringBuilder sb = new StringBuilder(a.length * 2);
-        for (byte b : a) {
-            sb.append(String.format("%02x", b));
+        return byteArrayToHex(a, 0, a.length);
+    }
+
+    public static String byteArrayToHex(byte[] a, int offset, int length) {
+        char[] c = new char[length * 2];
+        encodeHex(a, offset, length, c, 0);
+        return new String(c);
+    }
+
+    /**
+     * Hex of the remaining bytes of buffer, its position is not moved
+     */
+    public static String byteArrayToHex(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return byteArrayToHex(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        char[] c = new char[buffer.remaining() * 2];
+        for (int i = buffer.position(), j = 0; i < buffer.limit(); i++) {
+            int v = buffer.get(i) & 0xFF;
+            c[j++] = HEX_DIGITS[v >>> 4];
+            c[j++] = HEX_DIGITS[v & 0x0F];
+        }
+        return new String(c);
+    }
+
+    /**
+     * Write the lower case hex of length bytes of a into out from outOffset
+     */
+    public static void encodeHex(byte[] a, int offset, int length, char[] out, int outOffset) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int v = a[i] & 0xFF;
+            out[outOffset++] = HEX_DIGITS[v >>> 4];
+            out[outOffset++] = HEX_DIGITS[v & 0x0F];
         }
-        return sb.toString();
     }
     
+    /**
+     * Zip one file, compressed in parallel blocks (Compressor)
+     */
     public void zip(String srcFile, String destFile) throws Exception {
-        FileOutputStream fos = new FileOutputStream(destFile);
-        ZipOutputStream zipOut = new ZipOutputStream(fos);
-        File fileToZip = new File(srcFile);
-        FileInputStream fis = new FileInputStream(fileToZip);
-        ZipEntry zipEntry = new ZipEntry(fileToZip.getName());
-        zipOut.putNextEntry(zipEntry);
-        final byte[] bytes = new byte[1024];
-        int length;
-        while((length = fis.read(bytes)) >= 0) {
-            zipOut.write(bytes, 0, length);
-        }
-        zipOut.close();
-        fis.close();
-        fos.close();        
+        new Compressor().zip(new File(srcFile), new File(destFile));
     }
     
     public void zipLstFile(List<String> srcFiles, String destFile) throws Exception {
-        FileOutputStream fos = new FileOutputStream(destFile);
-        ZipOutputStream zipOut = new ZipOutputStream(fos);
+        List<File> files = new ArrayList<>(srcFiles.size());
         for (String srcFile : srcFiles) {
-            File fileToZip = new File(srcFile);
-            FileInputStream fis = new FileInputStream(fileToZip);
-            ZipEntry zipEntry = new ZipEntry(fileToZip.getName());
-            zipOut.putNextEntry(zipEntry);
- 
-            byte[] bytes = new byte[1024];
-            int length;
-            while((length = fis.read(bytes)) >= 0) {
-                zipOut.write(bytes, 0, length);
-            }
-            fis.close();
+            files.add(new File(srcFile));
         }
-        zipOut.close();
-        fos.close();        
+        new Compressor().zipFiles(files, new File(destFile));
     }
     
+    /**
+     * Zip a folder without its hidden files, small files are compressed
+     * side by side (Compressor)
+     */
     public void zipFolder(String srcFolder, String destFile) throws Exception {
-        FileOutputStream fos = new FileOutputStream(destFile);
-        ZipOutputStream zipOut = new ZipOutputStream(fos);
-        File fileToZip = new File(srcFolder);
- 
-        zipEachFileInFolder(fileToZip, fileToZip.getName(), zipOut);
-        zipOut.close();
-        fos.close();        
-    }
-    
-    private void zipEachFileInFolder(File fileToZip, String fileName, ZipOutputStream zipOut) throws Exception {
-        if (fileToZip.isHidden()) {
-            return;
-        }
-        if (fileToZip.isDirectory()) {
-            File[] children = fileToZip.listFiles();
-            for (File childFile : children) {
-                zipEachFileInFolder(childFile, fileName + "/" + childFile.getName(), zipOut);
-            }
-            return;
-        }
-        FileInputStream fis = new FileInputStream(fileToZip);
-        ZipEntry zipEntry = new ZipEntry(fileName);
-        zipOut.putNextEntry(zipEntry);
-        byte[] bytes = new byte[1024];
-        int length;
-        while ((length = fis.read(bytes)) >= 0) {
-            zipOut.write(bytes, 0, length);
-        }
-        fis.close();        
+        new Compressor().zipFolder(new File(srcFolder), new File(destFile));
     }
     
     public void unzip(String fileZip, String folder) throws Exception {
-        File newFolder = new File(folder);
-        if(!newFolder.exists()) newFolder.mkdir();
-        byte[] buffer = new byte[1024];
-        ZipInputStream zis = new ZipInputStream(new FileInputStream(fileZip));
-        ZipEntry zipEntry = zis.getNextEntry();
-        while(zipEntry != null){
-            String fileName = zipEntry.getName();
-            File newFile = new File(folder + File.separator + fileName);
-            FileOutputStream fos = new FileOutputStream(newFile);
-            int len;
-            while ((len = zis.read(buffer)) > 0) {
-                fos.write(buffer, 0, len);
-            }
-            fos.close();
-            zipEntry = zis.getNextEntry();
-        }
-        zis.closeEntry();
-        zis.close();        
+        new Compressor().unzip(new File(fileZip), new File(folder));
     }    
 }
@@ -0,0 +1,69 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+/**
+ * Java serialization, the format objectToByteArray has always written.
+ * Each thread reuses its output buffer instead of growing a new one from
+ * 32 bytes for every value; a buffer grown beyond MAX_KEPT_BUFFER is
+ * dropped after use so one large value does not stay on the heap.
+ */
+public class JavaObjectCodec implements ObjectCodec {
+
+    public static final JavaObjectCodec INSTANCE = new JavaObjectCodec();
+    public static final int MAX_KEPT_BUFFER = 1024 * 1024;
+
+    private static final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(4096);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        byte[] copy() {
+            return Arrays.copyOf(buf, count);
+        }
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        Buffer bos = buffers.get();
+        bos.reset();
+        try {
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(value);
+            oos.flush();
+            return bos.copy();
+        } finally {
+            if (bos.capacity() > MAX_KEPT_BUFFER) {
+                buffers.remove();
+            }
+        }
+    }
+
+    @Override
+    public Object decode(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return ois.readObject();
+        }
+    }
+}
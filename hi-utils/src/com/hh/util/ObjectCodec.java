@@ -0,0 +1,20 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.hh.util;
+
+import java.io.IOException;
+
+/**
+ * Conversion of objects to bytes, used by FileUtils.objectToByteArray and
+ * byteArrayToObject (FileUtils.setObjectCodec). Implementations are shared
+ * by all threads and must be thread-safe.
+ */
+public interface ObjectCodec {
+
+    byte[] encode(Object value) throws IOException;
+
+    Object decode(byte[] data) throws IOException, ClassNotFoundException;
+}
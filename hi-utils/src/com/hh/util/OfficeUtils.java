@@ -12,13 +12,18 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import org.apache.poi.ss.SpreadsheetVersion;
 import org.apache.poi.ss.usermodel.BorderStyle;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.DataFormat;
 import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFCellStyle;
 import org.apache.poi.xssf.usermodel.XSSFFormulaEvaluator;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
@@ -30,6 +35,8 @@ import org.apache.poi.xssf.usermodel.XSSFWorkbook;
  */
 public class OfficeUtils {
     private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(OfficeUtils.class.getSimpleName());
+    /* số dòng giữ trong bộ nhớ khi xuất theo luồng */
+    public static final int STREAM_WINDOW = 1000;
     /**
      * Hàm xuất dữ liệu ra file xlsx với template
      *
@@ -49,7 +56,9 @@ public class OfficeUtils {
             String fontName, int fontSize, List<Integer> percentColumn) 
             throws Exception {
         if(data.size() > 1000000) {
-            log.info("Data size > 1000000 row, cannot write to 1 sheet xlsx");
+            log.info("Data size > 1000000 row, write with exportToXlsxStream");
+            exportToXlsxStream(data.iterator(), templateFile, headerHeight, outputFile, sheetIndex,
+                    templateParam, percentColumn);
             return;
         }
         
@@ -305,6 +314,261 @@ public class OfficeUtils {
     public static void exportToXlsx(List<List> data, String templateFile, String outputFile, int sheetIndex, HashMap templateParam) throws Exception {
         exportToXlsx(data, templateFile, 0, outputFile, sheetIndex, 0, templateParam, "Times New Roman", 11, null);
     }      
+
+    /**
+     * Hàm xuất dữ liệu ra file xlsx theo luồng (SXSSF): chỉ giữ
+     * STREAM_WINDOW dòng trong bộ nhớ, các dòng đã ghi được nén vào file
+     * tạm. Dữ liệu được đọc lần lượt từ rows, có thể là RowCursor của
+     * DbcpConnector.openCursor. Khi vượt quá số dòng của một sheet, dữ
+     * liệu được ghi tiếp sang sheet mới với phần header của file mẫu.
+     * Phần footer được ghi sau dòng cuối cùng. Công thức được tính lại
+     * khi mở file.
+     *
+     * @param rows dữ liệu, mỗi phần tử là một dòng
+     * @param templateFile đường dẫn file mẫu
+     * @param headerHeight số lượng hàng của Header
+     * @param outputFile đường dẫn xuất file
+     * @param sheetIndex sheet ghi dữ liệu
+     * @param templateParam danh sách giá trị của tham số trong file mẫu
+     * @param percentColumn các cột định dạng phần trăm
+     * @return số dòng dữ liệu đã ghi
+     */
+    public static long exportToXlsxStream(Iterator<? extends List> rows, String templateFile, int headerHeight,
+            String outputFile, int sheetIndex, HashMap templateParam, List<Integer> percentColumn)
+            throws Exception {
+        if(!rows.hasNext()) {
+            log.info("Data size <= 0 row, cannot write to xlsx");
+            return 0;
+        }
+        log.info("templateFile : " + templateFile);
+        log.info("outputFile : " + outputFile);
+        XSSFWorkbook template;
+        XSSFSheet templateSheet;
+        if(templateFile != null) {
+            try (FileInputStream in = new FileInputStream(new File(templateFile))) {
+                template = new XSSFWorkbook(in);
+            }
+            templateSheet = template.getSheetAt(sheetIndex);
+        } else {
+            template = new XSSFWorkbook();
+            templateSheet = template.createSheet();
+        }
+        List first = rows.next();
+        int columns = first.size();
+
+        // style dùng chung cho mọi ô, không tạo lại theo từng ô
+        CellStyle numberStyle = template.createCellStyle();
+        numberStyle.setDataFormat(template.createDataFormat().getFormat("#,##0"));
+        CellStyle percentStyle = template.createCellStyle();
+        percentStyle.setDataFormat(template.createDataFormat().getFormat("0.00%"));
+        CellStyle[] columnStyles = new CellStyle[columns];
+        boolean[] numeric = new boolean[columns];
+        Row templateRow = templateFile != null ? templateSheet.getRow(headerHeight + 1) : null;
+        for (int j = 0; j < columns; j++) {
+            Cell templateCell = templateRow == null ? null : templateRow.getCell(j);
+            numeric[j] = templateCell != null && templateCell.getCellType() == Cell.CELL_TYPE_NUMERIC;
+            columnStyles[j] = percentColumn != null && percentColumn.contains(Integer.valueOf(j))
+                    ? percentStyle : numberStyle;
+        }
+
+        // Header: điền tham số, giữ lại để ghi vào các sheet tiếp theo
+        if(templateParam != null) {
+            for (int i = 1; i <= headerHeight; i++) {
+                fillTemplateRow(templateSheet.getRow(i), columns, templateParam);
+            }
+        }
+        List<Object[]> header = copyRows(templateSheet, 0, Math.min(headerHeight, templateSheet.getLastRowNum()), columns);
+        List<CellRangeAddress> headerMerges = new ArrayList();
+        List<CellRangeAddress> footerMerges = new ArrayList();
+        int footerStart = headerHeight + 3;
+        for (int i = templateSheet.getNumMergedRegions() - 1; i >= 0; i--) {
+            CellRangeAddress region = templateSheet.getMergedRegion(i);
+            if (region.getFirstRow() <= headerHeight) {
+                headerMerges.add(region);
+            } else {
+                if (headerHeight != 0 && region.getFirstRow() >= footerStart && region.getLastRow() < footerStart + 10) {
+                    footerMerges.add(region);
+                }
+                templateSheet.removeMergedRegion(i);
+            }
+        }
+
+        // Footer: sao chép trước khi xóa các dòng sau header khỏi file mẫu
+        List<Object[]> footer = new ArrayList();
+        if(headerHeight != 0) {
+            footer = copyRows(templateSheet, footerStart, footerStart + 9, columns);
+        }
+        for (int i = templateSheet.getLastRowNum(); i > headerHeight; i--) {
+            Row row = templateSheet.getRow(i);
+            if (row != null) {
+                templateSheet.removeRow(row);
+            }
+        }
+
+        SXSSFWorkbook wb = new SXSSFWorkbook(template, STREAM_WINDOW, true);
+        long written = 0;
+        try {
+            Sheet sheet = wb.getSheet(templateSheet.getSheetName());
+            int maxRows = SpreadsheetVersion.EXCEL2007.getMaxRows();
+            int rowIndex = headerHeight + 1;
+            List data = first;
+            log.info("Dang ghi du lieu bao cao phan BODY ....");
+            while (data != null) {
+                if (rowIndex >= maxRows) {
+                    sheet = wb.createSheet();
+                    for (int j = 0; j < columns; j++) {
+                        sheet.setColumnWidth(j, templateSheet.getColumnWidth(j));
+                    }
+                    writeRows(sheet, 0, header, null);
+                    for (CellRangeAddress region : headerMerges) {
+                        sheet.addMergedRegion(region.copy());
+                    }
+                    rowIndex = headerHeight + 1;
+                }
+                Row row = sheet.createRow(rowIndex++);
+                for (int j = 0; j < data.size(); j++) {
+                    Object value = data.get(j);
+                    Cell cell = row.createCell(j);
+                    cell.setCellStyle(j < columns ? columnStyles[j] : numberStyle);
+                    if (value == null) {
+                        continue;
+                    }
+                    if (j < columns && numeric[j]) {
+                        if (value instanceof Number) {
+                            cell.setCellValue(((Number) value).doubleValue());
+                        } else {
+                            try {
+                                cell.setCellValue(Double.parseDouble(value.toString()));
+                            } catch (NumberFormatException ex) {
+                                cell.setCellValue(value.toString());
+                            }
+                        }
+                    } else {
+                        cell.setCellValue(value.toString());
+                    }
+                }
+                written++;
+                if (written % 100000 == 0) log.info("ghi dong " + written);
+                data = rows.hasNext() ? rows.next() : null;
+            }
+            log.info("Hoan thanh ghi du lieu BODY.");
+
+            // Footer sau dòng dữ liệu cuối cùng, như exportToXlsx
+            int footerRow = rowIndex + 2;
+            if (!footer.isEmpty() && footerRow + footer.size() <= maxRows) {
+                writeRows(sheet, footerRow, footer, templateParam);
+                for (CellRangeAddress region : footerMerges) {
+                    int shift = footerRow - footerStart;
+                    sheet.addMergedRegion(new CellRangeAddress(region.getFirstRow() + shift,
+                            region.getLastRow() + shift, region.getFirstColumn(), region.getLastColumn()));
+                }
+            }
+            template.setForceFormulaRecalculation(true);
+            try (FileOutputStream out = new FileOutputStream(new File(outputFile))) {
+                wb.write(out);
+            }
+            log.info("Write success file : " + outputFile + ", " + written + " rows");
+        } finally {
+            // xóa các file tạm
+            wb.dispose();
+        }
+        return written;
+    }
+
+    /**
+     * Hàm xuất dữ liệu ra file xlsx theo luồng
+     *
+     * @param rows dữ liệu, mỗi phần tử là một dòng
+     * @param templateFile đường dẫn file mẫu
+     * @param outputFile đường dẫn xuất file
+     * @return số dòng dữ liệu đã ghi
+     */
+    public static long exportToXlsxStream(Iterator<? extends List> rows, String templateFile, String outputFile) throws Exception {
+        return exportToXlsxStream(rows, templateFile, 0, outputFile, 0, null, null);
+    }
+
+    /*
+     * thay tham số của file mẫu trong các ô của row
+     */
+    private static void fillTemplateRow(Row row, int columns, HashMap templateParam) {
+        if (row == null) {
+            return;
+        }
+        for (int j = 0; j < columns; j++) {
+            Cell cell = row.getCell(j);
+            if (cell != null && cell.getCellType() == Cell.CELL_TYPE_STRING) {
+                Object value = templateValue(cell.getStringCellValue(), templateParam);
+                if (value instanceof Double) {
+                    cell.setCellValue((Double) value);
+                } else {
+                    cell.setCellValue(value.toString());
+                }
+            }
+        }
+    }
+
+    private static Object templateValue(String text, HashMap templateParam) {
+        if (text.equals("$date")) {
+            return new SimpleDateFormat("dd/MM/yyyy").format(new Date());
+        }
+        Object value = templateParam.get(text);
+        return value == null ? text : value;
+    }
+
+    /*
+     * style và giá trị của các ô trong các dòng from..to, mỗi dòng là một
+     * mảng {style, giá trị} theo cột, null nếu dòng không tồn tại
+     */
+    private static List<Object[]> copyRows(Sheet sheet, int from, int to, int columns) {
+        List<Object[]> rows = new ArrayList();
+        for (int i = from; i <= to; i++) {
+            Row row = sheet.getRow(i);
+            if (row == null) {
+                rows.add(null);
+                continue;
+            }
+            Object[] cells = new Object[columns * 2];
+            for (int j = 0; j < columns; j++) {
+                Cell cell = row.getCell(j);
+                if (cell != null) {
+                    cells[j * 2] = cell.getCellStyle();
+                    if (cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
+                        cells[j * 2 + 1] = cell.getNumericCellValue();
+                    } else if (cell.getCellType() == Cell.CELL_TYPE_STRING) {
+                        cells[j * 2 + 1] = cell.getStringCellValue();
+                    }
+                }
+            }
+            rows.add(cells);
+        }
+        return rows;
+    }
+
+    private static void writeRows(Sheet sheet, int from, List<Object[]> rows, HashMap templateParam) {
+        for (int i = 0; i < rows.size(); i++) {
+            Object[] cells = rows.get(i);
+            if (cells == null) {
+                continue;
+            }
+            Row row = sheet.createRow(from + i);
+            for (int j = 0; j < cells.length / 2; j++) {
+                if (cells[j * 2] == null) {
+                    continue;
+                }
+                Cell cell = row.createCell(j);
+                cell.setCellStyle((CellStyle) cells[j * 2]);
+                Object value = cells[j * 2 + 1];
+                if (value instanceof String && templateParam != null) {
+                    value = templateValue((String) value, templateParam);
+                }
+                if (value instanceof Double) {
+                    cell.setCellValue((Double) value);
+                } else if (value != null) {
+                    cell.setCellValue(value.toString());
+                }
+            }
+        }
+    }
     
 //    public static void main(String[] args) throws Exception {
 //        List<List> value = new ArrayList();
@@ -29,6 +29,7 @@ import com.hh.net.httpserver.HttpExchange;
 import com.hh.net.httpserver.HttpHandler;
 import com.sun.istack.internal.NotNull;
 import com.sun.istack.internal.Nullable;
+import com.hh.xml.internal.ws.api.server.AsyncProvider;
 import com.hh.xml.internal.ws.resources.HttpserverMessages;
 import com.hh.xml.internal.ws.transport.http.HttpAdapter;
 import com.hh.xml.internal.ws.transport.http.WSHTTPConnection;
@@ -83,22 +84,46 @@ final class WSHttpHandler implements HttpHandler {
         }
     }
 
-    public void handleExchange(HttpExchange msg) throws IOException {
+    public void handleExchange(final HttpExchange msg) throws IOException {
         WSHTTPConnection con = new ServerConnectionImpl(adapter,msg);
+        boolean async = false;
         try {
             logger.fine("Received HTTP request:"+msg.getRequestURI());
             String method = msg.getRequestMethod();
             if(method.equals(GET_METHOD) || method.equals(POST_METHOD) || method.equals(HEAD_METHOD)
             || method.equals(PUT_METHOD) || method.equals(DELETE_METHOD)) {
-                adapter.handle(con);
+                if (isAsyncEndpoint()) {
+                    // the fiber suspends in the AsyncProvider and this thread returns;
+                    // the exchange is closed when the response has been written
+                    async = true;
+                    adapter.invokeAsync(con, new HttpAdapter.CompletionCallback() {
+                        public void onCompletion() {
+                            msg.close();
+                        }
+                    });
+                } else {
+                    adapter.handle(con);
+                }
             } else {
                 logger.warning(HttpserverMessages.UNEXPECTED_HTTP_METHOD(method));
             }
+        } catch (IOException e) {
+            async = false;
+            throw e;
+        } catch (RuntimeException e) {
+            async = false;
+            throw e;
         } finally {
-            msg.close();
+            if (!async) {
+                msg.close();
+            }
         }
     }
 
+    private boolean isAsyncEndpoint() {
+        return AsyncProvider.class.isAssignableFrom(adapter.getEndpoint().getImplementationClass());
+    }
+
     /**
      * Wrapping the processing of request in a Runnable so that it can be
      * executed in Executor.